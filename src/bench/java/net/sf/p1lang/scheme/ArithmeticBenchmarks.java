@@ -0,0 +1,81 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.math.BigInteger;
+import java.util.List;
+
+/**
+ * Generic arithmetic. The builtin nodes are evaluated directly on literal operands, which
+ * isolates the cost of the numeric tower dispatch from the rest of the interpreter.
+ */
+final class ArithmeticBenchmarks
+{
+private ArithmeticBenchmarks () {}
+
+private static final class BuiltinOp extends Benchmark
+{
+  private final AST m_node;
+  private EvalContext m_ctx;
+
+  BuiltinOp ( String name, AST node )
+  {
+    super(name);
+    m_node = node;
+  }
+
+  public void setUp () throws Exception
+  {
+    m_ctx = new EvalContext( null, null );
+  }
+
+  public Object run () throws Exception
+  {
+    return m_node.evalValue( null, m_ctx );
+  }
+}
+
+private static AST[] args ( Object a, Object b )
+{
+  return new AST[]{ new AST.Lit( null, a ), new AST.Lit( null, b ) };
+}
+
+static void register ( List<Benchmark> list )
+{
+  SchemeFixInt f1 = SchemeFixInt.make( 123456 );
+  SchemeFixInt f2 = SchemeFixInt.make( 654321 );
+  SchemeBigInt b1 = SchemeBigInt.makeBigInt( BigInteger.valueOf( Long.MAX_VALUE ).shiftLeft( 10 ) );
+  SchemeBigInt b2 = SchemeBigInt.makeBigInt( BigInteger.valueOf( Long.MAX_VALUE ).shiftLeft( 20 ) );
+  SchemeReal r1 = SchemeReal.make( 1.5 );
+  SchemeReal r2 = SchemeReal.make( 2.25 );
+  SchemeFixInt big = SchemeFixInt.make( Long.MAX_VALUE / 2 );
+
+  list.add( new BuiltinOp( "arith.add-fixnum", new Builtins.Add( null, args( f1, f2 ) ) ) );
+  list.add( new BuiltinOp( "arith.add-bignum", new Builtins.Add( null, args( b1, b2 ) ) ) );
+  list.add( new BuiltinOp( "arith.add-real", new Builtins.Add( null, args( r1, r2 ) ) ) );
+  list.add( new BuiltinOp( "arith.add-mixed", new Builtins.Add( null, args( f1, r2 ) ) ) );
+  list.add( new BuiltinOp( "arith.mul-fixnum", new Builtins.Mul( null, args( f1, f2 ) ) ) );
+  list.add( new BuiltinOp( "arith.mul-overflow", new Builtins.Mul( null, args( big, big ) ) ) );
+  list.add( new BuiltinOp( "arith.lt-fixnum", new Builtins.NumberLT( null, args( f1, f2 ) ) ) );
+
+  list.add( new SchemeBenchmark( "arith.sum-loop",
+    "(define (sum i acc) (if (= i 0) acc (sum (- i 1) (+ acc i))))",
+    "(sum 10000 0)" ) );
+  list.add( new SchemeBenchmark( "arith.do-loop",
+    "(define (count-up n) (do ((i 0 (+ i 1)) (acc 0 (+ acc i))) ((= i n) acc)))",
+    "(count-up 10000)" ) );
+  list.add( new SchemeBenchmark( "arith.nary-loop",
+    "(define (nary n) (let loop ((i 0) (acc 0))" +
+    "  (if (< i n) (loop (+ i 1) (max acc (* i 2 3) (- i 1 2))) acc)))",
+    "(nary 10000)" ) );
+  list.add( new SchemeBenchmark( "arith.first-class",
+    "(define lst (iota 1000))",
+    "(list (fold + 0 lst) (apply max lst) (apply * (iota 10 1)))" ) );
+}
+
+} // class
@@ -0,0 +1,40 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+/**
+ * A single benchmark executed by {@link BenchmarkRunner}.
+ *
+ * <p>{@link #run()} performs exactly one operation. The runner calls it in a tight loop and
+ * reports the throughput in operations per second, so everything which is not part of the
+ * measured operation (creating the interpreter, compiling the test program, etc.) belongs in
+ * {@link #setUp()}.
+ */
+abstract class Benchmark
+{
+public final String name;
+
+protected Benchmark ( String name )
+{
+  this.name = name;
+}
+
+public void setUp () throws Exception
+{}
+
+/**
+ * Perform one operation.
+ * @return the result of the operation. The runner keeps it alive so the JIT can't remove the
+ *   computation as dead code
+ */
+public abstract Object run () throws Exception;
+
+public void tearDown () throws Exception
+{}
+
+} // class
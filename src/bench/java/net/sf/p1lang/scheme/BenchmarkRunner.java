@@ -0,0 +1,302 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the benchmark suite and optionally writes the results as JSON.
+ *
+ * <p>Every benchmark is executed in a number of warmup iterations followed by a number of
+ * measurement iterations of fixed duration. For each measurement iteration we record the
+ * throughput and, if the JVM supports it, the number of bytes allocated per operation.
+ *
+ * <p>The JSON layout follows the one produced by JMH ({@code -rf json}), so the results can be
+ * fed to the same tools when tracking regressions across releases.
+ *
+ * <p>With {@code -b} the Scheme benchmarks evaluate within an unlimited {@link Budget}, which
+ * measures the cost of checking budgets.
+ *
+ * <pre>
+ * Usage: BenchmarkRunner [-w warmups] [-i iterations] [-t millis] [-o file.json] [-l] [-b] [regex...]
+ * </pre>
+ */
+public final class BenchmarkRunner
+{
+private int m_warmups = 3;
+private int m_iterations = 5;
+private long m_iterMillis = 1000;
+private String m_outFile;
+private boolean m_listOnly;
+private final List<Pattern> m_filters = new ArrayList<Pattern>();
+
+private final PrintWriter m_out = new PrintWriter( System.out, true );
+
+/** Results are stored here so the JIT cannot eliminate the benchmarked operations */
+private Object m_sink;
+
+private static final ThreadMXBean s_threads = ManagementFactory.getThreadMXBean();
+
+private static final class Result
+{
+  final Benchmark bench;
+  final double[] opsPerSec;
+  final double[] bytesPerOp;
+
+  Result ( Benchmark bench, int iterations )
+  {
+    this.bench = bench;
+    this.opsPerSec = new double[iterations];
+    this.bytesPerOp = new double[iterations];
+  }
+}
+
+static List<Benchmark> allBenchmarks ()
+{
+  ArrayList<Benchmark> res = new ArrayList<Benchmark>();
+  CallBenchmarks.register( res );
+  EngineBenchmarks.register( res );
+  ContinuationBenchmarks.register( res );
+  CoroutineBenchmarks.register( res );
+  LoopBenchmarks.register( res );
+  ValuesBenchmarks.register( res );
+  CaseBenchmarks.register( res );
+  ArithmeticBenchmarks.register( res );
+  ReaderBenchmarks.register( res );
+  LibraryBenchmarks.register( res );
+  BootstrapBenchmarks.register( res );
+  return res;
+}
+
+private boolean selected ( Benchmark b )
+{
+  if (m_filters.isEmpty())
+    return true;
+  for ( Pattern p : m_filters )
+    if (p.matcher( b.name ).find())
+      return true;
+  return false;
+}
+
+private static long allocatedBytes ()
+{
+  if (s_threads instanceof com.sun.management.ThreadMXBean)
+  {
+    com.sun.management.ThreadMXBean tb = (com.sun.management.ThreadMXBean) s_threads;
+    if (tb.isThreadAllocatedMemorySupported() && tb.isThreadAllocatedMemoryEnabled())
+      return tb.getThreadAllocatedBytes( Thread.currentThread().getId() );
+  }
+  return -1;
+}
+
+/**
+ * Run the benchmark for the specified time.
+ * @return {operations, elapsed nanoseconds, allocated bytes or -1}
+ */
+private long[] iteration ( Benchmark b ) throws Exception
+{
+  final long duration = m_iterMillis * 1000000L;
+  long ops = 0;
+  int batch = 1;
+
+  long bytes = allocatedBytes();
+  long start = System.nanoTime();
+  long prev = start, now;
+  do
+  {
+    for ( int i = 0; i < batch; ++i )
+      m_sink = b.run();
+    ops += batch;
+    now = System.nanoTime();
+    // Grow the batch until it takes about a millisecond, so reading the clock doesn't
+    // dominate very short operations
+    if (now - prev < 1000000L && batch < (1 << 24))
+      batch <<= 1;
+    prev = now;
+  }
+  while (now - start < duration);
+
+  long elapsed = now - start;
+  long allocated = allocatedBytes();
+  return new long[]{ ops, elapsed, bytes >= 0 && allocated >= 0 ? allocated - bytes : -1 };
+}
+
+private Result runBenchmark ( Benchmark b ) throws Exception
+{
+  Result res = new Result( b, m_iterations );
+  b.setUp();
+  try
+  {
+    for ( int i = 0; i < m_warmups; ++i )
+    {
+      long[] r = iteration( b );
+      m_out.println( String.format( "# Warmup %d: %.3f ops/s", i+1, r[0] * 1e9 / r[1] ) );
+    }
+    for ( int i = 0; i < m_iterations; ++i )
+    {
+      long[] r = iteration( b );
+      res.opsPerSec[i] = r[0] * 1e9 / r[1];
+      res.bytesPerOp[i] = r[2] >= 0 ? (double)r[2] / r[0] : Double.NaN;
+      m_out.println( String.format( "Iteration %d: %.3f ops/s %.1f B/op",
+                                    i+1, res.opsPerSec[i], res.bytesPerOp[i] ) );
+    }
+  }
+  finally
+  {
+    b.tearDown();
+    m_sink = null;
+  }
+  return res;
+}
+
+private static double mean ( double[] v )
+{
+  double sum = 0;
+  for ( double d : v )
+    sum += d;
+  return sum / v.length;
+}
+
+/**
+ * Half-width of the 99.9% confidence interval, using the normal approximation.
+ */
+private static double error ( double[] v )
+{
+  if (v.length < 2)
+    return Double.NaN;
+  double m = mean( v ), sq = 0;
+  for ( double d : v )
+    sq += (d - m) * (d - m);
+  return 3.291 * Math.sqrt( sq / (v.length - 1) ) / Math.sqrt( v.length );
+}
+
+private static String num ( double d )
+{
+  return Double.isNaN( d ) || Double.isInfinite( d ) ? "\"NaN\"" : Double.toString( d );
+}
+
+private static void metric ( PrintWriter w, double[] v, String unit, String indent )
+{
+  w.println( indent + "\"score\" : " + num( mean( v ) ) + "," );
+  w.println( indent + "\"scoreError\" : " + num( error( v ) ) + "," );
+  w.println( indent + "\"scoreUnit\" : \"" + unit + "\"," );
+  w.print( indent + "\"rawData\" : [ [ " );
+  for ( int i = 0; i < v.length; ++i )
+  {
+    if (i > 0)
+      w.print( ", " );
+    w.print( num( v[i] ) );
+  }
+  w.println( " ] ]" );
+}
+
+private void writeJson ( List<Result> results ) throws IOException
+{
+  PrintWriter w = new PrintWriter( new OutputStreamWriter( new FileOutputStream( m_outFile ), "UTF-8" ) );
+  try
+  {
+    w.println( "[" );
+    for ( int i = 0; i < results.size(); ++i )
+    {
+      Result r = results.get( i );
+      w.println( "  {" );
+      w.println( "    \"benchmark\" : \"" + r.bench.name + "\"," );
+      w.println( "    \"mode\" : \"thrpt\"," );
+      w.println( "    \"jdkVersion\" : \"" + System.getProperty( "java.version" ) + "\"," );
+      w.println( "    \"warmupIterations\" : " + m_warmups + "," );
+      w.println( "    \"measurementIterations\" : " + m_iterations + "," );
+      w.println( "    \"measurementTime\" : \"" + m_iterMillis + " ms\"," );
+      w.println( "    \"primaryMetric\" : {" );
+      metric( w, r.opsPerSec, "ops/s", "      " );
+      w.println( "    }," );
+      w.println( "    \"secondaryMetrics\" : {" );
+      w.println( "      \"gc.alloc.rate.norm\" : {" );
+      metric( w, r.bytesPerOp, "B/op", "        " );
+      w.println( "      }" );
+      w.println( "    }" );
+      w.println( i < results.size() - 1 ? "  }," : "  }" );
+    }
+    w.println( "]" );
+  }
+  finally
+  {
+    w.close();
+  }
+}
+
+private void parseArgs ( String[] args )
+{
+  for ( int i = 0; i < args.length; ++i )
+  {
+    String a = args[i];
+    if ("-w".equals( a ))
+      m_warmups = Integer.parseInt( args[++i] );
+    else if ("-i".equals( a ))
+      m_iterations = Integer.parseInt( args[++i] );
+    else if ("-t".equals( a ))
+      m_iterMillis = Long.parseLong( args[++i] );
+    else if ("-o".equals( a ))
+      m_outFile = args[++i];
+    else if ("-l".equals( a ))
+      m_listOnly = true;
+    else if ("-b".equals( a ))
+      SchemeBenchmark.s_budget = true;
+    else if (a.startsWith( "-" ))
+      throw new IllegalArgumentException( "Unknown option "+ a );
+    else
+      m_filters.add( Pattern.compile( a ) );
+  }
+  if (m_iterations < 1 || m_warmups < 0 || m_iterMillis < 1)
+    throw new IllegalArgumentException( "Invalid iteration settings" );
+}
+
+private void run () throws Exception
+{
+  ArrayList<Result> results = new ArrayList<Result>();
+  for ( Benchmark b : allBenchmarks() )
+  {
+    if (!selected( b ))
+      continue;
+    if (m_listOnly)
+    {
+      m_out.println( b.name );
+      continue;
+    }
+    m_out.println( "# Benchmark: "+ b.name );
+    results.add( runBenchmark( b ) );
+  }
+
+  if (m_listOnly)
+    return;
+
+  m_out.println();
+  m_out.println( String.format( "%-40s %16s %12s %12s", "Benchmark", "ops/s", "error", "B/op" ) );
+  for ( Result r : results )
+    m_out.println( String.format( "%-40s %16.3f %12.3f %12.1f", r.bench.name,
+                                  mean( r.opsPerSec ), error( r.opsPerSec ), mean( r.bytesPerOp ) ) );
+
+  if (m_outFile != null)
+    writeJson( results );
+}
+
+public static void main ( String[] args ) throws Exception
+{
+  BenchmarkRunner runner = new BenchmarkRunner();
+  runner.parseArgs( args );
+  runner.run();
+}
+
+} // class
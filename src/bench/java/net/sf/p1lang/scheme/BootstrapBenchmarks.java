@@ -0,0 +1,181 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.io.StringReader;
+import java.util.List;
+
+/**
+ * Creating a new interpreter, which compiles and evaluates the whole standard library. It is
+ * loaded from the prebuilt image (see {@link BootImage}) or parsed from the source.
+ *
+ * <p>The {@code bootstrap.stages.N} benchmarks additionally evaluate N synthetic stages, each of
+ * which defines a function and a macro using the definitions of the previous stage. The time
+ * should grow linearly with N.
+ *
+ * <p>{@code bootstrap.fork} forks a bootstrapped interpreter (see {@link SchemeInterpreter#fork}).
+ * A fork allocates nothing temporary, so its bytes per operation are the memory retained by
+ * every fork. {@code bootstrap.fork-eval} also evaluates a small request in the fork.
+ *
+ * <p>The {@code .lazy} variants compile the bodies of the top level procedures on their first
+ * call (see {@link SchemeInterpreter.Options#lazy}). {@code bootstrap.script} creates an
+ * interpreter and runs a short script using a few procedures from each library, which is the
+ * startup time of a typical script.
+ *
+ * <p>Most libraries are loaded on the first reference to one of their definitions (see
+ * {@link Autoload}). The {@code .eager} variants load all of them, like the bootstrap used to.
+ */
+final class BootstrapBenchmarks
+{
+private BootstrapBenchmarks () {}
+
+static void register ( List<Benchmark> list )
+{
+  list.add( new Benchmark( "bootstrap.new-interpreter" ) {
+    public Object run () throws Exception
+    {
+      return new SchemeInterpreter();
+    }
+  } );
+
+  final SchemeInterpreter.Options fromSource = new SchemeInterpreter.Options();
+  fromSource.bootstrapFromSource = true;
+  list.add( new Benchmark( "bootstrap.from-source" ) {
+    public Object run () throws Exception
+    {
+      return new SchemeInterpreter( fromSource );
+    }
+  } );
+
+  final SchemeInterpreter.Options lazy = new SchemeInterpreter.Options();
+  lazy.lazy = true;
+  list.add( new Benchmark( "bootstrap.new-interpreter.lazy" ) {
+    public Object run () throws Exception
+    {
+      return new SchemeInterpreter( lazy );
+    }
+  } );
+
+  final SchemeInterpreter.Options eager = new SchemeInterpreter.Options();
+  eager.eagerLibraries = true;
+  list.add( new Benchmark( "bootstrap.new-interpreter.eager" ) {
+    public Object run () throws Exception
+    {
+      return new SchemeInterpreter( eager );
+    }
+  } );
+
+  list.add( new Benchmark( "bootstrap.base-script" ) {
+    public Object run () throws Exception
+    {
+      return new SchemeInterpreter().eval( BASE_SCRIPT );
+    }
+  } );
+
+  list.add( new Benchmark( "bootstrap.base-script.eager" ) {
+    public Object run () throws Exception
+    {
+      return new SchemeInterpreter( eager ).eval( BASE_SCRIPT );
+    }
+  } );
+
+  list.add( new Benchmark( "bootstrap.script.eager" ) {
+    public Object run () throws Exception
+    {
+      return new SchemeInterpreter( eager ).eval( SCRIPT );
+    }
+  } );
+
+  list.add( new Benchmark( "bootstrap.script" ) {
+    public Object run () throws Exception
+    {
+      return new SchemeInterpreter().eval( SCRIPT );
+    }
+  } );
+
+  list.add( new Benchmark( "bootstrap.script.lazy" ) {
+    public Object run () throws Exception
+    {
+      return new SchemeInterpreter( lazy ).eval( SCRIPT );
+    }
+  } );
+
+  list.add( new Benchmark( "bootstrap.fork" ) {
+    private SchemeInterpreter m_parent;
+
+    public void setUp () throws Exception
+    {
+      m_parent = new SchemeInterpreter();
+    }
+
+    public Object run () throws Exception
+    {
+      return m_parent.fork();
+    }
+  } );
+
+  list.add( new Benchmark( "bootstrap.fork-eval" ) {
+    private SchemeInterpreter m_parent;
+
+    public void setUp () throws Exception
+    {
+      m_parent = new SchemeInterpreter();
+    }
+
+    public Object run () throws Exception
+    {
+      return m_parent.fork().eval( "(define (f x) (* x 2)) (fold + 0 (map f (iota 10)))" );
+    }
+  } );
+
+  for ( final int count : new int[]{ 16, 64, 256 } )
+  {
+    final String stages = stages( count );
+    list.add( new Benchmark( "bootstrap.stages." + count ) {
+      public Object run () throws Exception
+      {
+        SchemeInterpreter interp = new SchemeInterpreter();
+        SimpleErrorReporter errors = new SimpleErrorReporter( 1 );
+        interp.evalStages( interp.parse( new StringReader( stages ), "<stages>", errors ), errors );
+        return interp;
+      }
+    } );
+  }
+}
+
+/** A short script using the libraries */
+private static final String SCRIPT =
+  "(define-record-type point (make-point x y) point? (x point-x) (y point-y))\n" +
+  "(define pts (map (lambda (i) (make-point i (* i i))) (iota 20)))\n" +
+  "(define h (make-hash-table))\n" +
+  "(for-each (lambda (p) (hash-table-set! h (point-x p) (point-y p))) pts)\n" +
+  "(list (fold + 0 (filter even? (map point-y pts)))\n" +
+  "      (hash-table-ref/default h 7 #f)\n" +
+  "      (length (delete-duplicates (map (lambda (p) (modulo (point-y p) 5)) pts)))\n" +
+  "      (let-values (((a b) (partition odd? (iota 10)))) (append a b)))";
+
+/** A short script using only the base library */
+private static final String BASE_SCRIPT =
+  "(define (count-odd l) (let loop ((l l) (n 0)) (if (null? l) n (loop (cdr l) (if (odd? (car l)) (+ n 1) n)))))\n" +
+  "(list (count-odd '(1 2 3 4 5)) (assq 'b '((a 1) (b 2))) (vector->list (make-vector 3 0)))";
+
+/** Generate the source of {@code count} stages */
+static String stages ( int count )
+{
+  StringBuilder buf = new StringBuilder( "((define (f0 x) x) (define-macro (m0 x) x))\n" );
+  for ( int i = 1; i < count; ++i )
+  {
+    buf.append( String.format(
+      "((define (f%d x) (+ (m%d x) 1)) (define-macro (m%d x) (list '+ x (f%d 1))))\n",
+      i, i-1, i, i-1
+    ) );
+  }
+  return buf.toString();
+}
+
+} // class
@@ -0,0 +1,119 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.util.List;
+
+/**
+ * Procedure calls: non-tail recursion, tail calls through the trampoline, closure creation and
+ * a direct measurement of {@link AST.Apply} without the compiler in the way.
+ */
+final class CallBenchmarks
+{
+private CallBenchmarks () {}
+
+private static final String FIB =
+  "(define (fib n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))";
+
+private static final String LOOP =
+  "(define (loop n acc) (if (= n 0) acc (loop (- n 1) (+ acc 1))))";
+
+private static final String ADDER =
+  "(define (make-adder n) (lambda (x) (+ x n)))" +
+  "(define (adders i acc) (if (= i 0) acc (adders (- i 1) ((make-adder i) acc))))";
+
+private static final String NESTED =
+  "(define (nested n)" +
+  "  (define a 1)" +
+  "  (define (f1 x)" +
+  "    (define (f2 y)" +
+  "      (let loop ((i 0) (acc 0)) (if (= i n) acc (loop (+ i 1) (+ acc a x y)))))" +
+  "    (f2 1))" +
+  "  (f1 1))";
+
+private static final String SMALL =
+  "(define (inc x) (+ x 1))" +
+  "(define (twice x) (inc (inc x)))" +
+  "(define (small i acc) (if (= i 0) acc (small (- i 1) (twice (cadr (list i acc))))))";
+
+/**
+ * Evaluates a pre-built {@code (id 1)} application directly.
+ */
+private static final class DirectApply extends Benchmark
+{
+  private AST m_apply;
+  private EvalContext m_ctx;
+
+  DirectApply ()
+  {
+    super("call.apply-direct");
+  }
+
+  public void setUp () throws Exception
+  {
+    SchemeInterpreter interp = new SchemeInterpreter();
+    interp.eval( "(define (id x) x)" );
+    Closure id = interp.getTopLevelClosure( "id" );
+    m_apply = new AST.Apply( null, new AST[]{
+      new AST.Lit( null, id ), new AST.Lit( null, SchemeFixInt.ONE ), AST.Lit.LIT_NULL
+    } );
+    m_ctx = new EvalContext( interp, null );
+  }
+
+  public Object run () throws Exception
+  {
+    return m_apply.evalValue( null, m_ctx );
+  }
+}
+
+private static void add ( List<Benchmark> list, String name, String prelude, String expr )
+{
+  list.add( new SchemeBenchmark( name, prelude, expr ) );
+
+  SchemeInterpreter.Options spec = new SchemeInterpreter.Options();
+  spec.specialize = true;
+  list.add( new SchemeBenchmark( name + "-specialized", spec, prelude, expr ) );
+
+  SchemeInterpreter.Options jit = new SchemeInterpreter.Options();
+  jit.specialize = true;
+  jit.jitThreshold = 100;
+  list.add( new SchemeBenchmark( name + "-jit", jit, prelude, expr ) );
+
+  SchemeInterpreter.Options reuse = new SchemeInterpreter.Options();
+  reuse.reuseFrames = true;
+  list.add( new SchemeBenchmark( name + "-reuse-frames", reuse, prelude, expr ) );
+
+  SchemeInterpreter.Options flat = new SchemeInterpreter.Options();
+  flat.flatClosures = true;
+  list.add( new SchemeBenchmark( name + "-flat", flat, prelude, expr ) );
+
+  SchemeInterpreter.Options ic = new SchemeInterpreter.Options();
+  ic.inlineCaches = true;
+  list.add( new SchemeBenchmark( name + "-inline-cache", ic, prelude, expr ) );
+
+  SchemeInterpreter.Options inline = new SchemeInterpreter.Options();
+  inline.inlineSize = 16;
+  list.add( new SchemeBenchmark( name + "-inline", inline, prelude, expr ) );
+
+  SchemeInterpreter.Options sealed = new SchemeInterpreter.Options();
+  sealed.inlineSize = 16;
+  sealed.sealed = true;
+  list.add( new SchemeBenchmark( name + "-sealed", sealed, prelude, expr ) );
+}
+
+static void register ( List<Benchmark> list )
+{
+  add( list, "call.fib", FIB, "(fib 20)" );
+  add( list, "call.tail-loop", LOOP, "(loop 10000 0)" );
+  add( list, "call.closure-create", ADDER, "(adders 1000 0)" );
+  add( list, "call.nested-access", NESTED, "(nested 1000)" );
+  add( list, "call.small-procs", SMALL, "(small 10000 0)" );
+  list.add( new DirectApply() );
+}
+
+} // class
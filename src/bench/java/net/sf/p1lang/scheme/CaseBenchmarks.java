@@ -0,0 +1,63 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.util.List;
+
+/**
+ * Dispatch with {@code case} over symbols and fixnums, with a varying number of clauses. Every
+ * operation performs 1000 dispatches, cycling through all datums.
+ */
+final class CaseBenchmarks
+{
+private CaseBenchmarks () {}
+
+/**
+ * @param symbols dispatch on symbols instead of fixnums
+ */
+private static String prelude ( int clauses, boolean symbols )
+{
+  StringBuilder keys = new StringBuilder( "(define keys (list->vector '(" );
+  StringBuilder dispatch = new StringBuilder( "(define (dispatch x) (case x" );
+  for ( int i = 0; i < clauses; ++i )
+  {
+    String datum = symbols ? "op" + i : Integer.toString( i * 3 );
+    keys.append( ' ' ).append( datum );
+    dispatch.append( " ((" ).append( datum ).append( ") " ).append( i ).append( ')' );
+  }
+  keys.append( ")))" );
+  dispatch.append( " (else -1)))" );
+  return keys.toString() + dispatch +
+    "(define (run n) (let loop ((i 0) (acc 0))" +
+    "  (if (= i n) acc (loop (+ i 1) (+ acc (dispatch (vector-ref keys (remainder i " + clauses +
+    "))))))))";
+}
+
+private static void add ( List<Benchmark> list, String name, String prelude, String expr )
+{
+  list.add( new SchemeBenchmark( name + "-tree", prelude, expr ) );
+
+  SchemeInterpreter.Options vm = new SchemeInterpreter.Options();
+  vm.vm = true;
+  list.add( new SchemeBenchmark( name + "-vm", vm, prelude, expr ) );
+
+  SchemeInterpreter.Options jit = new SchemeInterpreter.Options();
+  jit.jitThreshold = 10;
+  list.add( new SchemeBenchmark( name + "-jit", jit, prelude, expr ) );
+}
+
+static void register ( List<Benchmark> list )
+{
+  for ( int clauses : new int[]{ 4, 16, 64 } )
+  {
+    add( list, "case.symbols-" + clauses, prelude( clauses, true ), "(run 1000)" );
+    add( list, "case.fixnums-" + clauses, prelude( clauses, false ), "(run 1000)" );
+  }
+}
+
+} // class
@@ -0,0 +1,79 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.util.List;
+
+/**
+ * Capturing and invoking continuations at different stack depths. Escaping and capturing work
+ * in both engines; re-entering a continuation is supported only by the {@link RegisterVM}.
+ * The call/ec escapes can be compared with returning normally from the same depth.
+ */
+final class ContinuationBenchmarks
+{
+private ContinuationBenchmarks () {}
+
+private static final String CAPTURE =
+  "(define (cap n) (if (eq? n 0) (call/cc (lambda (k) 0)) (+ 1 (cap (- n 1)))))";
+
+private static final String ESCAPE =
+  "(define (deep n k) (if (eq? n 0) (k 0) (+ 1 (deep (- n 1) k))))";
+
+private static final String REENTER =
+  "(define saved #f)" +
+  "(define (deep n) (if (eq? n 0) (call/cc (lambda (k) (set! saved k) 0)) (+ 1 (deep (- n 1)))))" +
+  "(deep 100)";
+
+private static final String GENERATOR =
+  "(define (make-gen lst)" +
+  "  (define return #f)" +
+  "  (define resume #f)" +
+  "  (define (start)" +
+  "    (for-each (lambda (x) (call/cc (lambda (k) (set! resume k) (return x)))) lst)" +
+  "    (return #f))" +
+  "  (lambda ()" +
+  "    (call/cc (lambda (r)" +
+  "      (set! return r)" +
+  "      (if resume (resume #f) (start))))))" +
+  "(define (drain g acc) (let ((x (g))) (if x (drain g (+ acc x)) acc)))";
+
+private static SchemeInterpreter.Options vm ()
+{
+  SchemeInterpreter.Options res = new SchemeInterpreter.Options();
+  res.vm = true;
+  return res;
+}
+
+private static void add ( List<Benchmark> list, String name, String prelude, String expr )
+{
+  list.add( new SchemeBenchmark( name + "-tree", prelude, expr ) );
+  list.add( new SchemeBenchmark( name + "-vm", vm(), prelude, expr ) );
+}
+
+static void register ( List<Benchmark> list )
+{
+  add( list, "cont.capture-depth10", CAPTURE, "(cap 10)" );
+  add( list, "cont.capture-depth100", CAPTURE, "(cap 100)" );
+  add( list, "cont.escape-depth10", ESCAPE, "(call/cc (lambda (k) (deep 10 k)))" );
+  add( list, "cont.escape-depth100", ESCAPE, "(call/cc (lambda (k) (deep 100 k)))" );
+  add( list, "cont.escape-depth1000", ESCAPE, "(call/cc (lambda (k) (deep 1000 k)))" );
+  // The same recursion returning normally, the baseline of the escapes
+  add( list, "cont.return-depth10", ESCAPE, "(call/ec (lambda (k) (deep 10 (lambda (x) x))))" );
+  add( list, "cont.return-depth100", ESCAPE, "(call/ec (lambda (k) (deep 100 (lambda (x) x))))" );
+  add( list, "cont.return-depth1000", ESCAPE, "(call/ec (lambda (k) (deep 1000 (lambda (x) x))))" );
+  add( list, "cont.ec-escape-depth10", ESCAPE, "(call/ec (lambda (k) (deep 10 k)))" );
+  add( list, "cont.ec-escape-depth100", ESCAPE, "(call/ec (lambda (k) (deep 100 k)))" );
+  add( list, "cont.ec-escape-depth1000", ESCAPE, "(call/ec (lambda (k) (deep 1000 k)))" );
+  add( list, "cont.ec-wind-depth100", ESCAPE,
+       "(call/ec (lambda (k) (dynamic-wind (lambda () 0) (lambda () (deep 100 k)) (lambda () 0))))" );
+  list.add( new SchemeBenchmark( "cont.reenter-depth100-vm", vm(), REENTER, "(saved 1)" ) );
+  list.add( new SchemeBenchmark( "cont.generator-vm", vm(), GENERATOR,
+                                 "(drain (make-gen (iota 100)) 0)" ) );
+}
+
+} // class
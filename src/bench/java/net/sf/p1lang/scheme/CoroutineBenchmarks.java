@@ -0,0 +1,49 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.util.List;
+
+/**
+ * Switching between coroutines. Every operation performs 1000 yield/resume pairs, so the
+ * number of pairs per second is 1000 times the score.
+ */
+final class CoroutineBenchmarks
+{
+private CoroutineBenchmarks () {}
+
+private static final String COUNTER =
+  "(define (counter) (make-coroutine (lambda (x) (let loop ((i 0)) (yield i) (loop (+ i 1))))))" +
+  "(define (drive co n) (let loop ((n n) (sum 0)) (if (eq? n 0) sum (loop (- n 1) (+ sum (resume co))))))" +
+  "(define co (counter))";
+
+private static final String PIPELINE =
+  "(define (source) (list->generator (iota 1000)))";
+
+private static SchemeInterpreter.Options vm ()
+{
+  SchemeInterpreter.Options res = new SchemeInterpreter.Options();
+  res.vm = true;
+  return res;
+}
+
+private static void add ( List<Benchmark> list, String name, String prelude, String expr )
+{
+  list.add( new SchemeBenchmark( name + "-tree", prelude, expr ) );
+  list.add( new SchemeBenchmark( name + "-vm", vm(), prelude, expr ) );
+}
+
+static void register ( List<Benchmark> list )
+{
+  add( list, "coro.yield-resume", COUNTER, "(drive co 1000)" );
+  add( list, "coro.generator-fold", PIPELINE, "(generator-fold + 0 (source))" );
+  // The same sum over a materialized list
+  add( list, "coro.list-fold", PIPELINE, "(fold + 0 (iota 1000))" );
+}
+
+} // class
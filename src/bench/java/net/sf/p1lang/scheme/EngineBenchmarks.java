@@ -0,0 +1,57 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.util.List;
+
+/**
+ * The classic call-intensive programs, executed by the instruction tree ({@link AST.Trampoline})
+ * and by the {@link RegisterVM}.
+ */
+final class EngineBenchmarks
+{
+private EngineBenchmarks () {}
+
+private static final String TAK =
+  "(define (tak x y z)" +
+  "  (if (not (< y x)) z (tak (tak (- x 1) y z) (tak (- y 1) z x) (tak (- z 1) x y))))";
+
+private static final String FIB =
+  "(define (fib n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))";
+
+private static final String NQUEENS =
+  "(define (ok? row dist placed)" +
+  "  (or (null? placed)" +
+  "      (and (not (= (car placed) (+ row dist)))" +
+  "           (not (= (car placed) (- row dist)))" +
+  "           (not (= (car placed) row))" +
+  "           (ok? row (+ dist 1) (cdr placed)))))" +
+  "(define (try-it x y z)" +
+  "  (if (null? x)" +
+  "      (if (null? y) 1 0)" +
+  "      (+ (if (ok? (car x) 1 z) (try-it (append (cdr x) y) '() (cons (car x) z)) 0)" +
+  "         (try-it (cdr x) (cons (car x) y) z))))" +
+  "(define (queens n) (try-it (iota n 1) '() '()))";
+
+private static void add ( List<Benchmark> list, String name, String prelude, String expr )
+{
+  list.add( new SchemeBenchmark( name + "-tree", prelude, expr ) );
+
+  SchemeInterpreter.Options vm = new SchemeInterpreter.Options();
+  vm.vm = true;
+  list.add( new SchemeBenchmark( name + "-vm", vm, prelude, expr ) );
+}
+
+static void register ( List<Benchmark> list )
+{
+  add( list, "engine.tak", TAK, "(tak 18 12 6)" );
+  add( list, "engine.fib", FIB, "(fib 20)" );
+  add( list, "engine.nqueens", NQUEENS, "(queens 6)" );
+}
+
+} // class
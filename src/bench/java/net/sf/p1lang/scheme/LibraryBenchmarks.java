@@ -0,0 +1,48 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.util.List;
+
+/**
+ * Library code written in Scheme: SRFI-69 hash tables and SRFI-1 list operations.
+ */
+final class LibraryBenchmarks
+{
+private LibraryBenchmarks () {}
+
+static void register ( List<Benchmark> list )
+{
+  list.add( new SchemeBenchmark( "lib.hash-table",
+    "(define (fill ht i) (if (= i 0) ht (begin (hash-table-set! ht i (* i i)) (fill ht (- i 1)))))" +
+    "(define (probe ht i acc) (if (= i 0) acc (probe ht (- i 1) (+ acc (hash-table-ref/default ht i 0)))))",
+    "(probe (fill (make-hash-table) 500) 500 0)" ) );
+
+  // Library procedures with optional parameters, called with and without them
+  list.add( new SchemeBenchmark( "lib.optional-args",
+    "(define ht (make-hash-table eqv?))" +
+    "(define (fill i) (if (> i 0) (begin (hash-table-set! ht i i) (fill (- i 1)))))" +
+    "(fill 100)" +
+    "(define keys '(\"alpha\" \"beta\" \"gamma\" \"delta\"))" +
+    "(define (run i acc) (if (= i 0) acc" +
+    "  (run (- i 1) (+ acc (hash-table-ref ht (+ 1 (remainder i 200)) (lambda () 0))" +
+    "                  (string-hash (car keys)) (string-hash (cadr keys) 1000)" +
+    "                  (length (member 'c '(a b c d)))))))",
+    "(run 500 0)" ) );
+
+  list.add( new SchemeBenchmark( "lib.list-ops",
+    "(define data (iota 1000))",
+    "(fold + 0 (filter even? (map (lambda (x) (* x 3)) data)))" ) );
+
+  list.add( new SchemeBenchmark( "lib.assoc",
+    "(define alist (map (lambda (i) (cons i i)) (iota 200)))" +
+    "(define (lookup i acc) (if (= i 0) acc (lookup (- i 1) (+ acc (cdr (assv i alist))))))",
+    "(lookup 199 0)" ) );
+}
+
+} // class
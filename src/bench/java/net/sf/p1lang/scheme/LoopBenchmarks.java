@@ -0,0 +1,55 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.util.List;
+
+/**
+ * Tight named let and {@code do} loops, with and without {@link LoopConverter}. Every operation
+ * performs 1000 iterations.
+ */
+final class LoopBenchmarks
+{
+private LoopBenchmarks () {}
+
+private static final String COUNT =
+  "(define (count n) (do ((i 0 (+ i 1))) ((= i n) i)))";
+
+private static final String SUM =
+  "(define (sum-vector v)" +
+  "  (let loop ((i 0) (sum 0))" +
+  "    (if (= i (vector-length v)) sum (loop (+ i 1) (+ sum (vector-ref v i))))))" +
+  "(define v (make-vector 1000 1))";
+
+private static SchemeInterpreter.Options options ( boolean loops, boolean vm, int jit )
+{
+  SchemeInterpreter.Options res = new SchemeInterpreter.Options();
+  res.loops = loops;
+  res.vm = vm;
+  res.jitThreshold = jit;
+  return res;
+}
+
+private static void add ( List<Benchmark> list, String name, String prelude, String expr )
+{
+  for ( boolean loops : new boolean[]{ false, true } )
+  {
+    String suffix = loops ? "-loops" : "";
+    list.add( new SchemeBenchmark( name + "-tree" + suffix, options( loops, false, 0 ), prelude, expr ) );
+    list.add( new SchemeBenchmark( name + "-vm" + suffix, options( loops, true, 0 ), prelude, expr ) );
+    list.add( new SchemeBenchmark( name + "-jit" + suffix, options( loops, false, 10 ), prelude, expr ) );
+  }
+}
+
+static void register ( List<Benchmark> list )
+{
+  add( list, "loop.count", COUNT, "(count 1000)" );
+  add( list, "loop.sum-vector", SUM, "(sum-vector v)" );
+}
+
+} // class
@@ -0,0 +1,100 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.List;
+
+/**
+ * The lexer and the datum parser, run over the text of the SRFI-1 library.
+ */
+final class ReaderBenchmarks
+{
+private ReaderBenchmarks () {}
+
+static String readResource ( String name ) throws IOException
+{
+  Reader in = new InputStreamReader( SchemeInterpreter.class.getResourceAsStream( name ), "UTF-8" );
+  try
+  {
+    StringBuilder buf = new StringBuilder();
+    char[] tmp = new char[4096];
+    int len;
+    while ((len = in.read( tmp )) > 0)
+      buf.append( tmp, 0, len );
+    return buf.toString();
+  }
+  finally
+  {
+    in.close();
+  }
+}
+
+private static final class Lex extends Benchmark
+{
+  private String m_text;
+  private SymbolMap m_map;
+
+  Lex ()
+  {
+    super("reader.lex");
+  }
+
+  public void setUp () throws Exception
+  {
+    m_text = readResource( "srfi-1.scm" );
+    m_map = new SymbolMap();
+  }
+
+  public Object run () throws Exception
+  {
+    Lexer lex = new Lexer( new StringReader( m_text ), "srfi-1.scm", m_map, new SimpleErrorReporter(1) );
+    int count = 0;
+    while (lex.nextToken() != Lexer.Token.EOF)
+      ++count;
+    return count;
+  }
+}
+
+private static final class Parse extends Benchmark
+{
+  private String m_text;
+  private SymbolMap m_map;
+
+  Parse ()
+  {
+    super("reader.parse");
+  }
+
+  public void setUp () throws Exception
+  {
+    m_text = readResource( "srfi-1.scm" );
+    m_map = new SymbolMap();
+  }
+
+  public Object run () throws Exception
+  {
+    Lexer lex = new Lexer( new StringReader( m_text ), "srfi-1.scm", m_map, new SimpleErrorReporter(1) );
+    DatumParser parser = new DatumParser( lex );
+    Object datum, last = null;
+    while ((datum = parser.parseDatum()) != DatumParser.EOF)
+      last = datum;
+    return last;
+  }
+}
+
+static void register ( List<Benchmark> list )
+{
+  list.add( new Lex() );
+  list.add( new Parse() );
+}
+
+} // class
@@ -0,0 +1,75 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.io.StringReader;
+
+/**
+ * A benchmark measuring the evaluation of a Scheme expression. The prelude is compiled and
+ * evaluated once in {@link #setUp()}; the expression is compiled once and every operation
+ * evaluates the already compiled code.
+ */
+class SchemeBenchmark extends Benchmark
+{
+/** Evaluate within an unlimited budget */
+static boolean s_budget;
+
+private final SchemeInterpreter.Options m_options;
+private final String m_prelude;
+private final String m_expr;
+
+protected SchemeInterpreter m_interp;
+private CompiledCode m_code;
+private Budget m_budget;
+
+public SchemeBenchmark ( String name, SchemeInterpreter.Options options, String prelude, String expr )
+{
+  super(name);
+  m_options = options;
+  m_prelude = prelude;
+  m_expr = expr;
+}
+
+public SchemeBenchmark ( String name, String prelude, String expr )
+{
+  this( name, new SchemeInterpreter.Options(), prelude, expr );
+}
+
+protected SchemeInterpreter createInterpreter () throws Exception
+{
+  return new SchemeInterpreter( m_options );
+}
+
+public void setUp () throws Exception
+{
+  m_interp = createInterpreter();
+  if (m_prelude != null)
+    m_interp.eval( m_prelude );
+  m_code = compile( m_interp, m_expr );
+  m_budget = s_budget ? new Budget() : null;
+}
+
+public Object run () throws Exception
+{
+  return m_budget != null ? m_code.eval( m_budget ) : m_code.eval();
+}
+
+public void tearDown () throws Exception
+{
+  m_code = null;
+  m_budget = null;
+  m_interp = null;
+}
+
+static CompiledCode compile ( SchemeInterpreter interp, String expr ) throws SchemeError
+{
+  SimpleErrorReporter errors = new SimpleErrorReporter(1);
+  return interp.compile( interp.parse( new StringReader(expr), "<bench>", errors ), errors );
+}
+
+} // class
@@ -0,0 +1,46 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.util.List;
+
+/**
+ * Returning multiple values. Every operation performs 1000 calls returning two values, or one
+ * value for comparison.
+ */
+final class ValuesBenchmarks
+{
+private ValuesBenchmarks () {}
+
+private static final String PRELUDE =
+  "(define (split x) (values x (+ x 1)))" +
+  "(define (one x) (+ x 1))" +
+  "(define (recv n) (let loop ((i 0) (acc 0))" +
+  "  (if (= i n) acc (receive (a b) (split i) (loop (+ i 1) (+ acc b))))))" +
+  "(define (cwv n) (let loop ((i 0) (acc 0))" +
+  "  (if (= i n) acc (loop (+ i 1) (call-with-values (lambda () (split i)) (lambda (a b) (+ acc b)))))))" +
+  "(define (single n) (let loop ((i 0) (acc 0))" +
+  "  (if (= i n) acc (let ((b (one i))) (loop (+ i 1) (+ acc b))))))";
+
+private static void add ( List<Benchmark> list, String name, String expr )
+{
+  list.add( new SchemeBenchmark( name + "-tree", PRELUDE, expr ) );
+
+  SchemeInterpreter.Options vm = new SchemeInterpreter.Options();
+  vm.vm = true;
+  list.add( new SchemeBenchmark( name + "-vm", vm, PRELUDE, expr ) );
+}
+
+static void register ( List<Benchmark> list )
+{
+  add( list, "values.receive", "(recv 1000)" );
+  add( list, "values.call-with-values", "(cwv 1000)" );
+  add( list, "values.single", "(single 1000)" );
+}
+
+} // class
@@ -24,6 +24,8 @@ import java.io.ObjectStreamException;
  *
  * <p>The purpose of maintaining two forms is to avoid managing an explicit value stack. Instead we
  * use Java's native stack. The drawback is that we don't support {@code call/cc}.
+ * {@link RegisterVM} is an alternative engine translating the same instructions to linear code
+ * with an explicit frame stack, which also supports re-entrant continuations.
  *
  * <p>All instructions are defined here as static inner classes.
  */
@@ -94,8 +96,8 @@ public abstract Object dis ();
 
 public void handleException ( Exception e ) throws SchemeError, RuntimeException
 {
-  if (e instanceof ExecuteContinuation)
-    throw (ExecuteContinuation)e;
+  if (e instanceof ControlTransfer)
+    throw (ControlTransfer)e;
   else if (e instanceof SchemeError)
   {
     if (!havePosition())
@@ -203,17 +205,22 @@ public static final class MakeVector extends AST
 }
 
 /**
- *
+ * A variable. A top level variable is read from {@link EvalContext#rootEnv} rather than from the
+ * environment at the end of the chain, which is the top level environment the closure was
+ * created in. So a closure created by an interpreter sees the variables of its forks when they
+ * call it (see {@link SchemeInterpreter#fork}).
  */
 public static final class Var extends AST
 {
   private static final long serialVersionUID = 1072312267094508370L;
 
   /** How many environments up to go to access the binding's environment. */
-  private final int envIndex;
+  final int envIndex;
   /** Index of the binding in its environment */
-  private final int bindingIndex;
-  private final Symbol name;
+  final int bindingIndex;
+  final Symbol name;
+  /** The binding is in the top level environment */
+  final boolean global;
 
   public Var ( ISourceCoords coords, Scope curScope, VarBinding binding )
   {
@@ -223,10 +230,22 @@ public static final class Var extends AST
       throw new IllegalArgumentException();
     this.bindingIndex = binding.index;
     this.name = binding.sym;
+    this.global = binding.scope.envLevel == 0;
+  }
+
+  Var ( ISourceCoords coords, Symbol name, int envIndex, int bindingIndex, boolean global )
+  {
+    super(coords);
+    this.envIndex = envIndex;
+    this.bindingIndex = bindingIndex;
+    this.name = name;
+    this.global = global;
   }
 
   public final Object evalValue ( final Object[] env, final EvalContext ctx ) throws EvalError
   {
+    if (global)
+      return ctx.rootEnv[bindingIndex];
     int i = envIndex;
     Object[] e = env;
     while (i > 0)
@@ -256,11 +275,13 @@ public static final class SetBang extends AST
   private static final long serialVersionUID = -2386977834200816036L;
 
   /** How many environments up to go to access the binding's environment. */
-  private final int envIndex;
+  final int envIndex;
   /** Index of the binding in its environment */
-  private final int bindingIndex;
-  private final AST value;
-  private final Symbol name;
+  final int bindingIndex;
+  final AST value;
+  final Symbol name;
+  /** The binding is in the top level environment. See {@link Var} */
+  final boolean global;
 
   public SetBang ( ISourceCoords coords, Scope curScope, VarBinding binding, AST value )
   {
@@ -271,15 +292,32 @@ public static final class SetBang extends AST
     this.bindingIndex = binding.index;
     this.value = value;
     name = binding.sym;
+    this.global = binding.scope.envLevel == 0;
+  }
+
+  SetBang ( ISourceCoords coords, Symbol name, int envIndex, int bindingIndex, boolean global,
+            AST value )
+  {
+    super(coords);
+    this.envIndex = envIndex;
+    this.bindingIndex = bindingIndex;
+    this.value = value;
+    this.name = name;
+    this.global = global;
   }
 
   public final Object evalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
   {
+    if (global)
+    {
+      ctx.rootEnv[bindingIndex] = value.evalValue( env, ctx );
+      return Unspec.UNSPEC;
+    }
     Object[] e = env;
     int i = envIndex;
     while (i > 0)
     {
-      e = (Object[]) env[0];
+      e = (Object[]) e[0];
       --i;
     }
     e[bindingIndex] = value.evalValue( env, ctx );
@@ -302,7 +340,7 @@ public static final class If extends AST
 {
   private static final long serialVersionUID = 2452307072275626425L;
 
-  private final AST m_evalCond, m_evalThen, m_evalElse;
+  final AST m_evalCond, m_evalThen, m_evalElse;
 
   public If ( ISourceCoords coords,
               final AST evalCond, final AST evalThen, final AST evalElse )
@@ -341,11 +379,64 @@ public static final class If extends AST
   }
 }
 
+/**
+ * {@code (case key clause ...)}: the clause is selected by a {@link CaseTable} lookup instead of
+ * comparing the key with each datum in turn.
+ */
+public static final class Case extends AST
+{
+  private static final long serialVersionUID = 1L;
+
+  final AST m_key;
+  final CaseTable m_table;
+  /** The bodies of the clauses followed by the else body */
+  final AST[] m_bodies;
+
+  public Case ( ISourceCoords coords, final AST key, final CaseTable table, final AST[] bodies )
+  {
+    super(coords);
+    assert( key != null && bodies.length > 0 );
+    m_key = key;
+    m_table = table;
+    m_bodies = bodies;
+  }
+
+  public final AST evalCont ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    AST res = m_bodies[m_table.index( m_key.evalValue( env, ctx ) )];
+    ctx.outEnv = env;
+    return res;
+  }
+
+  public final Object evalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    return m_bodies[m_table.index( m_key.evalValue( env, ctx ) )].evalValue( env, ctx );
+  }
+
+  public String toString ()
+  {
+    StringBuilder res = new StringBuilder( 32 + m_bodies.length*32 );
+    res.append( "(case/" ).append( m_table.kind() ).append( ' ' ).append( m_key.toString() );
+    for ( AST v : m_bodies )
+      res.append( ' ' ).append( v.toString() );
+    res.append( ')' );
+    return res.toString();
+  }
+
+  public Object dis ()
+  {
+    Pair res = Pair.NULL;
+    for ( int i = m_bodies.length - 1; i >= 0; --i )
+      res = new Pair( m_bodies[i].dis(), res );
+    return new Pair( "case/" + m_table.kind(), new Pair( m_key.dis(), res ) );
+  }
+}
+
 public static final class MakeClosure extends AST
 {
   private static final long serialVersionUID = 2420718999386736497L;
 
-  private final Lambda m_lambda;
+  final Lambda m_lambda;
 
   public MakeClosure ( ISourceCoords coords, final Lambda lambda )
   {
@@ -374,6 +465,12 @@ public static abstract class Builtin extends AST
 {
   private static final long serialVersionUID = 1983752562273478086L;
 
+  /**
+   * States of builtins which specialize themselves on the types of their parameters (see
+   * gen-typed in Builtins-gen.scm). Other values are the index of a typed specialization.
+   */
+  static final int SPEC_UNINIT = 0, SPEC_GENERIC = -1;
+
   protected final AST[] v;
 
   public Builtin ( ISourceCoords coords, final AST[] values )
@@ -406,6 +503,10 @@ public static abstract class Builtin extends AST
     if ((n = cls.lastIndexOf( '.' )) >= 0)
       cls = cls.substring( n+1 );
 
+    String spec = specialization();
+    if (spec != null)
+      cls = cls + " " + spec;
+
     Pair res = Pair.NULL;
     for ( int i = this.v.length-1; i >= 0; --i )
       res = new Pair( this.v[i].dis(), res );
@@ -413,6 +514,15 @@ public static abstract class Builtin extends AST
       new Pair( "builtin "+ cls, res );
   }
 
+  /**
+   * The name of the current specialization of a builtin which specializes itself on the types
+   * of its parameters, or null
+   */
+  public String specialization ()
+  {
+    return null;
+  }
+
   public final Object evalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
   {
     try
@@ -429,6 +539,22 @@ public static abstract class Builtin extends AST
   protected abstract Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError;
 }
 
+/**
+ * A builtin without side effects, whose result depends only on its parameters. It can be
+ * evaluated at compile time when all parameters are constant (see {@link Optimizer}), but it
+ * may still fail at runtime, for example with a parameter of the wrong type.
+ */
+interface Pure
+{
+}
+
+/**
+ * A pure builtin which never fails, so it can be removed if its result is not used.
+ */
+interface Total extends Pure
+{
+}
+
 /**
  *
  */
@@ -452,10 +578,34 @@ public static final class Apply extends Builtin
     return (Closure)target;
   }
 
-  private final Object[] buildEnv ( final Object[] env, final EvalContext ctx, Closure closure )
-          throws SchemeError
+  /**
+   * The procedure to invoke: the lambda of the closure, or the clause of a case-lambda
+   * accepting our parameters, if we know their number
+   */
+  private final Lambda target ( Closure closure )
   {
     Lambda proc = closure.lambda;
+    if (proc.clauses != null && v[v.length-1] == Lit.LIT_NULL)
+      return CaseLambda.select( proc, v.length-2 );
+    return proc;
+  }
+
+  /**
+   * @param pooled allocate the environment with {@link EvalContext#pushFrame(int)}
+   */
+  final Object[] buildEnv ( final Object[] env, final EvalContext ctx, Closure closure,
+                            boolean pooled ) throws SchemeError
+  {
+    return buildEnv( env, ctx, closure, closure.lambda, pooled );
+  }
+
+  /**
+   * @param proc the lambda of the closure or one of its clauses
+   * @param pooled allocate the environment with {@link EvalContext#pushFrame(int)}
+   */
+  final Object[] buildEnv ( final Object[] env, final EvalContext ctx, Closure closure,
+                            Lambda proc, boolean pooled ) throws SchemeError
+  {
 
     // If the last parameter is non-null, it must evaluate to a list. Conceptually (apply...)
     // builds a list from the first parameters and appends the last parameter (which itself is a list).
@@ -503,7 +653,8 @@ public static final class Apply extends Builtin
     Object[] callEnv;
     if (proc.envSize > 0)
     {
-      callEnv = new Object[proc.envSize];
+      callEnv = ctx.newFrame( proc.spreadRest ? Scope.RESERVED_SLOTS+actualParamCount : proc.envSize,
+                              pooled );
       callEnv[Scope.PARENT_SLOT] = closure.parentEnv;
 
       // Fill the regular parameters.
@@ -520,6 +671,17 @@ public static final class Apply extends Builtin
         callEnv[Scope.RESERVED_SLOTS+paramIndex] = t;
       }
 
+      if (proc.spreadRest)
+      {
+        // The rest of the parameters follow the regular ones. There are no local variables.
+        int i = Scope.RESERVED_SLOTS+proc.paramCount;
+        for ( int paramIndex = proc.paramCount; paramIndex < v.length-2; ++paramIndex )
+          callEnv[i++] = v[paramIndex+1].evalValue( env, ctx );
+        for ( ; restArgs != Pair.NULL; restArgs = (Pair) restArgs.getCdr() )
+          callEnv[i++] = restArgs.getCar();
+        return callEnv;
+      }
+
       if (proc.haveRest)
       {
         // The rest of the parameters (which could come from m_evalParams, restArgs or both)
@@ -533,9 +695,10 @@ public static final class Apply extends Builtin
         callEnv[Scope.RESERVED_SLOTS+proc.paramCount] = restArgs;
       }
 
-      // Fill the rest of the environment with unspecified values
+      // Fill the rest of the environment with unspecified values. Note that evaluating the
+      // parameters may have compiled a LazyBody of the procedure and changed its envSize
       {
-        int end = proc.envSize;
+        int end = callEnv.length;
         int i = Scope.RESERVED_SLOTS+proc.paramCount+(proc.haveRest?1:0);
         for ( ; i < end; ++i )
           callEnv[i] = Unspec.UNSPEC;
@@ -549,25 +712,45 @@ public static final class Apply extends Builtin
 
   public final AST evalCont ( final Object[] env, final EvalContext ctx ) throws SchemeError
   {
+    // The back-edge of the trampoline: every tail call returns through here
+    ctx.poll( this );
     Closure closure = evalTarget( env, ctx );
-    ctx.outEnv = buildEnv( env, ctx, closure);
-    Lambda proc = closure.lambda;
+    Lambda proc = target( closure );
+    // Read the body before evaluating the parameters, which may replace a LazyBody
+    AST body = proc.body;
+    ctx.outEnv = buildEnv( env, ctx, closure, proc, false );
     if (proc instanceof JavaProcedure)
       return ((JavaProcedure)proc).cont;
     else
-      return closure.lambda.body;
+      return body;
   }
 
   protected final Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
   {
+    ctx.poll( this );
     Closure closure = evalTarget( env, ctx );
-    Object[] callEnv = buildEnv( env, ctx, closure);
-    Lambda proc = closure.lambda;
+    Lambda proc = target( closure );
 
+    if (proc.reuseFrame)
+    {
+      // The environment dies with this invocation, so we can return it to the frame stack
+      int mark = ctx.frameMark();
+      try
+      {
+        return proc.body.evalValue( buildEnv( env, ctx, closure, proc, true ), ctx );
+      }
+      finally
+      {
+        ctx.popFrames( mark );
+      }
+    }
+
+    AST body = proc.body;
+    Object[] callEnv = buildEnv( env, ctx, closure, proc, false );
     if (proc instanceof JavaProcedure)
       return ((JavaProcedure)proc).apply( callEnv );
     else
-      return closure.lambda.body.evalValue( callEnv, ctx );
+      return body.evalValue( callEnv, ctx );
   }
 
   public String toString ()
@@ -591,12 +774,26 @@ public static final class Apply extends Builtin
   }
 }
 
+/**
+ * The base of exceptions which transfer control to a continuation instead of reporting an
+ * error. They pass through {@link #handleException(Exception)} unchanged and don't record a
+ * stack trace.
+ */
+@SuppressWarnings({"serial"})
+static abstract class ControlTransfer extends RuntimeException
+{
+  public Throwable fillInStackTrace ()
+  {
+    return this;
+  }
+}
+
 /**
  * A special exception type used to transfer the execution to the call/cc site whenever a
  * continuation procedure is invoked.
  */
 @SuppressWarnings({"serial"})
-private static class ExecuteContinuation extends RuntimeException
+private static class ExecuteContinuation extends ControlTransfer
 {
   final ContinuationProcedure continuation;
   final Object result;
@@ -634,6 +831,7 @@ private static class ContinuationProcedure extends JavaProcedure
 // FIXME: this is a very limited implementation of call/cc:
 //          - it isn't tail recursive
 //          - continuations work only "upwards" and are one-shot
+//        With Options.vm the RegisterVM implements call/cc itself, without these limitations.
 public static class CallCC extends Builtin
 {
   private static final long serialVersionUID = 1L;
@@ -668,6 +866,14 @@ public static class CallCC extends Builtin
     if (proc.envSize > 0)
     {
       int paramIndex;
+      if (proc.spreadRest)
+      {
+        // The only parameter, regular or not
+        callEnv = new Object[Scope.RESERVED_SLOTS+1];
+        callEnv[Scope.PARENT_SLOT] = closure.parentEnv;
+        callEnv[Scope.RESERVED_SLOTS] = continuation;
+        return callEnv;
+      }
       callEnv = new Object[proc.envSize];
       callEnv[Scope.PARENT_SLOT] = closure.parentEnv;
 
@@ -736,6 +942,133 @@ public static class CallCC extends Builtin
   }
 }
 
+/**
+ * Transfers control to the {@code call/ec} site of an {@link EscapeProcedure}. Every escape
+ * procedure preallocates its own, so escaping doesn't allocate anything.
+ */
+@SuppressWarnings({"serial"})
+static final class Escape extends ControlTransfer
+{
+  final EscapeProcedure target;
+  Object value;
+
+  Escape ( final EscapeProcedure target )
+  {
+    this.target = target;
+  }
+}
+
+/**
+ * An escape continuation. It is valid only until its {@code call/ec} returns.
+ */
+@SuppressWarnings({"serial"})
+static class EscapeProcedure extends JavaProcedure
+{
+  /** The dynamic extent of the {@code call/ec} */
+  final transient EvalContext.Winder winders;
+  private final transient Escape m_escape = new Escape( this );
+  boolean m_done;
+
+  EscapeProcedure ( final EvalContext.Winder winders )
+  {
+    super(1, false);
+    this.winders = winders;
+  }
+
+  public Object apply ( final Object[] argv ) throws SchemeError
+  {
+    if (m_done)
+      throw new SchemeError( "Escape continuation invoked outside of its extent" );
+    m_escape.value = argv[ARG0];
+    throw m_escape;
+  }
+
+  public String toString ()
+  {
+    return "#<escape continuation>";
+  }
+}
+
+/**
+ * {@code (call-with-escape-continuation proc)}: a {@code call/cc} whose continuation can only be
+ * used to escape from the extent of the call. Escaping is cheap: the exception is preallocated
+ * and doesn't record a stack trace.
+ */
+public static final class CallEC extends Builtin
+{
+  private static final long serialVersionUID = 1L;
+  public static final int PARAM_COUNT=1;
+  public static final boolean HAVE_REST=false;
+
+  public CallEC ( final ISourceCoords coords, final AST[] values )
+  {
+    super(coords, values);
+  }
+
+  public Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    Object target = v[0].evalValue( env, ctx );
+    if (!(target instanceof Closure))
+      throw new EvalError( this, "call/ec with non-procedure parameter" );
+
+    EscapeProcedure escape = new EscapeProcedure( ctx.winders );
+    try
+    {
+      return ctx.call( this, target, new Closure( null, escape ) );
+    }
+    catch (Escape e)
+    {
+      if (e.target != escape)
+        throw e;
+      ctx.rewind( escape.winders );
+      return e.value;
+    }
+    finally
+    {
+      escape.m_done = true;
+    }
+  }
+}
+
+/**
+ * {@code (dynamic-wind before thunk after)}. "after" is also called when the thunk exits
+ * with an error or by a continuation.
+ */
+public static final class DynamicWind extends Builtin
+{
+  private static final long serialVersionUID = 1L;
+  public static final int PARAM_COUNT=3;
+  public static final boolean HAVE_REST=false;
+
+  public DynamicWind ( final ISourceCoords coords, final AST[] values )
+  {
+    super(coords, values);
+  }
+
+  public Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    Object before = v[0].evalValue( env, ctx );
+    Object thunk = v[1].evalValue( env, ctx );
+    Object after = v[2].evalValue( env, ctx );
+
+    ctx.call( this, before );
+    EvalContext.Winder w = ctx.winders = new EvalContext.Winder( this, before, after, ctx.winders );
+    try
+    {
+      return ctx.call( this, thunk );
+    }
+    finally
+    {
+      // Unless a continuation has already left the extent
+      if (ctx.winders == w)
+      {
+        ctx.winders = w.next;
+        ctx.call( this, after );
+      }
+    }
+  }
+}
+
 /**
  *
  */
@@ -802,7 +1135,7 @@ public static final class Begin extends AST
 public static final class Trampoline extends AST
 {
   private static final long serialVersionUID = 513918821698267255L;
-  private final AST m_ast;
+  final AST m_ast;
 
   public Trampoline ( ISourceCoords coords, final AST ast )
   {
@@ -848,5 +1181,137 @@ public static final class Trampoline extends AST
   }
 }
 
+/**
+ * The body of a procedure whose self tail calls have been converted to {@link LoopJump}s (see
+ * {@link LoopConverter}). A jump updates the parameters in the current environment and
+ * restarts the body, so iterations don't allocate environments.
+ *
+ * <p>The body may also make other tail calls, so in a tail context it must return them to the
+ * trampoline like any other instruction instead of evaluating them on the Java stack.
+ */
+public static final class Loop extends AST
+{
+  private static final long serialVersionUID = 1L;
+
+  /** Returned by a {@link LoopJump} to restart the loop */
+  static final Object RESTART = new Object();
+
+  final AST m_body;
+
+  public Loop ( ISourceCoords coords, final AST body )
+  {
+    super(coords);
+    m_body = body;
+  }
+
+  public final AST evalCont ( Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    // Follow the continuations of the body while they stay in our environment. A jump can
+    // only be reached that way; a different environment means a tail call out of the loop.
+    AST cur = m_body;
+    for(;;)
+    {
+      if (cur instanceof LoopJump)
+      {
+        cur.evalValue( env, ctx );
+        ctx.poll( this );
+        cur = m_body;
+        continue;
+      }
+      AST next = cur.evalCont( env, ctx );
+      if (next == cur)
+        return next;
+      if (ctx.outEnv != env)
+      {
+        // The trampoline would take us returning ourselves for the final continuation
+        if (next != this)
+          return next;
+        env = ctx.outEnv;
+        next = m_body;
+      }
+      cur = next;
+    }
+  }
+
+  public final Object evalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    Object res;
+    while ((res = m_body.evalValue( env, ctx )) == RESTART)
+      ctx.poll( this );
+    return res;
+  }
+
+  public String toString ()
+  {
+    return "(loop "+ m_body +")";
+  }
+
+  public Object dis ()
+  {
+    return new Pair( "loop", new Pair(m_body.dis()) );
+  }
+}
+
+/**
+ * A self tail call in a {@link Loop}: assign the new values of the parameters which change and
+ * restart the loop. It can appear only in a tail position of the loop body.
+ */
+public static final class LoopJump extends AST
+{
+  private static final long serialVersionUID = 1L;
+
+  /** The environment slots of the parameters */
+  final int[] m_slots;
+  final AST[] m_values;
+
+  public LoopJump ( ISourceCoords coords, final int[] slots, final AST[] values )
+  {
+    super(coords);
+    m_slots = slots;
+    m_values = values;
+  }
+
+  public final Object evalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    int n = m_values.length;
+    if (n == 1)
+      env[m_slots[0]] = m_values[0].evalValue( env, ctx );
+    else if (n > 1)
+    {
+      // All values must be evaluated before any parameter changes
+      int mark = ctx.frameMark();
+      try
+      {
+        Object[] tmp = ctx.pushFrame( n );
+        for ( int i = 0; i < n; ++i )
+          tmp[i] = m_values[i].evalValue( env, ctx );
+        for ( int i = 0; i < n; ++i )
+          env[m_slots[i]] = tmp[i];
+      }
+      finally
+      {
+        ctx.popFrames( mark );
+      }
+    }
+    return Loop.RESTART;
+  }
+
+  public String toString ()
+  {
+    StringBuilder res = new StringBuilder( "(jump" );
+    for ( int i = 0; i < m_values.length; ++i )
+      res.append( " (" ).append( m_slots[i] ).append( ' ' ).append( m_values[i] ).append( ')' );
+    return res.append( ')' ).toString();
+  }
+
+  public Object dis ()
+  {
+    Pair res = Pair.NULL;
+    for ( int i = m_values.length-1; i >= 0; --i )
+      res = new Pair( new Pair( m_slots[i], new Pair( m_values[i].dis() ) ), res );
+    return new Pair( "jump", res );
+  }
+}
+
 } // class
 
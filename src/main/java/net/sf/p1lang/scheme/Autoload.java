@@ -0,0 +1,130 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The registry of the libraries which are loaded on the first reference to one of their
+ * definitions, instead of by the bootstrap.
+ *
+ * <p>The exported symbols of a library are the names of its top level {@code define} forms and
+ * macro definitions. When the compiler can't find a binding for such a symbol, the interpreter
+ * loads the library (see {@link SchemeInterpreter#autoload}) and the compiler looks it up again.
+ * A library is loaded at most once. It may reference the exports of other libraries, which are
+ * then loaded while it is being compiled.
+ *
+ * <p>The exports are registered only by the bootstrap, so they are shared with the forks of the
+ * interpreter. The set of pending libraries is copied.
+ */
+final class Autoload
+{
+/** The library exporting each symbol */
+private final HashMap<Symbol,String> m_exports;
+/** The data of the libraries which haven't been loaded yet */
+private final HashMap<String,Pair> m_pending;
+
+Autoload ()
+{
+  m_exports = new HashMap<Symbol,String>();
+  m_pending = new HashMap<String,Pair>();
+}
+
+/** A copy for a fork of the interpreter */
+Autoload ( Autoload from )
+{
+  m_exports = from.m_exports;
+  m_pending = new HashMap<String,Pair>( from.m_pending );
+}
+
+/**
+ * Register a library, which will be loaded on the first reference to one of its exports.
+ * @param name the name of the library resource
+ * @param forms the top level forms of the library
+ */
+final void register ( String name, Pair forms )
+{
+  m_pending.put( name, forms );
+  for ( Pair p = forms; p != Pair.NULL; p = (Pair) p.getCdr() )
+  {
+    Symbol sym = definedSymbol( p.getCar() );
+    if (sym != null)
+      m_exports.put( sym, name );
+  }
+}
+
+/**
+ * The symbol defined by a top level form, or null if it isn't a definition
+ */
+private static Symbol definedSymbol ( Object form )
+{
+  if (!(form instanceof Pair) || form == Pair.NULL || !(((Pair) form).getCar() instanceof Symbol))
+    return null;
+  switch (((Symbol) ((Pair) form).getCar()).code)
+  {
+  case DEFINE:
+  case DEFINE_MACRO:
+  case DEFINE_IDENTIFIER_MACRO:
+  case DEFINE_SET_MACRO:
+    break;
+  default:
+    return null;
+  }
+
+  Object rest = ((Pair) form).getCdr();
+  if (!(rest instanceof Pair) || rest == Pair.NULL)
+    return null;
+  Object target = ((Pair) rest).getCar();
+  // (define (name . params) ...)
+  if (target instanceof Pair && target != Pair.NULL)
+    target = ((Pair) target).getCar();
+  return target instanceof Symbol ? (Symbol) target : null;
+}
+
+/**
+ * The pending library exporting a symbol
+ * @return the name of the library, or null if the symbol isn't exported by a library which
+ *   hasn't been loaded yet
+ */
+final String library ( Symbol sym )
+{
+  if (m_pending.isEmpty())
+    return null;
+  String name = m_exports.get( sym );
+  return name != null && m_pending.containsKey( name ) ? name : null;
+}
+
+/**
+ * Remove a library from the pending ones, before it is loaded.
+ * @return the top level forms of the library
+ */
+final Pair take ( String name )
+{
+  return m_pending.remove( name );
+}
+
+final boolean isPending ( String name )
+{
+  return m_pending.containsKey( name );
+}
+
+/**
+ * The symbols exported by a library
+ */
+final ArrayList<Symbol> exports ( String name )
+{
+  ArrayList<Symbol> res = new ArrayList<Symbol>();
+  for ( Map.Entry<Symbol,String> e : m_exports.entrySet() )
+    if (e.getValue().equals( name ))
+      res.add( e.getKey() );
+  return res;
+}
+
+} // class
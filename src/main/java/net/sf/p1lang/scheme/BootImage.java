@@ -0,0 +1,577 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * The standard library in a compact binary form which can be loaded much faster than the source
+ * can be parsed.
+ *
+ * <p>Lexing the library is most of the cost of creating an interpreter, so the build reads the
+ * library once and stores the data in the resource {@link #RESOURCE}. The interpreter then
+ * compiles the data from the image instead of the source. The data keep the source positions,
+ * so error messages are the same. Symbols are stored by name and are interned in the
+ * {@link SymbolMap} of each interpreter when it loads the image.
+ *
+ * <p>We don't snapshot the compiled code with Java serialization, although the instructions
+ * are serializable: reading the graph is slower than compiling the data again.
+ *
+ * <p>If the image is missing or doesn't contain a library, the library is parsed from the
+ * source. The image also stores a hash of the source of every library, so a library whose source
+ * has been edited since the image was built is parsed from the source as well. The build
+ * regenerates the image by running {@link #main}.
+ */
+final class BootImage
+{
+static final String RESOURCE = "bootstrap.img";
+
+/** The libraries in the image, in the order of the bootstrap */
+static final String[] LIBRARIES = { "base0.scm", "srfi-1.scm", "srfi-9.scm", "srfi-69.scm",
+                                    "coroutines.scm" };
+
+private static final int MAGIC = 0x53434D49; // "SCMI"
+private static final int VERSION = 2;
+
+private static final int T_NULL = 0;
+private static final int T_TRUE = 1;
+private static final int T_FALSE = 2;
+/** A fixnum */
+private static final int T_FIXINT = 3;
+/** An inexact real */
+private static final int T_REAL = 4;
+/** Any other number, in its external representation */
+private static final int T_NUMBER = 5;
+private static final int T_CHAR = 6;
+private static final int T_STRING = 7;
+/** The first occurrence of a symbol: its name */
+private static final int T_SYMBOL = 8;
+/** A symbol which has already occurred: its index */
+private static final int T_SYMREF = 9;
+/** A list of positioned pairs: the count, the position and car of every pair, and the tail */
+private static final int T_LIST = 10;
+/** A list of unpositioned pairs */
+private static final int T_PLAIN_LIST = 11;
+private static final int T_VECTOR = 12;
+
+/** The contents of the resource, or null if there isn't one */
+private static byte[] s_image;
+private static boolean s_imageRead;
+/** The hashes of the sources of the libraries by name, null for a missing source */
+private static final HashMap<String,byte[]> s_sourceHashes = new HashMap<String,byte[]>();
+
+private BootImage () {}
+
+private static synchronized byte[] image ()
+{
+  if (!s_imageRead)
+  {
+    s_imageRead = true;
+    InputStream is = BootImage.class.getResourceAsStream( RESOURCE );
+    if (is != null)
+    {
+      try
+      {
+        s_image = readAll( is );
+      }
+      catch (IOException e)
+      {
+        // Parse the sources instead
+        s_image = null;
+      }
+    }
+  }
+  return s_image;
+}
+
+/**
+ * Replace the image of the resource, or with null read the resource again. For the tests.
+ */
+static synchronized void setImage ( byte[] image )
+{
+  s_image = image;
+  s_imageRead = image != null;
+}
+
+/** Read and close a stream */
+private static byte[] readAll ( InputStream is ) throws IOException
+{
+  try
+  {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream( 1 << 16 );
+    byte[] chunk = new byte[1 << 14];
+    int n;
+    while ((n = is.read( chunk )) > 0)
+      buf.write( chunk, 0, n );
+    return buf.toByteArray();
+  }
+  finally
+  {
+    is.close();
+  }
+}
+
+private static byte[] hash ( byte[] source )
+{
+  try
+  {
+    return MessageDigest.getInstance( "SHA-1" ).digest( source );
+  }
+  catch (NoSuchAlgorithmException e)
+  {
+    throw new RuntimeException( e );
+  }
+}
+
+/**
+ * The hash of the source of a library. It is computed once, when the image is first loaded.
+ * @return the hash, or null if the source can't be read
+ */
+private static synchronized byte[] sourceHash ( String name )
+{
+  if (!s_sourceHashes.containsKey( name ))
+  {
+    byte[] res = null;
+    URL url = SchemeInterpreter.class.getResource( name );
+    if (url != null)
+    {
+      try
+      {
+        res = hash( readAll( url.openStream() ) );
+      }
+      catch (IOException ignored)
+      {}
+    }
+    s_sourceHashes.put( name, res );
+  }
+  return s_sourceHashes.get( name );
+}
+
+/**
+ * Load the libraries from the image.
+ *
+ * @param map the symbol map where the symbols are interned
+ * @return the data of the libraries by name, or null if there is no valid image
+ */
+static HashMap<String,Pair> load ( SymbolMap map )
+{
+  byte[] image = image();
+  return image != null ? read( image, map ) : null;
+}
+
+/**
+ * Decode an image.
+ *
+ * @param map the symbol map where the symbols are interned
+ * @return the data of the libraries by name, or null if the image isn't valid
+ */
+static HashMap<String,Pair> read ( byte[] image, SymbolMap map )
+{
+  try
+  {
+    return new Decoder( image, map ).readImage();
+  }
+  catch (RuntimeException e)
+  {
+    // A corrupt image, e.g. an index out of range
+    return null;
+  }
+}
+
+/**
+ * Decodes the image. We access the bytes directly, since it is much faster than going through a
+ * DataInputStream.
+ */
+private static final class Decoder
+{
+  private final byte[] m_buf;
+  private int m_pos;
+  private final SymbolMap m_map;
+  private final ArrayList<Symbol> m_symbols = new ArrayList<Symbol>();
+  /** The file name of the pairs of the current library */
+  private String m_fileName;
+
+  Decoder ( byte[] buf, SymbolMap map )
+  {
+    m_buf = buf;
+    m_map = map;
+  }
+
+  private int readByte ()
+  {
+    return m_buf[m_pos++] & 0xFF;
+  }
+
+  private long readLong ()
+  {
+    long res = 0;
+    for ( int i = 0; i < 8; ++i )
+      res = (res << 8) | readByte();
+    return res;
+  }
+
+  /** An unsigned variable length integer: 7 bits per byte, the least significant first */
+  private int readUInt ()
+  {
+    int res = 0, shift = 0, b;
+    do
+    {
+      b = readByte();
+      res |= (b & 0x7F) << shift;
+      shift += 7;
+    }
+    while ((b & 0x80) != 0);
+    return res;
+  }
+
+  private byte[] readBytes ()
+  {
+    int len = readUInt();
+    byte[] res = Arrays.copyOfRange( m_buf, m_pos, m_pos + len );
+    m_pos += len;
+    return res;
+  }
+
+  private String readString ()
+  {
+    int len = readUInt();
+    try
+    {
+      String res = new String( m_buf, m_pos, len, "UTF-8" );
+      m_pos += len;
+      return res;
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      throw new RuntimeException( e );
+    }
+  }
+
+  final HashMap<String,Pair> readImage ()
+  {
+    if (readLong() != (((long)MAGIC << 32) | VERSION))
+      return null;
+
+    HashMap<String,Pair> res = new HashMap<String,Pair>();
+    for ( int count = readUInt(); count > 0; --count )
+    {
+      String name = readString();
+      byte[] hash = readBytes();
+      URL url = SchemeInterpreter.class.getResource( name );
+      // The same name that parsing the source would give
+      m_fileName = url != null ? url.toString() : name;
+      Pair data = (Pair) readDatum();
+
+      // A library whose source has been edited since the image was built must be parsed
+      byte[] sourceHash = sourceHash( name );
+      if (sourceHash == null || Arrays.equals( hash, sourceHash ))
+        res.put( name, data );
+    }
+    return res;
+  }
+
+  private Object readDatum ()
+  {
+    int tag = readByte();
+    switch (tag)
+    {
+    case T_NULL: return Pair.NULL;
+    case T_TRUE: return Boolean.TRUE;
+    case T_FALSE: return Boolean.FALSE;
+    case T_FIXINT: return SchemeFixInt.make( readLong() );
+    case T_REAL: return SchemeReal.make( Double.longBitsToDouble( readLong() ) );
+    case T_NUMBER: return parseNumber( readString() );
+    case T_CHAR: return (char) readUInt();
+    case T_STRING: return readString();
+
+    case T_SYMBOL:
+      {
+        Symbol sym = m_map.newSymbol( readString() );
+        m_symbols.add( sym );
+        return sym;
+      }
+    case T_SYMREF:
+      return m_symbols.get( readUInt() );
+
+    case T_LIST:
+    case T_PLAIN_LIST:
+      {
+        int count = readUInt();
+        int[] positions = tag == T_LIST ? new int[count] : null;
+        Object[] cars = new Object[count];
+        for ( int i = 0; i < count; ++i )
+        {
+          if (positions != null)
+            positions[i] = readUInt();
+          cars[i] = readDatum();
+        }
+        Object res = readDatum();
+        for ( int i = count - 1; i >= 0; --i )
+        {
+          if (positions != null)
+          {
+            PositionedPair p = new PositionedPair( cars[i], res );
+            p.fileName = m_fileName;
+            p.position = positions[i];
+            res = p;
+          }
+          else
+            res = new Pair( cars[i], res );
+        }
+        return res;
+      }
+
+    case T_VECTOR:
+      {
+        Object[] res = new Object[readUInt()];
+        for ( int i = 0; i < res.length; ++i )
+          res[i] = readDatum();
+        return res;
+      }
+
+    default:
+      throw new IllegalStateException( "Invalid tag " + tag );
+    }
+  }
+
+  private Object parseNumber ( String str )
+  {
+    Lexer lex = new Lexer( new StringReader( str ), m_fileName, m_map,
+                           new SimpleErrorReporter( 1 ) );
+    if (lex.nextToken() != Lexer.Token.NUMBER)
+      throw new IllegalStateException( "Invalid number " + str );
+    return lex.m_valueNumber;
+  }
+}
+
+/**
+ * Encodes the image.
+ */
+private static final class Encoder
+{
+  private final DataOutputStream m_out;
+  private final IdentityHashMap<Symbol,Integer> m_symbols = new IdentityHashMap<Symbol,Integer>();
+
+  Encoder ( OutputStream out )
+  {
+    m_out = new DataOutputStream( out );
+  }
+
+  private void writeUInt ( int value ) throws IOException
+  {
+    while ((value & ~0x7F) != 0)
+    {
+      m_out.writeByte( (value & 0x7F) | 0x80 );
+      value >>>= 7;
+    }
+    m_out.writeByte( value );
+  }
+
+  private void writeString ( String str ) throws IOException
+  {
+    byte[] bytes = str.getBytes( "UTF-8" );
+    writeUInt( bytes.length );
+    m_out.write( bytes );
+  }
+
+  final void writeHeader ( int count ) throws IOException
+  {
+    m_out.writeLong( ((long)MAGIC << 32) | VERSION );
+    writeUInt( count );
+  }
+
+  final void writeLibrary ( String name, byte[] hash, Pair data ) throws IOException
+  {
+    writeString( name );
+    writeUInt( hash.length );
+    m_out.write( hash );
+    writeDatum( data );
+  }
+
+  private void writeDatum ( Object datum ) throws IOException
+  {
+    if (datum == Pair.NULL)
+      m_out.writeByte( T_NULL );
+    else if (datum instanceof Boolean)
+      m_out.writeByte( (Boolean) datum ? T_TRUE : T_FALSE );
+    else if (datum instanceof SchemeFixInt)
+    {
+      m_out.writeByte( T_FIXINT );
+      m_out.writeLong( ((SchemeFixInt) datum).value );
+    }
+    else if (datum instanceof SchemeReal)
+    {
+      m_out.writeByte( T_REAL );
+      m_out.writeLong( Double.doubleToRawLongBits( ((SchemeReal) datum).value ) );
+    }
+    else if (datum instanceof SchemeNumber)
+    {
+      m_out.writeByte( T_NUMBER );
+      writeString( datum.toString() );
+    }
+    else if (datum instanceof Character)
+    {
+      m_out.writeByte( T_CHAR );
+      writeUInt( (Character) datum );
+    }
+    else if (datum instanceof String)
+    {
+      m_out.writeByte( T_STRING );
+      writeString( (String) datum );
+    }
+    else if (datum instanceof Symbol)
+    {
+      Integer index = m_symbols.get( datum );
+      if (index != null)
+      {
+        m_out.writeByte( T_SYMREF );
+        writeUInt( index );
+      }
+      else
+      {
+        m_symbols.put( (Symbol) datum, m_symbols.size() );
+        m_out.writeByte( T_SYMBOL );
+        writeString( ((Symbol) datum).name );
+      }
+    }
+    else if (datum instanceof Pair)
+    {
+      boolean positioned = datum instanceof PositionedPair;
+      ArrayList<Pair> pairs = new ArrayList<Pair>();
+      Object tail = datum;
+      while (tail instanceof Pair && tail != Pair.NULL && (tail instanceof PositionedPair) == positioned)
+      {
+        pairs.add( (Pair) tail );
+        tail = ((Pair) tail).getCdr();
+      }
+
+      m_out.writeByte( positioned ? T_LIST : T_PLAIN_LIST );
+      writeUInt( pairs.size() );
+      for ( Pair p : pairs )
+      {
+        if (positioned)
+          writeUInt( ((PositionedPair) p).position );
+        writeDatum( p.getCar() );
+      }
+      writeDatum( tail );
+    }
+    else if (datum instanceof Object[])
+    {
+      Object[] vec = (Object[]) datum;
+      m_out.writeByte( T_VECTOR );
+      writeUInt( vec.length );
+      for ( Object o : vec )
+        writeDatum( o );
+    }
+    else
+      throw new IllegalArgumentException( "Unsupported datum " + datum );
+  }
+
+  final void flush () throws IOException
+  {
+    m_out.flush();
+  }
+}
+
+/**
+ * Parse the libraries and write the image.
+ */
+static void write ( OutputStream os, IErrorReporter errors ) throws IOException, ParseErrors
+{
+  byte[][] sources = new byte[LIBRARIES.length][];
+  for ( int i = 0; i < LIBRARIES.length; ++i )
+    sources[i] = readAll( SchemeInterpreter.class.getResource( LIBRARIES[i] ).openStream() );
+  write( os, LIBRARIES, sources, errors );
+}
+
+/**
+ * Parse the given sources of libraries and write the image.
+ */
+static void write ( OutputStream os, String[] names, byte[][] sources, IErrorReporter errors )
+        throws IOException, ParseErrors
+{
+  SymbolMap map = new SymbolMap();
+  Encoder enc = new Encoder( os );
+  enc.writeHeader( names.length );
+  for ( int i = 0; i < names.length; ++i )
+  {
+    String name = names[i];
+    URL url = SchemeInterpreter.class.getResource( name );
+    Lexer lex = new Lexer(
+      new BufferedReader( new InputStreamReader( new ByteArrayInputStream( sources[i] ), "UTF-8" ) ),
+      url != null ? url.toString() : name, map, errors );
+    DatumParser dp = new DatumParser( lex );
+
+    Pair list = Pair.NULL;
+    try
+    {
+      Object datum;
+      while ((datum = dp.parseDatum()) != DatumParser.EOF)
+        list = new Pair( datum, list );
+    }
+    catch (TooManyErrors ignored)
+    {}
+    if (errors.getErrorCount() > 0)
+      throw new ParseErrors( errors );
+
+    enc.writeLibrary( name, hash( sources[i] ), Misc.reverse( list ) );
+  }
+  enc.flush();
+}
+
+/**
+ * Parse the libraries and write the image.
+ * <pre>
+ * Usage: BootImage file
+ * </pre>
+ */
+public static void main ( String[] args ) throws Exception
+{
+  if (args.length != 1)
+  {
+    System.err.println( "Usage: BootImage file" );
+    System.exit( 1 );
+  }
+
+  SimpleErrorReporter errors = new SimpleErrorReporter( 10 );
+  OutputStream os = new BufferedOutputStream( new FileOutputStream( args[0] ) );
+  try
+  {
+    write( os, errors );
+  }
+  catch (ParseErrors e)
+  {
+    for ( ErrorInfo ei : errors.getErrorList() )
+      System.err.println( ei );
+    System.exit( 1 );
+  }
+  finally
+  {
+    os.close();
+  }
+}
+
+} // class
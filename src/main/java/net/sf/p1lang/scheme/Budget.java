@@ -0,0 +1,162 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The limits of one or more evaluations: the CPU time they may use, the time they may take and
+ * whether they have been cancelled. An evaluation checks its budget every
+ * {@link EvalContext#SLICE} procedure calls and loop iterations, and fails with
+ * {@link BudgetExceededError} once it is exhausted.
+ *
+ * <p>The CPU time of all evaluations sharing a budget adds up, so a budget can serve as the
+ * quota of a tenant. The timeout starts with the first evaluation.
+ *
+ * <p>We measure the CPU time of the threads running the evaluation where the JVM supports it,
+ * and otherwise the elapsed time of its slices. Compilation, including macro expansion, and
+ * time spent blocked in Java code are not limited.
+ */
+public final class Budget
+{
+private static final ThreadMXBean s_threads = ManagementFactory.getThreadMXBean();
+private static final boolean s_haveCpuTime =
+  s_threads.isCurrentThreadCpuTimeSupported() && s_threads.isThreadCpuTimeEnabled();
+
+/** Limits in nanoseconds, or 0 */
+private final long m_cpuLimit;
+private final long m_timeout;
+
+/** The CPU time used so far */
+private final AtomicLong m_used = new AtomicLong();
+private boolean m_started;
+private volatile long m_deadline;
+private volatile boolean m_cancelled;
+
+/**
+ * An unlimited budget. It can still be cancelled.
+ */
+public Budget ()
+{
+  this( 0, 0, TimeUnit.NANOSECONDS );
+}
+
+/**
+ * @param cpuTime the CPU time the evaluations may use, or 0 for no limit
+ * @param timeout the time they may take, starting with the first one, or 0 for no limit
+ */
+public Budget ( long cpuTime, long timeout, TimeUnit unit )
+{
+  if (cpuTime < 0 || timeout < 0)
+    throw new IllegalArgumentException( "Negative limit" );
+  m_cpuLimit = unit.toNanos( cpuTime );
+  m_timeout = unit.toNanos( timeout );
+}
+
+/**
+ * Stop the evaluations at their next check.
+ */
+public void cancel ()
+{
+  m_cancelled = true;
+}
+
+public boolean isCancelled ()
+{
+  return m_cancelled;
+}
+
+/**
+ * @return the CPU time used so far. It is updated at the end of each slice, when an evaluation
+ *   waits and when it finishes.
+ */
+public long getCpuTime ( TimeUnit unit )
+{
+  return unit.convert( m_used.get(), TimeUnit.NANOSECONDS );
+}
+
+/**
+ * Start the timeout, if it hasn't been started yet.
+ * @throws BudgetExceededError if the budget is already exhausted, so an evaluation doesn't get
+ *   a slice it isn't entitled to
+ */
+final void start () throws BudgetExceededError
+{
+  synchronized (this)
+  {
+    if (!m_started)
+    {
+      m_started = true;
+      m_deadline = System.nanoTime() + m_timeout;
+    }
+  }
+  check( null );
+}
+
+/** @return the nanoseconds left until the timeout, or Long.MAX_VALUE if there is none */
+final long remaining ()
+{
+  return m_timeout > 0 ? m_deadline - System.nanoTime() : Long.MAX_VALUE;
+}
+
+/** @return the CPU time of the current thread, or the time if we can't measure it */
+static long cpuTime ()
+{
+  if (s_haveCpuTime)
+  {
+    try
+    {
+      long t = s_threads.getCurrentThreadCpuTime();
+      if (t >= 0)
+        return t;
+    }
+    catch (UnsupportedOperationException ignored)
+    {
+      // Virtual threads
+    }
+  }
+  return System.nanoTime();
+}
+
+/**
+ * Called at the end of a slice: add its CPU time and check the limits.
+ */
+final void charge ( EvalContext ctx, AST site ) throws BudgetExceededError
+{
+  settle( ctx );
+  check( site );
+}
+
+/**
+ * Add the CPU time of the slice so far, without checking the limits: the evaluation is about
+ * to wait or has finished.
+ */
+final void settle ( EvalContext ctx )
+{
+  long now = cpuTime();
+  m_used.addAndGet( now - ctx.sliceStart );
+  ctx.sliceStart = now;
+}
+
+/**
+ * @throws BudgetExceededError if the budget is exhausted
+ */
+final void check ( AST site ) throws BudgetExceededError
+{
+  if (m_cancelled)
+    throw new BudgetExceededError( site, "Evaluation cancelled" );
+  if (m_cpuLimit > 0 && m_used.get() > m_cpuLimit)
+    throw new BudgetExceededError( site, "CPU time limit exceeded" );
+  if (remaining() < 0)
+    throw new BudgetExceededError( site, "Evaluation timed out" );
+}
+
+} // class
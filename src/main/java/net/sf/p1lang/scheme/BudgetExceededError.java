@@ -0,0 +1,24 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+/**
+ * Thrown when an evaluation exceeds its {@link Budget}: it used up its CPU time, timed out or
+ * was cancelled.
+ */
+public class BudgetExceededError extends EvalError
+{
+private static final long serialVersionUID = 1L;
+
+BudgetExceededError ( AST at, String message )
+{
+  super( at != null && at.havePosition() ?
+           new SourceCoords( at.getFileName(), at.getLine(), at.getColumn() ) : null,
+         message );
+}
+} // class
@@ -1,4 +1,5 @@
 (define pred-list '() )
+(define proc-list '() )
 
 (define (disp pat)
   (if (pair? pat)
@@ -25,21 +26,115 @@
   (gen-builtin-full name param-count "false" body))
 
 
-;; Generate a builtin which extracts its parameters into local variables
-;; named a, b, c, etc
+;; Call (k formals actuals names) with the parameter declarations ("Object a, Object b"),
+;; the evaluation of the operands and the parameter names ("a, b") of an operation
+(define (xop-params param-count k)
+  (let loop ((formals '()) (actuals '()) (names '()) (i 0) (chr #\a))
+    (if (< i param-count)
+      (loop `(,formals ,(if (> i 0) ", " "") "Object " ,chr)
+            `(,actuals ,(if (> i 0) ", " "") "v[" ,i "].evalValue(env,ctx)")
+            `(,names ,(if (> i 0) ", " "") ,chr)
+            (+ i 1)
+            (integer->char (+ 1 (char->integer chr))))
+      (k formals actuals names))))
+
+;; Generate a builtin which receives its parameters in local variables
+;; named a, b, c, etc. The operation itself is emitted as a separate method op(),
+;; so compiled code can invoke it directly with already evaluated parameters.
+;; "impl" is an optional implements clause (see AST.Pure and AST.Total)
+(define (gen-xop-full name param-count impl body)
+  (set! pred-list (cons name pred-list))
+  (xop-params param-count (lambda (formals actuals names)
+      (disp `(
+  "static final class " ,name " extends Builtin" ,impl " {
+    private static final long serialVersionUID = 1L;
+    public static final int PARAM_COUNT=" ,param-count ";
+    public static final boolean HAVE_REST=false;
+    public " ,name " ( ISourceCoords coords, AST[] values ) { super(coords,values); }
+    protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
+      return op( " ,actuals " );
+    }
+    final Object op ( " ,formals " ) throws SchemeError {
+      " ,body "
+    }
+  }\n\n")))))
+
+;; Generate a builtin which specializes itself on the types of its parameters at runtime.
+;; "specs" is a list of (name guard expr). The first specialization whose guard accepts the
+;; first parameters seen by the instruction is selected, and while its guard keeps accepting
+;; them, expr is evaluated instead of the generic body. Parameters which don't match switch the
+;; instruction permanently to the generic body.
+(define (gen-typed name param-count impl specs generic)
+  (set! pred-list (cons name pred-list))
+  (xop-params param-count (lambda (formals actuals names)
+      (disp `(
+  "static final class " ,name " extends Builtin" ,impl " {
+    private static final long serialVersionUID = 1L;
+    public static final int PARAM_COUNT=" ,param-count ";
+    public static final boolean HAVE_REST=false;
+    private transient int m_spec;
+    public " ,name " ( ISourceCoords coords, AST[] values ) { super(coords,values); }
+    protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
+      return op( " ,actuals " );
+    }
+    final Object op ( " ,formals " ) throws SchemeError {
+      switch (m_spec) {
+" ,(gen-spec-cases specs 1) "      case SPEC_GENERIC:
+        return generic( " ,names " );
+      }
+      return specialize( " ,names " );
+    }
+    private Object specialize ( " ,formals " ) throws SchemeError {
+      if (m_spec == SPEC_UNINIT) {
+" ,(gen-spec-inits specs 1) "      }
+      m_spec = SPEC_GENERIC;
+      return generic( " ,names " );
+    }
+    private Object generic ( " ,formals " ) throws SchemeError {
+      " ,generic "
+    }
+    public String specialization () {
+      switch (m_spec) {
+" ,(gen-spec-names specs 1) "      case SPEC_UNINIT: return \"uninitialized\";
+      default: return \"generic\";
+      }
+    }
+  }\n\n")))))
+
+(define (gen-spec-cases specs i)
+  (if (null? specs)
+    '()
+    `("      case " ,i ": // " ,(car (car specs)) "
+        if (" ,(cadr (car specs)) ")
+          return " ,(caddr (car specs)) ";
+        break;\n" ,(gen-spec-cases (cdr specs) (+ i 1)))))
+
+(define (gen-spec-inits specs i)
+  (if (null? specs)
+    '()
+    `("        if (" ,(cadr (car specs)) ") {
+          m_spec = " ,i ";
+          return " ,(caddr (car specs)) ";
+        }\n" ,(gen-spec-inits (cdr specs) (+ i 1)))))
+
+(define (gen-spec-names specs i)
+  (if (null? specs)
+    '()
+    `("      case " ,i ": return \"" ,(car (car specs)) "\";\n" ,(gen-spec-names (cdr specs) (+ i 1)))))
+
 (define (gen-xop name param-count body)
-  (gen-builtin
-    name param-count
-    ; build the local variables initializaion
-    (let loop ((bd '()) (i 0) (chr #\a))
-      (if (< i param-count)
-        (loop `(,bd "Object ",chr"=v[",i"].evalValue(env,ctx);\n")
-              (+ i 1)
-              (integer->char (+ 1 (char->integer chr))))
-        (list bd body) ))))
+  (gen-xop-full name param-count "" body))
+
+;; An operation without side effects, which can be evaluated at compile time
+(define (gen-pure name param-count body)
+  (gen-xop-full name param-count " implements AST.Pure" body))
+
+;; A pure operation which never fails
+(define (gen-total name param-count body)
+  (gen-xop-full name param-count " implements AST.Total" body))
 
 (define (gen-pred name body)
-  (gen-xop (string-append name "Pred") 1 body ))
+  (gen-total (string-append name "Pred") 1 body ))
 
 (define (gen-inst-pred name type)
   (gen-pred name `("return a instanceof " ,type ";" )))
@@ -63,6 +158,16 @@ final class Builtins
 {
 private Builtins () {};
 
+/**
+ * The error for a parameter of a numeric operation which isn't a number
+ * @param at the builtin performing the operation, or null for a procedure
+ */
+static EvalError notNumber ( AST at, Object x )
+{
+  String message = String.format( \"%s is not a number\", x );
+  return at != null ? new EvalError( at, message ) : new EvalError( message );
+}
+
 ")
 
 (gen-pred      "Null" "return a == Pair.NULL;")
@@ -86,8 +191,8 @@ private Builtins () {};
 
 (gen-pred      "Exact" "return a instanceof SchemeNumber && ((SchemeNumber)a).isExact();")
 
-(gen-xop "Eq" 2 "return a == b;")
-(gen-xop "Eqv" 2
+(gen-total "Eq" 2 "return a == b;")
+(gen-total "Eqv" 2
 "    if (a == b)
       return true;
     if (a instanceof SchemeNumber)
@@ -97,49 +202,160 @@ private Builtins () {};
     return false;
 ")
 
-(gen-xop "NumberLE" 2 "return ((SchemeNumber)a).cmp( (SchemeNumber)b ) <= 0;")
-(gen-xop "NumberLT" 2 "return ((SchemeNumber)a).cmp( (SchemeNumber)b ) < 0;")
-(gen-xop "NumberEQ" 2 "return ((SchemeNumber)a).cmp( (SchemeNumber)b ) == 0;")
-
-(gen-xop "Add" 2 "return ((SchemeNumber)a).add( (SchemeNumber)b );")
-(gen-xop "Sub" 2 "return ((SchemeNumber)a).sub( (SchemeNumber)b );")
-(gen-xop "Mul" 2 "return ((SchemeNumber)a).mul( (SchemeNumber)b );")
-(gen-xop "Div" 2 "return ((SchemeNumber)a).div( (SchemeNumber)b );")
-(gen-xop "Quotient" 2 "return ((SchemeInteger)a).quotient( (SchemeInteger)b );")
-(gen-xop "Remainder" 2 "return ((SchemeInteger)a).remainder( (SchemeInteger)b );")
+;; A numeric operation specialized for two fixnums and two reals. "fixnum" and "real" are
+;; expressions on the unboxed values x and y, which are emitted as helper methods after the
+;; generic body. The generic version still has a fast path for fixnums, for instructions which
+;; see both. It is also available as the static method binary(), for the variadic versions of
+;; the operation (see gen-variadic). binary() checks the types of its parameters, reporting the
+;; errors at "at".
+(define (gen-number-op name fixnum real generic)
+  (gen-typed name 2 " implements AST.Pure"
+    '(("fixint" "a instanceof SchemeFixInt && b instanceof SchemeFixInt"
+                "fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value )")
+      ("real" "a instanceof SchemeReal && b instanceof SchemeReal"
+              "real( ((SchemeReal)a).value, ((SchemeReal)b).value )"))
+    `(
+"return binary( this, a, b );
+    }
+    static Object binary ( final AST at, final Object a, final Object b ) throws SchemeError {
+      if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+        return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+      if (!(a instanceof SchemeNumber))
+        throw notNumber( at, a );
+      if (!(b instanceof SchemeNumber))
+        throw notNumber( at, b );
+      return " ,generic ";
+    }
+    private static Object fixnum ( final long x, final long y ) {
+      return " ,fixnum ";
+    }
+    private static Object real ( final double x, final double y ) {
+      return " ,real ";")))
+
+(gen-number-op "NumberLE" "x <= y" "Double.compare( x, y ) <= 0"
+  "((SchemeNumber)a).cmp( (SchemeNumber)b ) <= 0")
+(gen-number-op "NumberLT" "x < y" "Double.compare( x, y ) < 0"
+  "((SchemeNumber)a).cmp( (SchemeNumber)b ) < 0")
+(gen-number-op "NumberEQ" "x == y" "Double.compare( x, y ) == 0"
+  "((SchemeNumber)a).cmp( (SchemeNumber)b ) == 0")
+(gen-number-op "NumberGT" "x > y" "Double.compare( x, y ) > 0"
+  "((SchemeNumber)a).cmp( (SchemeNumber)b ) > 0")
+(gen-number-op "NumberGE" "x >= y" "Double.compare( x, y ) >= 0"
+  "((SchemeNumber)a).cmp( (SchemeNumber)b ) >= 0")
+
+(gen-number-op "Add" "SchemeFixInt.add( x, y )" "SchemeReal.make( x + y )"
+  "((SchemeNumber)a).add( (SchemeNumber)b )")
+(gen-number-op "Sub" "SchemeFixInt.sub( x, y )" "SchemeReal.make( x - y )"
+  "((SchemeNumber)a).sub( (SchemeNumber)b )")
+(gen-number-op "Mul" "SchemeFixInt.mul( x, y )" "SchemeReal.make( x * y )"
+  "((SchemeNumber)a).mul( (SchemeNumber)b )")
+(gen-pure "Div" 2 "return binary( this, a, b );
+    }
+    static Object binary ( final AST at, final Object a, final Object b ) throws SchemeError {
+      if (!(a instanceof SchemeNumber))
+        throw notNumber( at, a );
+      if (!(b instanceof SchemeNumber))
+        throw notNumber( at, b );
+      return ((SchemeNumber)a).div( (SchemeNumber)b );")
+(gen-number-op "Max" "SchemeFixInt.make( Math.max( x, y ) )" "SchemeReal.make( Math.max( x, y ) )"
+  "((SchemeNumber)a).max( (SchemeNumber)b )")
+(gen-number-op "Min" "SchemeFixInt.make( Math.min( x, y ) )" "SchemeReal.make( Math.min( x, y ) )"
+  "((SchemeNumber)a).min( (SchemeNumber)b )")
+
+;; The variadic versions of the numeric operations. For each one we generate a procedure bound
+;; to "proc", and a builtin for the calls which the macros in base0.scm can't expand into a
+;; chain of binary builtins. Both combine their parameters with "op", the binary() method of
+;; the binary builtin, without allocating a list: the procedure receives them in its
+;; environment (see Lambda.spreadRest). "kind" is one of:
+;;   fold    - combine all parameters, starting from "init";
+;;   invert  - at least one parameter. A single one is combined with "init";
+;;   select  - combine at least one parameter;
+;;   compare - check that op is true for every two adjacent of at least two parameters.
+(define (gen-variadic name proc kind init op)
+  (let ((min-count (if (eq? kind 'fold) 0 (if (eq? kind 'compare) 2 1))))
+    (set! proc-list (cons (cons proc (string-append name "Procedure")) proc-list))
+    (disp `(
+  "static final class " ,name "Procedure extends JavaProcedure {
+    private static final long serialVersionUID = 1L;
+    " ,name "Procedure () { super( " ,min-count ", true ); spreadRest = true; }
+    public Object apply ( final Object[] argv ) throws SchemeError {
+      " ,(gen-variadic-body kind init op "null" "argv.length-ARG0" "argv[ARG0+" "]") "
+    }
+  }\n\n"))
+    (gen-builtin-full (string-append name "N") min-count "true"
+      (gen-variadic-body kind init op "this" "v.length" "v[" "].evalValue(env,ctx)"))))
+
+;; Parameter i of "count" is (prefix i suffix). "at" is passed to op for the error reporting.
+(define (gen-variadic-body kind init op at count prefix suffix)
+  `(,(if (eq? kind 'invert)
+       `("if (" ,count " == 1)
+        return " ,op "( " ,at ", " ,init ", " ,prefix "0" ,suffix " );
+      ")
+       "")
+    ,(if (eq? kind 'compare) "boolean res = true;\n      " "")
+    "Object a = " ,(if (eq? kind 'fold) init `(,prefix "0" ,suffix)) ";
+      for ( int i = " ,(if (eq? kind 'fold) "0" "1") "; i < " ,count "; ++i ) {
+        Object b = " ,prefix "i" ,suffix ";
+        "
+    ,(if (eq? kind 'compare)
+       `("if (" ,op "( " ,at ", a, b ) == Boolean.FALSE)
+          res = false;
+        a = b;")
+       `("a = " ,op "( " ,at ", a, b );"))
+    "
+      }
+      return " ,(if (eq? kind 'compare) "res" "a") ";"))
+
+(gen-variadic "Add" "__%+" 'fold "SchemeFixInt.ZERO" "Add.binary")
+(gen-variadic "Mul" "__%*" 'fold "SchemeFixInt.ONE" "Mul.binary")
+(gen-variadic "Sub" "__%-" 'invert "SchemeFixInt.ZERO" "Sub.binary")
+(gen-variadic "Div" "__%/" 'invert "SchemeFixInt.ONE" "Div.binary")
+(gen-variadic "Max" "__%max" 'select #f "Max.binary")
+(gen-variadic "Min" "__%min" 'select #f "Min.binary")
+(gen-variadic "NumberLT" "__%<" 'compare #f "NumberLT.binary")
+(gen-variadic "NumberLE" "__%<=" 'compare #f "NumberLE.binary")
+(gen-variadic "NumberEQ" "__%=" 'compare #f "NumberEQ.binary")
+(gen-variadic "NumberGT" "__%>" 'compare #f "NumberGT.binary")
+(gen-variadic "NumberGE" "__%>=" 'compare #f "NumberGE.binary")
+(gen-pure "Quotient" 2 "return ((SchemeInteger)a).quotient( (SchemeInteger)b );")
+(gen-pure "Remainder" 2 "return ((SchemeInteger)a).remainder( (SchemeInteger)b );")
 
 (gen-xop "Cons" 2 "return new Pair( a, b );")
 (gen-xop "SetCar" 2 "((Pair)a).setCarBang( b ); return Unspec.UNSPEC;")
 (gen-xop "SetCdr" 2 "((Pair)a).setCdrBang( b ); return Unspec.UNSPEC;")
-(gen-xop "Car" 1
+(gen-typed "Car" 1 " implements AST.Pure"
+  '(("pair" "a != Pair.NULL && a instanceof Pair" "((Pair)a).getCar()"))
   "if (a == Pair.NULL) throw new PositionedError( this, \"car of null\" );
   return ((Pair)a).getCar();")
-(gen-xop "Cdr" 1
+(gen-typed "Cdr" 1 " implements AST.Pure"
+  '(("pair" "a != Pair.NULL && a instanceof Pair" "((Pair)a).getCdr()"))
   "if (a == Pair.NULL) throw new PositionedError( this, \"cdr of null\" );
   return ((Pair)a).getCdr();")
 
-(gen-xop "SymbolToString" 1 "return ((Symbol)a).name;")
-(gen-xop "Compare2Strings" 2 "return SchemeFixInt.make( ((String)a).compareTo( (String)b ) );")
-(gen-xop "StringLength" 1 "return SchemeFixInt.make( ((String)a).length() );")
-(gen-xop "StringRef" 2
+(gen-pure "SymbolToString" 1 "return ((Symbol)a).name;")
+(gen-pure "Compare2Strings" 2 "return SchemeFixInt.make( ((String)a).compareTo( (String)b ) );")
+(gen-pure "StringLength" 1 "return SchemeFixInt.make( ((String)a).length() );")
+(gen-typed "StringRef" 2 " implements AST.Pure"
+  '(("fixint" "a instanceof String && b instanceof SchemeFixInt"
+              "Character.valueOf( ((String)a).charAt( ((SchemeFixInt)b).toJavaInt() ) )"))
   "return Character.valueOf( ((String)a).charAt( ((SchemeNumber)b).toInteger().toJavaInt() ) );")
 
-(gen-xop "StringUpcase" 1 "return ((String)a).toUpperCase();")
-(gen-xop "StringDowncase" 1 "return ((String)a).toLowerCase();")
+(gen-pure "StringUpcase" 1 "return ((String)a).toUpperCase();")
+(gen-pure "StringDowncase" 1 "return ((String)a).toLowerCase();")
 
-(gen-xop "CharToInteger" 1 "return SchemeFixInt.make( (int)((Character)a).charValue() );")
-(gen-xop "CharDowncase" 1 "return Character.valueOf( Character.toLowerCase((Character)a) ); ")
+(gen-pure "CharToInteger" 1 "return SchemeFixInt.make( (int)((Character)a).charValue() );")
+(gen-pure "CharDowncase" 1 "return Character.valueOf( Character.toLowerCase((Character)a) ); ")
 
-(gen-xop "Exact" 1 "return ((SchemeNumber)a).toExact();")
-(gen-xop "Inexact" 1 "return ((SchemeNumber)a).toInexact();")
+(gen-pure "Exact" 1 "return ((SchemeNumber)a).toExact();")
+(gen-pure "Inexact" 1 "return ((SchemeNumber)a).toInexact();")
 
-(gen-xop "Numerator" 1 "return ((SchemeNumber)a).numerator();")
-(gen-xop "Denominator" 1 "return ((SchemeNumber)a).denominator();")
+(gen-pure "Numerator" 1 "return ((SchemeNumber)a).numerator();")
+(gen-pure "Denominator" 1 "return ((SchemeNumber)a).denominator();")
 
-(gen-xop "RealPart" 1 "return ((SchemeNumber)a).realPart();")
-(gen-xop "ImagPart" 1 "return ((SchemeNumber)a).imagPart();")
+(gen-pure "RealPart" 1 "return ((SchemeNumber)a).realPart();")
+(gen-pure "ImagPart" 1 "return ((SchemeNumber)a).imagPart();")
 
-(gen-xop "Expt" 2 "return ((SchemeNumber)a).expt((SchemeNumber)b);")
+(gen-pure "Expt" 2 "return ((SchemeNumber)a).expt((SchemeNumber)b);")
 
 (gen-xop "MakeVector" 2
   "Object[] res = new Object[((SchemeNumber)a).toInteger().toJavaInt()];
@@ -148,8 +364,11 @@ private Builtins () {};
    for ( int i = 0; i < len; ++i )
      res[i] = b;
    return res;")
-(gen-xop "VectorLen" 1 "return SchemeFixInt.make( ((Object[])a).length );")
-(gen-xop "VectorRef" 2 "return ((Object[])a)[((SchemeNumber)b).toInteger().toJavaInt()];")
+(gen-pure "VectorLen" 1 "return SchemeFixInt.make( ((Object[])a).length );")
+(gen-typed "VectorRef" 2 ""
+  '(("fixint" "a instanceof Object[] && b instanceof SchemeFixInt"
+              "((Object[])a)[((SchemeFixInt)b).toJavaInt()]"))
+  "return ((Object[])a)[((SchemeNumber)b).toInteger().toJavaInt()];")
 (gen-xop "VectorSet" 3
   "((Object[])a)[((SchemeNumber)b).toInteger().toJavaInt()]=c;
   return Unspec.UNSPEC;")
@@ -185,7 +404,7 @@ private Builtins () {};
 (gen-xop "SyntaxError" 2
     "throw new PositionedError( a instanceof ISourceCoords?(ISourceCoords)a:null, b.toString() );" );"
 
-(display "static void define ( SymbolMap sm, HashMap<Symbol,BuiltinFactory> map )
+(display "static void define ( SymbolMap sm, HashMap<Symbol,BuiltinFactory<?>> map )
 {
 ")
 (for-each
@@ -195,6 +414,15 @@ private Builtins () {};
   pred-list)
 (display "}
 
+static void defineProcedures ( HashMap<String,JavaProcedure> map )
+{
+")
+(for-each
+  (lambda (proc)
+    (disp `("  map.put( \"" ,(car proc) "\", new " ,(cdr proc) "() );\n")))
+  proc-list)
+(display "}
+
 } // class
 ")
 
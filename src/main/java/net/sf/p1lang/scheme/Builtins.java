@@ -15,184 +15,224 @@ final class Builtins
 {
 private Builtins () {};
 
-static final class NullPred extends Builtin {
+/**
+ * The error for a parameter of a numeric operation which isn't a number
+ * @param at the builtin performing the operation, or null for a procedure
+ */
+static EvalError notNumber ( AST at, Object x )
+{
+  String message = String.format( "%s is not a number", x );
+  return at != null ? new EvalError( at, message ) : new EvalError( message );
+}
+
+static final class NullPred extends Builtin implements AST.Total {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public NullPred ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return a == Pair.NULL;
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return a == Pair.NULL;
     }
   }
 
-static final class PairPred extends Builtin {
+static final class PairPred extends Builtin implements AST.Total {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public PairPred ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return a != Pair.NULL && a instanceof Pair;
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return a != Pair.NULL && a instanceof Pair;
     }
   }
 
-static final class BooleanPred extends Builtin {
+static final class BooleanPred extends Builtin implements AST.Total {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public BooleanPred ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return a instanceof Boolean;
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return a instanceof Boolean;
     }
   }
 
-static final class SymbolPred extends Builtin {
+static final class SymbolPred extends Builtin implements AST.Total {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public SymbolPred ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return a instanceof Symbol;
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return a instanceof Symbol;
     }
   }
 
-static final class CharPred extends Builtin {
+static final class CharPred extends Builtin implements AST.Total {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public CharPred ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return a instanceof Character;
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return a instanceof Character;
     }
   }
 
-static final class StringPred extends Builtin {
+static final class StringPred extends Builtin implements AST.Total {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public StringPred ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return a instanceof String;
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return a instanceof String;
     }
   }
 
-static final class ProcedurePred extends Builtin {
+static final class ProcedurePred extends Builtin implements AST.Total {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public ProcedurePred ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return a instanceof Closure;
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return a instanceof Closure;
     }
   }
 
-static final class VectorPred extends Builtin {
+static final class VectorPred extends Builtin implements AST.Total {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public VectorPred ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return a instanceof Object[];
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return a instanceof Object[];
     }
   }
 
-static final class NumberPred extends Builtin {
+static final class NumberPred extends Builtin implements AST.Total {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public NumberPred ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return a instanceof SchemeNumber;
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return a instanceof SchemeNumber;
     }
   }
 
-static final class ComplexPred extends Builtin {
+static final class ComplexPred extends Builtin implements AST.Total {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public ComplexPred ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return a instanceof SchemeNumber;
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return a instanceof SchemeNumber;
     }
   }
 
-static final class RealPred extends Builtin {
+static final class RealPred extends Builtin implements AST.Total {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public RealPred ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return a instanceof SchemeInteger ||
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return a instanceof SchemeInteger ||
              a instanceof SchemeRational ||
              a instanceof SchemeReal;
     }
   }
 
-static final class RationalPred extends Builtin {
+static final class RationalPred extends Builtin implements AST.Total {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public RationalPred ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return a instanceof SchemeInteger ||
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return a instanceof SchemeInteger ||
              a instanceof SchemeRational;
     }
   }
 
-static final class IntegerPred extends Builtin {
+static final class IntegerPred extends Builtin implements AST.Total {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public IntegerPred ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return a instanceof SchemeInteger;
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return a instanceof SchemeInteger;
     }
   }
 
-static final class ExactPred extends Builtin {
+static final class ExactPred extends Builtin implements AST.Total {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public ExactPred ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return a instanceof SchemeNumber && ((SchemeNumber)a).isExact();
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return a instanceof SchemeNumber && ((SchemeNumber)a).isExact();
     }
   }
 
-static final class Eq extends Builtin {
+static final class Eq extends Builtin implements AST.Total {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=2;
     public static final boolean HAVE_REST=false;
     public Eq ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-return a == b;
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      return a == b;
     }
   }
 
-static final class Eqv extends Builtin {
+static final class Eqv extends Builtin implements AST.Total {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=2;
     public static final boolean HAVE_REST=false;
     public Eqv ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-    if (a == b)
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+          if (a == b)
       return true;
     if (a instanceof SchemeNumber)
       return (b instanceof SchemeNumber) && ((SchemeNumber)a).cmp( (SchemeNumber)b ) == 0;
@@ -203,111 +243,1055 @@ Object b=v[1].evalValue(env,ctx);
     }
   }
 
-static final class NumberLE extends Builtin {
+static final class NumberLE extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=2;
     public static final boolean HAVE_REST=false;
+    private transient int m_spec;
     public NumberLE ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-return ((SchemeNumber)a).cmp( (SchemeNumber)b ) <= 0;
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      switch (m_spec) {
+      case 1: // fixint
+        if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+          return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+        break;
+      case 2: // real
+        if (a instanceof SchemeReal && b instanceof SchemeReal)
+          return real( ((SchemeReal)a).value, ((SchemeReal)b).value );
+        break;
+      case SPEC_GENERIC:
+        return generic( a, b );
+      }
+      return specialize( a, b );
+    }
+    private Object specialize ( Object a, Object b ) throws SchemeError {
+      if (m_spec == SPEC_UNINIT) {
+        if (a instanceof SchemeFixInt && b instanceof SchemeFixInt) {
+          m_spec = 1;
+          return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+        }
+        if (a instanceof SchemeReal && b instanceof SchemeReal) {
+          m_spec = 2;
+          return real( ((SchemeReal)a).value, ((SchemeReal)b).value );
+        }
+      }
+      m_spec = SPEC_GENERIC;
+      return generic( a, b );
+    }
+    private Object generic ( Object a, Object b ) throws SchemeError {
+      return binary( this, a, b );
+    }
+    static Object binary ( final AST at, final Object a, final Object b ) throws SchemeError {
+      if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+        return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+      if (!(a instanceof SchemeNumber))
+        throw notNumber( at, a );
+      if (!(b instanceof SchemeNumber))
+        throw notNumber( at, b );
+      return ((SchemeNumber)a).cmp( (SchemeNumber)b ) <= 0;
+    }
+    private static Object fixnum ( final long x, final long y ) {
+      return x <= y;
+    }
+    private static Object real ( final double x, final double y ) {
+      return Double.compare( x, y ) <= 0;
+    }
+    public String specialization () {
+      switch (m_spec) {
+      case 1: return "fixint";
+      case 2: return "real";
+      case SPEC_UNINIT: return "uninitialized";
+      default: return "generic";
+      }
     }
   }
 
-static final class NumberLT extends Builtin {
+static final class NumberLT extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=2;
     public static final boolean HAVE_REST=false;
+    private transient int m_spec;
     public NumberLT ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-return ((SchemeNumber)a).cmp( (SchemeNumber)b ) < 0;
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      switch (m_spec) {
+      case 1: // fixint
+        if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+          return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+        break;
+      case 2: // real
+        if (a instanceof SchemeReal && b instanceof SchemeReal)
+          return real( ((SchemeReal)a).value, ((SchemeReal)b).value );
+        break;
+      case SPEC_GENERIC:
+        return generic( a, b );
+      }
+      return specialize( a, b );
+    }
+    private Object specialize ( Object a, Object b ) throws SchemeError {
+      if (m_spec == SPEC_UNINIT) {
+        if (a instanceof SchemeFixInt && b instanceof SchemeFixInt) {
+          m_spec = 1;
+          return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+        }
+        if (a instanceof SchemeReal && b instanceof SchemeReal) {
+          m_spec = 2;
+          return real( ((SchemeReal)a).value, ((SchemeReal)b).value );
+        }
+      }
+      m_spec = SPEC_GENERIC;
+      return generic( a, b );
+    }
+    private Object generic ( Object a, Object b ) throws SchemeError {
+      return binary( this, a, b );
+    }
+    static Object binary ( final AST at, final Object a, final Object b ) throws SchemeError {
+      if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+        return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+      if (!(a instanceof SchemeNumber))
+        throw notNumber( at, a );
+      if (!(b instanceof SchemeNumber))
+        throw notNumber( at, b );
+      return ((SchemeNumber)a).cmp( (SchemeNumber)b ) < 0;
+    }
+    private static Object fixnum ( final long x, final long y ) {
+      return x < y;
+    }
+    private static Object real ( final double x, final double y ) {
+      return Double.compare( x, y ) < 0;
+    }
+    public String specialization () {
+      switch (m_spec) {
+      case 1: return "fixint";
+      case 2: return "real";
+      case SPEC_UNINIT: return "uninitialized";
+      default: return "generic";
+      }
     }
   }
 
-static final class NumberEQ extends Builtin {
+static final class NumberEQ extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=2;
     public static final boolean HAVE_REST=false;
+    private transient int m_spec;
     public NumberEQ ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-return ((SchemeNumber)a).cmp( (SchemeNumber)b ) == 0;
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      switch (m_spec) {
+      case 1: // fixint
+        if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+          return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+        break;
+      case 2: // real
+        if (a instanceof SchemeReal && b instanceof SchemeReal)
+          return real( ((SchemeReal)a).value, ((SchemeReal)b).value );
+        break;
+      case SPEC_GENERIC:
+        return generic( a, b );
+      }
+      return specialize( a, b );
+    }
+    private Object specialize ( Object a, Object b ) throws SchemeError {
+      if (m_spec == SPEC_UNINIT) {
+        if (a instanceof SchemeFixInt && b instanceof SchemeFixInt) {
+          m_spec = 1;
+          return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+        }
+        if (a instanceof SchemeReal && b instanceof SchemeReal) {
+          m_spec = 2;
+          return real( ((SchemeReal)a).value, ((SchemeReal)b).value );
+        }
+      }
+      m_spec = SPEC_GENERIC;
+      return generic( a, b );
+    }
+    private Object generic ( Object a, Object b ) throws SchemeError {
+      return binary( this, a, b );
+    }
+    static Object binary ( final AST at, final Object a, final Object b ) throws SchemeError {
+      if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+        return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+      if (!(a instanceof SchemeNumber))
+        throw notNumber( at, a );
+      if (!(b instanceof SchemeNumber))
+        throw notNumber( at, b );
+      return ((SchemeNumber)a).cmp( (SchemeNumber)b ) == 0;
+    }
+    private static Object fixnum ( final long x, final long y ) {
+      return x == y;
+    }
+    private static Object real ( final double x, final double y ) {
+      return Double.compare( x, y ) == 0;
+    }
+    public String specialization () {
+      switch (m_spec) {
+      case 1: return "fixint";
+      case 2: return "real";
+      case SPEC_UNINIT: return "uninitialized";
+      default: return "generic";
+      }
     }
   }
 
-static final class Add extends Builtin {
+static final class NumberGT extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=2;
     public static final boolean HAVE_REST=false;
+    private transient int m_spec;
+    public NumberGT ( ISourceCoords coords, AST[] values ) { super(coords,values); }
+    protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      switch (m_spec) {
+      case 1: // fixint
+        if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+          return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+        break;
+      case 2: // real
+        if (a instanceof SchemeReal && b instanceof SchemeReal)
+          return real( ((SchemeReal)a).value, ((SchemeReal)b).value );
+        break;
+      case SPEC_GENERIC:
+        return generic( a, b );
+      }
+      return specialize( a, b );
+    }
+    private Object specialize ( Object a, Object b ) throws SchemeError {
+      if (m_spec == SPEC_UNINIT) {
+        if (a instanceof SchemeFixInt && b instanceof SchemeFixInt) {
+          m_spec = 1;
+          return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+        }
+        if (a instanceof SchemeReal && b instanceof SchemeReal) {
+          m_spec = 2;
+          return real( ((SchemeReal)a).value, ((SchemeReal)b).value );
+        }
+      }
+      m_spec = SPEC_GENERIC;
+      return generic( a, b );
+    }
+    private Object generic ( Object a, Object b ) throws SchemeError {
+      return binary( this, a, b );
+    }
+    static Object binary ( final AST at, final Object a, final Object b ) throws SchemeError {
+      if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+        return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+      if (!(a instanceof SchemeNumber))
+        throw notNumber( at, a );
+      if (!(b instanceof SchemeNumber))
+        throw notNumber( at, b );
+      return ((SchemeNumber)a).cmp( (SchemeNumber)b ) > 0;
+    }
+    private static Object fixnum ( final long x, final long y ) {
+      return x > y;
+    }
+    private static Object real ( final double x, final double y ) {
+      return Double.compare( x, y ) > 0;
+    }
+    public String specialization () {
+      switch (m_spec) {
+      case 1: return "fixint";
+      case 2: return "real";
+      case SPEC_UNINIT: return "uninitialized";
+      default: return "generic";
+      }
+    }
+  }
+
+static final class NumberGE extends Builtin implements AST.Pure {
+    private static final long serialVersionUID = 1L;
+    public static final int PARAM_COUNT=2;
+    public static final boolean HAVE_REST=false;
+    private transient int m_spec;
+    public NumberGE ( ISourceCoords coords, AST[] values ) { super(coords,values); }
+    protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      switch (m_spec) {
+      case 1: // fixint
+        if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+          return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+        break;
+      case 2: // real
+        if (a instanceof SchemeReal && b instanceof SchemeReal)
+          return real( ((SchemeReal)a).value, ((SchemeReal)b).value );
+        break;
+      case SPEC_GENERIC:
+        return generic( a, b );
+      }
+      return specialize( a, b );
+    }
+    private Object specialize ( Object a, Object b ) throws SchemeError {
+      if (m_spec == SPEC_UNINIT) {
+        if (a instanceof SchemeFixInt && b instanceof SchemeFixInt) {
+          m_spec = 1;
+          return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+        }
+        if (a instanceof SchemeReal && b instanceof SchemeReal) {
+          m_spec = 2;
+          return real( ((SchemeReal)a).value, ((SchemeReal)b).value );
+        }
+      }
+      m_spec = SPEC_GENERIC;
+      return generic( a, b );
+    }
+    private Object generic ( Object a, Object b ) throws SchemeError {
+      return binary( this, a, b );
+    }
+    static Object binary ( final AST at, final Object a, final Object b ) throws SchemeError {
+      if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+        return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+      if (!(a instanceof SchemeNumber))
+        throw notNumber( at, a );
+      if (!(b instanceof SchemeNumber))
+        throw notNumber( at, b );
+      return ((SchemeNumber)a).cmp( (SchemeNumber)b ) >= 0;
+    }
+    private static Object fixnum ( final long x, final long y ) {
+      return x >= y;
+    }
+    private static Object real ( final double x, final double y ) {
+      return Double.compare( x, y ) >= 0;
+    }
+    public String specialization () {
+      switch (m_spec) {
+      case 1: return "fixint";
+      case 2: return "real";
+      case SPEC_UNINIT: return "uninitialized";
+      default: return "generic";
+      }
+    }
+  }
+
+static final class Add extends Builtin implements AST.Pure {
+    private static final long serialVersionUID = 1L;
+    public static final int PARAM_COUNT=2;
+    public static final boolean HAVE_REST=false;
+    private transient int m_spec;
     public Add ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-return ((SchemeNumber)a).add( (SchemeNumber)b );
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      switch (m_spec) {
+      case 1: // fixint
+        if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+          return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+        break;
+      case 2: // real
+        if (a instanceof SchemeReal && b instanceof SchemeReal)
+          return real( ((SchemeReal)a).value, ((SchemeReal)b).value );
+        break;
+      case SPEC_GENERIC:
+        return generic( a, b );
+      }
+      return specialize( a, b );
+    }
+    private Object specialize ( Object a, Object b ) throws SchemeError {
+      if (m_spec == SPEC_UNINIT) {
+        if (a instanceof SchemeFixInt && b instanceof SchemeFixInt) {
+          m_spec = 1;
+          return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+        }
+        if (a instanceof SchemeReal && b instanceof SchemeReal) {
+          m_spec = 2;
+          return real( ((SchemeReal)a).value, ((SchemeReal)b).value );
+        }
+      }
+      m_spec = SPEC_GENERIC;
+      return generic( a, b );
+    }
+    private Object generic ( Object a, Object b ) throws SchemeError {
+      return binary( this, a, b );
+    }
+    static Object binary ( final AST at, final Object a, final Object b ) throws SchemeError {
+      if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+        return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+      if (!(a instanceof SchemeNumber))
+        throw notNumber( at, a );
+      if (!(b instanceof SchemeNumber))
+        throw notNumber( at, b );
+      return ((SchemeNumber)a).add( (SchemeNumber)b );
+    }
+    private static Object fixnum ( final long x, final long y ) {
+      return SchemeFixInt.add( x, y );
+    }
+    private static Object real ( final double x, final double y ) {
+      return SchemeReal.make( x + y );
+    }
+    public String specialization () {
+      switch (m_spec) {
+      case 1: return "fixint";
+      case 2: return "real";
+      case SPEC_UNINIT: return "uninitialized";
+      default: return "generic";
+      }
     }
   }
 
-static final class Sub extends Builtin {
+static final class Sub extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=2;
     public static final boolean HAVE_REST=false;
+    private transient int m_spec;
     public Sub ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-return ((SchemeNumber)a).sub( (SchemeNumber)b );
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      switch (m_spec) {
+      case 1: // fixint
+        if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+          return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+        break;
+      case 2: // real
+        if (a instanceof SchemeReal && b instanceof SchemeReal)
+          return real( ((SchemeReal)a).value, ((SchemeReal)b).value );
+        break;
+      case SPEC_GENERIC:
+        return generic( a, b );
+      }
+      return specialize( a, b );
+    }
+    private Object specialize ( Object a, Object b ) throws SchemeError {
+      if (m_spec == SPEC_UNINIT) {
+        if (a instanceof SchemeFixInt && b instanceof SchemeFixInt) {
+          m_spec = 1;
+          return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+        }
+        if (a instanceof SchemeReal && b instanceof SchemeReal) {
+          m_spec = 2;
+          return real( ((SchemeReal)a).value, ((SchemeReal)b).value );
+        }
+      }
+      m_spec = SPEC_GENERIC;
+      return generic( a, b );
+    }
+    private Object generic ( Object a, Object b ) throws SchemeError {
+      return binary( this, a, b );
+    }
+    static Object binary ( final AST at, final Object a, final Object b ) throws SchemeError {
+      if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+        return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+      if (!(a instanceof SchemeNumber))
+        throw notNumber( at, a );
+      if (!(b instanceof SchemeNumber))
+        throw notNumber( at, b );
+      return ((SchemeNumber)a).sub( (SchemeNumber)b );
+    }
+    private static Object fixnum ( final long x, final long y ) {
+      return SchemeFixInt.sub( x, y );
+    }
+    private static Object real ( final double x, final double y ) {
+      return SchemeReal.make( x - y );
+    }
+    public String specialization () {
+      switch (m_spec) {
+      case 1: return "fixint";
+      case 2: return "real";
+      case SPEC_UNINIT: return "uninitialized";
+      default: return "generic";
+      }
     }
   }
 
-static final class Mul extends Builtin {
+static final class Mul extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=2;
     public static final boolean HAVE_REST=false;
+    private transient int m_spec;
     public Mul ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-return ((SchemeNumber)a).mul( (SchemeNumber)b );
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      switch (m_spec) {
+      case 1: // fixint
+        if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+          return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+        break;
+      case 2: // real
+        if (a instanceof SchemeReal && b instanceof SchemeReal)
+          return real( ((SchemeReal)a).value, ((SchemeReal)b).value );
+        break;
+      case SPEC_GENERIC:
+        return generic( a, b );
+      }
+      return specialize( a, b );
+    }
+    private Object specialize ( Object a, Object b ) throws SchemeError {
+      if (m_spec == SPEC_UNINIT) {
+        if (a instanceof SchemeFixInt && b instanceof SchemeFixInt) {
+          m_spec = 1;
+          return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+        }
+        if (a instanceof SchemeReal && b instanceof SchemeReal) {
+          m_spec = 2;
+          return real( ((SchemeReal)a).value, ((SchemeReal)b).value );
+        }
+      }
+      m_spec = SPEC_GENERIC;
+      return generic( a, b );
+    }
+    private Object generic ( Object a, Object b ) throws SchemeError {
+      return binary( this, a, b );
+    }
+    static Object binary ( final AST at, final Object a, final Object b ) throws SchemeError {
+      if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+        return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+      if (!(a instanceof SchemeNumber))
+        throw notNumber( at, a );
+      if (!(b instanceof SchemeNumber))
+        throw notNumber( at, b );
+      return ((SchemeNumber)a).mul( (SchemeNumber)b );
+    }
+    private static Object fixnum ( final long x, final long y ) {
+      return SchemeFixInt.mul( x, y );
+    }
+    private static Object real ( final double x, final double y ) {
+      return SchemeReal.make( x * y );
+    }
+    public String specialization () {
+      switch (m_spec) {
+      case 1: return "fixint";
+      case 2: return "real";
+      case SPEC_UNINIT: return "uninitialized";
+      default: return "generic";
+      }
     }
   }
 
-static final class Div extends Builtin {
+static final class Div extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=2;
     public static final boolean HAVE_REST=false;
     public Div ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-return ((SchemeNumber)a).div( (SchemeNumber)b );
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      return binary( this, a, b );
+    }
+    static Object binary ( final AST at, final Object a, final Object b ) throws SchemeError {
+      if (!(a instanceof SchemeNumber))
+        throw notNumber( at, a );
+      if (!(b instanceof SchemeNumber))
+        throw notNumber( at, b );
+      return ((SchemeNumber)a).div( (SchemeNumber)b );
+    }
+  }
+
+static final class Max extends Builtin implements AST.Pure {
+    private static final long serialVersionUID = 1L;
+    public static final int PARAM_COUNT=2;
+    public static final boolean HAVE_REST=false;
+    private transient int m_spec;
+    public Max ( ISourceCoords coords, AST[] values ) { super(coords,values); }
+    protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      switch (m_spec) {
+      case 1: // fixint
+        if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+          return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+        break;
+      case 2: // real
+        if (a instanceof SchemeReal && b instanceof SchemeReal)
+          return real( ((SchemeReal)a).value, ((SchemeReal)b).value );
+        break;
+      case SPEC_GENERIC:
+        return generic( a, b );
+      }
+      return specialize( a, b );
+    }
+    private Object specialize ( Object a, Object b ) throws SchemeError {
+      if (m_spec == SPEC_UNINIT) {
+        if (a instanceof SchemeFixInt && b instanceof SchemeFixInt) {
+          m_spec = 1;
+          return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+        }
+        if (a instanceof SchemeReal && b instanceof SchemeReal) {
+          m_spec = 2;
+          return real( ((SchemeReal)a).value, ((SchemeReal)b).value );
+        }
+      }
+      m_spec = SPEC_GENERIC;
+      return generic( a, b );
+    }
+    private Object generic ( Object a, Object b ) throws SchemeError {
+      return binary( this, a, b );
+    }
+    static Object binary ( final AST at, final Object a, final Object b ) throws SchemeError {
+      if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+        return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+      if (!(a instanceof SchemeNumber))
+        throw notNumber( at, a );
+      if (!(b instanceof SchemeNumber))
+        throw notNumber( at, b );
+      return ((SchemeNumber)a).max( (SchemeNumber)b );
+    }
+    private static Object fixnum ( final long x, final long y ) {
+      return SchemeFixInt.make( Math.max( x, y ) );
+    }
+    private static Object real ( final double x, final double y ) {
+      return SchemeReal.make( Math.max( x, y ) );
+    }
+    public String specialization () {
+      switch (m_spec) {
+      case 1: return "fixint";
+      case 2: return "real";
+      case SPEC_UNINIT: return "uninitialized";
+      default: return "generic";
+      }
     }
   }
 
-static final class Quotient extends Builtin {
+static final class Min extends Builtin implements AST.Pure {
+    private static final long serialVersionUID = 1L;
+    public static final int PARAM_COUNT=2;
+    public static final boolean HAVE_REST=false;
+    private transient int m_spec;
+    public Min ( ISourceCoords coords, AST[] values ) { super(coords,values); }
+    protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      switch (m_spec) {
+      case 1: // fixint
+        if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+          return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+        break;
+      case 2: // real
+        if (a instanceof SchemeReal && b instanceof SchemeReal)
+          return real( ((SchemeReal)a).value, ((SchemeReal)b).value );
+        break;
+      case SPEC_GENERIC:
+        return generic( a, b );
+      }
+      return specialize( a, b );
+    }
+    private Object specialize ( Object a, Object b ) throws SchemeError {
+      if (m_spec == SPEC_UNINIT) {
+        if (a instanceof SchemeFixInt && b instanceof SchemeFixInt) {
+          m_spec = 1;
+          return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+        }
+        if (a instanceof SchemeReal && b instanceof SchemeReal) {
+          m_spec = 2;
+          return real( ((SchemeReal)a).value, ((SchemeReal)b).value );
+        }
+      }
+      m_spec = SPEC_GENERIC;
+      return generic( a, b );
+    }
+    private Object generic ( Object a, Object b ) throws SchemeError {
+      return binary( this, a, b );
+    }
+    static Object binary ( final AST at, final Object a, final Object b ) throws SchemeError {
+      if (a instanceof SchemeFixInt && b instanceof SchemeFixInt)
+        return fixnum( ((SchemeFixInt)a).value, ((SchemeFixInt)b).value );
+      if (!(a instanceof SchemeNumber))
+        throw notNumber( at, a );
+      if (!(b instanceof SchemeNumber))
+        throw notNumber( at, b );
+      return ((SchemeNumber)a).min( (SchemeNumber)b );
+    }
+    private static Object fixnum ( final long x, final long y ) {
+      return SchemeFixInt.make( Math.min( x, y ) );
+    }
+    private static Object real ( final double x, final double y ) {
+      return SchemeReal.make( Math.min( x, y ) );
+    }
+    public String specialization () {
+      switch (m_spec) {
+      case 1: return "fixint";
+      case 2: return "real";
+      case SPEC_UNINIT: return "uninitialized";
+      default: return "generic";
+      }
+    }
+  }
+
+static final class AddProcedure extends JavaProcedure {
+    private static final long serialVersionUID = 1L;
+    AddProcedure () { super( 0, true ); spreadRest = true; }
+    public Object apply ( final Object[] argv ) throws SchemeError {
+      Object a = SchemeFixInt.ZERO;
+      for ( int i = 0; i < argv.length-ARG0; ++i ) {
+        Object b = argv[ARG0+i];
+        a = Add.binary( null, a, b );
+      }
+      return a;
+    }
+  }
+
+static final class AddN extends Builtin {
+    private static final long serialVersionUID = 1L;
+    public static final int PARAM_COUNT=0;
+    public static final boolean HAVE_REST=true;
+    public AddN ( ISourceCoords coords, AST[] values ) { super(coords,values); }
+    protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
+      Object a = SchemeFixInt.ZERO;
+      for ( int i = 0; i < v.length; ++i ) {
+        Object b = v[i].evalValue(env,ctx);
+        a = Add.binary( this, a, b );
+      }
+      return a;
+    }
+  }
+
+static final class MulProcedure extends JavaProcedure {
+    private static final long serialVersionUID = 1L;
+    MulProcedure () { super( 0, true ); spreadRest = true; }
+    public Object apply ( final Object[] argv ) throws SchemeError {
+      Object a = SchemeFixInt.ONE;
+      for ( int i = 0; i < argv.length-ARG0; ++i ) {
+        Object b = argv[ARG0+i];
+        a = Mul.binary( null, a, b );
+      }
+      return a;
+    }
+  }
+
+static final class MulN extends Builtin {
+    private static final long serialVersionUID = 1L;
+    public static final int PARAM_COUNT=0;
+    public static final boolean HAVE_REST=true;
+    public MulN ( ISourceCoords coords, AST[] values ) { super(coords,values); }
+    protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
+      Object a = SchemeFixInt.ONE;
+      for ( int i = 0; i < v.length; ++i ) {
+        Object b = v[i].evalValue(env,ctx);
+        a = Mul.binary( this, a, b );
+      }
+      return a;
+    }
+  }
+
+static final class SubProcedure extends JavaProcedure {
+    private static final long serialVersionUID = 1L;
+    SubProcedure () { super( 1, true ); spreadRest = true; }
+    public Object apply ( final Object[] argv ) throws SchemeError {
+      if (argv.length-ARG0 == 1)
+        return Sub.binary( null, SchemeFixInt.ZERO, argv[ARG0+0] );
+      Object a = argv[ARG0+0];
+      for ( int i = 1; i < argv.length-ARG0; ++i ) {
+        Object b = argv[ARG0+i];
+        a = Sub.binary( null, a, b );
+      }
+      return a;
+    }
+  }
+
+static final class SubN extends Builtin {
+    private static final long serialVersionUID = 1L;
+    public static final int PARAM_COUNT=1;
+    public static final boolean HAVE_REST=true;
+    public SubN ( ISourceCoords coords, AST[] values ) { super(coords,values); }
+    protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
+      if (v.length == 1)
+        return Sub.binary( this, SchemeFixInt.ZERO, v[0].evalValue(env,ctx) );
+      Object a = v[0].evalValue(env,ctx);
+      for ( int i = 1; i < v.length; ++i ) {
+        Object b = v[i].evalValue(env,ctx);
+        a = Sub.binary( this, a, b );
+      }
+      return a;
+    }
+  }
+
+static final class DivProcedure extends JavaProcedure {
+    private static final long serialVersionUID = 1L;
+    DivProcedure () { super( 1, true ); spreadRest = true; }
+    public Object apply ( final Object[] argv ) throws SchemeError {
+      if (argv.length-ARG0 == 1)
+        return Div.binary( null, SchemeFixInt.ONE, argv[ARG0+0] );
+      Object a = argv[ARG0+0];
+      for ( int i = 1; i < argv.length-ARG0; ++i ) {
+        Object b = argv[ARG0+i];
+        a = Div.binary( null, a, b );
+      }
+      return a;
+    }
+  }
+
+static final class DivN extends Builtin {
+    private static final long serialVersionUID = 1L;
+    public static final int PARAM_COUNT=1;
+    public static final boolean HAVE_REST=true;
+    public DivN ( ISourceCoords coords, AST[] values ) { super(coords,values); }
+    protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
+      if (v.length == 1)
+        return Div.binary( this, SchemeFixInt.ONE, v[0].evalValue(env,ctx) );
+      Object a = v[0].evalValue(env,ctx);
+      for ( int i = 1; i < v.length; ++i ) {
+        Object b = v[i].evalValue(env,ctx);
+        a = Div.binary( this, a, b );
+      }
+      return a;
+    }
+  }
+
+static final class MaxProcedure extends JavaProcedure {
+    private static final long serialVersionUID = 1L;
+    MaxProcedure () { super( 1, true ); spreadRest = true; }
+    public Object apply ( final Object[] argv ) throws SchemeError {
+      Object a = argv[ARG0+0];
+      for ( int i = 1; i < argv.length-ARG0; ++i ) {
+        Object b = argv[ARG0+i];
+        a = Max.binary( null, a, b );
+      }
+      return a;
+    }
+  }
+
+static final class MaxN extends Builtin {
+    private static final long serialVersionUID = 1L;
+    public static final int PARAM_COUNT=1;
+    public static final boolean HAVE_REST=true;
+    public MaxN ( ISourceCoords coords, AST[] values ) { super(coords,values); }
+    protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
+      Object a = v[0].evalValue(env,ctx);
+      for ( int i = 1; i < v.length; ++i ) {
+        Object b = v[i].evalValue(env,ctx);
+        a = Max.binary( this, a, b );
+      }
+      return a;
+    }
+  }
+
+static final class MinProcedure extends JavaProcedure {
+    private static final long serialVersionUID = 1L;
+    MinProcedure () { super( 1, true ); spreadRest = true; }
+    public Object apply ( final Object[] argv ) throws SchemeError {
+      Object a = argv[ARG0+0];
+      for ( int i = 1; i < argv.length-ARG0; ++i ) {
+        Object b = argv[ARG0+i];
+        a = Min.binary( null, a, b );
+      }
+      return a;
+    }
+  }
+
+static final class MinN extends Builtin {
+    private static final long serialVersionUID = 1L;
+    public static final int PARAM_COUNT=1;
+    public static final boolean HAVE_REST=true;
+    public MinN ( ISourceCoords coords, AST[] values ) { super(coords,values); }
+    protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
+      Object a = v[0].evalValue(env,ctx);
+      for ( int i = 1; i < v.length; ++i ) {
+        Object b = v[i].evalValue(env,ctx);
+        a = Min.binary( this, a, b );
+      }
+      return a;
+    }
+  }
+
+static final class NumberLTProcedure extends JavaProcedure {
+    private static final long serialVersionUID = 1L;
+    NumberLTProcedure () { super( 2, true ); spreadRest = true; }
+    public Object apply ( final Object[] argv ) throws SchemeError {
+      boolean res = true;
+      Object a = argv[ARG0+0];
+      for ( int i = 1; i < argv.length-ARG0; ++i ) {
+        Object b = argv[ARG0+i];
+        if (NumberLT.binary( null, a, b ) == Boolean.FALSE)
+          res = false;
+        a = b;
+      }
+      return res;
+    }
+  }
+
+static final class NumberLTN extends Builtin {
+    private static final long serialVersionUID = 1L;
+    public static final int PARAM_COUNT=2;
+    public static final boolean HAVE_REST=true;
+    public NumberLTN ( ISourceCoords coords, AST[] values ) { super(coords,values); }
+    protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
+      boolean res = true;
+      Object a = v[0].evalValue(env,ctx);
+      for ( int i = 1; i < v.length; ++i ) {
+        Object b = v[i].evalValue(env,ctx);
+        if (NumberLT.binary( this, a, b ) == Boolean.FALSE)
+          res = false;
+        a = b;
+      }
+      return res;
+    }
+  }
+
+static final class NumberLEProcedure extends JavaProcedure {
+    private static final long serialVersionUID = 1L;
+    NumberLEProcedure () { super( 2, true ); spreadRest = true; }
+    public Object apply ( final Object[] argv ) throws SchemeError {
+      boolean res = true;
+      Object a = argv[ARG0+0];
+      for ( int i = 1; i < argv.length-ARG0; ++i ) {
+        Object b = argv[ARG0+i];
+        if (NumberLE.binary( null, a, b ) == Boolean.FALSE)
+          res = false;
+        a = b;
+      }
+      return res;
+    }
+  }
+
+static final class NumberLEN extends Builtin {
+    private static final long serialVersionUID = 1L;
+    public static final int PARAM_COUNT=2;
+    public static final boolean HAVE_REST=true;
+    public NumberLEN ( ISourceCoords coords, AST[] values ) { super(coords,values); }
+    protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
+      boolean res = true;
+      Object a = v[0].evalValue(env,ctx);
+      for ( int i = 1; i < v.length; ++i ) {
+        Object b = v[i].evalValue(env,ctx);
+        if (NumberLE.binary( this, a, b ) == Boolean.FALSE)
+          res = false;
+        a = b;
+      }
+      return res;
+    }
+  }
+
+static final class NumberEQProcedure extends JavaProcedure {
+    private static final long serialVersionUID = 1L;
+    NumberEQProcedure () { super( 2, true ); spreadRest = true; }
+    public Object apply ( final Object[] argv ) throws SchemeError {
+      boolean res = true;
+      Object a = argv[ARG0+0];
+      for ( int i = 1; i < argv.length-ARG0; ++i ) {
+        Object b = argv[ARG0+i];
+        if (NumberEQ.binary( null, a, b ) == Boolean.FALSE)
+          res = false;
+        a = b;
+      }
+      return res;
+    }
+  }
+
+static final class NumberEQN extends Builtin {
+    private static final long serialVersionUID = 1L;
+    public static final int PARAM_COUNT=2;
+    public static final boolean HAVE_REST=true;
+    public NumberEQN ( ISourceCoords coords, AST[] values ) { super(coords,values); }
+    protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
+      boolean res = true;
+      Object a = v[0].evalValue(env,ctx);
+      for ( int i = 1; i < v.length; ++i ) {
+        Object b = v[i].evalValue(env,ctx);
+        if (NumberEQ.binary( this, a, b ) == Boolean.FALSE)
+          res = false;
+        a = b;
+      }
+      return res;
+    }
+  }
+
+static final class NumberGTProcedure extends JavaProcedure {
+    private static final long serialVersionUID = 1L;
+    NumberGTProcedure () { super( 2, true ); spreadRest = true; }
+    public Object apply ( final Object[] argv ) throws SchemeError {
+      boolean res = true;
+      Object a = argv[ARG0+0];
+      for ( int i = 1; i < argv.length-ARG0; ++i ) {
+        Object b = argv[ARG0+i];
+        if (NumberGT.binary( null, a, b ) == Boolean.FALSE)
+          res = false;
+        a = b;
+      }
+      return res;
+    }
+  }
+
+static final class NumberGTN extends Builtin {
+    private static final long serialVersionUID = 1L;
+    public static final int PARAM_COUNT=2;
+    public static final boolean HAVE_REST=true;
+    public NumberGTN ( ISourceCoords coords, AST[] values ) { super(coords,values); }
+    protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
+      boolean res = true;
+      Object a = v[0].evalValue(env,ctx);
+      for ( int i = 1; i < v.length; ++i ) {
+        Object b = v[i].evalValue(env,ctx);
+        if (NumberGT.binary( this, a, b ) == Boolean.FALSE)
+          res = false;
+        a = b;
+      }
+      return res;
+    }
+  }
+
+static final class NumberGEProcedure extends JavaProcedure {
+    private static final long serialVersionUID = 1L;
+    NumberGEProcedure () { super( 2, true ); spreadRest = true; }
+    public Object apply ( final Object[] argv ) throws SchemeError {
+      boolean res = true;
+      Object a = argv[ARG0+0];
+      for ( int i = 1; i < argv.length-ARG0; ++i ) {
+        Object b = argv[ARG0+i];
+        if (NumberGE.binary( null, a, b ) == Boolean.FALSE)
+          res = false;
+        a = b;
+      }
+      return res;
+    }
+  }
+
+static final class NumberGEN extends Builtin {
+    private static final long serialVersionUID = 1L;
+    public static final int PARAM_COUNT=2;
+    public static final boolean HAVE_REST=true;
+    public NumberGEN ( ISourceCoords coords, AST[] values ) { super(coords,values); }
+    protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
+      boolean res = true;
+      Object a = v[0].evalValue(env,ctx);
+      for ( int i = 1; i < v.length; ++i ) {
+        Object b = v[i].evalValue(env,ctx);
+        if (NumberGE.binary( this, a, b ) == Boolean.FALSE)
+          res = false;
+        a = b;
+      }
+      return res;
+    }
+  }
+
+static final class Quotient extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=2;
     public static final boolean HAVE_REST=false;
     public Quotient ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-return ((SchemeInteger)a).quotient( (SchemeInteger)b );
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      return ((SchemeInteger)a).quotient( (SchemeInteger)b );
     }
   }
 
-static final class Remainder extends Builtin {
+static final class Remainder extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=2;
     public static final boolean HAVE_REST=false;
     public Remainder ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-return ((SchemeInteger)a).remainder( (SchemeInteger)b );
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      return ((SchemeInteger)a).remainder( (SchemeInteger)b );
     }
   }
 
@@ -317,9 +1301,10 @@ static final class Cons extends Builtin {
     public static final boolean HAVE_REST=false;
     public Cons ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-return new Pair( a, b );
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      return new Pair( a, b );
     }
   }
 
@@ -329,9 +1314,10 @@ static final class SetCar extends Builtin {
     public static final boolean HAVE_REST=false;
     public SetCar ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-((Pair)a).setCarBang( b ); return Unspec.UNSPEC;
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      ((Pair)a).setCarBang( b ); return Unspec.UNSPEC;
     }
   }
 
@@ -341,201 +1327,320 @@ static final class SetCdr extends Builtin {
     public static final boolean HAVE_REST=false;
     public SetCdr ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-((Pair)a).setCdrBang( b ); return Unspec.UNSPEC;
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      ((Pair)a).setCdrBang( b ); return Unspec.UNSPEC;
     }
   }
 
-static final class Car extends Builtin {
+static final class Car extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
+    private transient int m_spec;
     public Car ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-if (a == Pair.NULL) throw new PositionedError( this, "car of null" );
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      switch (m_spec) {
+      case 1: // pair
+        if (a != Pair.NULL && a instanceof Pair)
+          return ((Pair)a).getCar();
+        break;
+      case SPEC_GENERIC:
+        return generic( a );
+      }
+      return specialize( a );
+    }
+    private Object specialize ( Object a ) throws SchemeError {
+      if (m_spec == SPEC_UNINIT) {
+        if (a != Pair.NULL && a instanceof Pair) {
+          m_spec = 1;
+          return ((Pair)a).getCar();
+        }
+      }
+      m_spec = SPEC_GENERIC;
+      return generic( a );
+    }
+    private Object generic ( Object a ) throws SchemeError {
+      if (a == Pair.NULL) throw new PositionedError( this, "car of null" );
   return ((Pair)a).getCar();
     }
+    public String specialization () {
+      switch (m_spec) {
+      case 1: return "pair";
+      case SPEC_UNINIT: return "uninitialized";
+      default: return "generic";
+      }
+    }
   }
 
-static final class Cdr extends Builtin {
+static final class Cdr extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
+    private transient int m_spec;
     public Cdr ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-if (a == Pair.NULL) throw new PositionedError( this, "cdr of null" );
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      switch (m_spec) {
+      case 1: // pair
+        if (a != Pair.NULL && a instanceof Pair)
+          return ((Pair)a).getCdr();
+        break;
+      case SPEC_GENERIC:
+        return generic( a );
+      }
+      return specialize( a );
+    }
+    private Object specialize ( Object a ) throws SchemeError {
+      if (m_spec == SPEC_UNINIT) {
+        if (a != Pair.NULL && a instanceof Pair) {
+          m_spec = 1;
+          return ((Pair)a).getCdr();
+        }
+      }
+      m_spec = SPEC_GENERIC;
+      return generic( a );
+    }
+    private Object generic ( Object a ) throws SchemeError {
+      if (a == Pair.NULL) throw new PositionedError( this, "cdr of null" );
   return ((Pair)a).getCdr();
     }
+    public String specialization () {
+      switch (m_spec) {
+      case 1: return "pair";
+      case SPEC_UNINIT: return "uninitialized";
+      default: return "generic";
+      }
+    }
   }
 
-static final class SymbolToString extends Builtin {
+static final class SymbolToString extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public SymbolToString ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return ((Symbol)a).name;
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return ((Symbol)a).name;
     }
   }
 
-static final class Compare2Strings extends Builtin {
+static final class Compare2Strings extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=2;
     public static final boolean HAVE_REST=false;
     public Compare2Strings ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-return SchemeFixInt.make( ((String)a).compareTo( (String)b ) );
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      return SchemeFixInt.make( ((String)a).compareTo( (String)b ) );
     }
   }
 
-static final class StringLength extends Builtin {
+static final class StringLength extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public StringLength ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return SchemeFixInt.make( ((String)a).length() );
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return SchemeFixInt.make( ((String)a).length() );
     }
   }
 
-static final class StringRef extends Builtin {
+static final class StringRef extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=2;
     public static final boolean HAVE_REST=false;
+    private transient int m_spec;
     public StringRef ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-return Character.valueOf( ((String)a).charAt( ((SchemeNumber)b).toInteger().toJavaInt() ) );
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      switch (m_spec) {
+      case 1: // fixint
+        if (a instanceof String && b instanceof SchemeFixInt)
+          return Character.valueOf( ((String)a).charAt( ((SchemeFixInt)b).toJavaInt() ) );
+        break;
+      case SPEC_GENERIC:
+        return generic( a, b );
+      }
+      return specialize( a, b );
+    }
+    private Object specialize ( Object a, Object b ) throws SchemeError {
+      if (m_spec == SPEC_UNINIT) {
+        if (a instanceof String && b instanceof SchemeFixInt) {
+          m_spec = 1;
+          return Character.valueOf( ((String)a).charAt( ((SchemeFixInt)b).toJavaInt() ) );
+        }
+      }
+      m_spec = SPEC_GENERIC;
+      return generic( a, b );
+    }
+    private Object generic ( Object a, Object b ) throws SchemeError {
+      return Character.valueOf( ((String)a).charAt( ((SchemeNumber)b).toInteger().toJavaInt() ) );
+    }
+    public String specialization () {
+      switch (m_spec) {
+      case 1: return "fixint";
+      case SPEC_UNINIT: return "uninitialized";
+      default: return "generic";
+      }
     }
   }
 
-static final class StringUpcase extends Builtin {
+static final class StringUpcase extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public StringUpcase ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return ((String)a).toUpperCase();
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return ((String)a).toUpperCase();
     }
   }
 
-static final class StringDowncase extends Builtin {
+static final class StringDowncase extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public StringDowncase ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return ((String)a).toLowerCase();
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return ((String)a).toLowerCase();
     }
   }
 
-static final class CharToInteger extends Builtin {
+static final class CharToInteger extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public CharToInteger ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return SchemeFixInt.make( (int)((Character)a).charValue() );
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return SchemeFixInt.make( (int)((Character)a).charValue() );
     }
   }
 
-static final class CharDowncase extends Builtin {
+static final class CharDowncase extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public CharDowncase ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return Character.valueOf( Character.toLowerCase((Character)a) );
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return Character.valueOf( Character.toLowerCase((Character)a) );
     }
   }
 
-static final class Exact extends Builtin {
+static final class Exact extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public Exact ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return ((SchemeNumber)a).toExact();
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return ((SchemeNumber)a).toExact();
     }
   }
 
-static final class Inexact extends Builtin {
+static final class Inexact extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public Inexact ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return ((SchemeNumber)a).toInexact();
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return ((SchemeNumber)a).toInexact();
     }
   }
 
-static final class Numerator extends Builtin {
+static final class Numerator extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public Numerator ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return ((SchemeNumber)a).numerator();
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return ((SchemeNumber)a).numerator();
     }
   }
 
-static final class Denominator extends Builtin {
+static final class Denominator extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public Denominator ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return ((SchemeNumber)a).denominator();
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return ((SchemeNumber)a).denominator();
     }
   }
 
-static final class RealPart extends Builtin {
+static final class RealPart extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public RealPart ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return ((SchemeNumber)a).realPart();
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return ((SchemeNumber)a).realPart();
     }
   }
 
-static final class ImagPart extends Builtin {
+static final class ImagPart extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public ImagPart ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return ((SchemeNumber)a).imagPart();
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return ((SchemeNumber)a).imagPart();
     }
   }
 
-static final class Expt extends Builtin {
+static final class Expt extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=2;
     public static final boolean HAVE_REST=false;
     public Expt ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-return ((SchemeNumber)a).expt((SchemeNumber)b);
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      return ((SchemeNumber)a).expt((SchemeNumber)b);
     }
   }
 
@@ -545,9 +1650,10 @@ static final class MakeVector extends Builtin {
     public static final boolean HAVE_REST=false;
     public MakeVector ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-Object[] res = new Object[((SchemeNumber)a).toInteger().toJavaInt()];
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      Object[] res = new Object[((SchemeNumber)a).toInteger().toJavaInt()];
    // Help the compiler. Hopefully it knows than len is nonnegative
    int len = res.length;
    for ( int i = 0; i < len; ++i )
@@ -556,14 +1662,16 @@ Object[] res = new Object[((SchemeNumber)a).toInteger().toJavaInt()];
     }
   }
 
-static final class VectorLen extends Builtin {
+static final class VectorLen extends Builtin implements AST.Pure {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=1;
     public static final boolean HAVE_REST=false;
     public VectorLen ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-return SchemeFixInt.make( ((Object[])a).length );
+      return op( v[0].evalValue(env,ctx) );
+    }
+    final Object op ( Object a ) throws SchemeError {
+      return SchemeFixInt.make( ((Object[])a).length );
     }
   }
 
@@ -571,11 +1679,41 @@ static final class VectorRef extends Builtin {
     private static final long serialVersionUID = 1L;
     public static final int PARAM_COUNT=2;
     public static final boolean HAVE_REST=false;
+    private transient int m_spec;
     public VectorRef ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-return ((Object[])a)[((SchemeNumber)b).toInteger().toJavaInt()];
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      switch (m_spec) {
+      case 1: // fixint
+        if (a instanceof Object[] && b instanceof SchemeFixInt)
+          return ((Object[])a)[((SchemeFixInt)b).toJavaInt()];
+        break;
+      case SPEC_GENERIC:
+        return generic( a, b );
+      }
+      return specialize( a, b );
+    }
+    private Object specialize ( Object a, Object b ) throws SchemeError {
+      if (m_spec == SPEC_UNINIT) {
+        if (a instanceof Object[] && b instanceof SchemeFixInt) {
+          m_spec = 1;
+          return ((Object[])a)[((SchemeFixInt)b).toJavaInt()];
+        }
+      }
+      m_spec = SPEC_GENERIC;
+      return generic( a, b );
+    }
+    private Object generic ( Object a, Object b ) throws SchemeError {
+      return ((Object[])a)[((SchemeNumber)b).toInteger().toJavaInt()];
+    }
+    public String specialization () {
+      switch (m_spec) {
+      case 1: return "fixint";
+      case SPEC_UNINIT: return "uninitialized";
+      default: return "generic";
+      }
     }
   }
 
@@ -585,10 +1723,10 @@ static final class VectorSet extends Builtin {
     public static final boolean HAVE_REST=false;
     public VectorSet ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-Object c=v[2].evalValue(env,ctx);
-((Object[])a)[((SchemeNumber)b).toInteger().toJavaInt()]=c;
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx), v[2].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b, Object c ) throws SchemeError {
+      ((Object[])a)[((SchemeNumber)b).toInteger().toJavaInt()]=c;
   return Unspec.UNSPEC;
     }
   }
@@ -652,13 +1790,14 @@ static final class SyntaxError extends Builtin {
     public static final boolean HAVE_REST=false;
     public SyntaxError ( ISourceCoords coords, AST[] values ) { super(coords,values); }
     protected Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError {
-      Object a=v[0].evalValue(env,ctx);
-Object b=v[1].evalValue(env,ctx);
-throw new PositionedError( a instanceof ISourceCoords?(ISourceCoords)a:null, b.toString() );
+      return op( v[0].evalValue(env,ctx), v[1].evalValue(env,ctx) );
+    }
+    final Object op ( Object a, Object b ) throws SchemeError {
+      throw new PositionedError( a instanceof ISourceCoords?(ISourceCoords)a:null, b.toString() );
     }
   }
 
-static void define ( SymbolMap sm, HashMap<Symbol,BuiltinFactory> map )
+static void define ( SymbolMap sm, HashMap<Symbol,BuiltinFactory<?>> map )
 {
   map.put( sm.newSymbol("SyntaxError"), new BuiltinFactory<SyntaxError>(SyntaxError.class) );
   map.put( sm.newSymbol("Error"), new BuiltinFactory<Error>(Error.class) );
@@ -690,10 +1829,25 @@ static void define ( SymbolMap sm, HashMap<Symbol,BuiltinFactory> map )
   map.put( sm.newSymbol("Cons"), new BuiltinFactory<Cons>(Cons.class) );
   map.put( sm.newSymbol("Remainder"), new BuiltinFactory<Remainder>(Remainder.class) );
   map.put( sm.newSymbol("Quotient"), new BuiltinFactory<Quotient>(Quotient.class) );
+  map.put( sm.newSymbol("NumberGEN"), new BuiltinFactory<NumberGEN>(NumberGEN.class) );
+  map.put( sm.newSymbol("NumberGTN"), new BuiltinFactory<NumberGTN>(NumberGTN.class) );
+  map.put( sm.newSymbol("NumberEQN"), new BuiltinFactory<NumberEQN>(NumberEQN.class) );
+  map.put( sm.newSymbol("NumberLEN"), new BuiltinFactory<NumberLEN>(NumberLEN.class) );
+  map.put( sm.newSymbol("NumberLTN"), new BuiltinFactory<NumberLTN>(NumberLTN.class) );
+  map.put( sm.newSymbol("MinN"), new BuiltinFactory<MinN>(MinN.class) );
+  map.put( sm.newSymbol("MaxN"), new BuiltinFactory<MaxN>(MaxN.class) );
+  map.put( sm.newSymbol("DivN"), new BuiltinFactory<DivN>(DivN.class) );
+  map.put( sm.newSymbol("SubN"), new BuiltinFactory<SubN>(SubN.class) );
+  map.put( sm.newSymbol("MulN"), new BuiltinFactory<MulN>(MulN.class) );
+  map.put( sm.newSymbol("AddN"), new BuiltinFactory<AddN>(AddN.class) );
+  map.put( sm.newSymbol("Min"), new BuiltinFactory<Min>(Min.class) );
+  map.put( sm.newSymbol("Max"), new BuiltinFactory<Max>(Max.class) );
   map.put( sm.newSymbol("Div"), new BuiltinFactory<Div>(Div.class) );
   map.put( sm.newSymbol("Mul"), new BuiltinFactory<Mul>(Mul.class) );
   map.put( sm.newSymbol("Sub"), new BuiltinFactory<Sub>(Sub.class) );
   map.put( sm.newSymbol("Add"), new BuiltinFactory<Add>(Add.class) );
+  map.put( sm.newSymbol("NumberGE"), new BuiltinFactory<NumberGE>(NumberGE.class) );
+  map.put( sm.newSymbol("NumberGT"), new BuiltinFactory<NumberGT>(NumberGT.class) );
   map.put( sm.newSymbol("NumberEQ"), new BuiltinFactory<NumberEQ>(NumberEQ.class) );
   map.put( sm.newSymbol("NumberLT"), new BuiltinFactory<NumberLT>(NumberLT.class) );
   map.put( sm.newSymbol("NumberLE"), new BuiltinFactory<NumberLE>(NumberLE.class) );
@@ -715,4 +1869,19 @@ static void define ( SymbolMap sm, HashMap<Symbol,BuiltinFactory> map )
   map.put( sm.newSymbol("NullPred"), new BuiltinFactory<NullPred>(NullPred.class) );
 }
 
+static void defineProcedures ( HashMap<String,JavaProcedure> map )
+{
+  map.put( "__%>=", new NumberGEProcedure() );
+  map.put( "__%>", new NumberGTProcedure() );
+  map.put( "__%=", new NumberEQProcedure() );
+  map.put( "__%<=", new NumberLEProcedure() );
+  map.put( "__%<", new NumberLTProcedure() );
+  map.put( "__%min", new MinProcedure() );
+  map.put( "__%max", new MaxProcedure() );
+  map.put( "__%/", new DivProcedure() );
+  map.put( "__%-", new SubProcedure() );
+  map.put( "__%*", new MulProcedure() );
+  map.put( "__%+", new AddProcedure() );
+}
+
 } // class
@@ -0,0 +1,1162 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Compiles the body of a {@link Lambda} to a JVM class extending {@link CompiledBody}.
+ *
+ * <p>This is the second execution tier. Lambdas start out interpreted, wrapped in a
+ * {@link Counter}; once a lambda has been invoked {@link SchemeInterpreter.Options#jitThreshold}
+ * times, its body is compiled and replaces {@link Lambda#body}.
+ *
+ * <p>Variable accesses, conditionals, sequences, closure creation, calls and the generated
+ * builtins are translated to bytecode. Everything else (for example {@link AST.CallCC}) is kept
+ * as an instruction in the constant table and simply evaluated by the compiled code.
+ *
+ * <p>We generate version 49 class files, which don't need stack maps, and write them directly
+ * with a minimal class file writer. Where the JVM supports it, they are defined as hidden classes,
+ * which are unloaded when their body is no longer reachable, for example with the interpreter
+ * which compiled it.
+ */
+final class BytecodeCompiler
+{
+private static final String PKG = "net/sf/p1lang/scheme/";
+private static final String T_AST = PKG+"AST";
+private static final String T_COMPILED = PKG+"CompiledBody";
+private static final String T_BOX = PKG+"ClosureConverter$Box";
+private static final String T_BOXES = PKG+"ClosureConverter$Boxes";
+private static final String D_OBJECT = "Ljava/lang/Object;";
+private static final String D_OBJARR = "[Ljava/lang/Object;";
+private static final String D_AST = "L"+T_AST+";";
+private static final String D_CTX = "L"+PKG+"EvalContext;";
+
+/** Longest method we are willing to generate. Keeps branch offsets in 16 bits */
+private static final int MAX_CODE = 32000;
+
+private static int s_classCounter;
+
+/**
+ * Thrown when a body can't be compiled, e.g. because it is too large.
+ */
+@SuppressWarnings({"serial"})
+private static final class Unsupported extends Exception
+{
+  Unsupported ( String message )
+  {
+    super(message);
+  }
+}
+
+/**
+ * Wraps a lambda body and counts its invocations. When the threshold is reached, the body is
+ * compiled and the counter is removed.
+ *
+ * <p>Forks of an interpreter share the lambda and may call it in several threads. The count is
+ * then approximate, which doesn't matter, but the body is compiled and replaced only once.
+ */
+static final class Counter extends AST
+{
+  private static final long serialVersionUID = 1L;
+
+  private final Lambda m_lambda;
+  private final AST m_body;
+  private final int m_threshold;
+  private int m_count;
+
+  Counter ( Lambda lambda, AST body, int threshold )
+  {
+    super(body);
+    m_lambda = lambda;
+    m_body = body;
+    m_threshold = threshold;
+  }
+
+  private final void tick ()
+  {
+    if (++m_count >= m_threshold && m_lambda.body == this)
+      install();
+  }
+
+  private synchronized void install ()
+  {
+    if (m_lambda.body == this)
+    {
+      // If compilation fails we just stay in the interpreter
+      AST compiled = compile( m_lambda, m_body );
+      m_lambda.body = compiled != null ? compiled : m_body;
+    }
+  }
+
+  public final AST evalCont ( final Object[] env, final EvalContext ctx )
+  {
+    tick();
+    ctx.outEnv = env;
+    return m_body;
+  }
+
+  public final Object evalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    tick();
+    return m_body.evalValue( env, ctx );
+  }
+
+  public String toString ()
+  {
+    return m_body.toString();
+  }
+
+  public Object dis ()
+  {
+    return m_body.dis();
+  }
+}
+
+/**
+ * Compile the body of a lambda.
+ * @return the compiled body, or null if it couldn't be compiled
+ */
+static CompiledBody compile ( Lambda lambda, AST body )
+{
+  try
+  {
+    return new BytecodeCompiler().compileBody( body );
+  }
+  catch (Unsupported e)
+  {
+    return null;
+  }
+}
+
+//
+// Class definition
+//
+
+private static Object s_lookup;
+private static Method s_defineClass;
+/** {@code Lookup.lookupClass()}, if we define hidden classes */
+private static Method s_lookupClass;
+/** The empty array of {@code Lookup.ClassOption} for defining hidden classes */
+private static Object s_hiddenOptions;
+private static boolean s_initialized;
+
+/**
+ * Locate a way to define classes in our own package. Since Java 15 that is
+ * {@code MethodHandles.Lookup.defineHiddenClass()}, which defines classes that can be unloaded
+ * independently of our class loader. With Java 9 it is {@code MethodHandles.Lookup.defineClass()}
+ * and before that we use {@code ClassLoader.defineClass()}; those classes are never unloaded.
+ * All are accessed reflectively, so we don't depend on a specific Java version.
+ *
+ * <p>A class loader of our own wouldn't help with older versions: the compiled code uses the
+ * package private classes and members of the interpreter, which are accessible only from
+ * classes of our class loader.
+ */
+private static synchronized boolean initDefine ()
+{
+  if (s_initialized)
+    return s_defineClass != null;
+  s_initialized = true;
+
+  try
+  {
+    Class<?> mh = Class.forName( "java.lang.invoke.MethodHandles" );
+    Object lookup = mh.getMethod( "lookup" ).invoke( null );
+    try
+    {
+      Class<?> option = Class.forName( "java.lang.invoke.MethodHandles$Lookup$ClassOption" );
+      Object options = Array.newInstance( option, 0 );
+      s_defineClass = lookup.getClass().getMethod( "defineHiddenClass", byte[].class,
+                                                    boolean.class, options.getClass() );
+      s_lookupClass = lookup.getClass().getMethod( "lookupClass" );
+      s_hiddenOptions = options;
+    }
+    catch (Exception e)
+    {
+      s_defineClass = lookup.getClass().getMethod( "defineClass", byte[].class );
+    }
+    s_lookup = lookup;
+    return true;
+  }
+  catch (Exception ignored)
+  {}
+
+  try
+  {
+    Method m = ClassLoader.class.getDeclaredMethod(
+            "defineClass", String.class, byte[].class, int.class, int.class );
+    m.setAccessible( true );
+    s_defineClass = m;
+    s_lookup = null;
+    return true;
+  }
+  catch (Exception ignored)
+  {}
+
+  return false;
+}
+
+/**
+ * Are the compiled classes unloaded when they are no longer reachable?
+ */
+static boolean classesUnloadable ()
+{
+  return initDefine() && s_hiddenOptions != null;
+}
+
+private static Class<?> defineClass ( String name, byte[] bytes ) throws Exception
+{
+  if (s_hiddenOptions != null)
+    return (Class<?>) s_lookupClass.invoke(
+            s_defineClass.invoke( s_lookup, bytes, Boolean.TRUE, s_hiddenOptions ) );
+  else if (s_lookup != null)
+    return (Class<?>) s_defineClass.invoke( s_lookup, (Object)bytes );
+  else
+    return (Class<?>) s_defineClass.invoke( BytecodeCompiler.class.getClassLoader(),
+                                            name.replace( '/', '.' ), bytes, 0, bytes.length );
+}
+
+private static synchronized String newClassName ()
+{
+  return PKG + "CompiledBody$" + (++s_classCounter);
+}
+
+//
+// Code generation
+//
+
+private final ConstPool m_cp = new ConstPool();
+private final Code m_code = new Code();
+
+private final ArrayList<Object> m_consts = new ArrayList<Object>();
+private final IdentityHashMap<Object,Integer> m_constIndex = new IdentityHashMap<Object,Integer>();
+
+/** Exception handlers for builtin operations: {start, end, constant index of the builtin} */
+private final ArrayList<int[]> m_handlers = new ArrayList<int[]>();
+
+/** The start of the code of an {@link AST.Loop}, the target of its jumps */
+private int m_loopStart;
+
+private BytecodeCompiler ()
+{}
+
+private CompiledBody compileBody ( AST body ) throws Unsupported
+{
+  if (!initDefine())
+    throw new Unsupported( "Can't define classes" );
+
+  String className = newClassName();
+
+  compileTail( body );
+  emitHandlers();
+
+  byte[] bytes = m_cp.classFile( className, m_code, m_handlers );
+  try
+  {
+    Class<?> cls = defineClass( className, bytes );
+    Constructor<?> constr = cls.getDeclaredConstructor( ISourceCoords.class, Object[].class, AST.class );
+    return (CompiledBody) constr.newInstance( body, m_consts.toArray(), body );
+  }
+  catch (Exception e)
+  {
+    throw new Unsupported( e.toString() );
+  }
+}
+
+private int constIndex ( Object o ) throws Unsupported
+{
+  Integer index = m_constIndex.get( o );
+  if (index == null)
+  {
+    if (m_consts.size() == Short.MAX_VALUE)
+      throw new Unsupported( "Too many constants" );
+    index = m_consts.size();
+    m_consts.add( o );
+    m_constIndex.put( o, index );
+  }
+  return index;
+}
+
+/** Load a constant, casting it to the specified type */
+private void loadConst ( Object o, String type ) throws Unsupported
+{
+  int index = constIndex( o );
+  m_code.aload( 0 );
+  m_code.field( Code.GETFIELD, m_cp.field( T_COMPILED, "k", D_OBJARR ), 0 );
+  m_code.iconst( index );
+  m_code.op( Code.AALOAD, -1 );
+  if (type != null)
+    m_code.type( Code.CHECKCAST, m_cp.cls( type ), 0 );
+}
+
+private void loadEnv ( int envIndex )
+{
+  m_code.aload( 1 );
+  for ( ; envIndex > 0; --envIndex )
+  {
+    m_code.iconst( Scope.PARENT_SLOT );
+    m_code.op( Code.AALOAD, -1 );
+    m_code.type( Code.CHECKCAST, m_cp.cls( D_OBJARR ), 0 );
+  }
+}
+
+/** Load the top level environment, {@link EvalContext#rootEnv} */
+private void loadRootEnv ()
+{
+  m_code.aload( 2 );
+  m_code.field( Code.GETFIELD, m_cp.field( PKG+"EvalContext", "rootEnv", D_OBJARR ), 0 );
+}
+
+private void loadUnspec ()
+{
+  m_code.field( Code.GETSTATIC, m_cp.field( PKG+"Unspec", "UNSPEC", "L"+PKG+"Unspec;" ), +1 );
+}
+
+private void invoke ( int opcode, String owner, String name, String desc )
+{
+  // All our parameters are references, so we only need to count them
+  int params = 0;
+  for ( int i = 1; desc.charAt( i ) != ')'; ++i )
+  {
+    char c = desc.charAt( i );
+    if (c == '[')
+      continue;
+    ++params;
+    if (c == 'L')
+      i = desc.indexOf( ';', i );
+  }
+  int delta = -params + (desc.endsWith( ")V" ) ? 0 : 1) - (opcode != Code.INVOKESTATIC ? 1 : 0);
+  m_code.invoke( opcode, m_cp.method( owner, name, desc ), delta );
+}
+
+private void checkSize () throws Unsupported
+{
+  if (m_code.length() > MAX_CODE)
+    throw new Unsupported( "Method too large" );
+}
+
+/**
+ * Find the op() method of a generated builtin with a fixed number of parameters
+ */
+private static String builtinOpDesc ( AST.Builtin b )
+{
+  int n = b.v.length;
+  Class<?>[] params = new Class<?>[n];
+  StringBuilder desc = new StringBuilder( "(" );
+  for ( int i = 0; i < n; ++i )
+  {
+    params[i] = Object.class;
+    desc.append( D_OBJECT );
+  }
+  try
+  {
+    b.getClass().getDeclaredMethod( "op", params );
+  }
+  catch (NoSuchMethodException e)
+  {
+    return null;
+  }
+  return desc.append( ')' ).append( D_OBJECT ).toString();
+}
+
+/**
+ * Emit the code for evaluating a call. The target has already been compiled.
+ */
+private void compileArgs ( AST[] args ) throws Unsupported
+{
+  if (args.length <= 4)
+  {
+    for ( AST a : args )
+      compileValue( a );
+  }
+  else
+  {
+    m_code.iconst( args.length );
+    m_code.type( Code.ANEWARRAY, m_cp.cls( "java/lang/Object" ), 0 );
+    for ( int i = 0; i < args.length; ++i )
+    {
+      m_code.op( Code.DUP, +1 );
+      m_code.iconst( i );
+      compileValue( args[i] );
+      m_code.op( Code.AASTORE, -3 );
+    }
+  }
+}
+
+private static String callDesc ( int argc, String ret )
+{
+  StringBuilder res = new StringBuilder( "(" ).append( D_AST ).append( D_OBJECT );
+  if (argc <= 4)
+    for ( int i = 0; i < argc; ++i )
+      res.append( D_OBJECT );
+  else
+    res.append( D_OBJARR );
+  return res.append( D_CTX ).append( ')' ).append( ret ).toString();
+}
+
+private static String callName ( String prefix, int argc )
+{
+  return argc <= 4 ? prefix + argc : prefix + "v";
+}
+
+/**
+ * If the instruction is a call without an (apply ...) list, return its target followed by the
+ * parameters
+ */
+private static AST[] callParts ( AST ast )
+{
+  if (ast instanceof Specializer.SpecApply)
+  {
+    Specializer.SpecApply a = (Specializer.SpecApply) ast;
+    AST[] res = new AST[a.m_args.length + 1];
+    res[0] = a.m_target;
+    System.arraycopy( a.m_args, 0, res, 1, a.m_args.length );
+    return res;
+  }
+  else if (ast instanceof AST.Apply || ast instanceof CachedApply)
+  {
+    AST[] v = ((AST.Builtin) ast).v;
+    if (v[v.length-1] != AST.Lit.LIT_NULL)
+      return null;
+    AST[] res = new AST[v.length - 1];
+    System.arraycopy( v, 0, res, 0, res.length );
+    return res;
+  }
+  return null;
+}
+
+private static AST[] tail ( AST[] parts )
+{
+  AST[] res = new AST[parts.length - 1];
+  System.arraycopy( parts, 1, res, 0, res.length );
+  return res;
+}
+
+/**
+ * Compile an instruction in a tail context. The generated code returns the continuation.
+ */
+private void compileTail ( AST ast ) throws Unsupported
+{
+  checkSize();
+
+  AST[] call;
+  if (ast instanceof AST.Trampoline)
+    compileTail( ((AST.Trampoline) ast).m_ast );
+  else if (ast instanceof AST.Loop)
+  {
+    m_loopStart = m_code.length();
+    compileTail( ((AST.Loop) ast).m_body );
+  }
+  else if (ast instanceof AST.LoopJump)
+  {
+    // Evaluate all values before storing any of them
+    AST.LoopJump j = (AST.LoopJump) ast;
+    for ( AST v : j.m_values )
+      compileValue( v );
+    for ( int i = j.m_slots.length - 1; i >= 0; --i )
+    {
+      m_code.aload( 1 );
+      m_code.op( Code.SWAP, 0 );
+      m_code.iconst( j.m_slots[i] );
+      m_code.op( Code.SWAP, 0 );
+      m_code.op( Code.AASTORE, -3 );
+    }
+    m_code.aload( 2 );
+    loadConst( ast, T_AST );
+    invoke( Code.INVOKEVIRTUAL, PKG+"EvalContext", "poll", "("+D_AST+")V" );
+    m_code.jump( m_loopStart );
+  }
+  else if (ast instanceof AST.If)
+  {
+    AST.If i = (AST.If) ast;
+    compileValue( i.m_evalCond );
+    int depth = m_code.depth();
+    int jelse = m_code.branch( Code.IF_ACMPEQ, -2, loadFalse() );
+    compileTail( i.m_evalThen );
+    m_code.setDepth( depth );
+    m_code.label( jelse );
+    compileTail( i.m_evalElse );
+  }
+  else if (ast instanceof AST.Case)
+  {
+    AST.Case c = (AST.Case) ast;
+    int sw = compileSwitch( c );
+    int depth = m_code.depth();
+    for ( int i = 0; i < c.m_bodies.length; ++i )
+    {
+      m_code.setDepth( depth );
+      m_code.labelSwitch( sw, i );
+      compileTail( c.m_bodies[i] );
+    }
+  }
+  else if (ast instanceof ClosureConverter.Boxes)
+  {
+    compileBoxes( (ClosureConverter.Boxes) ast );
+    compileTail( ((ClosureConverter.Boxes) ast).m_body );
+  }
+  else if (ast instanceof AST.Begin)
+  {
+    AST[] body = ((AST.Begin) ast).m_body;
+    if (body.length == 0)
+      compileTail( AST.Lit.LIT_UNSPEC );
+    else
+    {
+      for ( int i = 0; i < body.length - 1; ++i )
+      {
+        compileValue( body[i] );
+        m_code.op( Code.POP, -1 );
+      }
+      compileTail( body[body.length-1] );
+    }
+  }
+  else if ((call = callParts( ast )) != null)
+  {
+    int argc = call.length - 1;
+    m_code.aload( 0 );
+    loadConst( ast, T_AST );
+    compileValue( call[0] );
+    compileArgs( tail( call ) );
+    m_code.aload( 2 );
+    invoke( Code.INVOKEVIRTUAL, T_COMPILED, callName( "tail", argc ), callDesc( argc, D_AST ) );
+    m_code.op( Code.ARETURN, -1 );
+  }
+  else if (isCompilable( ast ))
+  {
+    compileValue( ast );
+    m_code.aload( 1 );
+    m_code.aload( 2 );
+    invoke( Code.INVOKESTATIC, T_COMPILED, "ret",
+            "("+D_OBJECT+D_OBJARR+D_CTX+")"+D_AST );
+    m_code.op( Code.ARETURN, -1 );
+  }
+  else
+  {
+    // Let the instruction produce its own continuation. It may be a self tail call, as in
+    // (apply self args), so it must go through reenter() like the calls we compile ourselves
+    m_code.aload( 0 );
+    loadConst( ast, T_AST );
+    m_code.aload( 1 );
+    m_code.aload( 2 );
+    invoke( Code.INVOKEVIRTUAL, T_AST, "evalCont", "("+D_OBJARR+D_CTX+")"+D_AST );
+    invoke( Code.INVOKEVIRTUAL, T_COMPILED, "reenter", "("+D_AST+")"+D_AST );
+    m_code.op( Code.ARETURN, -1 );
+  }
+}
+
+/**
+ * Emit a tableswitch on the index of the body selected by the key
+ * @return the location to patch with {@link Code#labelSwitch}
+ */
+private int compileSwitch ( AST.Case c ) throws Unsupported
+{
+  loadConst( c.m_table, PKG+"CaseTable" );
+  compileValue( c.m_key );
+  invoke( Code.INVOKEVIRTUAL, PKG+"CaseTable", "index", "("+D_OBJECT+")I" );
+  return m_code.tableSwitch( c.m_bodies.length );
+}
+
+/** Push Boolean.FALSE and return nothing; used as an argument to {@link Code#branch} */
+private int loadFalse ()
+{
+  m_code.field( Code.GETSTATIC, m_cp.field( "java/lang/Boolean", "FALSE", "Ljava/lang/Boolean;" ), +1 );
+  return 0;
+}
+
+/**
+ * Instructions which {@link #compileValue} translates to bytecode instead of just evaluating
+ */
+private static boolean isCompilable ( AST ast )
+{
+  return ast instanceof AST.Lit || ast instanceof AST.Var || ast instanceof Specializer.Var0 ||
+         ast instanceof Specializer.Var1 || ast instanceof AST.SetBang ||
+         ast instanceof Specializer.SetBang0 || ast instanceof Specializer.SetBang1 ||
+         ast instanceof AST.If || ast instanceof AST.Case || ast instanceof AST.Begin ||
+         ast instanceof AST.MakeClosure ||
+         ast instanceof AST.MakeVector || callParts( ast ) != null ||
+         ast instanceof ClosureConverter.FlatClosure || ast instanceof ClosureConverter.EnvRef ||
+         ast instanceof ClosureConverter.BoxVar || ast instanceof ClosureConverter.BoxSetBang ||
+         ast instanceof ClosureConverter.Boxes ||
+         ast instanceof AST.Builtin && builtinOpDesc( (AST.Builtin) ast ) != null;
+}
+
+/**
+ * Compile an instruction in a value context. The generated code leaves the value on the stack.
+ */
+private void compileValue ( AST ast ) throws Unsupported
+{
+  checkSize();
+
+  AST[] call;
+  if (ast instanceof AST.Lit)
+    loadConst( ((AST.Lit) ast).datum, null );
+  else if (ast instanceof AST.Var)
+  {
+    AST.Var var = (AST.Var) ast;
+    if (var.global)
+      loadRootEnv();
+    else
+      loadEnv( var.envIndex );
+    m_code.iconst( var.bindingIndex );
+    m_code.op( Code.AALOAD, -1 );
+  }
+  else if (ast instanceof Specializer.Var0)
+  {
+    loadEnv( 0 );
+    m_code.iconst( ((Specializer.Var0) ast).m_index );
+    m_code.op( Code.AALOAD, -1 );
+  }
+  else if (ast instanceof Specializer.Var1)
+  {
+    loadEnv( 1 );
+    m_code.iconst( ((Specializer.Var1) ast).m_index );
+    m_code.op( Code.AALOAD, -1 );
+  }
+  else if (ast instanceof AST.SetBang)
+  {
+    AST.SetBang sb = (AST.SetBang) ast;
+    compileSet( sb.global ? -1 : sb.envIndex, sb.bindingIndex, sb.value );
+  }
+  else if (ast instanceof Specializer.SetBang0)
+  {
+    Specializer.SetBang0 sb = (Specializer.SetBang0) ast;
+    compileSet( 0, sb.m_index, sb.m_value );
+  }
+  else if (ast instanceof Specializer.SetBang1)
+  {
+    Specializer.SetBang1 sb = (Specializer.SetBang1) ast;
+    compileSet( 1, sb.m_index, sb.m_value );
+  }
+  else if (ast instanceof AST.If)
+  {
+    AST.If i = (AST.If) ast;
+    compileValue( i.m_evalCond );
+    int depth = m_code.depth();
+    int jelse = m_code.branch( Code.IF_ACMPEQ, -2, loadFalse() );
+    compileValue( i.m_evalThen );
+    int jend = m_code.branch( Code.GOTO, 0, 0 );
+    m_code.setDepth( depth );
+    m_code.label( jelse );
+    compileValue( i.m_evalElse );
+    m_code.label( jend );
+  }
+  else if (ast instanceof AST.Case)
+  {
+    AST.Case c = (AST.Case) ast;
+    int sw = compileSwitch( c );
+    int depth = m_code.depth();
+    int[] jends = new int[c.m_bodies.length];
+    for ( int i = 0; i < c.m_bodies.length; ++i )
+    {
+      m_code.setDepth( depth );
+      m_code.labelSwitch( sw, i );
+      compileValue( c.m_bodies[i] );
+      jends[i] = m_code.branch( Code.GOTO, 0, 0 );
+    }
+    for ( int jend : jends )
+      m_code.label( jend );
+  }
+  else if (ast instanceof AST.Begin)
+  {
+    AST[] body = ((AST.Begin) ast).m_body;
+    if (body.length == 0)
+      loadUnspec();
+    else
+    {
+      for ( int i = 0; i < body.length - 1; ++i )
+      {
+        compileValue( body[i] );
+        m_code.op( Code.POP, -1 );
+      }
+      compileValue( body[body.length-1] );
+    }
+  }
+  else if (ast instanceof AST.MakeClosure)
+  {
+    m_code.type( Code.NEW, m_cp.cls( PKG+"Closure" ), +1 );
+    m_code.op( Code.DUP, +1 );
+    m_code.aload( 1 );
+    loadConst( ((AST.MakeClosure) ast).m_lambda, PKG+"Lambda" );
+    invoke( Code.INVOKESPECIAL, PKG+"Closure", "<init>", "("+D_OBJARR+"L"+PKG+"Lambda;)V" );
+  }
+  else if (ast instanceof AST.MakeVector)
+  {
+    AST[] values = ((AST.MakeVector) ast).values;
+    m_code.iconst( values.length );
+    m_code.type( Code.ANEWARRAY, m_cp.cls( "java/lang/Object" ), 0 );
+    for ( int i = 0; i < values.length; ++i )
+    {
+      m_code.op( Code.DUP, +1 );
+      m_code.iconst( i );
+      compileValue( values[i] );
+      m_code.op( Code.AASTORE, -3 );
+    }
+  }
+  else if (ast instanceof ClosureConverter.FlatClosure)
+  {
+    ClosureConverter.FlatClosure fc = (ClosureConverter.FlatClosure) ast;
+    m_code.type( Code.NEW, m_cp.cls( PKG+"Closure" ), +1 );
+    m_code.op( Code.DUP, +1 );
+    m_code.iconst( fc.m_captures.length );
+    m_code.type( Code.ANEWARRAY, m_cp.cls( "java/lang/Object" ), 0 );
+    for ( int i = 0; i < fc.m_captures.length; ++i )
+    {
+      m_code.op( Code.DUP, +1 );
+      m_code.iconst( i );
+      compileValue( fc.m_captures[i] );
+      m_code.op( Code.AASTORE, -3 );
+    }
+    loadConst( fc.m_lambda, PKG+"Lambda" );
+    invoke( Code.INVOKESPECIAL, PKG+"Closure", "<init>", "("+D_OBJARR+"L"+PKG+"Lambda;)V" );
+  }
+  else if (ast instanceof ClosureConverter.EnvRef)
+    loadEnv( ((ClosureConverter.EnvRef) ast).envIndex );
+  else if (ast instanceof ClosureConverter.BoxVar)
+  {
+    ClosureConverter.BoxVar var = (ClosureConverter.BoxVar) ast;
+    loadBox( var.envIndex, var.bindingIndex );
+    m_code.field( Code.GETFIELD, m_cp.field( T_BOX, "value", D_OBJECT ), 0 );
+  }
+  else if (ast instanceof ClosureConverter.BoxSetBang)
+  {
+    ClosureConverter.BoxSetBang sb = (ClosureConverter.BoxSetBang) ast;
+    loadBox( sb.envIndex, sb.bindingIndex );
+    compileValue( sb.value );
+    m_code.field( Code.PUTFIELD, m_cp.field( T_BOX, "value", D_OBJECT ), -2 );
+    loadUnspec();
+  }
+  else if (ast instanceof ClosureConverter.Boxes)
+  {
+    compileBoxes( (ClosureConverter.Boxes) ast );
+    compileValue( ((ClosureConverter.Boxes) ast).m_body );
+  }
+  else if ((call = callParts( ast )) != null)
+  {
+    int argc = call.length - 1;
+    loadConst( ast, T_AST );
+    compileValue( call[0] );
+    compileArgs( tail( call ) );
+    m_code.aload( 2 );
+    invoke( Code.INVOKESTATIC, T_COMPILED, callName( "call", argc ), callDesc( argc, D_OBJECT ) );
+  }
+  else if (ast instanceof AST.Builtin && builtinOpDesc( (AST.Builtin) ast ) != null)
+  {
+    AST.Builtin b = (AST.Builtin) ast;
+    String type = b.getClass().getName().replace( '.', '/' );
+    loadConst( b, type );
+    for ( AST a : b.v )
+      compileValue( a );
+    // Errors must be reported at the position of the builtin, like in AST.Builtin.evalValue()
+    int start = m_code.length();
+    invoke( Code.INVOKEVIRTUAL, type, "op", builtinOpDesc( b ) );
+    m_handlers.add( new int[]{ start, m_code.length(), constIndex( b ) } );
+  }
+  else
+  {
+    // Not supported. Just evaluate the instruction
+    loadConst( ast, T_AST );
+    m_code.aload( 1 );
+    m_code.aload( 2 );
+    invoke( Code.INVOKEVIRTUAL, T_AST, "evalValue", "("+D_OBJARR+D_CTX+")"+D_OBJECT );
+  }
+}
+
+private void loadBox ( int envIndex, int bindingIndex )
+{
+  loadEnv( envIndex );
+  m_code.iconst( bindingIndex );
+  m_code.op( Code.AALOAD, -1 );
+  m_code.type( Code.CHECKCAST, m_cp.cls( T_BOX ), 0 );
+}
+
+private void compileBoxes ( ClosureConverter.Boxes boxes ) throws Unsupported
+{
+  loadConst( boxes, T_BOXES );
+  m_code.aload( 1 );
+  invoke( Code.INVOKEVIRTUAL, T_BOXES, "box", "("+D_OBJARR+")V" );
+}
+
+/**
+ * @param envIndex the depth of the environment, or -1 for the top level environment
+ */
+private void compileSet ( int envIndex, int bindingIndex, AST value ) throws Unsupported
+{
+  if (envIndex < 0)
+    loadRootEnv();
+  else
+    loadEnv( envIndex );
+  m_code.iconst( bindingIndex );
+  compileValue( value );
+  m_code.op( Code.AASTORE, -3 );
+  loadUnspec();
+}
+
+/**
+ * Emit the exception handlers of the builtin operations. Each handler reports the exception
+ * through {@link AST#handleException(Exception)}, which always throws.
+ */
+private void emitHandlers () throws Unsupported
+{
+  for ( int[] h : m_handlers )
+  {
+    int handler = m_code.length();
+    m_code.setDepth( 1 ); // the exception
+    loadConst( m_consts.get( h[2] ), T_AST );
+    m_code.op( Code.SWAP, 0 );
+    invoke( Code.INVOKEVIRTUAL, T_AST, "handleException", "(Ljava/lang/Exception;)V" );
+    m_code.op( Code.ACONST_NULL, +1 );
+    m_code.op( Code.ATHROW, -1 );
+    h[2] = handler;
+  }
+  checkSize();
+}
+
+/**
+ * A growable buffer of bytecode. We keep track of the stack depth as we go in order to
+ * compute max_stack.
+ */
+private static final class Code
+{
+  static final int ACONST_NULL = 0x01, ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11;
+  static final int ALOAD = 0x19, ALOAD_0 = 0x2a, AALOAD = 0x32, AASTORE = 0x53;
+  static final int POP = 0x57, DUP = 0x59, SWAP = 0x5f;
+  static final int IF_ACMPEQ = 0xa5, GOTO = 0xa7, TABLESWITCH = 0xaa, ARETURN = 0xb0, RETURN = 0xb1;
+  static final int GETSTATIC = 0xb2, GETFIELD = 0xb4, PUTFIELD = 0xb5;
+  static final int INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+  static final int NEW = 0xbb, ANEWARRAY = 0xbd, ATHROW = 0xbf, CHECKCAST = 0xc0;
+
+  private byte[] m_buf = new byte[256];
+  private int m_len;
+  private int m_depth;
+  int maxDepth;
+
+  final int length ()
+  {
+    return m_len;
+  }
+
+  final byte[] bytes ()
+  {
+    byte[] res = new byte[m_len];
+    System.arraycopy( m_buf, 0, res, 0, m_len );
+    return res;
+  }
+
+  final int depth ()
+  {
+    return m_depth;
+  }
+
+  final void setDepth ( int depth )
+  {
+    m_depth = depth;
+  }
+
+  private void adjust ( int delta )
+  {
+    m_depth += delta;
+    if (m_depth > maxDepth)
+      maxDepth = m_depth;
+  }
+
+  private void u1 ( int b )
+  {
+    if (m_len == m_buf.length)
+    {
+      byte[] tmp = new byte[m_buf.length * 2];
+      System.arraycopy( m_buf, 0, tmp, 0, m_len );
+      m_buf = tmp;
+    }
+    m_buf[m_len++] = (byte)b;
+  }
+
+  private void u2 ( int v )
+  {
+    u1( v >> 8 );
+    u1( v );
+  }
+
+  final void op ( int opcode, int delta )
+  {
+    u1( opcode );
+    adjust( delta );
+  }
+
+  final void aload ( int index )
+  {
+    if (index <= 3)
+      u1( ALOAD_0 + index );
+    else
+    {
+      u1( ALOAD );
+      u1( index );
+    }
+    adjust( +1 );
+  }
+
+  final void iconst ( int v )
+  {
+    if (v >= -1 && v <= 5)
+      u1( ICONST_0 + v );
+    else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE)
+    {
+      u1( BIPUSH );
+      u1( v );
+    }
+    else
+    {
+      u1( SIPUSH );
+      u2( v );
+    }
+    adjust( +1 );
+  }
+
+  final void field ( int opcode, int cpIndex, int delta )
+  {
+    u1( opcode );
+    u2( cpIndex );
+    adjust( delta );
+  }
+
+  final void type ( int opcode, int cpIndex, int delta )
+  {
+    u1( opcode );
+    u2( cpIndex );
+    adjust( delta );
+  }
+
+  final void invoke ( int opcode, int cpIndex, int delta )
+  {
+    u1( opcode );
+    u2( cpIndex );
+    adjust( delta );
+  }
+
+  /**
+   * Emit a forward branch
+   * @param dummy ignored; allows the operands to be pushed in the argument list
+   * @return the location to patch with {@link #label(int)}
+   */
+  final int branch ( int opcode, int delta, int dummy )
+  {
+    int at = m_len;
+    u1( opcode );
+    u2( 0 );
+    adjust( delta );
+    return at;
+  }
+
+  /** Emit an unconditional backward branch */
+  final void jump ( int target )
+  {
+    int at = m_len;
+    u1( GOTO );
+    u2( target - at );
+  }
+
+  /** Bind a forward branch to the current location */
+  final void label ( int branchAt )
+  {
+    int ofs = m_len - branchAt;
+    m_buf[branchAt+1] = (byte)(ofs >> 8);
+    m_buf[branchAt+2] = (byte)ofs;
+  }
+
+  private void u4 ( int v )
+  {
+    u2( v >> 16 );
+    u2( v );
+  }
+
+  /**
+   * Emit a tableswitch on the int on the stack, with cases 0..count-1. The last case is also
+   * the default.
+   * @return the location to patch with {@link #labelSwitch(int, int)}
+   */
+  final int tableSwitch ( int count )
+  {
+    int at = m_len;
+    u1( TABLESWITCH );
+    while ((m_len & 3) != 0)
+      u1( 0 );
+    u4( 0 ); // default
+    u4( 0 );
+    u4( count - 1 );
+    for ( int i = 0; i < count; ++i )
+      u4( 0 );
+    adjust( -1 );
+    return at;
+  }
+
+  /** Bind a case of a tableswitch to the current location */
+  final void labelSwitch ( int switchAt, int index )
+  {
+    int table = (switchAt + 4) & ~3;
+    int high = (m_buf[table+8] << 24) | ((m_buf[table+9] & 0xff) << 16) |
+               ((m_buf[table+10] & 0xff) << 8) | (m_buf[table+11] & 0xff);
+    patch4( table + 12 + 4*index, m_len - switchAt );
+    if (index == high)
+      patch4( table, m_len - switchAt );
+  }
+
+  private void patch4 ( int pos, int v )
+  {
+    m_buf[pos] = (byte)(v >> 24);
+    m_buf[pos+1] = (byte)(v >> 16);
+    m_buf[pos+2] = (byte)(v >> 8);
+    m_buf[pos+3] = (byte)v;
+  }
+}
+
+/**
+ * The constant pool, which also knows how to write the whole class file.
+ */
+private static final class ConstPool
+{
+  private final ByteArrayOutputStream m_bytes = new ByteArrayOutputStream();
+  private final DataOutputStream m_out = new DataOutputStream( m_bytes );
+  private final HashMap<String,Integer> m_index = new HashMap<String,Integer>();
+  private int m_count = 1;
+
+  private int add ( String key, int tag, int a, int b, String utf )
+  {
+    Integer index = m_index.get( key );
+    if (index != null)
+      return index;
+    try
+    {
+      m_out.writeByte( tag );
+      if (utf != null)
+        m_out.writeUTF( utf );
+      else
+      {
+        m_out.writeShort( a );
+        if (b >= 0)
+          m_out.writeShort( b );
+      }
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException( e ); // can't happen
+    }
+    m_index.put( key, m_count );
+    return m_count++;
+  }
+
+  final int utf8 ( String s )
+  {
+    return add( "U" + s, 1, 0, 0, s );
+  }
+
+  final int cls ( String name )
+  {
+    return add( "C" + name, 7, utf8( name ), -1, null );
+  }
+
+  private int nameType ( String name, String desc )
+  {
+    return add( "N" + name + ' ' + desc, 12, utf8( name ), utf8( desc ), null );
+  }
+
+  final int field ( String owner, String name, String desc )
+  {
+    return add( "F" + owner + ' ' + name + ' ' + desc, 9, cls( owner ), nameType( name, desc ), null );
+  }
+
+  final int method ( String owner, String name, String desc )
+  {
+    return add( "M" + owner + ' ' + name + ' ' + desc, 10, cls( owner ), nameType( name, desc ), null );
+  }
+
+  final byte[] classFile ( String className, Code code, ArrayList<int[]> handlers )
+  {
+    String initDesc = "(L"+PKG+"ISourceCoords;"+D_OBJARR+D_AST+")V";
+    int thisCls = cls( className );
+    int superCls = cls( T_COMPILED );
+    int init = utf8( "<init>" );
+    int initD = utf8( initDesc );
+    int superInit = method( T_COMPILED, "<init>", initDesc );
+    int evalCont = utf8( "evalCont" );
+    int evalContD = utf8( "("+D_OBJARR+D_CTX+")"+D_AST );
+    int codeAttr = utf8( "Code" );
+    int exception = cls( "java/lang/Exception" );
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream( bytes );
+    try
+    {
+      out.writeInt( 0xCAFEBABE );
+      out.writeShort( 0 );
+      out.writeShort( 49 );
+      out.writeShort( m_count );
+      m_out.flush();
+      m_bytes.writeTo( out );
+      out.writeShort( 0x0030 ); // ACC_FINAL | ACC_SUPER
+      out.writeShort( thisCls );
+      out.writeShort( superCls );
+      out.writeShort( 0 ); // interfaces
+      out.writeShort( 0 ); // fields
+      out.writeShort( 2 ); // methods
+
+      // The constructor just invokes the super constructor
+      byte[] initCode = { 0x2a, 0x2b, 0x2c, 0x2d, (byte)Code.INVOKESPECIAL,
+                          (byte)(superInit >> 8), (byte)superInit, (byte)Code.RETURN };
+      out.writeShort( 0 );
+      out.writeShort( init );
+      out.writeShort( initD );
+      out.writeShort( 1 );
+      out.writeShort( codeAttr );
+      out.writeInt( 12 + initCode.length );
+      out.writeShort( 4 );
+      out.writeShort( 4 );
+      out.writeInt( initCode.length );
+      out.write( initCode );
+      out.writeShort( 0 );
+      out.writeShort( 0 );
+
+      // evalCont()
+      byte[] c = code.bytes();
+      out.writeShort( 0x0011 ); // ACC_PUBLIC | ACC_FINAL
+      out.writeShort( evalCont );
+      out.writeShort( evalContD );
+      out.writeShort( 1 );
+      out.writeShort( codeAttr );
+      out.writeInt( 12 + c.length + handlers.size() * 8 );
+      out.writeShort( code.maxDepth );
+      out.writeShort( 3 );
+      out.writeInt( c.length );
+      out.write( c );
+      out.writeShort( handlers.size() );
+      for ( int[] h : handlers )
+      {
+        out.writeShort( h[0] );
+        out.writeShort( h[1] );
+        out.writeShort( h[2] );
+        out.writeShort( exception );
+      }
+      out.writeShort( 0 ); // code attributes
+
+      out.writeShort( 0 ); // class attributes
+      out.flush();
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException( e ); // can't happen
+    }
+    return bytes.toByteArray();
+  }
+}
+
+} // class
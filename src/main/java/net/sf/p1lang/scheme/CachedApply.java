@@ -0,0 +1,207 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+/**
+ * A call to a procedure stored in a top level variable, with a monomorphic inline cache.
+ *
+ * <p>The call site remembers the last closure it called, if that closure accepts the number of
+ * parameters being passed. When the variable still contains the same closure, we skip the type
+ * and parameter count validation of {@link AST.Apply} and build the environment directly.
+ * Redefining the variable simply causes a miss, after which the new procedure is cached.
+ * Everything else (errors, Java procedures) is handled by the generic {@link AST.Apply}, which
+ * shares our operands. For a {@code case-lambda} we cache the clause accepting our parameters.
+ *
+ * <p>The operands have the same layout as in {@link AST.Apply}, with an empty
+ * {@code (apply ...)} list at the end.
+ */
+final class CachedApply extends AST.Builtin
+{
+private static final long serialVersionUID = 1L;
+
+private final AST.Apply m_generic;
+private final SchemeInterpreter.InlineCacheStats m_stats;
+
+/** A procedure we can call directly */
+private static final class Entry
+{
+  final Closure closure;
+  /** The lambda of the closure, or its clause we call */
+  final Lambda proc;
+
+  Entry ( Closure closure, Lambda proc )
+  {
+    this.closure = closure;
+    this.proc = proc;
+  }
+}
+
+/**
+ * The last procedure called, if we can call it directly. The call site may be shared by forks of
+ * the interpreter running in other threads, so the entry is immutable and replaced as a whole: a
+ * closure is never seen with the lambda of another one. Its fields are final, so another thread
+ * sees it complete even without synchronization; at worst it sees an older entry and misses.
+ */
+private transient Entry m_cache;
+
+private int m_hits, m_misses;
+
+CachedApply ( ISourceCoords coords, AST[] values, SchemeInterpreter.InlineCacheStats stats )
+{
+  super(coords, values);
+  assert values[values.length-1] == AST.Lit.LIT_NULL;
+  m_generic = new AST.Apply( coords, values );
+  m_stats = stats;
+}
+
+final int hits ()
+{
+  return m_hits;
+}
+
+final int misses ()
+{
+  return m_misses;
+}
+
+private final Object[] buildEnv ( final Object[] env, final EvalContext ctx, final Object target,
+                                  boolean pooled ) throws SchemeError
+{
+  Entry cache = m_cache;
+  if (cache == null || target != cache.closure)
+    return miss( env, ctx, target, pooled );
+
+  ++m_hits;
+  ++m_stats.hits;
+
+  Closure closure = cache.closure;
+  Lambda proc = cache.proc;
+  Object[] callEnv = ctx.newFrame( proc.envSize, pooled );
+  callEnv[Scope.PARENT_SLOT] = closure.parentEnv;
+  int i = Scope.RESERVED_SLOTS;
+  for ( int p = 1, e = proc.paramCount; p <= e; ++p )
+    callEnv[i++] = v[p].evalValue( env, ctx );
+  if (proc.haveRest)
+  {
+    // Like the generic Apply, build the list in reverse
+    Pair rest = Pair.NULL;
+    for ( int p = v.length - 2; p > proc.paramCount; --p )
+      rest = new Pair( v[p].evalValue( env, ctx ), rest );
+    callEnv[i++] = rest;
+  }
+  for ( int end = callEnv.length; i < end; ++i )
+    callEnv[i] = Unspec.UNSPEC;
+  return callEnv;
+}
+
+private final Object[] miss ( final Object[] env, final EvalContext ctx, final Object target,
+                              boolean pooled ) throws SchemeError
+{
+  ++m_misses;
+  ++m_stats.misses;
+
+  if (!(target instanceof Closure))
+    throw new EvalError( this, "Call of non-procedure" );
+  Closure closure = (Closure) target;
+  int argc = v.length - 2;
+  Lambda proc = CaseLambda.select( closure.lambda, argc );
+
+  if (!(proc instanceof JavaProcedure) && !proc.spreadRest && proc.envSize > 0 &&
+      (proc.haveRest ? proc.paramCount <= argc : proc.paramCount == argc))
+    m_cache = new Entry( closure, proc );
+  else
+    m_cache = null;
+
+  return m_generic.buildEnv( env, ctx, closure, proc, pooled );
+}
+
+/**
+ * The procedure invoked with the environment built by {@link #buildEnv} for target
+ */
+private final Lambda invoked ( final Object target )
+{
+  Entry cache = m_cache;
+  return cache != null && target == cache.closure ?
+    cache.proc : CaseLambda.select( ((Closure) target).lambda, v.length - 2 );
+}
+
+/**
+ * The body of the procedure which will be invoked for target, or null if it isn't a procedure
+ */
+private final AST body ( final Object target )
+{
+  Entry cache = m_cache;
+  if (cache != null && target == cache.closure)
+    return cache.proc.body;
+  else if (target instanceof Closure)
+    return CaseLambda.select( ((Closure) target).lambda, v.length - 2 ).body;
+  else
+    return null;
+}
+
+public final AST evalCont ( final Object[] env, final EvalContext ctx ) throws SchemeError
+{
+  ctx.poll( this );
+  Object target = v[0].evalValue( env, ctx );
+  // Read the body before evaluating the parameters, which may replace a LazyBody
+  AST body = body( target );
+  ctx.outEnv = buildEnv( env, ctx, target, false );
+  Lambda proc = invoked( target );
+  if (proc instanceof JavaProcedure)
+    return ((JavaProcedure)proc).cont;
+  else
+    return body;
+}
+
+protected final Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+{
+  ctx.poll( this );
+  Object target = v[0].evalValue( env, ctx );
+  Entry cache = m_cache;
+  if (cache != null && target == cache.closure && cache.proc.reuseFrame)
+  {
+    int mark = ctx.frameMark();
+    try
+    {
+      return cache.proc.body.evalValue( buildEnv( env, ctx, target, true ), ctx );
+    }
+    finally
+    {
+      ctx.popFrames( mark );
+    }
+  }
+
+  AST body = body( target );
+  Object[] callEnv = buildEnv( env, ctx, target, false );
+  Lambda proc = invoked( target );
+  if (proc instanceof JavaProcedure)
+    return ((JavaProcedure)proc).apply( callEnv );
+  else
+    return body.evalValue( callEnv, ctx );
+}
+
+public String toString ()
+{
+  StringBuilder res = new StringBuilder(32+v.length*32);
+
+  res.append( "(cached-apply" );
+  for (AST aV : v)
+    res.append(' ').append(aV.toString());
+  res.append( ')' );
+  return res.toString();
+}
+
+public Object dis ()
+{
+  Pair res = Pair.NULL;
+  for ( int i = this.v.length-1; i >= 0; --i )
+    res = new Pair( this.v[i].dis(), res );
+  return new Pair( "cached-apply", res );
+}
+
+} // class
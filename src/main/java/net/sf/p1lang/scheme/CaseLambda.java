@@ -0,0 +1,143 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+/**
+ * Dispatch of {@code case-lambda} procedures by the number of parameters.
+ *
+ * <p>The lambda of a {@code case-lambda} closure has its clauses in {@link Lambda#clauses}.
+ * The clauses are ordinary lambdas sharing the parent environment of the closure. A call site
+ * which knows the number of parameters it passes selects the clause with {@link #select} and
+ * builds the clause's environment directly, so calling a {@code case-lambda} costs the same as
+ * calling a plain procedure (see {@link AST.Apply}, {@link CachedApply} and
+ * {@link RegisterVM}).
+ *
+ * <p>For all other calls the lambda itself is a procedure accepting any number of parameters
+ * in its environment ({@link Lambda#spreadRest}), whose body is a {@link Dispatch}. It selects
+ * the clause at runtime and copies the parameters into the clause's environment. Neither path
+ * allocates a list, unless the selected clause itself has a "rest" parameter.
+ *
+ * <p>Lambdas with {@code #!optional} parameters are compiled to a {@code case-lambda} with a
+ * clause for each number of optional parameters (see {@link Compiler}).
+ */
+final class CaseLambda
+{
+private CaseLambda ()
+{}
+
+/**
+ * Select the first clause accepting {@code argc} parameters.
+ * @return the clause, or proc itself if it isn't a case-lambda or no clause matches (in which
+ *   case its {@link Dispatch} reports the error)
+ */
+static Lambda select ( Lambda proc, int argc )
+{
+  Lambda[] clauses = proc.clauses;
+  if (clauses != null)
+    for ( Lambda clause : clauses )
+      if (clause.haveRest ? clause.paramCount <= argc : clause.paramCount == argc)
+        return clause;
+  return proc;
+}
+
+/**
+ * Create the dispatching lambda of a case-lambda
+ */
+static Lambda make ( ISourceCoords coords, Symbol name, Lambda[] clauses )
+{
+  Lambda proc = new Lambda();
+  proc.name = name;
+  proc.haveRest = true;
+  proc.spreadRest = true;
+  proc.envSize = Scope.RESERVED_SLOTS;
+  proc.clauses = clauses;
+  proc.body = new Dispatch( coords, proc );
+  return proc;
+}
+
+/**
+ * The body of the dispatching lambda. The parameters are in the environment after the parent
+ * slot.
+ */
+static final class Dispatch extends AST
+{
+  private static final long serialVersionUID = 1L;
+
+  private final Lambda m_proc;
+
+  Dispatch ( ISourceCoords coords, Lambda proc )
+  {
+    super(coords);
+    m_proc = proc;
+  }
+
+  private Lambda clause ( Object[] env ) throws EvalError
+  {
+    int argc = env.length - Scope.RESERVED_SLOTS;
+    Lambda clause = select( m_proc, argc );
+    if (clause == m_proc)
+      throw new EvalError( this, String.format( "Call to %s: no clause accepts %d parameters",
+                                                m_proc, argc ) );
+    return clause;
+  }
+
+  /**
+   * Move the parameters into the environment of the clause
+   */
+  private static Object[] clauseEnv ( Lambda clause, Object[] env )
+  {
+    if (clause.envSize == 0)
+      return null;
+    Object[] callEnv = new Object[clause.envSize];
+    callEnv[Scope.PARENT_SLOT] = env[Scope.PARENT_SLOT];
+    int i = Scope.RESERVED_SLOTS, end = Scope.RESERVED_SLOTS + clause.paramCount;
+    System.arraycopy( env, i, callEnv, i, clause.paramCount );
+    i = end;
+    if (clause.haveRest)
+    {
+      Pair rest = Pair.NULL;
+      for ( int j = env.length - 1; j >= end; --j )
+        rest = new Pair( env[j], rest );
+      callEnv[i++] = rest;
+    }
+    for ( end = callEnv.length; i < end; ++i )
+      callEnv[i] = Unspec.UNSPEC;
+    return callEnv;
+  }
+
+  public final AST evalCont ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    Lambda clause = clause( env );
+    ctx.outEnv = clauseEnv( clause, env );
+    return clause.body;
+  }
+
+  public final Object evalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    Lambda clause = clause( env );
+    return clause.body.evalValue( clauseEnv( clause, env ), ctx );
+  }
+
+  public String toString ()
+  {
+    StringBuilder res = new StringBuilder( "(case-lambda" );
+    for ( Lambda clause : m_proc.clauses )
+      res.append( ' ' ).append( clause.body );
+    return res.append( ')' ).toString();
+  }
+
+  public Object dis ()
+  {
+    Pair res = Pair.NULL;
+    for ( int i = m_proc.clauses.length - 1; i >= 0; --i )
+      res = new Pair( m_proc.clauses[i].body.dis(), res );
+    return new Pair( "case-lambda", res );
+  }
+}
+
+} // class
@@ -0,0 +1,180 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Maps the key of a {@code case} to the index of the clause whose datums contain it, as if by
+ * {@code eqv?} (see {@link AST.Case}).
+ *
+ * <p>When all datums are fixnums or all are characters and their range is dense, the table is an
+ * array indexed by the value of the key. When they are fixnums, characters and symbols, it is a
+ * hash table. Otherwise we simply compare the key with each datum in turn.
+ *
+ * <p>Note that our {@code eqv?} compares numbers by value, so a key which is a number, but not a
+ * fixnum, can still match a fixnum datum. Such keys are rare and also take the slow path.
+ */
+final class CaseTable implements Serializable
+{
+private static final long serialVersionUID = 1L;
+
+/** An array table may have at most this many unused entries per datum */
+private static final int DENSITY = 2;
+/** ... but small ranges are always fine */
+private static final int MIN_DENSE = 16;
+
+/** All datums in order, and the clause of each */
+private final Object[] m_datums;
+private final int[] m_clauses;
+/** The index returned for keys which don't match any datum */
+private final int m_else;
+
+/** The array table: the clause of each value from m_min on, or null */
+private final int[] m_dense;
+private final long m_min;
+/** The array table is indexed by characters */
+private final boolean m_chars;
+
+/** The hash table, or null */
+private final HashMap<Object,Integer> m_map;
+
+/**
+ * @param datums the datums of each clause
+ */
+CaseTable ( Object[][] datums )
+{
+  int count = 0;
+  for ( Object[] d : datums )
+    count += d.length;
+  m_datums = new Object[count];
+  m_clauses = new int[count];
+  m_else = datums.length;
+
+  boolean hashable = true, fixnums = true, chars = true;
+  long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+  count = 0;
+  for ( int clause = 0; clause < datums.length; ++clause )
+    for ( Object datum : datums[clause] )
+    {
+      m_datums[count] = datum;
+      m_clauses[count++] = clause;
+
+      long value;
+      if (datum instanceof SchemeFixInt)
+      {
+        value = ((SchemeFixInt) datum).value;
+        chars = false;
+      }
+      else if (datum instanceof Character)
+      {
+        value = (Character) datum;
+        fixnums = false;
+      }
+      else
+      {
+        fixnums = chars = false;
+        if (!(datum instanceof Symbol))
+          hashable = false;
+        continue;
+      }
+      min = Math.min( min, value );
+      max = Math.max( max, value );
+    }
+
+  if (count > 0 && (fixnums || chars) && max - min >= 0 &&
+      max - min < Math.max( MIN_DENSE, (long) count * (DENSITY + 1) ))
+  {
+    m_dense = new int[(int) (max - min + 1)];
+    Arrays.fill( m_dense, m_else );
+    // The first clause containing a datum wins, so we fill them in reverse
+    for ( int i = count - 1; i >= 0; --i )
+      m_dense[(int) (value( m_datums[i] ) - min)] = m_clauses[i];
+    m_min = min;
+    m_chars = chars;
+    m_map = null;
+  }
+  else
+  {
+    m_dense = null;
+    m_min = 0;
+    m_chars = false;
+    if (hashable && count > 0)
+    {
+      m_map = new HashMap<Object,Integer>( count * 2 );
+      for ( int i = count - 1; i >= 0; --i )
+        m_map.put( m_datums[i], m_clauses[i] );
+    }
+    else
+      m_map = null;
+  }
+}
+
+private static long value ( Object datum )
+{
+  return datum instanceof Character ? (Character) datum : ((SchemeFixInt) datum).value;
+}
+
+/**
+ * @return the index of the clause matching the key, or the number of clauses if none does
+ */
+final int index ( Object key )
+{
+  if (m_dense != null)
+  {
+    long i;
+    if (m_chars ? key instanceof Character : key instanceof SchemeFixInt)
+      i = value( key ) - m_min;
+    else
+      return miss( key );
+    return i >= 0 && i < m_dense.length ? m_dense[(int) i] : m_else;
+  }
+  else if (m_map != null)
+  {
+    Integer res = m_map.get( key );
+    return res != null ? res : miss( key );
+  }
+  else
+    return scan( key );
+}
+
+/** A key of another kind may still be a number equal to a fixnum datum */
+private int miss ( Object key )
+{
+  return key instanceof SchemeNumber && !(key instanceof SchemeFixInt) ? scan( key ) : m_else;
+}
+
+private int scan ( Object key )
+{
+  for ( int i = 0; i < m_datums.length; ++i )
+    if (eqv( key, m_datums[i] ))
+      return m_clauses[i];
+  return m_else;
+}
+
+/** The same as the {@code Eqv} builtin */
+private static boolean eqv ( Object a, Object b )
+{
+  if (a == b)
+    return true;
+  if (a instanceof SchemeNumber)
+    return (b instanceof SchemeNumber) && ((SchemeNumber)a).cmp( (SchemeNumber)b ) == 0;
+  if (a instanceof Character)
+    return (b instanceof Character) && ((Character)a).charValue() == ((Character)b).charValue();
+  return false;
+}
+
+/** The kind of table, for {@link AST.Case#toString()} */
+final String kind ()
+{
+  return m_dense != null ? "array" : m_map != null ? "hash" : "linear";
+}
+
+} // class
@@ -0,0 +1,558 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Converts nested lambdas to flat closures.
+ *
+ * <p>Normally the parent slot of an environment points to the environment of the enclosing
+ * lambda, so a variable {@code n} levels up is reached by following {@code n} links and a closure
+ * keeps all of its ancestor environments alive. After the conversion a nested closure gets its
+ * own vector of captured values, its "display", and its environment links to that instead:
+ *
+ * <pre>
+ *   env[0]     the display (or the top level environment for lambdas at the top level)
+ *   display[0] the top level environment
+ *   display[i] the captured variables
+ * </pre>
+ *
+ * <p>So a local variable is at depth 0, a captured one at depth 1 and a global at depth 2 (1 at
+ * the top level), regardless of the nesting. Captured variables which are also assigned with
+ * {@code set!} can't be copied, so they are stored in a {@link Box}. The lambda defining them
+ * boxes them on entry, which preserves the semantics of a shared environment slot exactly.
+ *
+ * <p>The conversion needs to see all the uses of a variable, so it is applied to a complete tree
+ * of lambdas starting from a lambda defined at the top level.
+ */
+final class ClosureConverter
+{
+/** Per-lambda information */
+private static final class Info
+{
+  final Lambda lambda;
+  /** Level of the lambda's environment; the top level is 0 */
+  final int level;
+  /** Variables captured by nested lambdas */
+  final BitSet captured = new BitSet();
+  /** Variables assigned with set! */
+  final BitSet mutated = new BitSet();
+  /**
+   * The display slots: (level << 32 | index) -> slot. The clauses of a case-lambda share the
+   * display, and so the slots, of its closure.
+   */
+  LinkedHashMap<Long,Integer> slots = new LinkedHashMap<Long,Integer>();
+
+  Info ( Lambda lambda, int level )
+  {
+    this.lambda = lambda;
+    this.level = level;
+  }
+
+  final boolean boxed ( int index )
+  {
+    return captured.get( index ) && mutated.get( index );
+  }
+
+  /** Allocate a display slot for a variable of an enclosing lambda */
+  final int slot ( int level, int index )
+  {
+    Long key = ((long)level << 32) | index;
+    Integer slot = slots.get( key );
+    if (slot == null)
+    {
+      slot = slots.size() + 1;
+      slots.put( key, slot );
+    }
+    return slot;
+  }
+}
+
+private final IdentityHashMap<Lambda,Info> m_infos = new IdentityHashMap<Lambda,Info>();
+/** The lambdas enclosing the current instruction; the element at index i is at level i+1 */
+private final ArrayList<Info> m_chain = new ArrayList<Info>();
+/** The converted lambdas, nested ones first */
+private final ArrayList<Lambda> m_converted = new ArrayList<Lambda>();
+
+private ClosureConverter () {}
+
+/**
+ * Convert a lambda defined at the top level, together with all lambdas nested in it.
+ * @return all converted lambdas, nested lambdas before the enclosing ones
+ */
+static List<Lambda> convert ( Lambda proc )
+{
+  ClosureConverter cc = new ClosureConverter();
+  Info info = cc.analyze( proc );
+  cc.m_chain.add( info );
+  cc.convertLambda( info );
+  return cc.m_converted;
+}
+
+private Info info ( int level )
+{
+  return m_chain.get( level - 1 );
+}
+
+//
+// Analysis: find the captured and the mutated variables
+//
+
+private Info analyze ( Lambda proc )
+{
+  Info info = new Info( proc, m_chain.size() + 1 );
+  m_infos.put( proc, info );
+  if (proc.clauses != null)
+  {
+    // The clauses are at the same level as the case-lambda
+    for ( Lambda clause : proc.clauses )
+      analyze( clause ).slots = info.slots;
+    return info;
+  }
+  m_chain.add( info );
+  analyze( proc.body );
+  m_chain.remove( m_chain.size() - 1 );
+  return info;
+}
+
+private void analyze ( AST[] v )
+{
+  for ( AST a : v )
+    analyze( a );
+}
+
+private void analyze ( AST ast )
+{
+  int level = m_chain.size();
+
+  if (ast instanceof AST.Lit)
+  {}
+  else if (ast instanceof AST.Var)
+  {
+    AST.Var var = (AST.Var) ast;
+    int target = level - var.envIndex;
+    if (var.envIndex > 0 && target > 0)
+      info( target ).captured.set( var.bindingIndex );
+  }
+  else if (ast instanceof AST.SetBang)
+  {
+    AST.SetBang sb = (AST.SetBang) ast;
+    int target = level - sb.envIndex;
+    if (target > 0)
+    {
+      info( target ).mutated.set( sb.bindingIndex );
+      if (sb.envIndex > 0)
+        info( target ).captured.set( sb.bindingIndex );
+    }
+    analyze( sb.value );
+  }
+  else if (ast instanceof AST.If)
+  {
+    AST.If i = (AST.If) ast;
+    analyze( i.m_evalCond );
+    analyze( i.m_evalThen );
+    analyze( i.m_evalElse );
+  }
+  else if (ast instanceof AST.Case)
+  {
+    analyze( ((AST.Case) ast).m_key );
+    analyze( ((AST.Case) ast).m_bodies );
+  }
+  else if (ast instanceof AST.MakeClosure)
+    analyze( ((AST.MakeClosure) ast).m_lambda );
+  else if (ast instanceof AST.Builtin)
+    analyze( ((AST.Builtin) ast).v );
+  else if (ast instanceof AST.Begin)
+    analyze( ((AST.Begin) ast).m_body );
+  else if (ast instanceof AST.MakeVector)
+    analyze( ((AST.MakeVector) ast).values );
+  else if (ast instanceof AST.Trampoline)
+    analyze( ((AST.Trampoline) ast).m_ast );
+  else if (ast instanceof AST.Loop)
+    analyze( ((AST.Loop) ast).m_body );
+  else if (ast instanceof AST.LoopJump)
+    analyze( ((AST.LoopJump) ast).m_values );
+  else
+    throw new IllegalArgumentException( "Unexpected instruction "+ ast );
+}
+
+//
+// Conversion
+//
+
+private void convertLambda ( Info info )
+{
+  Lambda proc = info.lambda;
+  if (proc.clauses != null)
+  {
+    // Each clause takes the place of the case-lambda in the chain
+    for ( Lambda clause : proc.clauses )
+    {
+      m_chain.set( m_chain.size() - 1, m_infos.get( clause ) );
+      convertLambda( m_infos.get( clause ) );
+    }
+    m_chain.set( m_chain.size() - 1, info );
+    m_converted.add( proc );
+    return;
+  }
+
+  AST body = convert( proc.body );
+
+  int count = 0;
+  for ( int i = 0; i < proc.envSize; ++i )
+    if (info.boxed( i ))
+      ++count;
+  if (count > 0)
+  {
+    int[] slots = new int[count];
+    count = 0;
+    for ( int i = 0; i < proc.envSize; ++i )
+      if (info.boxed( i ))
+        slots[count++] = i;
+    body = new Boxes( body, slots, body );
+  }
+
+  proc.body = body;
+  m_converted.add( proc );
+}
+
+private void convert ( AST[] v )
+{
+  for ( int i = 0; i < v.length; ++i )
+    v[i] = convert( v[i] );
+}
+
+/**
+ * The depth of the top level environment from the current one
+ */
+private int globalDepth ()
+{
+  return m_chain.size() == 1 ? 1 : 2;
+}
+
+private AST convert ( AST ast )
+{
+  Info cur = m_chain.get( m_chain.size() - 1 );
+  int level = cur.level;
+
+  if (ast instanceof AST.Var)
+  {
+    AST.Var var = (AST.Var) ast;
+    int target = level - var.envIndex;
+    if (var.envIndex == 0)
+      return cur.boxed( var.bindingIndex ) ? new BoxVar( var, var.name, 0, var.bindingIndex ) : var;
+    else if (target == 0)
+      return new AST.Var( var, var.name, globalDepth(), var.bindingIndex, true );
+
+    int slot = cur.slot( target, var.bindingIndex );
+    return info( target ).boxed( var.bindingIndex ) ?
+      new BoxVar( var, var.name, 1, slot ) : new AST.Var( var, var.name, 1, slot, false );
+  }
+  else if (ast instanceof AST.SetBang)
+  {
+    AST.SetBang sb = (AST.SetBang) ast;
+    AST value = convert( sb.value );
+    int target = level - sb.envIndex;
+    if (sb.envIndex == 0)
+      return cur.boxed( sb.bindingIndex ) ?
+        new BoxSetBang( sb, sb.name, 0, sb.bindingIndex, value ) :
+        new AST.SetBang( sb, sb.name, 0, sb.bindingIndex, sb.global, value );
+    else if (target == 0)
+      return new AST.SetBang( sb, sb.name, globalDepth(), sb.bindingIndex, true, value );
+    else // Always boxed, since it is both captured and mutated
+      return new BoxSetBang( sb, sb.name, 1, cur.slot( target, sb.bindingIndex ), value );
+  }
+  else if (ast instanceof AST.If)
+  {
+    AST.If i = (AST.If) ast;
+    return new AST.If( i, convert( i.m_evalCond ), convert( i.m_evalThen ), convert( i.m_evalElse ) );
+  }
+  else if (ast instanceof AST.Case)
+  {
+    AST.Case c = (AST.Case) ast;
+    AST key = convert( c.m_key );
+    convert( c.m_bodies );
+    return new AST.Case( c, key, c.m_table, c.m_bodies );
+  }
+  else if (ast instanceof AST.MakeClosure)
+    return convertClosure( (AST.MakeClosure) ast );
+  else if (ast instanceof AST.Builtin)
+    convert( ((AST.Builtin) ast).v );
+  else if (ast instanceof AST.Begin)
+    convert( ((AST.Begin) ast).m_body );
+  else if (ast instanceof AST.MakeVector)
+    convert( ((AST.MakeVector) ast).values );
+  else if (ast instanceof AST.Trampoline)
+    return new AST.Trampoline( ast, convert( ((AST.Trampoline) ast).m_ast ) );
+  else if (ast instanceof AST.Loop)
+    return new AST.Loop( ast, convert( ((AST.Loop) ast).m_body ) );
+  else if (ast instanceof AST.LoopJump)
+    convert( ((AST.LoopJump) ast).m_values );
+
+  return ast;
+}
+
+private AST convertClosure ( AST.MakeClosure mc )
+{
+  Info cur = m_chain.get( m_chain.size() - 1 );
+  Info info = m_infos.get( mc.m_lambda );
+
+  m_chain.add( info );
+  convertLambda( info );
+  m_chain.remove( m_chain.size() - 1 );
+
+  // Build the display from the current environment. Boxes are copied as they are
+  AST[] captures = new AST[info.slots.size() + 1];
+  captures[0] = new EnvRef( mc, globalDepth() );
+  int i = 1;
+  for ( long key : info.slots.keySet() )
+  {
+    int level = (int)(key >>> 32);
+    int index = (int)key;
+    captures[i++] = level == cur.level ?
+      new AST.Var( mc, null, 0, index, false ) :
+      new AST.Var( mc, null, 1, cur.slot( level, index ), false );
+  }
+  return new FlatClosure( mc, mc.m_lambda, captures );
+}
+
+//
+// Instructions
+//
+
+/**
+ * Holds a captured variable which is assigned with {@code set!}.
+ */
+static final class Box implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+  Object value;
+
+  Box ( Object value )
+  {
+    this.value = value;
+  }
+}
+
+private static Object[] walk ( Object[] env, int envIndex )
+{
+  for ( ; envIndex > 0; --envIndex )
+    env = (Object[]) env[Scope.PARENT_SLOT];
+  return env;
+}
+
+/**
+ * Creates a flat closure. Its display is built from the values of the captured variables.
+ */
+static final class FlatClosure extends AST
+{
+  private static final long serialVersionUID = 1L;
+
+  final Lambda m_lambda;
+  /** The values of the display */
+  final AST[] m_captures;
+
+  FlatClosure ( ISourceCoords coords, Lambda lambda, AST[] captures )
+  {
+    super(coords);
+    m_lambda = lambda;
+    m_captures = captures;
+  }
+
+  public final Object evalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    Object[] display = new Object[m_captures.length];
+    for ( int i = 0; i < display.length; ++i )
+      display[i] = m_captures[i].evalValue( env, ctx );
+    return new Closure( display, m_lambda );
+  }
+
+  public String toString ()
+  {
+    StringBuilder res = new StringBuilder( "(flat-closure " ).append( m_lambda );
+    for ( AST a : m_captures )
+      res.append( ' ' ).append( a );
+    return res.append( ' ' ).append( m_lambda.body ).append( ')' ).toString();
+  }
+
+  public Object dis ()
+  {
+    Pair res = new Pair( m_lambda.body != null ? m_lambda.body.dis() : "java" );
+    for ( int i = m_captures.length-1; i >= 0; --i )
+      res = new Pair( m_captures[i].dis(), res );
+    return new Pair( "flat-closure "+m_lambda.toString(), res );
+  }
+}
+
+/**
+ * Returns an environment, e.g. the top level one for a display.
+ */
+static final class EnvRef extends AST
+{
+  private static final long serialVersionUID = 1L;
+
+  final int envIndex;
+
+  EnvRef ( ISourceCoords coords, int envIndex )
+  {
+    super(coords);
+    this.envIndex = envIndex;
+  }
+
+  public final Object evalValue ( final Object[] env, final EvalContext ctx )
+  {
+    return walk( env, envIndex );
+  }
+
+  public String toString ()
+  {
+    return "(env "+ envIndex +")";
+  }
+
+  public Object dis ()
+  {
+    return toString();
+  }
+}
+
+/**
+ * Reads a boxed variable.
+ */
+static final class BoxVar extends AST
+{
+  private static final long serialVersionUID = 1L;
+
+  final int envIndex;
+  final int bindingIndex;
+  final Symbol name;
+
+  BoxVar ( ISourceCoords coords, Symbol name, int envIndex, int bindingIndex )
+  {
+    super(coords);
+    this.envIndex = envIndex;
+    this.bindingIndex = bindingIndex;
+    this.name = name;
+  }
+
+  public final Object evalValue ( final Object[] env, final EvalContext ctx )
+  {
+    return ((Box) walk( env, envIndex )[bindingIndex]).value;
+  }
+
+  public String toString ()
+  {
+    return "(box-var "+name+":"+envIndex+":"+bindingIndex+")";
+  }
+
+  public Object dis ()
+  {
+    return toString();
+  }
+}
+
+/**
+ * Assigns a boxed variable.
+ */
+static final class BoxSetBang extends AST
+{
+  private static final long serialVersionUID = 1L;
+
+  final int envIndex;
+  final int bindingIndex;
+  final AST value;
+  final Symbol name;
+
+  BoxSetBang ( ISourceCoords coords, Symbol name, int envIndex, int bindingIndex, AST value )
+  {
+    super(coords);
+    this.envIndex = envIndex;
+    this.bindingIndex = bindingIndex;
+    this.value = value;
+    this.name = name;
+  }
+
+  public final Object evalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    Object v = value.evalValue( env, ctx );
+    ((Box) walk( env, envIndex )[bindingIndex]).value = v;
+    return Unspec.UNSPEC;
+  }
+
+  public String toString ()
+  {
+    return "(box-set! "+name+":"+envIndex+":"+bindingIndex+" "+ value +")";
+  }
+
+  public Object dis ()
+  {
+    return new Pair( "box-set! "+name+":"+envIndex+":"+bindingIndex, new Pair( value.dis() ) );
+  }
+}
+
+/**
+ * The prologue of a lambda with boxed variables. Boxes them and continues with the body.
+ */
+static final class Boxes extends AST
+{
+  private static final long serialVersionUID = 1L;
+
+  final AST m_body;
+  final int[] m_slots;
+
+  Boxes ( ISourceCoords coords, int[] slots, AST body )
+  {
+    super(coords);
+    m_slots = slots;
+    m_body = body;
+  }
+
+  final void box ( Object[] env )
+  {
+    for ( int slot : m_slots )
+      env[slot] = new Box( env[slot] );
+  }
+
+  public final AST evalCont ( final Object[] env, final EvalContext ctx )
+  {
+    box( env );
+    ctx.outEnv = env;
+    return m_body;
+  }
+
+  public final Object evalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    box( env );
+    return m_body.evalValue( env, ctx );
+  }
+
+  private String name ()
+  {
+    StringBuilder res = new StringBuilder( "boxes" );
+    for ( int slot : m_slots )
+      res.append( ' ' ).append( slot );
+    return res.toString();
+  }
+
+  public String toString ()
+  {
+    return "("+ name() +" "+ m_body +")";
+  }
+
+  public Object dis ()
+  {
+    return new Pair( name(), new Pair( m_body.dis() ) );
+  }
+}
+
+} // class
@@ -0,0 +1,495 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.io.ObjectStreamException;
+
+/**
+ * The base class of lambda bodies compiled to JVM bytecode by {@link BytecodeCompiler}.
+ *
+ * <p>The generated class implements only {@link #evalCont(Object[], EvalContext)}. A tail call
+ * returns the body of the callee in the usual way; any other value is returned through
+ * {@link EvalContext#outValue} and {@link ReturnValue}, so the body can be driven by an ordinary
+ * trampoline. The environment layout is exactly the same as in interpreted code, so compiled and
+ * interpreted procedures can call each other freely.
+ *
+ * <p>The static and final methods here are the runtime support invoked by the generated code.
+ */
+abstract class CompiledBody extends AST
+{
+private static final long serialVersionUID = 1L;
+
+/** Constants referenced by the generated code */
+protected final Object[] k;
+/** The instructions we were compiled from */
+final AST m_source;
+/** Used instead of {@code this} as the continuation of a self tail call */
+private final AST m_reentry;
+
+protected CompiledBody ( ISourceCoords coords, Object[] consts, AST source )
+{
+  super(coords);
+  this.k = consts;
+  m_source = source;
+  m_reentry = new Reentry( this );
+}
+
+public abstract AST evalCont ( Object[] env, EvalContext ctx ) throws SchemeError;
+
+public final Object evalValue ( Object[] env, final EvalContext ctx ) throws SchemeError
+{
+  AST cur = this;
+  AST next;
+  while ((next = cur.evalCont( env, ctx )) != cur)
+  {
+    env = ctx.outEnv;
+    cur = next;
+  }
+  ctx.outEnv = null; // we don't want to keep extra environments alive
+  try
+  {
+    return cur.evalValue( env, ctx );
+  }
+  catch (Exception e)
+  {
+    cur.handleException( e );
+    return null; // unreachable
+  }
+}
+
+/** Generated classes can't be deserialized, so we serialize the source instead */
+protected final Object writeReplace () throws ObjectStreamException
+{
+  return m_source;
+}
+
+public String toString ()
+{
+  return "(compiled "+ m_source +")";
+}
+
+public Object dis ()
+{
+  return new Pair( "compiled", new Pair( m_source.dis() ) );
+}
+
+/**
+ * Returned by compiled code in place of the value of a tail expression. The value itself is
+ * in {@link EvalContext#outValue}.
+ */
+static final class ReturnValue extends AST
+{
+  private static final long serialVersionUID = 1L;
+
+  static final ReturnValue INSTANCE = new ReturnValue();
+
+  private ReturnValue ()
+  {
+    super(null);
+  }
+
+  public final Object evalValue ( final Object[] env, final EvalContext ctx )
+  {
+    Object res = ctx.outValue;
+    ctx.outValue = null;
+    return res;
+  }
+
+  private Object readResolve () throws ObjectStreamException
+  {
+    return INSTANCE;
+  }
+
+  public String toString ()
+  {
+    return "(return-value)";
+  }
+
+  public Object dis ()
+  {
+    return toString();
+  }
+}
+
+/**
+ * A trampoline stops when a continuation returns itself, so a self tail call must not return
+ * the compiled body directly.
+ */
+private static final class Reentry extends AST
+{
+  private static final long serialVersionUID = 1L;
+  private final CompiledBody m_body;
+
+  Reentry ( CompiledBody body )
+  {
+    super(body);
+    m_body = body;
+  }
+
+  public final AST evalCont ( final Object[] env, final EvalContext ctx )
+  {
+    ctx.outEnv = env;
+    return m_body;
+  }
+
+  public final Object evalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    return m_body.evalValue( env, ctx );
+  }
+
+  public Object dis ()
+  {
+    return m_body.dis();
+  }
+}
+
+//
+// Runtime support
+//
+
+static final AST ret ( Object value, Object[] env, EvalContext ctx )
+{
+  ctx.outValue = value;
+  ctx.outEnv = env;
+  return ReturnValue.INSTANCE;
+}
+
+private static Closure closure ( AST site, Object target ) throws EvalError
+{
+  if (!(target instanceof Closure))
+    throw new EvalError( site, "Call of non-procedure" );
+  return (Closure)target;
+}
+
+/**
+ * Allocate the environment of a procedure expecting exactly {@code argc} parameters.
+ * @return null if the procedure has a different number of parameters or a "rest" parameter
+ */
+private static Object[] frame ( Closure closure, int argc )
+{
+  Lambda proc = closure.lambda;
+  if (proc.paramCount != argc || proc.haveRest || proc.envSize == 0)
+    return null;
+
+  Object[] callEnv = new Object[proc.envSize];
+  callEnv[Scope.PARENT_SLOT] = closure.parentEnv;
+  for ( int i = Scope.RESERVED_SLOTS+argc, end = callEnv.length; i < end; ++i )
+    callEnv[i] = Unspec.UNSPEC;
+  return callEnv;
+}
+
+/**
+ * Like {@link #frame(Closure, int)}, but for a non-tail call, where the environment is taken
+ * from the frame stack if the procedure allows it. The caller must release it with
+ * {@link EvalContext#popFrames(int)}.
+ */
+private static Object[] frame ( Closure closure, int argc, EvalContext ctx )
+{
+  Lambda proc = closure.lambda;
+  if (!proc.reuseFrame)
+    return frame( closure, argc );
+  if (proc.paramCount != argc || proc.haveRest || proc.envSize == 0)
+    return null;
+
+  Object[] callEnv = ctx.pushFrame( proc.envSize );
+  callEnv[Scope.PARENT_SLOT] = closure.parentEnv;
+  for ( int i = Scope.RESERVED_SLOTS+argc, end = callEnv.length; i < end; ++i )
+    callEnv[i] = Unspec.UNSPEC;
+  return callEnv;
+}
+
+/**
+ * The general case of building an environment, with a "rest" parameter and error checking.
+ */
+private static Object[] frame ( AST site, Closure closure, Object[] args ) throws EvalError
+{
+  Lambda proc = closure.lambda;
+  if (args.length < proc.paramCount || args.length > proc.paramCount && !proc.haveRest)
+    throw new EvalError( site, String.format("Call to %s expects %s%d parameters",
+                                             proc, proc.haveRest?"at least ":"", proc.paramCount) );
+  if (proc.envSize == 0)
+    return null;
+
+  Object[] callEnv;
+  if (proc.spreadRest)
+  {
+    callEnv = new Object[Scope.RESERVED_SLOTS+args.length];
+    callEnv[Scope.PARENT_SLOT] = closure.parentEnv;
+    System.arraycopy( args, 0, callEnv, Scope.RESERVED_SLOTS, args.length );
+    return callEnv;
+  }
+
+  callEnv = new Object[proc.envSize];
+  callEnv[Scope.PARENT_SLOT] = closure.parentEnv;
+  int i;
+  for ( i = 0; i < proc.paramCount; ++i )
+    callEnv[Scope.RESERVED_SLOTS+i] = args[i];
+  if (proc.haveRest)
+  {
+    Pair rest = Pair.NULL;
+    for ( int j = args.length-1; j >= i; --j )
+      rest = new Pair( args[j], rest );
+    callEnv[Scope.RESERVED_SLOTS+i] = rest;
+    ++i;
+  }
+  for ( i += Scope.RESERVED_SLOTS; i < callEnv.length; ++i )
+    callEnv[i] = Unspec.UNSPEC;
+  return callEnv;
+}
+
+private static Object invoke ( AST site, Closure closure, Object[] callEnv, EvalContext ctx )
+        throws SchemeError
+{
+  ctx.poll( site );
+  Lambda proc = closure.lambda;
+  if (proc instanceof JavaProcedure)
+    return ((JavaProcedure)proc).apply( callEnv );
+  else
+    return proc.body.evalValue( callEnv, ctx );
+}
+
+private AST enter ( AST site, Closure closure, Object[] callEnv, EvalContext ctx )
+        throws SchemeError
+{
+  ctx.poll( site );
+  ctx.outEnv = callEnv;
+  Lambda proc = closure.lambda;
+  if (proc instanceof JavaProcedure)
+    return ((JavaProcedure)proc).cont;
+  return reenter( proc.body );
+}
+
+/** Replace a continuation which is this body by {@link #m_reentry} */
+final AST reenter ( AST next )
+{
+  return next != this ? next : m_reentry;
+}
+
+static final Object call0 ( AST site, Object target, EvalContext ctx ) throws SchemeError
+{
+  int mark = ctx.frameMark();
+  try
+  {
+    Closure closure = closure( site, target );
+    Object[] callEnv = frame( closure, 0, ctx );
+    if (callEnv == null)
+      callEnv = frame( site, closure, new Object[0] );
+    return invoke( site, closure, callEnv, ctx );
+  }
+  catch (Exception e)
+  {
+    site.handleException( e );
+    return null; // unreachable
+  }
+  finally
+  {
+    ctx.popFrames( mark );
+  }
+}
+
+static final Object call1 ( AST site, Object target, Object a0, EvalContext ctx ) throws SchemeError
+{
+  int mark = ctx.frameMark();
+  try
+  {
+    Closure closure = closure( site, target );
+    Object[] callEnv = frame( closure, 1, ctx );
+    if (callEnv != null)
+      callEnv[Scope.RESERVED_SLOTS+0] = a0;
+    else
+      callEnv = frame( site, closure, new Object[]{ a0 } );
+    return invoke( site, closure, callEnv, ctx );
+  }
+  catch (Exception e)
+  {
+    site.handleException( e );
+    return null; // unreachable
+  }
+  finally
+  {
+    ctx.popFrames( mark );
+  }
+}
+
+static final Object call2 ( AST site, Object target, Object a0, Object a1, EvalContext ctx )
+        throws SchemeError
+{
+  int mark = ctx.frameMark();
+  try
+  {
+    Closure closure = closure( site, target );
+    Object[] callEnv = frame( closure, 2, ctx );
+    if (callEnv != null)
+    {
+      callEnv[Scope.RESERVED_SLOTS+0] = a0;
+      callEnv[Scope.RESERVED_SLOTS+1] = a1;
+    }
+    else
+      callEnv = frame( site, closure, new Object[]{ a0, a1 } );
+    return invoke( site, closure, callEnv, ctx );
+  }
+  catch (Exception e)
+  {
+    site.handleException( e );
+    return null; // unreachable
+  }
+  finally
+  {
+    ctx.popFrames( mark );
+  }
+}
+
+static final Object call3 ( AST site, Object target, Object a0, Object a1, Object a2,
+                            EvalContext ctx ) throws SchemeError
+{
+  int mark = ctx.frameMark();
+  try
+  {
+    Closure closure = closure( site, target );
+    Object[] callEnv = frame( closure, 3, ctx );
+    if (callEnv != null)
+    {
+      callEnv[Scope.RESERVED_SLOTS+0] = a0;
+      callEnv[Scope.RESERVED_SLOTS+1] = a1;
+      callEnv[Scope.RESERVED_SLOTS+2] = a2;
+    }
+    else
+      callEnv = frame( site, closure, new Object[]{ a0, a1, a2 } );
+    return invoke( site, closure, callEnv, ctx );
+  }
+  catch (Exception e)
+  {
+    site.handleException( e );
+    return null; // unreachable
+  }
+  finally
+  {
+    ctx.popFrames( mark );
+  }
+}
+
+static final Object call4 ( AST site, Object target, Object a0, Object a1, Object a2, Object a3,
+                            EvalContext ctx ) throws SchemeError
+{
+  int mark = ctx.frameMark();
+  try
+  {
+    Closure closure = closure( site, target );
+    Object[] callEnv = frame( closure, 4, ctx );
+    if (callEnv != null)
+    {
+      callEnv[Scope.RESERVED_SLOTS+0] = a0;
+      callEnv[Scope.RESERVED_SLOTS+1] = a1;
+      callEnv[Scope.RESERVED_SLOTS+2] = a2;
+      callEnv[Scope.RESERVED_SLOTS+3] = a3;
+    }
+    else
+      callEnv = frame( site, closure, new Object[]{ a0, a1, a2, a3 } );
+    return invoke( site, closure, callEnv, ctx );
+  }
+  catch (Exception e)
+  {
+    site.handleException( e );
+    return null; // unreachable
+  }
+  finally
+  {
+    ctx.popFrames( mark );
+  }
+}
+
+static final Object callv ( AST site, Object target, Object[] args, EvalContext ctx )
+        throws SchemeError
+{
+  try
+  {
+    Closure closure = closure( site, target );
+    return invoke( site, closure, frame( site, closure, args ), ctx );
+  }
+  catch (Exception e)
+  {
+    site.handleException( e );
+    return null; // unreachable
+  }
+}
+
+final AST tail0 ( AST site, Object target, EvalContext ctx ) throws SchemeError
+{
+  Closure closure = closure( site, target );
+  Object[] callEnv = frame( closure, 0 );
+  if (callEnv == null)
+    callEnv = frame( site, closure, new Object[0] );
+  return enter( site, closure, callEnv, ctx );
+}
+
+final AST tail1 ( AST site, Object target, Object a0, EvalContext ctx ) throws SchemeError
+{
+  Closure closure = closure( site, target );
+  Object[] callEnv = frame( closure, 1 );
+  if (callEnv != null)
+    callEnv[Scope.RESERVED_SLOTS+0] = a0;
+  else
+    callEnv = frame( site, closure, new Object[]{ a0 } );
+  return enter( site, closure, callEnv, ctx );
+}
+
+final AST tail2 ( AST site, Object target, Object a0, Object a1, EvalContext ctx )
+        throws SchemeError
+{
+  Closure closure = closure( site, target );
+  Object[] callEnv = frame( closure, 2 );
+  if (callEnv != null)
+  {
+    callEnv[Scope.RESERVED_SLOTS+0] = a0;
+    callEnv[Scope.RESERVED_SLOTS+1] = a1;
+  }
+  else
+    callEnv = frame( site, closure, new Object[]{ a0, a1 } );
+  return enter( site, closure, callEnv, ctx );
+}
+
+final AST tail3 ( AST site, Object target, Object a0, Object a1, Object a2, EvalContext ctx )
+        throws SchemeError
+{
+  Closure closure = closure( site, target );
+  Object[] callEnv = frame( closure, 3 );
+  if (callEnv != null)
+  {
+    callEnv[Scope.RESERVED_SLOTS+0] = a0;
+    callEnv[Scope.RESERVED_SLOTS+1] = a1;
+    callEnv[Scope.RESERVED_SLOTS+2] = a2;
+  }
+  else
+    callEnv = frame( site, closure, new Object[]{ a0, a1, a2 } );
+  return enter( site, closure, callEnv, ctx );
+}
+
+final AST tail4 ( AST site, Object target, Object a0, Object a1, Object a2, Object a3,
+                  EvalContext ctx ) throws SchemeError
+{
+  Closure closure = closure( site, target );
+  Object[] callEnv = frame( closure, 4 );
+  if (callEnv != null)
+  {
+    callEnv[Scope.RESERVED_SLOTS+0] = a0;
+    callEnv[Scope.RESERVED_SLOTS+1] = a1;
+    callEnv[Scope.RESERVED_SLOTS+2] = a2;
+    callEnv[Scope.RESERVED_SLOTS+3] = a3;
+  }
+  else
+    callEnv = frame( site, closure, new Object[]{ a0, a1, a2, a3 } );
+  return enter( site, closure, callEnv, ctx );
+}
+
+final AST tailv ( AST site, Object target, Object[] args, EvalContext ctx ) throws SchemeError
+{
+  Closure closure = closure( site, target );
+  return enter( site, closure, frame( site, closure, args ), ctx );
+}
+
+} // class
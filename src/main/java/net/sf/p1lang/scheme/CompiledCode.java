@@ -27,6 +27,33 @@ public Object eval () throws SchemeError
   return eval( m_env );
 }
 
+/**
+ * Evaluate within the limits of a budget.
+ * @throws BudgetExceededError if the evaluation exceeds the budget
+ */
+public Object eval ( Budget budget ) throws SchemeError
+{
+  return eval( budget, null );
+}
+
+Object eval ( Budget budget, Scheduler.Task task ) throws SchemeError
+{
+  if (m_code == null)
+    return Unspec.UNSPEC;
+  if (budget != null)
+    budget.start();
+  EvalContext ctx = new EvalContext( m_interp, m_env, budget, task );
+  try
+  {
+    return m_code.evalValue( m_env, ctx );
+  }
+  finally
+  {
+    // The last slice is usually a partial one
+    ctx.settleSlice();
+  }
+}
+
 Object eval ( Object[] env ) throws SchemeError
 {
   return m_code != null ? m_code.evalValue( env, new EvalContext(m_interp, env) ) : Unspec.UNSPEC;
@@ -48,7 +48,7 @@ final class Compiler
 {
 private final SchemeInterpreter m_interp;
 private final IErrorReporter m_errors;
-private final HashMap<Symbol, BuiltinFactory> m_builtins;
+private final HashMap<Symbol, BuiltinFactory<?>> m_builtins;
 private final TopLevelScope m_topLevelScope;
 
 /**
@@ -56,6 +56,8 @@ private final TopLevelScope m_topLevelScope;
  * a trampoline instruction at the top of the instruction chain.
  */
 private boolean m_haveTailCall;
+/** The changes made by the optimizations to the lambda being compiled */
+private final ArrayList<String> m_log = new ArrayList<String>();
 
 private static enum BodyLevel
 {
@@ -74,7 +76,7 @@ private static enum BodyLevel
  */
 Compiler ( final SchemeInterpreter interp,
            final IErrorReporter errors,
-           final HashMap<Symbol, BuiltinFactory> builtins,
+           final HashMap<Symbol, BuiltinFactory<?>> builtins,
            final TopLevelScope topLevelScope
 )
         throws IllegalArgumentException
@@ -96,6 +98,15 @@ private Compiler ( Compiler parent )
 final CompiledCode compileTopLevel ( Pair list, boolean needResult ) throws SchemeUncheckedError
 {
   AST body = compileBody( true, BodyLevel.LIBRARY, m_topLevelScope, list, needResult, false );
+  if (m_interp.m_options.optimize)
+    body = Optimizer.optimize( body, null );
+  if (m_interp.m_options.vm)
+  {
+    if (body != null)
+      body = RegisterVM.compile( body );
+  }
+  else if (m_interp.m_options.specialize)
+    body = Specializer.specialize( body );
   return new CompiledCode( m_interp, body , m_topLevelScope.getBindingCount(), m_topLevelScope.m_env );
 }
 
@@ -110,7 +121,7 @@ private final AST compileLambda ( Scope scope, Pair pair, boolean needResult, bo
     pair = cdr(pair); // skip the lambda keyword
     if (pair.getCdr() == Pair.NULL)
       return parseError( pair, "Lambda without a body" );
-    return compileLambda(scope, error, pair.getCar(), cdr(pair), needResult, tail, null );
+    return compileLambda(scope, error, pair.getCar(), cdr(pair), needResult, tail, null, null );
   }
   catch (InvalidList invalidList)
   {
@@ -120,27 +131,295 @@ private final AST compileLambda ( Scope scope, Pair pair, boolean needResult, bo
 
 /**
  * This method must always be executed in a new compiler environment
+ * @param self the variable holding the procedure of a named let, whose self tail calls can be
+ *   converted to a loop; null otherwise
  */
 private final AST compileLambda ( Scope scope, Pair errorp, Object formalParams,
                                     Pair body, boolean needResult, boolean tail,
-                                    Symbol name )
+                                    Symbol name, VarBinding self )
 {
   if (body == Pair.NULL)
     return parseError( errorp, "Lambda without a body" );
 
+  Lambda proc;
+  try
+  {
+    ArrayList<Clause> clauses = optionalClauses( formalParams );
+    if (clauses == null && m_interp.m_options.lazy && scope == m_interp.m_topLevelScope &&
+        !m_interp.m_topLevelScope.isShared())
+    {
+      if ( (proc = lazyProc( scope, errorp, formalParams, body, name )) == null)
+        return AST.Lit.LIT_UNSPEC;
+      return needResult ? new AST.MakeClosure( c(errorp), proc ) : null;
+    }
+    else if (clauses == null)
+      proc = compileProc( scope, errorp, formalParams, null, body, name, self );
+    else if (clauses.size() == 1) // just #!rest
+      proc = compileProc( scope, errorp, clauses.get( 0 ).formals, null, body, name, self );
+    else
+      proc = makeCaseLambda( errorp, name, compileClauses( scope, errorp, clauses, body, name ) );
+  }
+  catch (InvalidList invalidList)
+  {
+    proc = null;
+  }
+  if (proc == null)
+    return AST.Lit.LIT_UNSPEC;
+
+  if (m_interp.m_options.inlineSize > 0 && scope.envLevel == 0 && proc.clauses == null)
+    proc.inlineBody = m_interp.m_inliner.inlineBody( proc );
+  finishLambdas( scope, proc );
+
+  // Q: Why didn't we check needResult before compiling the body
+  // A: Even if we don't need it, we should still make sure it is valid
+  return needResult ? new AST.MakeClosure( c(errorp), proc ) : null;
+}
+
+/**
+ * Compile the parameters of a top level lambda, leaving the body to be compiled on the first
+ * call (see {@link LazyBody}).
+ * @return the lambda, or null on error
+ */
+private final Lambda lazyProc ( Scope scope, Pair errorp, Object formalParams, Pair body,
+                                Symbol name )
+{
   Lambda proc = new Lambda();
   proc.name = name;
 
   Scope lambdaScope = new Scope(scope);
   if (!checkParams(lambdaScope, errorp, proc, formalParams ))
-    return AST.Lit.LIT_UNSPEC;
+    return null;
 
-  proc.body = compileBody( true, BodyLevel.LAMBDA, lambdaScope, body, true, true );
   proc.envSize = lambdaScope.getBindingCount();
+  proc.body = new LazyBody( c(errorp), proc, lambdaScope, body, m_builtins, m_topLevelScope );
+  return proc;
+}
 
-  // Q: Why didn't we check needResult before compiling the body
-  // A: Even if we don't need it, we should still make sure it is valid
-  return needResult ? new AST.MakeClosure( c(errorp), proc ) : null;
+/**
+ * Compile the body of a lambda created by {@link #lazyProc}. The lambda is modified only if
+ * there were no errors.
+ * This method must always be executed in a new compiler environment
+ */
+final void compileLazyBody ( Lambda proc, Scope lambdaScope, Pair body )
+{
+  AST res = compileBody( true, BodyLevel.LAMBDA, lambdaScope, body, true, true );
+  if (m_errors.getErrorCount() > 0)
+    return;
+
+  proc.body = res;
+  finishProc( proc, lambdaScope, null );
+  if (m_interp.m_options.inlineSize > 0)
+    proc.inlineBody = m_interp.m_inliner.inlineBody( proc );
+  finishLambdas( m_topLevelScope, proc );
+}
+
+/**
+ * Compile the parameters and the body of a lambda, or of a clause of a case-lambda.
+ * This method must always be executed in a new compiler environment
+ *
+ * @param defaults optional parameters which weren't passed: {@code (symbol . value)}, where
+ *   value is either a literal or a list whose car is the expression. They are bound in order
+ *   after the parameters, like with {@code let*}. May be null.
+ * @return the lambda, or null on error
+ */
+private final Lambda compileProc ( Scope scope, Pair errorp, Object formalParams,
+                                   List<Pair> defaults, Pair body, Symbol name, VarBinding self )
+        throws InvalidList
+{
+  Lambda proc = new Lambda();
+  proc.name = name;
+
+  Scope lambdaScope = new Scope(scope);
+  if (!checkParams(lambdaScope, errorp, proc, formalParams ))
+    return null;
+
+  if (defaults == null || defaults.isEmpty())
+    proc.body = compileBody( true, BodyLevel.LAMBDA, lambdaScope, body, true, true );
+  else
+  {
+    List<AST> res = newBlock();
+    Scope s = lambdaScope;
+    for ( Pair d : defaults )
+    {
+      AST value = d.getCdr() instanceof AST ?
+              (AST) d.getCdr() : compileValue( s, (Pair) d.getCdr(), true, false );
+      s = new Scope( s, true );
+      res.add( new AST.SetBang( c(d), s, s.bindVar( (Symbol) d.getCar() ), value ) );
+    }
+    proc.body = appendInstr( res, compileBody( true, BodyLevel.LAMBDA, s, body, true, true ) );
+  }
+  finishProc( proc, lambdaScope, self );
+  return proc;
+}
+
+/**
+ * Optimize the body of a lambda compiled in lambdaScope and set its environment size
+ */
+private final void finishProc ( Lambda proc, Scope lambdaScope, VarBinding self )
+{
+  if (m_interp.m_options.optimize)
+    proc.body = Optimizer.optimize( proc.body, m_log );
+  if (m_interp.m_options.loops && self != null && !frameEscapes( proc.body ))
+  {
+    AST loop = LoopConverter.convert( proc, self );
+    if (loop != null)
+      proc.body = loop;
+  }
+  proc.envSize = lambdaScope.getBindingCount();
+  if (!m_log.isEmpty())
+    proc.optimizerLog = m_log.toArray( new String[m_log.size()] );
+}
+
+/**
+ * Compile the clauses of a case-lambda with a common body, each in a new compiler environment
+ * @return the clauses, or null on error
+ */
+private final Lambda[] compileClauses ( Scope scope, Pair errorp, List<Clause> clauses, Pair body,
+                                        Symbol name ) throws InvalidList
+{
+  Lambda[] res = new Lambda[clauses.size()];
+  int i = 0;
+  for ( Clause clause : clauses )
+    if ( (res[i++] = new Compiler(this).compileProc( scope, errorp, clause.formals,
+                                                     clause.defaults, body, name, null )) == null)
+      return null;
+  return res;
+}
+
+private final Lambda makeCaseLambda ( Pair errorp, Symbol name, Lambda[] clauses )
+{
+  return clauses != null ? CaseLambda.make( c(errorp), name, clauses ) : null;
+}
+
+/**
+ * {@code (case-lambda (formals body ...) ...)}. A clause with {@code #!optional} parameters
+ * contributes a clause for every number of optional parameters.
+ */
+private final AST compileCaseLambda ( Scope scope, Pair pair, boolean needResult )
+{
+  try
+  {
+    ArrayList<Lambda> clauses = new ArrayList<Lambda>();
+    for ( Pair t = cdr(pair); t != Pair.NULL; t = cdr(t) )
+    {
+      Pair clause = carPair( t );
+      if (clause == Pair.NULL || cdr(clause) == Pair.NULL)
+        return parseError( t, "Invalid case-lambda clause" );
+      ArrayList<Clause> expanded = optionalClauses( clause.getCar() );
+      if (expanded == null)
+      {
+        expanded = new ArrayList<Clause>();
+        expanded.add( new Clause( clause.getCar(), null ) );
+      }
+      Lambda[] compiled = compileClauses( scope, clause, expanded, cdr(clause), null );
+      if (compiled == null)
+        return AST.Lit.LIT_UNSPEC;
+      clauses.addAll( Arrays.asList( compiled ) );
+    }
+
+    Lambda proc = CaseLambda.make( c(pair), null, clauses.toArray( new Lambda[clauses.size()] ) );
+    finishLambdas( scope, proc );
+    return needResult ? new AST.MakeClosure( c(pair), proc ) : null;
+  }
+  catch (InvalidList invalidList)
+  {
+    return AST.Lit.LIT_UNSPEC;
+  }
+}
+
+/**
+ * Apply the optional passes to a lambda compiled in scope, or to the clauses of a case-lambda
+ */
+private final void finishLambdas ( Scope scope, Lambda proc )
+{
+  if (m_interp.m_options.flatClosures)
+  {
+    // Closure conversion needs the whole tree, so nested lambdas are finished here too
+    if (scope.envLevel == 0)
+      for ( Lambda l : ClosureConverter.convert( proc ) )
+        finishLambda( l );
+  }
+  else if (proc.clauses != null)
+  {
+    for ( Lambda clause : proc.clauses )
+      finishLambda( clause );
+  }
+  else
+    finishLambda( proc );
+}
+
+/**
+ * The optional passes over a compiled lambda body
+ */
+private final void finishLambda ( Lambda proc )
+{
+  if (proc.clauses != null) // the dispatcher of a case-lambda
+    return;
+  proc.reuseFrame = m_interp.m_options.reuseFrames && !frameEscapes( proc.body );
+  if (m_interp.m_options.vm)
+  {
+    proc.body = RegisterVM.compile( proc.body );
+    return;
+  }
+  if (m_interp.m_options.specialize)
+    proc.body = Specializer.specialize( proc.body );
+  if (m_interp.m_options.jitThreshold > 0)
+    proc.body = new BytecodeCompiler.Counter( proc, proc.body, m_interp.m_options.jitThreshold );
+}
+
+/**
+ * Escape analysis of a lambda environment. The environment can outlive the invocation only if
+ * it becomes the parent of a closure: a nested lambda (unless it is a flat closure) or the
+ * continuation procedure created by call/cc. We are conservative about instructions we don't
+ * know.
+ */
+private static boolean frameEscapes ( AST ast )
+{
+  if (ast instanceof AST.Lit || ast instanceof AST.Var)
+    return false;
+  else if (ast instanceof AST.SetBang)
+    return frameEscapes( ((AST.SetBang) ast).value );
+  else if (ast instanceof AST.If)
+  {
+    AST.If i = (AST.If) ast;
+    return frameEscapes( i.m_evalCond ) || frameEscapes( i.m_evalThen ) ||
+           frameEscapes( i.m_evalElse );
+  }
+  else if (ast instanceof AST.Case)
+    return frameEscapes( ((AST.Case) ast).m_key ) || frameEscapes( ((AST.Case) ast).m_bodies );
+  else if (ast instanceof AST.Begin)
+    return frameEscapes( ((AST.Begin) ast).m_body );
+  else if (ast instanceof AST.MakeVector)
+    return frameEscapes( ((AST.MakeVector) ast).values );
+  else if (ast instanceof AST.Trampoline)
+    return frameEscapes( ((AST.Trampoline) ast).m_ast );
+  else if (ast instanceof AST.Loop)
+    return frameEscapes( ((AST.Loop) ast).m_body );
+  else if (ast instanceof AST.LoopJump)
+    return frameEscapes( ((AST.LoopJump) ast).m_values );
+  else if (ast instanceof AST.Builtin && !(ast instanceof AST.CallCC))
+    return frameEscapes( ((AST.Builtin) ast).v );
+  // A flat closure copies values from the environment instead of keeping it
+  else if (ast instanceof ClosureConverter.FlatClosure)
+    return frameEscapes( ((ClosureConverter.FlatClosure) ast).m_captures );
+  else if (ast instanceof ClosureConverter.EnvRef)
+    return ((ClosureConverter.EnvRef) ast).envIndex == 0;
+  else if (ast instanceof ClosureConverter.BoxVar)
+    return false;
+  else if (ast instanceof ClosureConverter.BoxSetBang)
+    return frameEscapes( ((ClosureConverter.BoxSetBang) ast).value );
+  else if (ast instanceof ClosureConverter.Boxes)
+    return frameEscapes( ((ClosureConverter.Boxes) ast).m_body );
+  else
+    return true;
+}
+
+private static boolean frameEscapes ( AST[] v )
+{
+  for ( AST a : v )
+    if (frameEscapes( a ))
+      return true;
+  return false;
 }
 
 private final AST makeBody ( List<AST> block, boolean needResult )
@@ -202,6 +481,113 @@ private final boolean checkParams ( Scope lambdaScope, Pair error, Lambda proc,
   }
 }
 
+/**
+ * A clause of a lambda with optional parameters, see {@link #optionalClauses}
+ */
+private static final class Clause
+{
+  final Object formals;
+  /** The optional parameters which weren't passed, see {@link #compileProc} */
+  final List<Pair> defaults;
+
+  Clause ( Object formals, List<Pair> defaults )
+  {
+    this.formals = formals;
+    this.defaults = defaults;
+  }
+}
+
+/**
+ * Split DSSSL style formal parameters {@code (a ... #!optional b (c default) ... #!rest r)}
+ * into the clauses of an equivalent case-lambda, one for every number of optional parameters
+ * passed. The missing optional parameters are bound to their defaults (#f if there is none)
+ * and a missing "rest" parameter to the empty list.
+ *
+ * @return the clauses, or null if there are no DSSSL keywords
+ */
+private final ArrayList<Clause> optionalClauses ( Object formalParams ) throws InvalidList
+{
+  boolean found = false;
+  for ( Object t = formalParams; t instanceof Pair && t != Pair.NULL; t = ((Pair) t).getCdr() )
+    if (keyword( ((Pair) t).getCar() ) != SymCode.NONE)
+      found = true;
+  if (!found)
+    return null;
+
+  ArrayList<Pair> required = new ArrayList<Pair>();
+  ArrayList<Pair> optional = new ArrayList<Pair>(); // (symbol . value)
+  Object rest = Pair.NULL;
+  boolean inOptional = false;
+  Object t;
+  for ( t = formalParams; t instanceof Pair && t != Pair.NULL; t = ((Pair) t).getCdr() )
+  {
+    Pair p = (Pair) t;
+    SymCode code = keyword( p.getCar() );
+    if (code == SymCode.OPTIONAL)
+    {
+      if (inOptional)
+      {
+        parseError( p, "Duplicated #!optional" );
+        throw new InvalidList();
+      }
+      inOptional = true;
+    }
+    else if (code == SymCode.REST)
+    {
+      Pair r = ncdr( p );
+      needNullCdr( r );
+      rest = carSymbol( r );
+      t = Pair.NULL;
+      break;
+    }
+    else if (!inOptional)
+      required.add( p );
+    else if (p.getCar() instanceof Pair)
+    {
+      Pair d = carPair( p );
+      Pair valuep = ncdr( d );
+      needNullCdr( valuep );
+      optional.add( new PositionedPair( carSymbol( d ), valuep ).setCoords( d ) );
+    }
+    else
+      optional.add( new PositionedPair( carSymbol( p ), new AST.Lit( c(p), false ) ).setCoords( p ) );
+  }
+  if (t != Pair.NULL)
+    rest = t;
+
+  ArrayList<Clause> res = new ArrayList<Clause>();
+  for ( int k = 0, n = optional.size(); k <= n; ++k )
+  {
+    List<Pair> defaults = new ArrayList<Pair>( optional.subList( k, n ) );
+    Object formals;
+    if (k == n)
+      formals = rest;
+    else
+    {
+      formals = Pair.NULL;
+      if (rest != Pair.NULL)
+        defaults.add( new PositionedPair( rest, AST.Lit.LIT_NULL ).setCoords( optional.get( n-1 ) ) );
+    }
+    for ( int i = k - 1; i >= 0; --i )
+      formals = new PositionedPair( optional.get( i ).getCar(), formals ).setCoords( optional.get( i ) );
+    for ( int i = required.size() - 1; i >= 0; --i )
+      formals = new PositionedPair( required.get( i ).getCar(), formals ).setCoords( required.get( i ) );
+    res.add( new Clause( formals, defaults ) );
+  }
+  return res;
+}
+
+private static SymCode keyword ( Object o )
+{
+  if (o instanceof Symbol)
+  {
+    SymCode code = ((Symbol) o).code;
+    if (code == SymCode.OPTIONAL || code == SymCode.REST)
+      return code;
+  }
+  return SymCode.NONE;
+}
+
 /**
  *
  * @param decl true if still in decl context (declarations are allowed)
@@ -350,6 +736,12 @@ private Object expandDatum ( Scope scope, Pair body, Object datum )
   Object d = datum;
   for(;;)
   {
+    // An unbound symbol may be a macro of a library which hasn't been loaded yet
+    Object head = datum instanceof Pair && datum != Pair.NULL ? ((Pair) datum).getCar() : datum;
+    if (head instanceof Symbol && scope.lookupAny( (Symbol) head ) == null &&
+        autoload( body, (Symbol) head ))
+      continue;
+
     // Check for an identifier macro
     MacroBinding mb;
 
@@ -368,6 +760,13 @@ private Object expandDatum ( Scope scope, Pair body, Object datum )
           mb.combination != null)
       {
         datum = expandCombinationMacro( scope, pair, mb.combination );
+        // Errors in the expansion are reported at the macro invocation
+        if (datum instanceof Pair && datum != Pair.NULL && !(datum instanceof PositionedPair) &&
+            pair instanceof PositionedPair)
+        {
+          Pair exp = (Pair) datum;
+          datum = new PositionedPair( exp.getCar(), exp.getCdr() ).setCoords( pair );
+        }
         continue;
       }
     }
@@ -513,7 +912,8 @@ private final AST compileValue ( boolean decl, Scope scope, Pair next, boolean n
     {
       Symbol sym = (Symbol)datum;
       VarBinding vb;
-      if ( (vb = scope.lookupVar(sym)) == null)
+      if ( (vb = scope.lookupVar(sym)) == null &&
+           (!autoload( next, sym ) || (vb = scope.lookupVar(sym)) == null))
         return parseError( next, "Unbound variable %s", sym );
       return needResult ? new AST.Var( c(next), scope, vb ) : null;
     }
@@ -545,9 +945,13 @@ private final AST compileValue ( boolean decl, Scope scope, Pair next, boolean n
         return compileBody( false, BodyLevel.INNER, scope, cdr(pair), needResult, tail );
       case IF:
         return compileIf(scope, pair, needResult, tail );
+      case CASE:
+        return compileCase(scope, pair, needResult, tail );
       case LAMBDA:
         // Note: a lambda must be compiled in a separate compiler environment
         return new Compiler(this).compileLambda(scope, pair, needResult, tail );
+      case CASE_LAMBDA:
+        return compileCaseLambda( scope, pair, needResult );
 
       case BUILTIN:
         return compileBuiltin( scope, pair, needResult, tail );
@@ -558,6 +962,8 @@ private final AST compileValue ( boolean decl, Scope scope, Pair next, boolean n
       case LETREC:
       case LETREC_STAR:
         return compileLetrecStar( scope, pair, needResult, tail );
+      case LET_VALUES:
+        return compileLetValues( scope, pair, needResult, tail );
       case QUOTE:
         return compileQuote( scope, pair, needResult, tail );
 
@@ -577,6 +983,10 @@ private final AST compileValue ( boolean decl, Scope scope, Pair next, boolean n
       case UNQUOTE_SPLICING:
 */
 
+      case OPTIONAL:
+      case REST:
+        return parseError( pair, "Invalid syntax" );
+
       case QUASISYNTAX:
       case SYNTAX:
       case UNSYNTAX:
@@ -630,7 +1040,7 @@ private void defineMacro ( Scope scope, Pair next ) throws InvalidList
     }
 
     value = new Compiler( m_interp, m_errors, m_builtins, m_topLevelScope.getMacroScope() )
-                .compileLambda( m_topLevelScope.getMacroScope(), pair, inner.getCdr(), body, true, false, sym );
+                .compileLambda( m_topLevelScope.getMacroScope(), pair, inner.getCdr(), body, true, false, sym, null );
   }
   else
   {
@@ -722,6 +1132,53 @@ private AST compileIf ( Scope scope, Pair pair, boolean needResult, boolean tail
   return new AST.If( c(pair), condI, thenI, elseI );
 }
 
+/**
+ * (case key ((datum ...) body ...) ... (else body ...))
+ */
+private AST compileCase ( Scope scope, Pair pair, boolean needResult, boolean tail )
+        throws InvalidList
+{
+  Pair key = ncdr(pair);
+  Pair clauses = cdr(key);
+  AST keyI = compileValue( scope, key, true, false );
+  if (clauses == Pair.NULL)
+    return keyI; // evaluate the key for its side effects only
+
+  ArrayList<Object[]> datums = new ArrayList<Object[]>();
+  ArrayList<AST> bodies = new ArrayList<AST>();
+  AST elseI = AST.Lit.LIT_UNSPEC;
+  for ( ; clauses != Pair.NULL; clauses = cdr(clauses) )
+  {
+    if (!(clauses.getCar() instanceof Pair) || clauses.getCar() == Pair.NULL)
+      return parseError( clauses, "(case...): clause expected" );
+    Pair clause = (Pair) clauses.getCar();
+    Object datumList = clause.getCar();
+    AST body = compileBody( false, BodyLevel.INNER, scope, cdr(clause), true, tail );
+    if (datumList instanceof Symbol && ((Symbol) datumList).name.equals( "else" ))
+    {
+      if (cdr(clauses) != Pair.NULL)
+        return parseError( clause, "(case...): else must be the last clause" );
+      elseI = body;
+    }
+    else
+    {
+      ArrayList<Object> list = new ArrayList<Object>();
+      for ( Object p = datumList; p != Pair.NULL; p = ((Pair) p).getCdr() )
+      {
+        if (!(p instanceof Pair))
+          return parseError( clause, "(case...): datum list expected" );
+        list.add( ((Pair) p).getCar() );
+      }
+      datums.add( list.toArray() );
+      bodies.add( body );
+    }
+  }
+  bodies.add( elseI );
+
+  return new AST.Case( c(pair), keyI, new CaseTable( datums.toArray( new Object[datums.size()][] ) ),
+                       bodies.toArray( new AST[bodies.size()] ) );
+}
+
 private AST compileCall ( Scope scope, Pair pair, boolean needResult, boolean tail )
         throws InvalidList
 {
@@ -741,7 +1198,24 @@ private AST compileCall ( Scope scope, Pair pair, boolean needResult, boolean ta
   if (tail)
     m_haveTailCall = true;
 
-  return new AST.Apply( c(pair), paramList.toArray(new AST[paramList.size()]) );
+  AST[] values = paramList.toArray(new AST[paramList.size()]);
+  if (m_interp.m_options.inlineSize > 0 && scope.envLevel > 0 && values[0] instanceof AST.Var &&
+      ((AST.Var) values[0]).envIndex == scope.envLevel)
+  {
+    AST res = m_interp.m_inliner.inline( scope, (AST.Var) values[0], values, c(pair) );
+    if (res != null)
+    {
+      m_log.add( Optimizer.logEntry( "inlined " + ((AST.Var) values[0]).name, res ) );
+      return res;
+    }
+  }
+  // Calls to top level procedures get an inline cache
+  if (m_interp.m_options.inlineCaches && values[0] instanceof AST.Var &&
+      ((AST.Var) values[0]).envIndex == scope.envLevel)
+  {
+    return new CachedApply( c(pair), values, m_interp.m_cacheStats );
+  }
+  return new AST.Apply( c(pair), values );
 }
 
 private AST compileBuiltin ( Scope scope, Pair pair, boolean needResult, boolean tail )
@@ -750,7 +1224,7 @@ private AST compileBuiltin ( Scope scope, Pair pair, boolean needResult, boolean
   Pair symp = ncdr( pair );
   Symbol sym = carSymbol( symp );
 
-  BuiltinFactory factory;
+  BuiltinFactory<?> factory;
   if ( (factory = m_builtins.get( sym )) == null)
     return parseError( symp, "%s is not a builtin",sym );
 
@@ -796,8 +1270,11 @@ private AST compileSetbang ( Scope scope, Pair next, boolean needResult, boolean
   }
 
   VarBinding vb;
-  if ( (vb = scope.lookupVar( sym )) == null)
+  if ( (vb = scope.lookupVar( sym )) == null &&
+       (!autoload( symp, sym ) || (vb = scope.lookupVar( sym )) == null))
     return parseError( symp, "Unbound variable %s in set!", sym );
+  if (!m_interp.m_inliner.assign( vb ))
+    return parseError( symp, "Can't assign %s: it has been inlined in a sealed top level", sym );
 
   return new AST.SetBang( c(next), scope, vb, compileValue(scope, valp, true, false ) );
 }
@@ -859,7 +1336,7 @@ private AST compileLet ( Scope scope, Pair next, boolean needResult, boolean tai
       formalParams = new PositionedPair(s_cv.getCar(), formalParams ).setCoords( s_cv );
     }
 
-    AST mkLambda = new Compiler(this).compileLambda( scope, next, formalParams, body, true, false, name );
+    AST mkLambda = new Compiler(this).compileLambda( scope, next, formalParams, body, true, false, name, lambdaBinding );
     res.add( new AST.SetBang( c(next), scope, lambdaBinding, mkLambda ) );
 
     cp[0] = new AST.Var( c(next), scope, lambdaBinding );
@@ -889,6 +1366,65 @@ private AST compileLet ( Scope scope, Pair next, boolean needResult, boolean tai
   }
 }
 
+/**
+ * {@code (let-values ((formals expr) ...) body)}. The values are checked by
+ * {@link MultipleValues.CheckValues} and assigned directly to the variables, so they are
+ * never collected in a list, unless formals has a rest variable.
+ */
+private AST compileLetValues ( Scope scope, Pair next, boolean needResult, boolean tail )
+        throws InvalidList
+{
+  Pair bindings = ncdr(next);
+  Pair body = cdr( bindings );
+
+  // Compile the expressions in the current scope
+  ArrayList<Pair> compiled = new ArrayList<Pair>(); // #( (formals . instr) ... )
+  for ( Pair curBinding = carPair(bindings); curBinding != Pair.NULL; curBinding = cdr(curBinding) )
+  {
+    Pair formalsp = carPair(curBinding);
+    Pair valuep = ncdr(formalsp);
+    needNullCdr( valuep );
+    AST cv = compileValue( scope, valuep, true, false );
+    compiled.add( new PositionedPair( formalsp.getCar(), cv ).setCoords( formalsp ) );
+  }
+
+  ArrayList<AST> res = new ArrayList<AST>();
+  scope = new Scope( scope, true );
+  for ( Pair f_cv : compiled )
+  {
+    AST cv = (AST) f_cv.getCdr();
+    ArrayList<AST> sets = new ArrayList<AST>();
+    int count = 0;
+    Object formals = f_cv.getCar();
+    for ( ; formals instanceof Pair && formals != Pair.NULL; formals = ((Pair) formals).getCdr() )
+    {
+      Pair p = (Pair) formals;
+      Symbol sym = carSymbol( p );
+      if (scope.localLookupVar( sym ) != null)
+        return parseError( p, "Duplicate binding for variable "+ sym );
+      AST ref = new MultipleValues.ValueRef( cv, new AST[]{ new AST.Lit( cv, count++ ) } );
+      sets.add( new AST.SetBang( cv, scope, scope.bindVar( sym ), ref ) );
+    }
+    boolean rest = formals != Pair.NULL;
+    if (rest)
+    {
+      if (!(formals instanceof Symbol))
+        return parseError( f_cv, "<rest> variable is not a symbol" );
+      Symbol sym = (Symbol) formals;
+      if (scope.localLookupVar( sym ) != null)
+        return parseError( f_cv, "Duplicate binding for variable "+ sym );
+      AST ref = new MultipleValues.ValueRest( cv, new AST[]{ new AST.Lit( cv, count ) } );
+      sets.add( new AST.SetBang( cv, scope, scope.bindVar( sym ), ref ) );
+    }
+
+    res.add( new MultipleValues.CheckValues( cv, new AST[]{
+      cv, new AST.Lit( cv, count ), new AST.Lit( cv, rest ) } ) );
+    res.addAll( sets );
+  }
+
+  return appendInstr( res, compileBody( true, BodyLevel.INNER, scope, body, needResult, tail ) );
+}
+
 // FIXME: check for init errors at compile time and runtime. For now we simply init the
 // variables with UNSPEC
 private AST compileLetrecStar ( Scope scope, Pair next, boolean needResult, boolean tail )
@@ -967,11 +1503,15 @@ private AST compileDefine ( Scope scope, Pair next, boolean needResult, boolean
     if (body == Pair.NULL)
       return parseError( pair, "Bad (define ()) form syntax: missing body" );
 
-    value = new Compiler(this).compileLambda(scope, pair, inner.getCdr(), body, true, false, sbinding.sym );
+    value = new Compiler(this).compileLambda(scope, pair, inner.getCdr(), body, true, false, sbinding.sym, null );
   }
   else
     return parseError( pair, "Bad (define) form syntax" );
 
+  if (!m_interp.m_inliner.define( sbinding ))
+    return parseError( pair, "Can't redefine %s: it has been inlined in a sealed top level",
+                       sbinding.sym );
+
   if (value != null)
     return new AST.SetBang( c(next), scope, sbinding, value );
   else if (needResult)
@@ -980,6 +1520,23 @@ private AST compileDefine ( Scope scope, Pair next, boolean needResult, boolean
     return null;
 }
 
+/**
+ * Load the library exporting an unbound symbol (see {@link SchemeInterpreter#autoload}).
+ * @return true if a library was loaded, so the symbol must be looked up again
+ */
+private final boolean autoload ( Pair loc, Symbol sym )
+{
+  try
+  {
+    return m_interp.autoload( sym );
+  }
+  catch (SchemeError e)
+  {
+    parseError( loc, "%s", e.getMessage() );
+    return false;
+  }
+}
+
 /**
  * If the parameter is a symbol and has not been redefined, returns its
  * {@link net.sf.p1lang.scheme.SymCode}
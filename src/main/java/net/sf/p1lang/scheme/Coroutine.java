@@ -0,0 +1,486 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A coroutine: a procedure running on its own thread, and so on its own stack, which transfers
+ * control back and forth with the thread resuming it. Only one of the two threads runs at any
+ * time, so Scheme code never observes any concurrency.
+ *
+ * <p>The instruction tree keeps its state on the Java stack, so a thread is the simplest way to
+ * suspend it in the middle of an evaluation. Where the JVM supports them (JDK 21 and later) we
+ * use virtual threads, which are cheap to create and to switch between; otherwise we fall back
+ * to daemon platform threads.
+ *
+ * <p>A suspended coroutine can be closed: its thread unwinds from the {@code yield}, running the
+ * "after" thunks of {@code dynamic-wind}, while the closer waits. The thread doesn't reference
+ * the coroutine, only its {@link State}, so a coroutine which is no longer reachable can be
+ * collected. Its thread is then unwound by the reaper thread, without running any Scheme code,
+ * since nobody waits for it. A coroutine whose procedure references the coroutine itself stays
+ * reachable from its thread, until it is resumed to completion or closed.
+ */
+final class Coroutine
+{
+private final State m_state;
+
+private static final Method s_ofVirtual;
+private static final Method s_unstarted;
+
+/** The coroutine threads which haven't finished */
+private static final AtomicInteger s_liveThreads = new AtomicInteger();
+
+/** Where the references to the collected coroutines are enqueued */
+private static final ReferenceQueue<Coroutine> s_queue = new ReferenceQueue<Coroutine>();
+/** Keeps the references of the started coroutines until they are enqueued or finish */
+private static final Set<Ref> s_refs = Collections.synchronizedSet( new HashSet<Ref>() );
+private static Thread s_reaper;
+
+static
+{
+  Method ofVirtual = null, unstarted = null;
+  try
+  {
+    ofVirtual = Thread.class.getMethod( "ofVirtual" );
+    unstarted = Class.forName( "java.lang.Thread$Builder" ).getMethod( "unstarted", Runnable.class );
+  }
+  catch (Exception e)
+  {
+    // No virtual threads
+    ofVirtual = null;
+  }
+  s_ofVirtual = ofVirtual;
+  s_unstarted = unstarted;
+}
+
+Coroutine ( Object proc )
+{
+  m_state = new State( proc );
+}
+
+/**
+ * Create a virtual thread if they are supported, otherwise a daemon platform thread
+ */
+static Thread newThread ( Runnable body, String name )
+{
+  if (s_ofVirtual != null)
+  {
+    try
+    {
+      return (Thread) s_unstarted.invoke( s_ofVirtual.invoke( null ), body );
+    }
+    catch (Exception ignored)
+    {}
+  }
+  Thread t = new Thread( body, name );
+  t.setDaemon( true );
+  return t;
+}
+
+/**
+ * Whether {@link #newThread} creates virtual threads
+ */
+static boolean virtualThreads ()
+{
+  return s_ofVirtual != null;
+}
+
+/**
+ * The number of coroutine threads which haven't finished
+ */
+static int liveThreads ()
+{
+  return s_liveThreads.get();
+}
+
+final boolean isDone ()
+{
+  return m_state.m_done;
+}
+
+/**
+ * Run the coroutine until it yields or finishes.
+ * @param value the parameter of the procedure on the first resume, otherwise the value returned
+ *   by {@code yield}
+ * @return the yielded value or the value of the procedure
+ */
+final Object resume ( final AST site, final EvalContext ctx, Object value ) throws SchemeError
+{
+  if (m_state.m_done)
+    throw new EvalError( site, "Resume of a finished coroutine" );
+  if (m_state.m_running)
+    throw new EvalError( site, "Resume of a running coroutine" );
+  if (m_state.m_thread == null)
+    m_state.start( this, site, ctx );
+  return m_state.transfer( ctx, value );
+}
+
+/**
+ * Finish a suspended coroutine by unwinding its thread from the {@code yield}. Closing a
+ * coroutine which has finished does nothing.
+ */
+final void close ( final AST site, final EvalContext ctx ) throws SchemeError
+{
+  if (m_state.m_done)
+    return;
+  if (m_state.m_running)
+    throw new EvalError( site, "Close of a running coroutine" );
+  if (m_state.m_thread == null)
+  {
+    m_state.m_done = true;
+    return;
+  }
+  m_state.m_closing = true;
+  m_state.transfer( ctx, Unspec.UNSPEC );
+}
+
+/**
+ * Unwinds the thread of a coroutine from {@link State#suspend}.
+ */
+@SuppressWarnings({"serial"})
+private static final class Close extends AST.ControlTransfer
+{
+}
+
+/**
+ * A reference to a started coroutine, enqueued when the coroutine is collected
+ */
+private static final class Ref extends WeakReference<Coroutine>
+{
+  final State state;
+
+  Ref ( Coroutine co, State state )
+  {
+    super( co, s_queue );
+    this.state = state;
+  }
+}
+
+/**
+ * Start the thread which unwinds the threads of the collected coroutines
+ */
+private static synchronized void startReaper ()
+{
+  if (s_reaper != null)
+    return;
+  s_reaper = new Thread( new Runnable() {
+    public void run ()
+    {
+      for(;;)
+      {
+        Ref ref;
+        try
+        {
+          ref = (Ref) s_queue.remove();
+        }
+        catch (InterruptedException e)
+        {
+          return;
+        }
+        if (s_refs.remove( ref ))
+          ref.state.abandon();
+      }
+    }
+  }, "coroutine-reaper" );
+  s_reaper.setDaemon( true );
+  s_reaper.start();
+}
+
+/**
+ * The state of a coroutine, shared by its thread and the threads resuming it.
+ */
+static final class State
+{
+  private final Object m_proc;
+  private Thread m_thread;
+  private Thread m_resumer;
+  private Ref m_ref;
+
+  /** The coroutine thread runs and the resumer waits */
+  private volatile boolean m_running;
+  private volatile boolean m_done;
+  /** The value transferred by the last switch */
+  private Object m_value;
+  /** The coroutine finished with an exception, which we rethrow in the resumer */
+  private Throwable m_error;
+  /** The suspended coroutine must unwind and finish */
+  private volatile boolean m_closing;
+  /** The coroutine has been collected, so its thread must unwind without running Scheme code */
+  private volatile boolean m_abandoned;
+
+  State ( Object proc )
+  {
+    m_proc = proc;
+  }
+
+  /**
+   * Create the thread of the coroutine. It starts running on the first {@link #transfer}.
+   */
+  private void start ( Coroutine co, final AST site, final EvalContext ctx )
+  {
+    // The coroutine is part of the same evaluation, so it shares its budget and its task
+    final EvalContext cctx = new EvalContext( ctx.interp, ctx.rootEnv, ctx.budget, ctx.task );
+    cctx.coroutine = this;
+    m_thread = newThread( new Runnable() {
+      public void run ()
+      {
+        Object result = null;
+        try
+        {
+          cctx.restartSlice();
+          result = cctx.call( site, m_proc, m_value );
+        }
+        catch (Close e)
+        {
+          // Closed or abandoned while suspended. The register VM leaves its dynamic-winds to
+          // us, like to a continuation
+          try
+          {
+            cctx.rewind( null );
+          }
+          catch (Throwable x)
+          {
+            m_error = x;
+          }
+        }
+        catch (Throwable e)
+        {
+          m_error = e;
+        }
+        cctx.settleSlice();
+        s_refs.remove( m_ref );
+        s_liveThreads.decrementAndGet();
+        m_done = true;
+        m_value = result;
+        switchTo( m_resumer );
+      }
+    }, "coroutine" );
+
+    m_ref = new Ref( co, this );
+    s_refs.add( m_ref );
+    startReaper();
+    s_liveThreads.incrementAndGet();
+  }
+
+  /**
+   * Switch to the coroutine thread and wait until it yields or finishes.
+   */
+  private Object transfer ( final EvalContext ctx, Object value ) throws SchemeError
+  {
+    m_value = value;
+    m_resumer = Thread.currentThread();
+    m_running = true;
+    ctx.settleSlice();
+    if (m_thread.getState() == Thread.State.NEW)
+      m_thread.start();
+    else
+      LockSupport.unpark( m_thread );
+
+    while (m_running)
+      LockSupport.park( this );
+    ctx.restartSlice();
+
+    if (m_error != null)
+    {
+      Throwable e = m_error;
+      m_error = null;
+      if (e instanceof SchemeError)
+        throw (SchemeError) e;
+      if (e instanceof RuntimeException)
+        throw (RuntimeException) e;
+      throw (Error) e;
+    }
+    return m_value;
+  }
+
+  /**
+   * Called in the coroutine thread: return value to the resumer and wait to be resumed again.
+   * @return the value passed to the next resume
+   */
+  final Object suspend ( final EvalContext ctx, Object value )
+  {
+    m_value = value;
+    ctx.settleSlice();
+    switchTo( m_resumer );
+    while (!m_running && !m_abandoned)
+      LockSupport.park( this );
+
+    if (m_abandoned)
+    {
+      // Nobody waits for us, so leave the extents of dynamic-wind without calling "after"
+      ctx.winders = null;
+      throw new Close();
+    }
+    if (m_closing)
+      throw new Close();
+    return m_value;
+  }
+
+  /**
+   * Called by the reaper when the coroutine has been collected
+   */
+  private void abandon ()
+  {
+    m_abandoned = true;
+    LockSupport.unpark( m_thread );
+  }
+
+  private void switchTo ( Thread resumer )
+  {
+    m_running = false;
+    LockSupport.unpark( resumer );
+  }
+}
+
+public String toString ()
+{
+  return "#<coroutine>";
+}
+
+/**
+ * {@code (make-coroutine proc)}. The procedure receives the value of the first resume.
+ */
+public static final class MakeCoroutine extends AST.Builtin
+{
+  private static final long serialVersionUID = 1L;
+  public static final int PARAM_COUNT=1;
+  public static final boolean HAVE_REST=false;
+
+  public MakeCoroutine ( final ISourceCoords coords, final AST[] values )
+  {
+    super(coords, values);
+  }
+
+  public Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    Object proc = v[0].evalValue( env, ctx );
+    if (!(proc instanceof Closure))
+      throw new EvalError( this, "make-coroutine with non-procedure parameter" );
+    return new Coroutine( proc );
+  }
+}
+
+/**
+ * {@code (resume coroutine value)}
+ */
+public static final class Resume extends AST.Builtin
+{
+  private static final long serialVersionUID = 1L;
+  public static final int PARAM_COUNT=2;
+  public static final boolean HAVE_REST=false;
+
+  public Resume ( final ISourceCoords coords, final AST[] values )
+  {
+    super(coords, values);
+  }
+
+  public Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    Object co = v[0].evalValue( env, ctx );
+    Object value = v[1].evalValue( env, ctx );
+    if (!(co instanceof Coroutine))
+      throw new EvalError( this, "Resume of a non-coroutine" );
+    return ((Coroutine) co).resume( this, ctx, value );
+  }
+}
+
+/**
+ * {@code (yield value)}: suspend the current coroutine
+ */
+public static final class Yield extends AST.Builtin
+{
+  private static final long serialVersionUID = 1L;
+  public static final int PARAM_COUNT=1;
+  public static final boolean HAVE_REST=false;
+
+  public Yield ( final ISourceCoords coords, final AST[] values )
+  {
+    super(coords, values);
+  }
+
+  public Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    Object value = v[0].evalValue( env, ctx );
+    if (ctx.coroutine == null)
+      throw new EvalError( this, "yield outside of a coroutine" );
+    Object res = ctx.coroutine.suspend( ctx, value );
+    ctx.restartSlice();
+    return res;
+  }
+}
+
+public static final class CoroutinePred extends AST.Builtin
+{
+  private static final long serialVersionUID = 1L;
+  public static final int PARAM_COUNT=1;
+  public static final boolean HAVE_REST=false;
+
+  public CoroutinePred ( final ISourceCoords coords, final AST[] values )
+  {
+    super(coords, values);
+  }
+
+  public Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    return v[0].evalValue( env, ctx ) instanceof Coroutine;
+  }
+}
+
+public static final class CoroutineDone extends AST.Builtin
+{
+  private static final long serialVersionUID = 1L;
+  public static final int PARAM_COUNT=1;
+  public static final boolean HAVE_REST=false;
+
+  public CoroutineDone ( final ISourceCoords coords, final AST[] values )
+  {
+    super(coords, values);
+  }
+
+  public Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    Object co = v[0].evalValue( env, ctx );
+    if (!(co instanceof Coroutine))
+      throw new EvalError( this, "coroutine-done? of a non-coroutine" );
+    return ((Coroutine) co).isDone();
+  }
+}
+
+/**
+ * {@code (coroutine-close coroutine)}
+ */
+public static final class CoroutineClose extends AST.Builtin
+{
+  private static final long serialVersionUID = 1L;
+  public static final int PARAM_COUNT=1;
+  public static final boolean HAVE_REST=false;
+
+  public CoroutineClose ( final ISourceCoords coords, final AST[] values )
+  {
+    super(coords, values);
+  }
+
+  public Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    Object co = v[0].evalValue( env, ctx );
+    if (!(co instanceof Coroutine))
+      throw new EvalError( this, "coroutine-close of a non-coroutine" );
+    ((Coroutine) co).close( this, ctx );
+    return Unspec.UNSPEC;
+  }
+}
+
+} // class
@@ -19,78 +19,256 @@ final class EvalContext
 {
 public final SchemeInterpreter interp;
 
-/** Direct reference to the root environment. Not really used yet */
+/**
+ * The top level environment of the evaluation. All top level variables are accessed through it
+ * (see {@link AST.Var}), so it determines which interpreter's variables shared code sees.
+ */
 public final Object[] rootEnv;
 
 /** Output paremeter used to store the continuation's environment */
 public Object[] outEnv;
 
+/**
+ * Output parameter used by compiled code to return a value from a tail position. See
+ * {@link CompiledBody.ReturnValue}
+ */
+public Object outValue;
+
+/**
+ * The registers of the current {@link RegisterVM} frame, read by {@link RegisterVM.Reg}.
+ */
+Object[] vmRegs;
+int vmBase;
+
+/**
+ * Replaced whenever a {@link RegisterVM.Continuation} is captured, so a loop can tell whether
+ * its environment may still be referenced by a continuation (see {@link RegisterVM#FRESH}).
+ */
+Object vmEpoch = new Object();
+
+/**
+ * An active {@code dynamic-wind}: the thunks to call when control leaves or re-enters its
+ * extent.
+ */
+static final class Winder
+{
+  /** The instruction reporting errors in the thunks */
+  final AST site;
+  final Object before, after;
+  final Winder next;
+  final int depth;
+
+  Winder ( AST site, Object before, Object after, Winder next )
+  {
+    this.site = site;
+    this.before = before;
+    this.after = after;
+    this.next = next;
+    this.depth = next != null ? next.depth + 1 : 1;
+  }
+}
+
+/** The innermost active {@code dynamic-wind} */
+Winder winders;
+
+/** The coroutine running in this thread, if any */
+Coroutine.State coroutine;
+
+/** The values checked last by {@link MultipleValues.CheckValues} in this context */
+MultipleValues values;
+
+/** The carrier of a single value checked by {@link MultipleValues.CheckValues} */
+final MultipleValues single = new MultipleValues( new Object[1] );
+
+/** Number of polls in a time slice. See {@link #poll} */
+static final int SLICE = 16384;
+
+/** Polls left in the current time slice */
+private int m_fuel = SLICE;
+
+/** The limits of the evaluation, or null */
+final Budget budget;
+/** The scheduled task running the evaluation, or null */
+final Scheduler.Task task;
+/** The CPU time of this thread when the current slice started */
+long sliceStart;
+
 EvalContext ( final SchemeInterpreter interp, final Object[] rootEnv )
+{
+  this( interp, rootEnv, null, null );
+}
+
+EvalContext ( final SchemeInterpreter interp, final Object[] rootEnv, Budget budget,
+              Scheduler.Task task )
 {
   this.interp = interp;
   this.rootEnv = rootEnv;
+  this.budget = budget;
+  this.task = task;
+  restartSlice();
 }
 
-//public Object[] stack;
-///** Next index to use in {@link #stack} */
-//private int m_sp;
-//private int[] m_frames;
-///** Last used index in {@link #m_frames} */
-//private int m_curFrame;
-//
-//public EvalContext ( final Object[] rootEnv )
-//{
-//  this.rootEnv = rootEnv;
-//  this.stack = new Object[128];
-//  m_frames = new int[128];
-//  m_curFrame = -1;
-//  m_sp = 0;
-//}
-//
-///**
-// * Allocate a new stack frame holding {@code params} number of values. Return the index
-// * of the first parameter, which can then be accessed directly using {@code stack[index+ofs]}.
-// *
-// * <p>The frame must be deallocated using {@link #popFrame()}
-// *
-// * @param params number of parameters to allocate
-// * @return the index of the first parameter
-// */
-//public int pushFrame ( int params )
-//{
-//  if (m_sp + params < this.stack.length)
-//  {
-//    Object[] tmp = new Object[Math.max( this.stack.length*2, m_sp + params)];
-//    System.arraycopy( this.stack, 0, tmp, 0, m_sp );
-//    this.stack = tmp;
-//  }
-//
-//  if (m_curFrame == m_frames.length-1)
-//  {
-//    int[] tmp = new int[m_frames.length*2];
-//    System.arraycopy(m_frames, 0, tmp, 0, m_curFrame+1);
-//    m_frames = tmp;
-//  }
-//
-//  ++m_curFrame;
-//  m_frames[m_curFrame] = params;
-//  m_sp += params;
-//
-//  return m_sp - params;
-//}
-//
-//public void popFrame ()
-//{
-//  assert( m_curFrame >= 0 );
-//  int oldSp = m_sp - m_frames[m_curFrame];
-//
-//  // Clean the frame
-//  for ( int i = oldSp; i < m_sp; ++i )
-//    this.stack[i] = null;
-//
-//  m_sp = oldSp;
-//  --m_curFrame;
-//}
+/**
+ * Start measuring the CPU time of the slice afresh, after this thread has been waiting or when
+ * the context moves to a new thread. Where only the elapsed time can be measured, this keeps
+ * the time spent waiting out of the budget.
+ */
+final void restartSlice ()
+{
+  if (budget != null)
+    sliceStart = Budget.cpuTime();
+}
 
+/**
+ * Charge the CPU time of the slice so far to the budget, before this thread waits or when the
+ * evaluation finishes. Otherwise the time since the last full slice would never be counted.
+ */
+final void settleSlice ()
+{
+  if (budget != null)
+    budget.settle( this );
+}
+
+/**
+ * Called on every procedure entry and loop back-edge, so every evaluation which doesn't
+ * terminate polls regularly. Every {@link #SLICE} polls we check the budget of the evaluation
+ * and let the scheduler run other tasks.
+ *
+ * @param site the instruction reporting an exhausted budget
+ */
+final void poll ( AST site ) throws SchemeError
+{
+  if (--m_fuel < 0)
+    endSlice( site );
 }
 
+private void endSlice ( AST site ) throws SchemeError
+{
+  m_fuel = SLICE;
+  if (budget != null)
+    budget.charge( this, site );
+  if (task != null)
+    task.yield( this, site );
+}
+
+/** Frames of procedures which don't let their environment escape. See {@link #pushFrame} */
+private Object[][] m_frames = new Object[16][];
+/** Number of frames in use in {@link #m_frames} */
+private int m_frameTop;
+
+/** Beyond this depth we stop caching frames, so deep recursion doesn't pin memory */
+private static final int MAX_FRAMES = 1024;
+
+/**
+ * Allocate the environment of a procedure whose environment can't escape (see
+ * {@link Lambda#reuseFrame}). The array is reused by later calls after it has been released
+ * with {@link #popFrames(int)}, so it must not be referenced after that.
+ *
+ * <p>The contents of the returned array are unspecified; the caller must initialize all slots.
+ *
+ * @param size size of the environment
+ */
+final Object[] pushFrame ( int size )
+{
+  if (m_frameTop == m_frames.length)
+  {
+    if (m_frameTop == MAX_FRAMES)
+      return new Object[size];
+    Object[][] tmp = new Object[m_frames.length*2][];
+    System.arraycopy( m_frames, 0, tmp, 0, m_frameTop );
+    m_frames = tmp;
+  }
+
+  Object[] frame = m_frames[m_frameTop];
+  if (frame == null || frame.length != size)
+    m_frames[m_frameTop] = frame = new Object[size];
+  ++m_frameTop;
+  return frame;
+}
+
+/**
+ * @return a mark which must be passed to {@link #popFrames(int)} to release all frames
+ *   allocated after this call
+ */
+final int frameMark ()
+{
+  return m_frameTop;
+}
+
+/**
+ * Release all frames allocated by {@link #pushFrame(int)} since {@code mark} was obtained.
+ * Callers do that in a {@code finally} block, so the frames are released even when an error
+ * or a continuation unwinds the Java stack.
+ */
+final void popFrames ( int mark )
+{
+  while (m_frameTop > mark)
+  {
+    // Don't keep the values alive
+    Object[] frame = m_frames[--m_frameTop];
+    for ( int i = 0; i < frame.length; ++i )
+      frame[i] = null;
+  }
+}
+
+/**
+ * Call a procedure from Java code. Errors are reported at site.
+ */
+final Object call ( AST site, Object target, Object... args ) throws SchemeError
+{
+  if (!(target instanceof Closure))
+    throw new EvalError( site, "Call of non-procedure" );
+  poll( site );
+  Closure closure = (Closure) target;
+  Lambda proc = CaseLambda.select( closure.lambda, args.length );
+  Object[] callEnv = RegisterVM.buildEnv( site, closure, proc, args, 0, args.length, Pair.NULL );
+  return proc instanceof JavaProcedure ?
+          ((JavaProcedure) proc).apply( callEnv ) : proc.body.evalValue( callEnv, this );
+}
+
+/**
+ * Move the dynamic extent to {@code to}: call the "after" thunks of the {@code dynamic-wind}s
+ * we are leaving, innermost first, and then the "before" thunks of the ones we are entering,
+ * outermost first.
+ */
+final void rewind ( Winder to ) throws SchemeError
+{
+  Winder a = winders, b = to;
+  while (a != null && (b == null || a.depth > b.depth))
+    a = a.next;
+  while (b != null && (a == null || b.depth > a.depth))
+    b = b.next;
+  while (a != b)
+  {
+    a = a.next;
+    b = b.next;
+  }
+
+  while (winders != a)
+  {
+    Winder w = winders;
+    winders = w.next;
+    call( w.site, w.after );
+  }
+  enter( to, a );
+}
+
+private void enter ( Winder to, Winder common ) throws SchemeError
+{
+  if (to != common)
+  {
+    enter( to.next, common );
+    call( to.site, to.before );
+    winders = to;
+  }
+}
+
+/**
+ * Allocate an environment, either from the frame stack or from the heap
+ */
+final Object[] newFrame ( int size, boolean pooled )
+{
+  return pooled ? pushFrame( size ) : new Object[size];
+}
+
+}
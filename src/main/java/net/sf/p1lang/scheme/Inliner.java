@@ -0,0 +1,440 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Inlines calls to small procedures defined at the top level.
+ *
+ * <p>When a lambda defined at the top level is small enough and doesn't create closures, we keep
+ * a copy of its body in {@link Lambda#inlineBody}. A call to a top level variable which
+ * contains such a procedure at compile time is then replaced by the body, with the parameters
+ * stored in new slots of the caller's environment:
+ *
+ * <pre>
+ *   (f a b)  =&gt;  (begin (set! t1 a) (set! t2 b)
+ *                        (if (eq? f #&lt;closure f&gt;) <i>body of f</i> (f t1 t2)))
+ * </pre>
+ *
+ * <p>Literal parameters are substituted directly. The guard makes redefinition of {@code f} safe:
+ * the inlined code is simply skipped if the variable no longer contains the same closure. In a
+ * sealed top level (see {@link SchemeInterpreter.Options#sealed}) there is no guard. Instead we
+ * keep a log of the inlined variables and refuse to compile assignments to them.
+ *
+ * <p>Variables which are assigned with {@code set!} or defined more than once are never inlined,
+ * neither are recursive procedures.
+ */
+final class Inliner
+{
+private final SchemeInterpreter m_interp;
+
+/** Top level variables which have been defined with (define) */
+private HashSet<VarBinding> m_defined = new HashSet<VarBinding>();
+/** Top level variables which have been assigned after their definition */
+private HashSet<VarBinding> m_assigned = new HashSet<VarBinding>();
+/** The dependency log: the number of call sites where each variable was inlined */
+private HashMap<VarBinding,Integer> m_inlined = new HashMap<VarBinding,Integer>();
+/** The state inherited from the interpreter we were forked from. It is never modified */
+private Inliner m_base;
+
+private final HashMap<Class<?>,BuiltinFactory<?>> m_factories =
+  new HashMap<Class<?>,BuiltinFactory<?>>();
+
+Inliner ( SchemeInterpreter interp )
+{
+  m_interp = interp;
+}
+
+/**
+ * Create the inliner of a fork of our interpreter (see {@link TopLevelScope#fork}). Like the
+ * bindings, our state is moved to a layer shared with the fork and never modified.
+ */
+final Inliner fork ( SchemeInterpreter interp )
+{
+  if (!m_defined.isEmpty() || !m_assigned.isEmpty() || !m_inlined.isEmpty())
+  {
+    Inliner layer = new Inliner( m_interp );
+    layer.m_defined = m_defined;
+    layer.m_assigned = m_assigned;
+    layer.m_inlined = m_inlined;
+    layer.m_base = m_base;
+    m_defined = new HashSet<VarBinding>();
+    m_assigned = new HashSet<VarBinding>();
+    m_inlined = new HashMap<VarBinding,Integer>();
+    m_base = layer;
+  }
+  Inliner res = new Inliner( interp );
+  res.m_base = m_base;
+  return res;
+}
+
+/**
+ * Record the definition of a variable.
+ * @return false if the variable can't be redefined because it was inlined in a sealed top level
+ */
+final boolean define ( VarBinding binding )
+{
+  if (!(binding.scope instanceof TopLevelScope))
+    return true;
+  for ( Inliner i = this; i != null; i = i.m_base )
+    if (i.m_defined.contains( binding ))
+      return assign( binding );
+  m_defined.add( binding );
+  return true;
+}
+
+/**
+ * Record an assignment to a variable.
+ * @return false if the variable can't be assigned because it was inlined in a sealed top level
+ */
+final boolean assign ( VarBinding binding )
+{
+  if (!(binding.scope instanceof TopLevelScope))
+    return true;
+  if (m_interp.m_options.sealed && inlinedSites( binding ) != 0)
+    return false;
+  m_assigned.add( binding );
+  return true;
+}
+
+private final boolean assigned ( VarBinding binding )
+{
+  for ( Inliner i = this; i != null; i = i.m_base )
+    if (i.m_assigned.contains( binding ))
+      return true;
+  return false;
+}
+
+/**
+ * @return the number of call sites where the variable has been inlined
+ */
+final int inlinedSites ( VarBinding binding )
+{
+  for ( Inliner i = this; i != null; i = i.m_base )
+  {
+    Integer count = i.m_inlined.get( binding );
+    if (count != null)
+      return count;
+  }
+  return 0;
+}
+
+/**
+ * Make a copy of the body of a lambda defined at the top level suitable for inlining.
+ * @return the copy, or null if the body is too large or can't be inlined
+ */
+final AST inlineBody ( Lambda proc )
+{
+  if (proc.haveRest || size( proc.body ) > m_interp.m_options.inlineSize)
+    return null;
+  return copy( proc.body, null );
+}
+
+/**
+ * Inline a call to a top level variable.
+ *
+ * @param scope the scope of the call
+ * @param target the target of the call
+ * @param values the operands of the {@link AST.Apply}
+ * @return the inlined call, or null if it can't be inlined
+ */
+final AST inline ( Scope scope, AST.Var target, AST[] values, ISourceCoords coords )
+{
+  VarBinding binding = scope.lookupVar( target.name );
+  if (binding == null || binding.index != target.bindingIndex ||
+      !(binding.scope instanceof TopLevelScope) || assigned( binding ))
+  {
+    return null;
+  }
+
+  // Not the scope of the binding, which may belong to the interpreter we were forked from
+  Object[] topEnv = m_interp.m_topLevelScope.m_env;
+  if (!(topEnv[binding.index] instanceof Closure))
+    return null;
+  Closure callee = (Closure) topEnv[binding.index];
+  Lambda proc = callee.lambda;
+  int argc = values.length - 2;
+  if (proc.inlineBody == null || proc.paramCount != argc ||
+      !m_interp.m_topLevelScope.isForkOf( callee.parentEnv ) ||
+      uses( proc.inlineBody, binding.index ))
+  {
+    return null;
+  }
+
+  // Store the parameters in new slots in the caller's environment
+  Scope temps = new Scope( scope, true );
+  Relocation r = new Relocation( scope.envLevel, proc.envSize, temps );
+  BitSet assigned = new BitSet();
+  assignedSlots( proc.inlineBody, assigned );
+
+  ArrayList<AST> res = new ArrayList<AST>( argc + 1 );
+  AST[] args = new AST[values.length];
+  args[0] = target;
+  for ( int i = 1; i <= argc; ++i )
+  {
+    int slot = Scope.RESERVED_SLOTS + i - 1;
+    if (values[i] instanceof AST.Lit && !assigned.get( slot ))
+      r.subst[slot] = values[i];
+    else
+      res.add( new AST.SetBang( values[i], temps, r.slot( slot ), values[i] ) );
+    args[i] = r.load( slot, values[i] );
+  }
+  args[values.length-1] = AST.Lit.LIT_NULL;
+
+  AST body = copy( proc.inlineBody, r );
+  if (!m_interp.m_options.sealed)
+  {
+    AST generic = m_interp.m_options.inlineCaches ?
+      new CachedApply( coords, args, m_interp.m_cacheStats ) : new AST.Apply( coords, args );
+    AST guard = new Builtins.Eq( coords, new AST[]{
+      new AST.Var( coords, target.name, target.envIndex, target.bindingIndex, target.global ),
+      new AST.Lit( coords, callee ) } );
+    body = new AST.If( coords, guard, body, generic );
+  }
+  res.add( body );
+
+  m_inlined.put( binding, inlinedSites( binding ) + 1 );
+  return res.size() == 1 ? res.get( 0 ) : new AST.Begin( coords, res.toArray( new AST[res.size()] ) );
+}
+
+/**
+ * Maps the environment slots of an inlined procedure to the caller's environment
+ */
+private final class Relocation
+{
+  /** The level of the caller, i.e. the envIndex of top level variables */
+  final int level;
+  /** Slots replaced by a constant */
+  final AST[] subst;
+  final VarBinding[] slots;
+  final Scope temps;
+
+  Relocation ( int level, int envSize, Scope temps )
+  {
+    this.level = level;
+    this.subst = new AST[envSize];
+    this.slots = new VarBinding[envSize];
+    this.temps = temps;
+  }
+
+  final VarBinding slot ( int index )
+  {
+    if (slots[index] == null)
+      slots[index] = temps.bindVar( m_interp.gentemp() );
+    return slots[index];
+  }
+
+  final AST load ( int index, ISourceCoords coords )
+  {
+    if (subst[index] != null)
+      return subst[index];
+    return new AST.Var( coords, temps, slot( index ) );
+  }
+}
+
+/**
+ * The number of instructions in a tree, or {@link Integer#MAX_VALUE} if it can't be inlined
+ */
+private static int size ( AST ast )
+{
+  if (ast instanceof AST.Lit)
+    return 1;
+  else if (ast instanceof AST.Var)
+    return ((AST.Var) ast).envIndex <= 1 ? 1 : Integer.MAX_VALUE;
+  else if (ast instanceof AST.SetBang)
+  {
+    AST.SetBang sb = (AST.SetBang) ast;
+    return sb.envIndex <= 1 ? add( 1, size( sb.value ) ) : Integer.MAX_VALUE;
+  }
+  else if (ast instanceof AST.If)
+  {
+    AST.If i = (AST.If) ast;
+    return add( add( add( 1, size( i.m_evalCond ) ), size( i.m_evalThen ) ), size( i.m_evalElse ) );
+  }
+  else if (ast instanceof AST.Case)
+    return size( add( 1, size( ((AST.Case) ast).m_key ) ), ((AST.Case) ast).m_bodies );
+  else if (ast instanceof AST.Trampoline)
+    return size( ((AST.Trampoline) ast).m_ast );
+  else if (ast instanceof AST.Begin)
+    return size( 1, ((AST.Begin) ast).m_body );
+  else if (ast instanceof AST.MakeVector)
+    return size( 1, ((AST.MakeVector) ast).values );
+  else if (ast instanceof AST.Builtin && !(ast instanceof AST.CallCC))
+    return size( 1, ((AST.Builtin) ast).v );
+  else
+    return Integer.MAX_VALUE;
+}
+
+private static int size ( int res, AST[] list )
+{
+  for ( AST v : list )
+    res = add( res, size( v ) );
+  return res;
+}
+
+private static int add ( int a, int b )
+{
+  return a < Integer.MAX_VALUE - b ? a + b : Integer.MAX_VALUE;
+}
+
+/**
+ * Does the tree access the specified top level variable?
+ */
+private static boolean uses ( AST ast, int index )
+{
+  if (ast instanceof AST.Var)
+    return ((AST.Var) ast).envIndex == 1 && ((AST.Var) ast).bindingIndex == index;
+  else if (ast instanceof AST.SetBang)
+  {
+    AST.SetBang sb = (AST.SetBang) ast;
+    return sb.envIndex == 1 && sb.bindingIndex == index || uses( sb.value, index );
+  }
+  else if (ast instanceof AST.If)
+  {
+    AST.If i = (AST.If) ast;
+    return uses( i.m_evalCond, index ) || uses( i.m_evalThen, index ) || uses( i.m_evalElse, index );
+  }
+  else
+  {
+    for ( AST v : children( ast ) )
+      if (uses( v, index ))
+        return true;
+    return false;
+  }
+}
+
+/**
+ * Collect the local slots which are assigned with set!
+ */
+private static void assignedSlots ( AST ast, BitSet res )
+{
+  if (ast instanceof AST.SetBang && ((AST.SetBang) ast).envIndex == 0)
+    res.set( ((AST.SetBang) ast).bindingIndex );
+  if (ast instanceof AST.SetBang)
+    assignedSlots( ((AST.SetBang) ast).value, res );
+  else if (ast instanceof AST.If)
+  {
+    AST.If i = (AST.If) ast;
+    assignedSlots( i.m_evalCond, res );
+    assignedSlots( i.m_evalThen, res );
+    assignedSlots( i.m_evalElse, res );
+  }
+  else
+    for ( AST v : children( ast ) )
+      assignedSlots( v, res );
+}
+
+private static AST[] children ( AST ast )
+{
+  if (ast instanceof AST.Trampoline)
+    return new AST[]{ ((AST.Trampoline) ast).m_ast };
+  else if (ast instanceof AST.Case)
+  {
+    AST.Case c = (AST.Case) ast;
+    AST[] res = new AST[c.m_bodies.length + 1];
+    res[0] = c.m_key;
+    System.arraycopy( c.m_bodies, 0, res, 1, c.m_bodies.length );
+    return res;
+  }
+  else if (ast instanceof AST.Begin)
+    return ((AST.Begin) ast).m_body;
+  else if (ast instanceof AST.MakeVector)
+    return ((AST.MakeVector) ast).values;
+  else if (ast instanceof AST.Builtin)
+    return ((AST.Builtin) ast).v;
+  else
+    return new AST[0];
+}
+
+/**
+ * Copy a tree accepted by {@link #size(AST)}, optionally relocating it into a caller.
+ * Trampolines are removed, since the caller has its own.
+ */
+private AST copy ( AST ast, Relocation r )
+{
+  if (ast instanceof AST.Lit)
+    return ast;
+  else if (ast instanceof AST.Var)
+  {
+    AST.Var var = (AST.Var) ast;
+    if (r == null)
+      return var;
+    else if (var.envIndex == 0)
+      return r.load( var.bindingIndex, var );
+    else
+      return new AST.Var( var, var.name, r.level, var.bindingIndex, true );
+  }
+  else if (ast instanceof AST.SetBang)
+  {
+    AST.SetBang sb = (AST.SetBang) ast;
+    AST value = copy( sb.value, r );
+    if (r == null)
+      return new AST.SetBang( sb, sb.name, sb.envIndex, sb.bindingIndex, sb.global, value );
+    else if (sb.envIndex == 0)
+      return new AST.SetBang( sb, r.temps, r.slot( sb.bindingIndex ), value );
+    else
+      return new AST.SetBang( sb, sb.name, r.level, sb.bindingIndex, true, value );
+  }
+  else if (ast instanceof AST.If)
+  {
+    AST.If i = (AST.If) ast;
+    return new AST.If( i, copy( i.m_evalCond, r ), copy( i.m_evalThen, r ), copy( i.m_evalElse, r ) );
+  }
+  else if (ast instanceof AST.Case)
+  {
+    AST.Case c = (AST.Case) ast;
+    return new AST.Case( c, copy( c.m_key, r ), c.m_table, copy( c.m_bodies, r ) );
+  }
+  else if (ast instanceof AST.Trampoline)
+    return copy( ((AST.Trampoline) ast).m_ast, r );
+  else if (ast instanceof AST.Begin)
+    return new AST.Begin( ast, copy( ((AST.Begin) ast).m_body, r ) );
+  else if (ast instanceof AST.MakeVector)
+    return new AST.MakeVector( ast, copy( ((AST.MakeVector) ast).values, r ) );
+  else if (ast instanceof CachedApply || ast instanceof AST.Apply)
+  {
+    // Inline caches have per-site state, so they are created again by the caller
+    AST[] v = copy( ((AST.Builtin) ast).v, r );
+    if (r != null && m_interp.m_options.inlineCaches && v[v.length-1] == AST.Lit.LIT_NULL &&
+        v[0] instanceof AST.Var && ((AST.Var) v[0]).envIndex == r.level)
+    {
+      return new CachedApply( ast, v, m_interp.m_cacheStats );
+    }
+    return new AST.Apply( ast, v );
+  }
+  else
+  {
+    Class<? extends AST.Builtin> cls = ((AST.Builtin) ast).getClass();
+    BuiltinFactory<?> factory = m_factories.get( cls );
+    if (factory == null)
+    {
+      factory = factory( cls );
+      m_factories.put( cls, factory );
+    }
+    return factory.create( ast, copy( ((AST.Builtin) ast).v, r ) );
+  }
+}
+
+private static <T extends AST.Builtin> BuiltinFactory<T> factory ( Class<T> cls )
+{
+  return new BuiltinFactory<T>( cls );
+}
+
+private AST[] copy ( AST[] list, Relocation r )
+{
+  AST[] res = new AST[list.length];
+  for ( int i = 0; i < list.length; ++i )
+    res[i] = copy( list[i], r );
+  return res;
+}
+
+} // class
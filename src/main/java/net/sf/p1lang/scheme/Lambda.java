@@ -25,12 +25,33 @@ public int envSize;
 public int paramCount;
 /** A last parameter is the "rest" */
 public boolean haveRest;
+/**
+ * The "rest" parameters are passed in the environment after the regular ones instead of in a
+ * list, so the environment has as many slots as there are parameters. Only for
+ * {@link JavaProcedure}-s and {@link CaseLambda}-s, which find the count from the length of
+ * the environment.
+ */
+public boolean spreadRest;
+/**
+ * The clauses of a {@code case-lambda}, selected by the number of parameters, or null. See
+ * {@link CaseLambda}.
+ */
+public Lambda[] clauses;
+/**
+ * The environment can never outlive an invocation: the body doesn't create closures or capture
+ * continuations. Non-tail calls then take the environment from {@link EvalContext#pushFrame}.
+ */
+public boolean reuseFrame;
 public AST body;
+/** The changes made by the {@link Optimizer} and the {@link Inliner}, or null if none */
+public String[] optimizerLog;
+/** A copy of the body used for inlining calls to the lambda (see {@link Inliner}), or null */
+public AST inlineBody;
 
 public String toString ()
 {
   StringBuilder res = new StringBuilder();
-  res.append("#<lambda:");
+  res.append(clauses != null ? "#<case-lambda:" : "#<lambda:");
   if (name != null)
     res.append( name.toString() );
   res.append(':').append(paramCount).append(':').append(haveRest?'t':'f').append('>');
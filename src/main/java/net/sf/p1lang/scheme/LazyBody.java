@@ -0,0 +1,131 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.util.HashMap;
+
+/**
+ * The body of a top level lambda which hasn't been compiled yet (see
+ * {@link SchemeInterpreter.Options#lazy}).
+ *
+ * <p>Only the parameters are compiled when the lambda is defined. We keep the source of the body
+ * and the scope of the parameters, and compile the body when the lambda is first called. Then we
+ * replace ourselves with the compiled body in {@link Lambda#body}, so the following calls don't
+ * see us at all.
+ *
+ * <p>Until then the environment size of the lambda includes only the parameters, so we copy the
+ * environment of the first call into one of the real size. It can't have escaped yet.
+ *
+ * <p>Compile errors are reported by the call with a {@link PositionedError} at the position of the
+ * first error. The full list is in its cause, a {@link ParseErrors}. The lambda remains
+ * uncompiled, so every call reports the errors again.
+ */
+final class LazyBody extends AST
+{
+private static final long serialVersionUID = 1L;
+
+private final Lambda m_proc;
+/** The scope of the parameters */
+private Scope m_scope;
+private Pair m_body;
+private HashMap<Symbol, BuiltinFactory<?>> m_builtins;
+private TopLevelScope m_topLevelScope;
+private transient boolean m_compiling;
+
+LazyBody ( ISourceCoords coords, Lambda proc, Scope scope, Pair body,
+           HashMap<Symbol, BuiltinFactory<?>> builtins, TopLevelScope topLevelScope )
+{
+  super(coords);
+  m_proc = proc;
+  m_scope = scope;
+  m_body = body;
+  m_builtins = builtins;
+  m_topLevelScope = topLevelScope;
+  topLevelScope.addLazyBody( this );
+}
+
+final boolean isCompiled ()
+{
+  return m_body == null;
+}
+
+/**
+ * Compile the body, if it hasn't been compiled yet.
+ * @throws PositionedError if there were compile errors
+ */
+final void compile () throws SchemeError
+{
+  if (m_body == null)
+    return;
+  if (m_compiling)
+    throw new PositionedError( this, "Lambda called while its body is being compiled" );
+
+  SimpleErrorReporter errors = new SimpleErrorReporter( 1 );
+  m_compiling = true;
+  try
+  {
+    new Compiler( m_topLevelScope.m_interp, errors, m_builtins, m_topLevelScope )
+        .compileLazyBody( m_proc, m_scope, m_body );
+  }
+  catch (TooManyErrors ignored)
+  {}
+  finally
+  {
+    m_compiling = false;
+  }
+
+  if (errors.getErrorCount() > 0)
+  {
+    ErrorInfo first = errors.getErrorList().get( 0 );
+    throw new PositionedError( first.coords, first.message, new ParseErrors( errors ) );
+  }
+
+  // We are no longer needed
+  m_scope = null;
+  m_body = null;
+  m_builtins = null;
+  m_topLevelScope = null;
+}
+
+/**
+ * Compile the body and copy the environment into one of the size required by it
+ */
+private Object[] enter ( Object[] env ) throws SchemeError
+{
+  compile();
+  if (env.length == m_proc.envSize)
+    return env;
+  Object[] res = new Object[m_proc.envSize];
+  System.arraycopy( env, 0, res, 0, env.length );
+  for ( int i = env.length; i < res.length; ++i )
+    res[i] = Unspec.UNSPEC;
+  return res;
+}
+
+public final AST evalCont ( Object[] env, EvalContext ctx ) throws SchemeError
+{
+  ctx.outEnv = enter( env );
+  return m_proc.body;
+}
+
+public final Object evalValue ( Object[] env, EvalContext ctx ) throws SchemeError
+{
+  env = enter( env );
+  return m_proc.body.evalValue( env, ctx );
+}
+
+public Object dis ()
+{
+  return new Pair( "lazy", m_body != null ? m_body : new Pair( m_proc.body.dis() ) );
+}
+
+public String toString ()
+{
+  return "(lazy " + (m_body != null ? m_body : m_proc.body) + ")";
+}
+} // class
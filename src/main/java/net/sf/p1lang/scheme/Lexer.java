@@ -488,10 +488,14 @@ private final Token _nextToken ()
           return Token.NESTED_COMMENT_START;
         break;
 
-/* TODO:
-    case '!': // #!r6rs
-      ...
-*/
+      case '!': // #!optional #!rest, and #!r6rs, which is a comment
+        nextChar();
+        if ( (res = scanRestIdentifier( '#', '!' )) != null)
+        {
+          if (res != Token.IDENT || !"#!r6rs".equals( m_valueIdent.name ))
+            return res;
+        }
+        break;
 
       case ';': // #; datum comment
         nextChar();
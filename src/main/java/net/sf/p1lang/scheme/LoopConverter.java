@@ -0,0 +1,191 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+/**
+ * Converts the self tail calls of the procedure of a named let (and so of a {@code do} loop)
+ * into {@link AST.LoopJump}s, which update the parameters in place instead of allocating a new
+ * environment for every iteration.
+ *
+ * <p>This is valid only if the procedure is known at every call: its variable must not be
+ * assigned and may only appear as the target of tail calls in its own body. Since the
+ * parameters of an iteration are overwritten by the next one, the environment must not be
+ * captured by a closure either (see {@link Compiler#frameEscapes}).
+ *
+ * <p>The continuations of the {@link RegisterVM} can re-enter an iteration after the following
+ * ones have overwritten it, so there a jump copies the environment first if a continuation may
+ * have captured it (see {@link RegisterVM#FRESH}).
+ */
+final class LoopConverter
+{
+private final int m_selfIndex;
+private final int m_paramCount;
+
+private LoopConverter ( VarBinding self, Lambda proc )
+{
+  m_selfIndex = self.index;
+  m_paramCount = proc.paramCount;
+}
+
+/**
+ * @param self the variable holding the procedure
+ * @return the converted body, or null if the procedure can't be converted
+ */
+static AST convert ( Lambda proc, VarBinding self )
+{
+  if (proc.haveRest)
+    return null;
+  LoopConverter lc = new LoopConverter( self, proc );
+  int[] jumps = new int[1];
+  if (!lc.check( proc.body, true, jumps ) || jumps[0] == 0)
+    return null;
+  return new AST.Loop( proc.body, lc.convert( proc.body ) );
+}
+
+private boolean isSelf ( AST ast )
+{
+  return ast instanceof AST.Var && ((AST.Var) ast).envIndex == 1 &&
+         ((AST.Var) ast).bindingIndex == m_selfIndex;
+}
+
+private boolean isSelfCall ( AST ast )
+{
+  // A named let at the top level may get an inline cache
+  if (!(ast instanceof AST.Apply || ast instanceof CachedApply))
+    return false;
+  AST[] v = ((AST.Builtin) ast).v;
+  return isSelf( v[0] ) && v[v.length-1] == AST.Lit.LIT_NULL && v.length-2 == m_paramCount;
+}
+
+/**
+ * Verify that the procedure variable is used only by self tail calls, and count them
+ */
+private boolean check ( AST ast, boolean tail, int[] jumps )
+{
+  if (ast instanceof AST.Lit)
+    return true;
+  else if (ast instanceof AST.Var)
+    return !isSelf( ast );
+  else if (ast instanceof AST.SetBang)
+  {
+    AST.SetBang sb = (AST.SetBang) ast;
+    if (sb.envIndex == 1 && sb.bindingIndex == m_selfIndex)
+      return false;
+    return check( sb.value, false, jumps );
+  }
+  else if (ast instanceof AST.If)
+  {
+    AST.If i = (AST.If) ast;
+    return check( i.m_evalCond, false, jumps ) && check( i.m_evalThen, tail, jumps ) &&
+           check( i.m_evalElse, tail, jumps );
+  }
+  else if (ast instanceof AST.Case)
+  {
+    AST.Case c = (AST.Case) ast;
+    if (!check( c.m_key, false, jumps ))
+      return false;
+    for ( AST body : c.m_bodies )
+      if (!check( body, tail, jumps ))
+        return false;
+    return true;
+  }
+  else if (ast instanceof AST.Begin)
+  {
+    AST[] body = ((AST.Begin) ast).m_body;
+    for ( int i = 0; i < body.length; ++i )
+      if (!check( body[i], tail && i == body.length - 1, jumps ))
+        return false;
+    return true;
+  }
+  else if (ast instanceof AST.Trampoline)
+    return check( ((AST.Trampoline) ast).m_ast, tail, jumps );
+  else if (ast instanceof AST.MakeVector)
+    return check( ((AST.MakeVector) ast).values, jumps );
+  else if (isSelfCall( ast ))
+  {
+    if (!tail)
+      return false;
+    ++jumps[0];
+    AST[] v = ((AST.Builtin) ast).v;
+    for ( int i = 1; i < v.length - 1; ++i )
+      if (!check( v[i], false, jumps ))
+        return false;
+    return true;
+  }
+  else if (ast instanceof AST.Builtin)
+    return check( ((AST.Builtin) ast).v, jumps );
+  else
+    return false;
+}
+
+private boolean check ( AST[] v, int[] jumps )
+{
+  for ( AST a : v )
+    if (!check( a, false, jumps ))
+      return false;
+  return true;
+}
+
+/**
+ * Replace the self calls in the tail positions
+ */
+private AST convert ( AST ast )
+{
+  if (ast instanceof AST.If)
+  {
+    AST.If i = (AST.If) ast;
+    return new AST.If( i, i.m_evalCond, convert( i.m_evalThen ), convert( i.m_evalElse ) );
+  }
+  else if (ast instanceof AST.Case)
+  {
+    AST[] bodies = ((AST.Case) ast).m_bodies;
+    for ( int i = 0; i < bodies.length; ++i )
+      bodies[i] = convert( bodies[i] );
+    return ast;
+  }
+  else if (ast instanceof AST.Begin)
+  {
+    AST[] body = ((AST.Begin) ast).m_body;
+    if (body.length > 0)
+      body[body.length-1] = convert( body[body.length-1] );
+    return ast;
+  }
+  else if (ast instanceof AST.Trampoline)
+    return new AST.Trampoline( ast, convert( ((AST.Trampoline) ast).m_ast ) );
+  else if (isSelfCall( ast ))
+  {
+    AST[] v = ((AST.Builtin) ast).v;
+    // Leave alone the parameters which are passed unchanged
+    int n = 0;
+    for ( int i = 0; i < m_paramCount; ++i )
+      if (!unchanged( v[i+1], i ))
+        ++n;
+    int[] slots = new int[n];
+    AST[] values = new AST[n];
+    n = 0;
+    for ( int i = 0; i < m_paramCount; ++i )
+    {
+      if (!unchanged( v[i+1], i ))
+      {
+        slots[n] = Scope.RESERVED_SLOTS + i;
+        values[n++] = v[i+1];
+      }
+    }
+    return new AST.LoopJump( ast, slots, values );
+  }
+  else
+    return ast;
+}
+
+private static boolean unchanged ( AST value, int param )
+{
+  return value instanceof AST.Var && ((AST.Var) value).envIndex == 0 &&
+         ((AST.Var) value).bindingIndex == Scope.RESERVED_SLOTS + param;
+}
+
+} // class
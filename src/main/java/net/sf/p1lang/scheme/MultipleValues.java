@@ -0,0 +1,201 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * The result of {@code (values ...)} with other than one value. A single value is returned
+ * as itself, so the common case costs nothing.
+ *
+ * <p>A carrier is never modified after it has been returned, so it can safely end up anywhere a
+ * value can: in a variable, in a list, as a parameter, or in another thread. Only the array of
+ * values and the carrier itself are allocated; no list is built. {@code let-values} (and so
+ * {@code receive} and {@code call-with-values}) doesn't copy the values either: the compiler
+ * expands it into {@link CheckValues}, which validates the result and makes it
+ * {@link EvalContext#values}, followed by assignments of {@link ValueRef}-s to the variables.
+ */
+final class MultipleValues
+{
+private final Object[] m_values;
+
+MultipleValues ( Object[] values )
+{
+  m_values = values;
+}
+
+static MultipleValues make ( Pair list )
+{
+  int count = 0;
+  for ( Object p = list; p != Pair.NULL; p = ((Pair) p).getCdr() )
+    ++count;
+  Object[] values = new Object[count];
+  count = 0;
+  for ( Object p = list; p != Pair.NULL; p = ((Pair) p).getCdr() )
+    values[count++] = ((Pair) p).getCar();
+  return new MultipleValues( values );
+}
+
+public String toString ()
+{
+  StringWriter sw = new StringWriter();
+  PrintWriter pw = new PrintWriter( sw );
+  for ( int i = 0; i < m_values.length; ++i )
+  {
+    if (i > 0)
+      pw.print( ' ' );
+    Misc.display( pw, m_values[i] );
+  }
+  pw.flush();
+  return sw.toString();
+}
+
+/**
+ * {@code (values v ...)}
+ */
+public static final class Values extends AST.Builtin
+{
+  private static final long serialVersionUID = 1L;
+  public static final int PARAM_COUNT=0;
+  public static final boolean HAVE_REST=true;
+
+  public Values ( final ISourceCoords coords, final AST[] values )
+  {
+    super(coords, values);
+  }
+
+  public Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    int n = v.length;
+    if (n == 1)
+      return v[0].evalValue( env, ctx );
+    Object[] values = new Object[n];
+    for ( int i = 0; i < n; ++i )
+      values[i] = v[i].evalValue( env, ctx );
+    return new MultipleValues( values );
+  }
+}
+
+/**
+ * {@code (apply values list)}
+ */
+public static final class ListValues extends AST.Builtin
+{
+  private static final long serialVersionUID = 1L;
+  public static final int PARAM_COUNT=1;
+  public static final boolean HAVE_REST=false;
+
+  public ListValues ( final ISourceCoords coords, final AST[] values )
+  {
+    super(coords, values);
+  }
+
+  public Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    Object list = v[0].evalValue( env, ctx );
+    if (list instanceof Pair && list != Pair.NULL && ((Pair) list).getCdr() == Pair.NULL)
+      return ((Pair) list).getCar();
+    return make( (Pair) list );
+  }
+}
+
+/**
+ * {@code (CheckValues expr count rest)}: check that expr returns count values, or at least
+ * count if rest is true, and leave them in {@link EvalContext#values} for {@link ValueRef}.
+ * count and rest are literals. A single value is stored in {@link EvalContext#single}, which
+ * never escapes, so that it isn't allocated.
+ */
+public static final class CheckValues extends AST.Builtin
+{
+  private static final long serialVersionUID = 1L;
+  public static final int PARAM_COUNT=3;
+  public static final boolean HAVE_REST=false;
+
+  private final int m_count;
+  private final boolean m_rest;
+
+  public CheckValues ( final ISourceCoords coords, final AST[] values )
+  {
+    super(coords, values);
+    m_count = (Integer) ((AST.Lit) values[1]).datum;
+    m_rest = (Boolean) ((AST.Lit) values[2]).datum;
+  }
+
+  public Object builtinEvalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    Object res = v[0].evalValue( env, ctx );
+    MultipleValues mv;
+    if (res instanceof MultipleValues)
+      mv = (MultipleValues) res;
+    else
+    {
+      mv = ctx.single;
+      mv.m_values[0] = res;
+    }
+    int count = mv.m_values.length;
+    if (m_rest ? count < m_count : count != m_count)
+      throw new EvalError( this, "Expected "+ (m_rest ? "at least " : "") + m_count +
+                                 " values but got "+ count );
+    ctx.values = mv;
+    return Unspec.UNSPEC;
+  }
+}
+
+/**
+ * {@code (ValueRef index)}: a value checked by the preceding {@link CheckValues}
+ */
+public static final class ValueRef extends AST.Builtin
+{
+  private static final long serialVersionUID = 1L;
+  public static final int PARAM_COUNT=1;
+  public static final boolean HAVE_REST=false;
+
+  private final int m_index;
+
+  public ValueRef ( final ISourceCoords coords, final AST[] values )
+  {
+    super(coords, values);
+    m_index = (Integer) ((AST.Lit) values[0]).datum;
+  }
+
+  public Object builtinEvalValue ( final Object[] env, final EvalContext ctx )
+  {
+    return ctx.values.m_values[m_index];
+  }
+}
+
+/**
+ * {@code (ValueRest index)}: the list of the values checked by the preceding
+ * {@link CheckValues}, starting from index
+ */
+public static final class ValueRest extends AST.Builtin
+{
+  private static final long serialVersionUID = 1L;
+  public static final int PARAM_COUNT=1;
+  public static final boolean HAVE_REST=false;
+
+  private final int m_index;
+
+  public ValueRest ( final ISourceCoords coords, final AST[] values )
+  {
+    super(coords, values);
+    m_index = (Integer) ((AST.Lit) values[0]).datum;
+  }
+
+  public Object builtinEvalValue ( final Object[] env, final EvalContext ctx )
+  {
+    MultipleValues mv = ctx.values;
+    Pair res = Pair.NULL;
+    for ( int i = mv.m_values.length - 1; i >= m_index; --i )
+      res = new Pair( mv.m_values[i], res );
+    return res;
+  }
+}
+
+} // class
@@ -0,0 +1,230 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simplifies a compiled body before the other passes see it:
+ *
+ * <ul>
+ * <li>{@link AST.Pure} builtins with constant parameters are evaluated. If the evaluation fails,
+ * the call is left alone, so the error is still reported at runtime.</li>
+ * <li>An {@code if} with a constant condition is replaced by the branch that is taken.</li>
+ * <li>Nested {@code begin}-s are flattened and the values in a {@code begin} which are not used
+ * and have no side effects are dropped.</li>
+ * </ul>
+ *
+ * <p>Bodies of nested lambdas are not visited, because they have already been optimized when
+ * they were compiled. Every change is described in the optional log, which {@code ,dis} displays.
+ */
+final class Optimizer
+{
+private final List<String> m_log;
+
+private Optimizer ( List<String> log )
+{
+  m_log = log;
+}
+
+/**
+ * @param ast the tree to optimize. Builtins are modified in place.
+ * @param log if not null, a description of every change is appended to it
+ * @return the optimized tree
+ */
+static AST optimize ( AST ast, List<String> log )
+{
+  return new Optimizer( log ).opt( ast );
+}
+
+/**
+ * Format a log entry
+ */
+static String logEntry ( String what, AST ast )
+{
+  return ast.havePosition() ? ast.getLine() + ":" + ast.getColumn() + ": " + what : what;
+}
+
+private final void log ( String what, AST ast )
+{
+  if (m_log != null)
+    m_log.add( logEntry( what, ast ) );
+}
+
+private final AST opt ( AST ast )
+{
+  if (ast instanceof AST.Builtin)
+    return optBuiltin( (AST.Builtin) ast );
+  else if (ast instanceof AST.If)
+    return optIf( (AST.If) ast );
+  else if (ast instanceof AST.Case)
+    return optCase( (AST.Case) ast );
+  else if (ast instanceof AST.Begin)
+    return optBegin( (AST.Begin) ast );
+  else if (ast instanceof AST.SetBang)
+  {
+    AST.SetBang sb = (AST.SetBang) ast;
+    AST value = opt( sb.value );
+    return value == sb.value ? sb :
+           new AST.SetBang( sb, sb.name, sb.envIndex, sb.bindingIndex, sb.global, value );
+  }
+  else if (ast instanceof AST.Trampoline)
+  {
+    AST.Trampoline t = (AST.Trampoline) ast;
+    AST body = opt( t.m_ast );
+    // Constants and variables never make a tail call
+    if (body instanceof AST.Lit || body instanceof AST.Var)
+      return body;
+    return body == t.m_ast ? t : new AST.Trampoline( t, body );
+  }
+  else if (ast instanceof AST.MakeVector)
+  {
+    AST[] values = ((AST.MakeVector) ast).values;
+    for ( int i = 0; i < values.length; ++i )
+      values[i] = opt( values[i] );
+    return ast;
+  }
+  else
+    return ast;
+}
+
+private final AST optBuiltin ( AST.Builtin b )
+{
+  boolean constant = true;
+  for ( int i = 0; i < b.v.length; ++i )
+    if (!((b.v[i] = opt( b.v[i] )) instanceof AST.Lit))
+      constant = false;
+
+  if (!constant || !(b instanceof AST.Pure))
+    return b;
+
+  Object res;
+  try
+  {
+    // The parameters are all literals, so they don't need an environment
+    res = b.evalValue( null, null );
+  }
+  catch (SchemeError e)
+  {
+    return b;
+  }
+  catch (RuntimeException e)
+  {
+    return b;
+  }
+  if (!(res instanceof Serializable))
+    return b;
+
+  AST.Lit lit = new AST.Lit( b, res );
+  log( "folded " + b + " to " + lit, b );
+  return lit;
+}
+
+private final AST optIf ( AST.If ast )
+{
+  AST cond = opt( ast.m_evalCond );
+  if (cond instanceof AST.Lit)
+  {
+    boolean taken = ((AST.Lit) cond).datum != Boolean.FALSE;
+    log( "removed dead branch " + (taken ? ast.m_evalElse : ast.m_evalThen), ast );
+    return opt( taken ? ast.m_evalThen : ast.m_evalElse );
+  }
+
+  AST thenAst = opt( ast.m_evalThen );
+  AST elseAst = opt( ast.m_evalElse );
+  if (cond == ast.m_evalCond && thenAst == ast.m_evalThen && elseAst == ast.m_evalElse)
+    return ast;
+  return new AST.If( ast, cond, thenAst, elseAst );
+}
+
+private final AST optCase ( AST.Case ast )
+{
+  AST key = opt( ast.m_key );
+  if (key instanceof AST.Lit)
+  {
+    AST taken = ast.m_bodies[ast.m_table.index( ((AST.Lit) key).datum )];
+    log( "selected case clause " + taken, ast );
+    return opt( taken );
+  }
+
+  AST[] bodies = ast.m_bodies;
+  for ( int i = 0; i < bodies.length; ++i )
+    bodies[i] = opt( bodies[i] );
+  return key == ast.m_key ? ast : new AST.Case( ast, key, ast.m_table, bodies );
+}
+
+private final AST optBegin ( AST.Begin ast )
+{
+  ArrayList<AST> body = new ArrayList<AST>( ast.m_body.length );
+  flatten( ast, body );
+
+  // All values except the last one are unused
+  for ( int i = body.size() - 2; i >= 0; --i )
+  {
+    AST v = body.get( i );
+    if (removable( v ))
+    {
+      log( "dropped unused " + v, v.havePosition() ? v : ast );
+      body.remove( i );
+    }
+  }
+
+  if (body.size() == 1)
+    return body.get( 0 );
+  else if (body.size() == ast.m_body.length)
+  {
+    boolean same = true;
+    for ( int i = 0; i < ast.m_body.length; ++i )
+      if (body.get( i ) != ast.m_body[i])
+        same = false;
+    if (same)
+      return ast;
+  }
+  return new AST.Begin( ast, body.toArray( new AST[body.size()] ) );
+}
+
+private final void flatten ( AST.Begin ast, List<AST> res )
+{
+  for ( AST v : ast.m_body )
+  {
+    v = opt( v );
+    if (v instanceof AST.Begin && ((AST.Begin) v).m_body.length == 0)
+      res.add( AST.Lit.LIT_UNSPEC );
+    else if (v instanceof AST.Begin)
+    {
+      // Already optimized, so we only need to copy its contents
+      log( "flattened nested begin", v.havePosition() ? v : ast );
+      for ( AST inner : ((AST.Begin) v).m_body )
+        res.add( inner );
+    }
+    else
+      res.add( v );
+  }
+}
+
+/**
+ * Can the evaluation of the instruction be omitted if its result isn't used?
+ */
+private static boolean removable ( AST ast )
+{
+  if (ast instanceof AST.Lit || ast instanceof AST.Var || ast instanceof AST.MakeClosure)
+    return true;
+  else if (ast instanceof AST.Total)
+  {
+    for ( AST v : ((AST.Builtin) ast).v )
+      if (!removable( v ))
+        return false;
+    return true;
+  }
+  else
+    return false;
+}
+
+} // class
@@ -0,0 +1,1250 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * An alternative execution engine: a register machine with an explicit frame stack.
+ *
+ * <p>The instruction tree produced by the {@link Compiler} is translated into linear code
+ * ({@code int[]} instructions and a constant table) which is executed by the single dispatch
+ * loop in {@link #run}. Calls between compiled procedures don't use the Java stack, so deep
+ * non-tail recursion is limited only by the heap, and tail calls simply replace the current
+ * frame.
+ *
+ * <p>Each procedure invocation has a set of registers holding the temporary values of its
+ * expressions. The variables are still kept in the usual environments, so closures and the
+ * instruction tree see exactly the same data, and code from the two engines can call each other
+ * freely.
+ *
+ * <p>Only control flow, variables, closure creation and calls are translated. Any other
+ * instruction is kept in the constant table and evaluated by {@link #EVAL}. If its operands
+ * contain calls, they are compiled into registers first and the instruction is copied with
+ * {@link Reg} operands reading them. Instructions which can't be decomposed this way are
+ * evaluated as a whole and use the Java stack as before.
+ *
+ * <p>{@code call/cc} captures the frames of the dispatch loop, which gives us re-entrant,
+ * multi-shot continuations (see {@link Continuation}). An escape
+ * continuation only records the position of its frame, so escaping to it costs the same at any
+ * depth (see {@link EscapeContinuation}).
+ */
+final class RegisterVM
+{
+// The opcodes and their operands. Registers (r) are relative to the frame, k is a constant index.
+
+/** LIT r k: r = k */
+static final int LIT = 0;
+/** VAR r index: r = env[index] */
+static final int VAR = 1;
+/** VARN r envIndex index: r = env[envIndex][index] */
+static final int VARN = 2;
+/** SET envIndex index r: env[envIndex][index] = r */
+static final int SET = 3;
+/** CLOSURE r k: r = new closure of lambda k in env */
+static final int CLOSURE = 4;
+/** EVAL r k: r = instruction k evaluated in env */
+static final int EVAL = 5;
+/** BOXES k: box the variables of {@link ClosureConverter.Boxes} k */
+static final int BOXES = 6;
+/** JUMP target */
+static final int JUMP = 7;
+/** JUMPF r target: jump if r is #f */
+static final int JUMPF = 8;
+/** CALL r base argc rest k: r = call base with argc parameters in base+1..; k is the call site */
+static final int CALL = 9;
+/** TCALL base argc rest k: tail call */
+static final int TCALL = 10;
+/** RET r */
+static final int RET = 11;
+/** CALLCC r base 1 0 k: like CALL, passing a {@link Continuation} in base+1 */
+static final int CALLCC = 12;
+/** TCALLCC base 1 0 k: tail call/cc */
+static final int TCALLCC = 13;
+/** CALLEC r base 1 0 k: like CALL, passing an {@link EscapeContinuation} in base+1 */
+static final int CALLEC = 14;
+/** ENDEC r: the escape continuation in r can no longer be used. Always follows CALLEC */
+static final int ENDEC = 15;
+/** WIND before after k: enter a dynamic-wind */
+static final int WIND = 16;
+/** UNWIND: leave the innermost dynamic-wind */
+static final int UNWIND = 17;
+/** EPOCH r: r = the current {@link EvalContext#vmEpoch}. Starts an {@link AST.Loop} */
+static final int EPOCH = 18;
+/**
+ * FRESH r: before a {@link AST.LoopJump} overwrites the environment, copy it if a continuation
+ * has been captured since the epoch in r, and update r. The continuation keeps the old copy.
+ * Being the back-edge of the loop, it also polls {@link EvalContext#poll}.
+ */
+static final int FRESH = 19;
+/**
+ * SWITCH r k: skip to the JUMP of the clause of {@link AST.Case} k selected by r. One JUMP for
+ * each body of the case follows.
+ */
+static final int SWITCH = 20;
+/** GVAR r index: r = the top level variable index (see {@link AST.Var}) */
+static final int GVAR = 21;
+/** GSET index r: the top level variable index = r */
+static final int GSET = 22;
+
+private static final String[] s_names = {
+  "lit", "var", "varn", "set", "closure", "eval", "boxes", "jump", "jumpf", "call", "tcall", "ret",
+  "callcc", "tcallcc", "callec", "endec", "wind", "unwind", "epoch", "fresh", "switch", "gvar",
+  "gset"
+};
+private static final int[] s_lengths = { 3, 3, 4, 4, 3, 3, 2, 2, 3, 6, 5, 2, 6, 5, 6, 2, 4, 1, 2, 2, 3,
+                                         3, 3 };
+
+/**
+ * A compiled body. It replaces the instruction tree in {@link Lambda#body}; when it is invoked
+ * by the instruction tree, it starts a new dispatch loop.
+ *
+ * <p>A body without calls can't grow the Java stack, so it is faster to simply evaluate its
+ * instruction tree than to push a frame for it.
+ */
+static final class Body extends AST
+{
+  private static final long serialVersionUID = 1L;
+
+  final AST m_tree;
+  final int[] m_code;
+  final Object[] m_consts;
+  final int m_regCount;
+  /** The body doesn't contain calls */
+  final boolean m_leaf;
+
+  Body ( AST tree, int[] code, Object[] consts, int regCount )
+  {
+    super(tree);
+    m_tree = tree;
+    m_code = code;
+    m_consts = consts;
+    m_regCount = regCount;
+    m_leaf = !hasCall( tree );
+  }
+
+  public final Object evalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    return m_leaf ? m_tree.evalValue( env, ctx ) : run( this, env, ctx );
+  }
+
+  public String toString ()
+  {
+    return "(vm "+ m_tree +")";
+  }
+
+  public Object dis ()
+  {
+    Pair res = Pair.NULL;
+    ArrayList<String> lines = new ArrayList<String>();
+    for ( int pc = 0; pc < m_code.length; pc += s_lengths[m_code[pc]] )
+    {
+      StringBuilder line = new StringBuilder().append( pc ).append( ": " )
+              .append( s_names[m_code[pc]] );
+      for ( int i = 1; i < s_lengths[m_code[pc]]; ++i )
+        line.append( ' ' ).append( m_code[pc+i] );
+      if (m_code[pc] == LIT || m_code[pc] == CLOSURE || m_code[pc] == EVAL)
+        line.append( "  ; " ).append( m_consts[m_code[pc+2]] );
+      lines.add( line.toString() );
+    }
+    for ( int i = lines.size() - 1; i >= 0; --i )
+      res = new Pair( lines.get( i ), res );
+    return new Pair( "vm registers="+ m_regCount, res );
+  }
+}
+
+/**
+ * An operand of an instruction evaluated by {@link #EVAL}, which has been computed into a
+ * register of the current frame.
+ */
+static final class Reg extends AST
+{
+  private static final long serialVersionUID = 1L;
+
+  final int m_index;
+
+  Reg ( ISourceCoords coords, int index )
+  {
+    super(coords);
+    m_index = index;
+  }
+
+  public final Object evalValue ( final Object[] env, final EvalContext ctx )
+  {
+    return ctx.vmRegs[ctx.vmBase + m_index];
+  }
+
+  public String toString ()
+  {
+    return "(reg "+ m_index +")";
+  }
+
+  public Object dis ()
+  {
+    return toString();
+  }
+}
+
+//
+// Compilation
+//
+
+private int[] m_code = new int[64];
+private int m_length;
+private final ArrayList<Object> m_consts = new ArrayList<Object>();
+private final IdentityHashMap<Object,Integer> m_constIndex = new IdentityHashMap<Object,Integer>();
+
+/** The start of the code of an {@link AST.Loop}, the target of its jumps */
+private int m_loopStart;
+/** The register holding the epoch of the loop environment */
+private int m_loopEpoch;
+
+/** The first free register */
+private int m_next;
+private int m_regCount;
+
+private RegisterVM ()
+{}
+
+/**
+ * Compile the body of a lambda or a top level form.
+ */
+static Body compile ( AST tree )
+{
+  RegisterVM c = new RegisterVM();
+  c.compileTail( tree );
+  int[] code = new int[c.m_length];
+  System.arraycopy( c.m_code, 0, code, 0, code.length );
+  return new Body( tree, code, c.m_consts.toArray(), Math.max( c.m_regCount, 1 ) );
+}
+
+private int constIndex ( Object o )
+{
+  Integer index = m_constIndex.get( o );
+  if (index == null)
+  {
+    index = m_consts.size();
+    m_consts.add( o );
+    m_constIndex.put( o, index );
+  }
+  return index;
+}
+
+private int emit ( int... ins )
+{
+  if (m_length + ins.length > m_code.length)
+  {
+    int[] tmp = new int[m_code.length*2 + ins.length];
+    System.arraycopy( m_code, 0, tmp, 0, m_length );
+    m_code = tmp;
+  }
+  int pc = m_length;
+  System.arraycopy( ins, 0, m_code, m_length, ins.length );
+  m_length += ins.length;
+  return pc;
+}
+
+/** Patch the target of the jump at pc to the current position */
+private void label ( int pc )
+{
+  m_code[pc + s_lengths[m_code[pc]] - 1] = m_length;
+}
+
+private int alloc ()
+{
+  int r = m_next++;
+  if (m_next > m_regCount)
+    m_regCount = m_next;
+  return r;
+}
+
+/**
+ * Does evaluating the instruction involve a call? Only then do we need to decompose it.
+ */
+private static boolean hasCall ( AST ast )
+{
+  if (ast instanceof AST.Apply || ast instanceof CachedApply || ast instanceof AST.CallCC ||
+      ast instanceof AST.CallEC || ast instanceof AST.DynamicWind)
+    return true;
+  else if (ast instanceof AST.Builtin)
+    return hasCall( ((AST.Builtin) ast).v );
+  else if (ast instanceof AST.If)
+  {
+    AST.If i = (AST.If) ast;
+    return hasCall( i.m_evalCond ) || hasCall( i.m_evalThen ) || hasCall( i.m_evalElse );
+  }
+  else if (ast instanceof AST.Case)
+    return hasCall( ((AST.Case) ast).m_key ) || hasCall( ((AST.Case) ast).m_bodies );
+  else if (ast instanceof AST.Begin)
+    return hasCall( ((AST.Begin) ast).m_body );
+  else if (ast instanceof AST.SetBang)
+    return hasCall( ((AST.SetBang) ast).value );
+  else if (ast instanceof AST.Trampoline)
+    return hasCall( ((AST.Trampoline) ast).m_ast );
+  else if (ast instanceof AST.Loop)
+    return hasCall( ((AST.Loop) ast).m_body );
+  else if (ast instanceof AST.LoopJump)
+    return hasCall( ((AST.LoopJump) ast).m_values );
+  else if (ast instanceof AST.MakeVector)
+    return hasCall( ((AST.MakeVector) ast).values );
+  else if (ast instanceof ClosureConverter.BoxSetBang)
+    return hasCall( ((ClosureConverter.BoxSetBang) ast).value );
+  else if (ast instanceof ClosureConverter.Boxes)
+    return hasCall( ((ClosureConverter.Boxes) ast).m_body );
+  else
+    return false;
+}
+
+private static boolean hasCall ( AST[] v )
+{
+  for ( AST a : v )
+    if (hasCall( a ))
+      return true;
+  return false;
+}
+
+/**
+ * If the instruction is a call, return its operands in the {@link AST.Apply} layout
+ */
+private static AST[] callOperands ( AST ast )
+{
+  if (ast instanceof AST.Apply || ast instanceof CachedApply)
+    return ((AST.Builtin) ast).v;
+  return null;
+}
+
+/**
+ * Compile a call, leaving the target and the parameters in consecutive registers.
+ * @return the first register
+ */
+private int compileCallOperands ( AST[] v )
+{
+  int base = m_next;
+  for ( int i = 0; i < v.length - 1; ++i )
+    compileValue( v[i], alloc() );
+  // The (apply ...) list, if any, follows the parameters
+  if (v[v.length-1] != AST.Lit.LIT_NULL)
+    compileValue( v[v.length-1], alloc() );
+  return base;
+}
+
+/**
+ * Compile the target of a call/cc or call/ec, leaving a register for the continuation after it.
+ * @return the register of the target
+ */
+private int compileCallCC ( AST target )
+{
+  int base = alloc();
+  compileValue( target, base );
+  alloc();
+  return base;
+}
+
+private void compileTail ( AST ast )
+{
+  AST[] call;
+  if (ast instanceof AST.Trampoline)
+    compileTail( ((AST.Trampoline) ast).m_ast );
+  else if (ast instanceof AST.Loop)
+  {
+    // The register stays allocated for the whole body
+    m_loopEpoch = alloc();
+    emit( EPOCH, m_loopEpoch );
+    m_loopStart = m_length;
+    compileTail( ((AST.Loop) ast).m_body );
+  }
+  else if (ast instanceof AST.LoopJump)
+  {
+    // Evaluate all values before storing any of them
+    AST.LoopJump j = (AST.LoopJump) ast;
+    int base = m_next;
+    for ( AST v : j.m_values )
+      compileValue( v, alloc() );
+    emit( FRESH, m_loopEpoch );
+    for ( int i = 0; i < j.m_slots.length; ++i )
+      emit( SET, 0, j.m_slots[i], base + i );
+    m_next = base;
+    emit( JUMP, m_loopStart );
+  }
+  else if (ast instanceof AST.If)
+  {
+    AST.If i = (AST.If) ast;
+    int mark = m_next;
+    int r = alloc();
+    compileValue( i.m_evalCond, r );
+    m_next = mark;
+    int jelse = emit( JUMPF, r, 0 );
+    compileTail( i.m_evalThen );
+    label( jelse );
+    compileTail( i.m_evalElse );
+  }
+  else if (ast instanceof AST.Case)
+  {
+    AST.Case c = (AST.Case) ast;
+    int mark = m_next;
+    int r = alloc();
+    compileValue( c.m_key, r );
+    m_next = mark;
+    int[] jumps = compileSwitch( c, r );
+    for ( int i = 0; i < jumps.length; ++i )
+    {
+      label( jumps[i] );
+      compileTail( c.m_bodies[i] );
+    }
+  }
+  else if (ast instanceof AST.Begin)
+  {
+    AST[] body = ((AST.Begin) ast).m_body;
+    if (body.length == 0)
+      compileTail( AST.Lit.LIT_UNSPEC );
+    else
+    {
+      for ( int i = 0; i < body.length - 1; ++i )
+        compileEffect( body[i] );
+      compileTail( body[body.length-1] );
+    }
+  }
+  else if (ast instanceof ClosureConverter.Boxes)
+  {
+    emit( BOXES, constIndex( ast ) );
+    compileTail( ((ClosureConverter.Boxes) ast).m_body );
+  }
+  else if ((call = callOperands( ast )) != null)
+  {
+    int mark = m_next;
+    int base = compileCallOperands( call );
+    m_next = mark;
+    emit( TCALL, base, call.length - 2, call[call.length-1] != AST.Lit.LIT_NULL ? 1 : 0,
+          constIndex( ast ) );
+  }
+  else if (ast instanceof AST.CallCC)
+  {
+    int mark = m_next;
+    int base = compileCallCC( ((AST.CallCC) ast).v[0] );
+    m_next = mark;
+    emit( TCALLCC, base, 1, 0, constIndex( ast ) );
+  }
+  else
+  {
+    int mark = m_next;
+    int r = alloc();
+    compileValue( ast, r );
+    m_next = mark;
+    emit( RET, r );
+  }
+}
+
+/**
+ * Emit a SWITCH on the key in register r, followed by its jump table.
+ * @return the jumps to the bodies of the case
+ */
+private int[] compileSwitch ( AST.Case c, int r )
+{
+  emit( SWITCH, r, constIndex( c ) );
+  int[] jumps = new int[c.m_bodies.length];
+  for ( int i = 0; i < jumps.length; ++i )
+    jumps[i] = emit( JUMP, 0 );
+  return jumps;
+}
+
+/**
+ * Compile an instruction whose value is not needed
+ */
+private void compileEffect ( AST ast )
+{
+  int mark = m_next;
+  if (ast instanceof AST.SetBang)
+  {
+    AST.SetBang sb = (AST.SetBang) ast;
+    int r = alloc();
+    compileValue( sb.value, r );
+    if (sb.global)
+      emit( GSET, sb.bindingIndex, r );
+    else
+      emit( SET, sb.envIndex, sb.bindingIndex, r );
+  }
+  else if (!(ast instanceof AST.Lit || ast instanceof AST.Var))
+    compileValue( ast, alloc() );
+  m_next = mark;
+}
+
+/**
+ * Compile an instruction in a value context, leaving its value in register r
+ */
+private void compileValue ( AST ast, int r )
+{
+  int mark = m_next;
+  AST[] call;
+  if (ast instanceof AST.Lit)
+    emit( LIT, r, constIndex( ((AST.Lit) ast).datum ) );
+  else if (ast instanceof AST.Var)
+  {
+    AST.Var var = (AST.Var) ast;
+    if (var.global)
+      emit( GVAR, r, var.bindingIndex );
+    else if (var.envIndex == 0)
+      emit( VAR, r, var.bindingIndex );
+    else
+      emit( VARN, r, var.envIndex, var.bindingIndex );
+  }
+  else if (ast instanceof AST.SetBang)
+  {
+    compileEffect( ast );
+    emit( LIT, r, constIndex( Unspec.UNSPEC ) );
+  }
+  else if (ast instanceof AST.If)
+  {
+    AST.If i = (AST.If) ast;
+    compileValue( i.m_evalCond, r );
+    int jelse = emit( JUMPF, r, 0 );
+    compileValue( i.m_evalThen, r );
+    int jend = emit( JUMP, 0 );
+    label( jelse );
+    compileValue( i.m_evalElse, r );
+    label( jend );
+  }
+  else if (ast instanceof AST.Case)
+  {
+    AST.Case c = (AST.Case) ast;
+    compileValue( c.m_key, r );
+    int[] jumps = compileSwitch( c, r );
+    for ( int i = 0; i < jumps.length; ++i )
+    {
+      label( jumps[i] );
+      compileValue( c.m_bodies[i], r );
+      jumps[i] = emit( JUMP, 0 );
+    }
+    for ( int jend : jumps )
+      label( jend );
+  }
+  else if (ast instanceof AST.Begin)
+  {
+    AST[] body = ((AST.Begin) ast).m_body;
+    if (body.length == 0)
+      compileValue( AST.Lit.LIT_UNSPEC, r );
+    else
+    {
+      for ( int i = 0; i < body.length - 1; ++i )
+        compileEffect( body[i] );
+      compileValue( body[body.length-1], r );
+    }
+  }
+  else if (ast instanceof AST.Trampoline)
+    compileValue( ((AST.Trampoline) ast).m_ast, r );
+  else if (ast instanceof AST.MakeClosure)
+    emit( CLOSURE, r, constIndex( ((AST.MakeClosure) ast).m_lambda ) );
+  else if (ast instanceof ClosureConverter.Boxes)
+  {
+    emit( BOXES, constIndex( ast ) );
+    compileValue( ((ClosureConverter.Boxes) ast).m_body, r );
+  }
+  else if ((call = callOperands( ast )) != null)
+  {
+    int base = compileCallOperands( call );
+    emit( CALL, r, base, call.length - 2, call[call.length-1] != AST.Lit.LIT_NULL ? 1 : 0,
+          constIndex( ast ) );
+  }
+  else if (ast instanceof AST.CallCC)
+    emit( CALLCC, r, compileCallCC( ((AST.CallCC) ast).v[0] ), 1, 0, constIndex( ast ) );
+  else if (ast instanceof AST.CallEC)
+  {
+    int base = compileCallCC( ((AST.CallEC) ast).v[0] );
+    emit( CALLEC, r, base, 1, 0, constIndex( ast ) );
+    emit( ENDEC, base + 1 );
+  }
+  else if (ast instanceof AST.DynamicWind)
+  {
+    AST[] v = ((AST.DynamicWind) ast).v;
+    int before = alloc();
+    compileValue( v[0], before );
+    int thunk = alloc();
+    compileValue( v[1], thunk );
+    int after = alloc();
+    compileValue( v[2], after );
+    int site = constIndex( ast );
+    int tmp = alloc();
+    emit( CALL, tmp, before, 0, 0, site );
+    emit( WIND, before, after, site );
+    emit( CALL, r, thunk, 0, 0, site );
+    emit( UNWIND );
+    emit( CALL, tmp, after, 0, 0, site );
+  }
+  else
+    emit( EVAL, r, constIndex( hasCall( ast ) ? decompose( ast ) : ast ) );
+  m_next = mark;
+}
+
+/**
+ * Compile the operands of an instruction which contain calls into registers and return a
+ * copy of the instruction reading them. Operands after the last call are left alone, so the
+ * order of evaluation doesn't change.
+ */
+private AST decompose ( AST ast )
+{
+  if (ast instanceof AST.Builtin)
+  {
+    AST.Builtin b = (AST.Builtin) ast;
+    AST.Builtin res;
+    try
+    {
+      @SuppressWarnings({"unchecked"})
+      Class<AST.Builtin> cls = (Class<AST.Builtin>) b.getClass();
+      res = new BuiltinFactory<AST.Builtin>( cls ).create( b, b.v.clone() );
+    }
+    catch (RuntimeException e)
+    {
+      return ast;
+    }
+    toRegisters( res.v );
+    return res;
+  }
+  else if (ast instanceof AST.MakeVector)
+  {
+    AST[] values = ((AST.MakeVector) ast).values.clone();
+    toRegisters( values );
+    return new AST.MakeVector( ast, values );
+  }
+  else if (ast instanceof ClosureConverter.BoxSetBang)
+  {
+    ClosureConverter.BoxSetBang sb = (ClosureConverter.BoxSetBang) ast;
+    AST[] value = { sb.value };
+    toRegisters( value );
+    return new ClosureConverter.BoxSetBang( sb, sb.name, sb.envIndex, sb.bindingIndex, value[0] );
+  }
+  else
+    return ast;
+}
+
+private void toRegisters ( AST[] v )
+{
+  int last = v.length - 1;
+  while (last >= 0 && !hasCall( v[last] ))
+    --last;
+  for ( int i = 0; i <= last; ++i )
+  {
+    if (!(v[i] instanceof AST.Lit))
+    {
+      int r = alloc();
+      compileValue( v[i], r );
+      v[i] = new Reg( v[i], r );
+    }
+  }
+}
+
+//
+// Execution
+//
+
+/**
+ * Create the environment of a procedure invocation, with the parameters taken from registers.
+ * The validation and the errors are the same as in {@link AST.Apply#buildEnv}.
+ */
+static Object[] buildEnv ( final AST site, final Closure closure, final Object[] regs,
+                           final int first, int argc, Object restArgs ) throws SchemeError
+{
+  return buildEnv( site, closure, closure.lambda, regs, first, argc, restArgs );
+}
+
+/**
+ * @param proc the lambda of the closure or one of its clauses
+ */
+static Object[] buildEnv ( final AST site, final Closure closure, final Lambda proc,
+                           final Object[] regs, final int first, int argc, Object restArgs )
+        throws SchemeError
+{
+
+  // The frequent case: the parameters match exactly
+  if (restArgs == Pair.NULL && argc == proc.paramCount && !proc.haveRest && proc.envSize > 0)
+  {
+    Object[] callEnv = new Object[proc.envSize];
+    callEnv[Scope.PARENT_SLOT] = closure.parentEnv;
+    System.arraycopy( regs, first, callEnv, Scope.RESERVED_SLOTS, argc );
+    for ( int i = Scope.RESERVED_SLOTS + argc, end = proc.envSize; i < end; ++i )
+      callEnv[i] = Unspec.UNSPEC;
+    return callEnv;
+  }
+
+  int actualParamCount = argc;
+  if (restArgs != Pair.NULL)
+  {
+    if (!(restArgs instanceof Pair))
+      throw new EvalError( site, "Last parameter of (apply...) is not a list" );
+    try
+    {
+      for ( Pair p = (Pair) restArgs; p != Pair.NULL; p = (Pair) p.getCdr())
+        ++actualParamCount;
+    }
+    catch (ClassCastException e)
+    {
+      throw new EvalError( site, "Last parameter of (apply...) is not a proper list" );
+    }
+  }
+
+  if (actualParamCount < proc.paramCount || actualParamCount > proc.paramCount && !proc.haveRest)
+    throw new EvalError( site, String.format("Call to %s expects %s%d parameters",
+                                             proc, proc.haveRest?"at least ":"", proc.paramCount) );
+
+  if (proc.envSize == 0)
+    return null;
+
+  if (proc.spreadRest)
+  {
+    Object[] callEnv = new Object[Scope.RESERVED_SLOTS + actualParamCount];
+    callEnv[Scope.PARENT_SLOT] = closure.parentEnv;
+    System.arraycopy( regs, first, callEnv, Scope.RESERVED_SLOTS, argc );
+    int i = Scope.RESERVED_SLOTS + argc;
+    for ( Object p = restArgs; p != Pair.NULL; p = ((Pair) p).getCdr() )
+      callEnv[i++] = ((Pair) p).getCar();
+    return callEnv;
+  }
+
+  Object[] callEnv = new Object[proc.envSize];
+  callEnv[Scope.PARENT_SLOT] = closure.parentEnv;
+
+  int i = Scope.RESERVED_SLOTS;
+  int paramIndex;
+  for ( paramIndex = 0; paramIndex < proc.paramCount; ++paramIndex )
+  {
+    if (paramIndex < argc)
+      callEnv[i++] = regs[first + paramIndex];
+    else
+    {
+      Pair p = (Pair) restArgs;
+      callEnv[i++] = p.getCar();
+      restArgs = p.getCdr();
+    }
+  }
+  if (proc.haveRest)
+  {
+    Object rest = restArgs;
+    for ( int j = argc - 1; j >= paramIndex; --j )
+      rest = new Pair( regs[first + j], rest );
+    callEnv[i++] = rest;
+  }
+  for ( int end = proc.envSize; i < end; ++i )
+    callEnv[i] = Unspec.UNSPEC;
+
+  return callEnv;
+}
+
+private static Object[] grow ( Object[] regs, int size )
+{
+  Object[] tmp = new Object[Math.max( regs.length*2, size )];
+  System.arraycopy( regs, 0, tmp, 0, regs.length );
+  return tmp;
+}
+
+/**
+ * Identifies an invocation of {@link #run}, which delimits the continuations captured in it.
+ */
+private static final class Prompt
+{
+  boolean active = true;
+}
+
+/**
+ * A continuation captured by {@link #CALLCC}: a copy of the frames and registers of the
+ * dispatch loop. Only the frames of the current loop are captured, so the cost is proportional
+ * to the depth of the Scheme stack.
+ *
+ * <p>Invoking it (re)instates a copy of the frames, so it can be invoked any number of times,
+ * also after its {@code call/cc} has returned. If the dispatch loop which captured it is still
+ * active further down the Java stack, we first unwind to it. Otherwise the frames replace those
+ * of the current loop, which then returns the result of the bottom frame to its caller.
+ */
+static final class Continuation extends JavaProcedure
+{
+  private static final long serialVersionUID = 1L;
+
+  private final transient Prompt m_prompt;
+  final Body[] m_bodies;
+  final Object[][] m_envs;
+  final int[] m_pcs;
+  final int[] m_bases;
+  final Object[] m_regs;
+  final transient EvalContext.Winder m_winders;
+
+  /**
+   * Capture count frames and, if top isn't null, the current frame continuing at topPc.
+   */
+  Continuation ( Prompt prompt, Body[] bodies, Object[][] envs, int[] pcs, int[] bases,
+                 int count, Body top, Object[] topEnv, int topPc, int topBase,
+                 Object[] regs, int regCount, EvalContext.Winder winders )
+  {
+    super(1, false);
+    m_prompt = prompt;
+    m_winders = winders;
+    int n = top != null ? count + 1 : count;
+    m_bodies = new Body[n];
+    System.arraycopy( bodies, 0, m_bodies, 0, count );
+    m_envs = new Object[n][];
+    System.arraycopy( envs, 0, m_envs, 0, count );
+    m_pcs = new int[n];
+    System.arraycopy( pcs, 0, m_pcs, 0, count );
+    m_bases = new int[n];
+    System.arraycopy( bases, 0, m_bases, 0, count );
+    if (top != null)
+    {
+      m_bodies[count] = top;
+      m_envs[count] = topEnv;
+      m_pcs[count] = topPc;
+      m_bases[count] = topBase;
+    }
+    m_regs = new Object[regCount];
+    System.arraycopy( regs, 0, m_regs, 0, regCount );
+  }
+
+  /** Must it be instated by the dispatch loop with this prompt? */
+  final boolean belongsTo ( Prompt prompt )
+  {
+    return m_prompt == prompt || m_prompt == null || !m_prompt.active;
+  }
+
+  public Object apply ( final Object[] argv )
+  {
+    throw new Resume( this, argv[ARG0] );
+  }
+
+  public String toString ()
+  {
+    return "#<continuation>";
+  }
+}
+
+/**
+ * An escape continuation captured by {@link #CALLEC}. It records only the position of the frame
+ * of its {@code call/ec}, which the dispatch loop simply pops back to.
+ */
+static final class EscapeContinuation extends AST.EscapeProcedure
+{
+  private static final long serialVersionUID = 1L;
+
+  private final transient Prompt m_prompt;
+  private final int m_depth;
+  private final transient Body m_body;
+  private final transient Object[] m_env;
+  private final int m_pc;
+  private final int m_base;
+
+  EscapeContinuation ( Prompt prompt, EvalContext.Winder winders, int depth, Body body,
+                       Object[] env, int pc, int base )
+  {
+    super( winders );
+    m_prompt = prompt;
+    m_depth = depth;
+    m_body = body;
+    m_env = env;
+    m_pc = pc;
+    m_base = base;
+  }
+
+  public Object apply ( final Object[] argv ) throws SchemeError
+  {
+    // Its frame is gone with the dispatch loop
+    if (!m_prompt.active)
+      m_done = true;
+    return super.apply( argv );
+  }
+}
+
+/**
+ * Transfers control to the dispatch loop which must instate a continuation.
+ */
+@SuppressWarnings({"serial"})
+private static final class Resume extends AST.ControlTransfer
+{
+  final Continuation continuation;
+  final Object value;
+
+  Resume ( Continuation continuation, Object value )
+  {
+    this.continuation = continuation;
+    this.value = value;
+  }
+}
+
+/**
+ * The dispatch loop.
+ */
+static Object run ( final Body entry, Object[] env, final EvalContext ctx ) throws SchemeError
+{
+  final Object[] savedRegs = ctx.vmRegs;
+  final int savedBase = ctx.vmBase;
+  final EvalContext.Winder savedWinders = ctx.winders;
+  final Prompt prompt = new Prompt();
+
+  Object[] regs = new Object[Math.max( 32, entry.m_regCount*2 )];
+
+  // The frame stack of the callers
+  Body[] fbody = new Body[16];
+  Object[][] fenv = new Object[16][];
+  int[] fpc = new int[16];
+  int[] fbase = new int[16];
+  int fp = 0;
+
+  Body body = entry;
+  int[] code = body.m_code;
+  Object[] k = body.m_consts;
+  int base = 0;
+  int pc = 0;
+
+  try
+  {
+    for(;;)
+    {
+      try
+      {
+        for(;;)
+        {
+          int op;
+          switch (op = code[pc])
+          {
+          case LIT:
+            regs[base + code[pc+1]] = k[code[pc+2]];
+            pc += 3;
+            break;
+
+          case VAR:
+            regs[base + code[pc+1]] = env[code[pc+2]];
+            pc += 3;
+            break;
+
+          case VARN:
+          {
+            Object[] e = env;
+            for ( int i = code[pc+2]; i > 0; --i )
+              e = (Object[]) e[Scope.PARENT_SLOT];
+            regs[base + code[pc+1]] = e[code[pc+3]];
+            pc += 4;
+            break;
+          }
+
+          case SET:
+          {
+            Object[] e = env;
+            for ( int i = code[pc+1]; i > 0; --i )
+              e = (Object[]) e[Scope.PARENT_SLOT];
+            e[code[pc+2]] = regs[base + code[pc+3]];
+            pc += 4;
+            break;
+          }
+
+          case GVAR:
+            regs[base + code[pc+1]] = ctx.rootEnv[code[pc+2]];
+            pc += 3;
+            break;
+
+          case GSET:
+            ctx.rootEnv[code[pc+1]] = regs[base + code[pc+2]];
+            pc += 3;
+            break;
+
+          case CLOSURE:
+            regs[base + code[pc+1]] = new Closure( env, (Lambda) k[code[pc+2]] );
+            pc += 3;
+            break;
+
+          case EVAL:
+            ctx.vmRegs = regs;
+            ctx.vmBase = base;
+            regs[base + code[pc+1]] = ((AST) k[code[pc+2]]).evalValue( env, ctx );
+            pc += 3;
+            break;
+
+          case BOXES:
+            ((ClosureConverter.Boxes) k[code[pc+1]]).box( env );
+            pc += 2;
+            break;
+
+          case JUMP:
+            pc = code[pc+1];
+            break;
+
+          case JUMPF:
+            pc = regs[base + code[pc+1]] != Boolean.FALSE ? pc + 3 : code[pc+2];
+            break;
+
+          case SWITCH:
+            pc += 3 + 2 * ((AST.Case) k[code[pc+2]]).m_table.index( regs[base + code[pc+1]] );
+            break;
+
+          case CALL:
+          case TCALL:
+          case CALLCC:
+          case TCALLCC:
+          case CALLEC:
+          {
+            boolean tail = op == TCALL || op == TCALLCC;
+            int first = base + code[tail ? pc+1 : pc+2];
+            int argc = code[tail ? pc+2 : pc+3];
+            AST site = (AST) k[code[tail ? pc+4 : pc+5]];
+
+            Object target = regs[first];
+            if (op == CALLCC || op == TCALLCC)
+            {
+              if (!(target instanceof Closure))
+                throw new EvalError( site, "call/cc with non-procedure parameter" );
+              // The continuation of a tail call/cc is the return to our caller
+              Continuation cont = tail ?
+                new Continuation( prompt, fbody, fenv, fpc, fbase, fp, null, null, 0, 0, regs,
+                                  fp > 0 ? fbase[fp-1] + fbody[fp-1].m_regCount : 0, ctx.winders ) :
+                new Continuation( prompt, fbody, fenv, fpc, fbase, fp, body, env, pc + 6, base,
+                                  regs, base + body.m_regCount, ctx.winders );
+              regs[first + 1] = new Closure( null, cont );
+              ctx.vmEpoch = new Object();
+            }
+            else if (op == CALLEC)
+            {
+              if (!(target instanceof Closure))
+                throw new EvalError( site, "call/ec with non-procedure parameter" );
+              regs[first + 1] = new Closure( null, new EscapeContinuation( prompt, ctx.winders, fp,
+                                                                         body, env, pc + 6, base ) );
+            }
+            else if (!(target instanceof Closure))
+              throw new EvalError( site, "Call of non-procedure" );
+            ctx.poll( site );
+            Closure closure = (Closure) target;
+            Lambda proc = closure.lambda;
+            Object restArgs = code[tail ? pc+3 : pc+4] != 0 ? regs[first+argc+1] : Pair.NULL;
+            if (proc.clauses != null && restArgs == Pair.NULL)
+              proc = CaseLambda.select( proc, argc );
+            // Compile a lazy body now, so we can continue in it without leaving the loop
+            if (proc.body instanceof LazyBody)
+              ((LazyBody) proc.body).compile();
+            Object[] callEnv = buildEnv( site, closure, proc, regs, first + 1, argc, restArgs );
+
+            if (proc.body instanceof Body && !((Body) proc.body).m_leaf)
+            {
+              if (!tail)
+              {
+                if (fp == fbody.length)
+                {
+                  int len = fp*2;
+                  Body[] b = new Body[len]; System.arraycopy( fbody, 0, b, 0, fp ); fbody = b;
+                  Object[][] e = new Object[len][]; System.arraycopy( fenv, 0, e, 0, fp ); fenv = e;
+                  int[] p = new int[len]; System.arraycopy( fpc, 0, p, 0, fp ); fpc = p;
+                  int[] s = new int[len]; System.arraycopy( fbase, 0, s, 0, fp ); fbase = s;
+                }
+                fbody[fp] = body;
+                fenv[fp] = env;
+                fpc[fp] = pc + 6;
+                fbase[fp] = base;
+                ++fp;
+                base += body.m_regCount;
+              }
+              body = (Body) proc.body;
+              code = body.m_code;
+              k = body.m_consts;
+              env = callEnv;
+              pc = 0;
+              if (base + body.m_regCount > regs.length)
+                regs = grow( regs, base + body.m_regCount );
+              break;
+            }
+
+            Object value = proc instanceof JavaProcedure ?
+                    ((JavaProcedure) proc).apply( callEnv ) : proc.body.evalValue( callEnv, ctx );
+            if (!tail)
+            {
+              regs[base + code[pc+1]] = value;
+              pc += 6;
+              break;
+            }
+            if (fp == 0)
+              return value;
+            --fp;
+            body = fbody[fp];
+            code = body.m_code;
+            k = body.m_consts;
+            env = fenv[fp];
+            pc = fpc[fp];
+            base = fbase[fp];
+            fbody[fp] = null;
+            fenv[fp] = null;
+            regs[base + code[pc-5]] = value;
+            break;
+          }
+
+          case ENDEC:
+            ((AST.EscapeProcedure) ((Closure) regs[base + code[pc+1]]).lambda).m_done = true;
+            pc += 2;
+            break;
+
+          case WIND:
+            ctx.winders = new EvalContext.Winder( (AST) k[code[pc+3]], regs[base + code[pc+1]],
+                                                  regs[base + code[pc+2]], ctx.winders );
+            pc += 4;
+            break;
+
+          case UNWIND:
+            ctx.winders = ctx.winders.next;
+            pc += 1;
+            break;
+
+          case EPOCH:
+            regs[base + code[pc+1]] = ctx.vmEpoch;
+            pc += 2;
+            break;
+
+          case FRESH:
+            // Every loop back-edge starts here
+            ctx.poll( body );
+            if (regs[base + code[pc+1]] != ctx.vmEpoch)
+            {
+              env = env.clone();
+              regs[base + code[pc+1]] = ctx.vmEpoch;
+            }
+            pc += 2;
+            break;
+
+          case RET:
+          {
+            Object value = regs[base + code[pc+1]];
+            if (fp == 0)
+              return value;
+            --fp;
+            body = fbody[fp];
+            code = body.m_code;
+            k = body.m_consts;
+            env = fenv[fp];
+            pc = fpc[fp];
+            base = fbase[fp];
+            fbody[fp] = null;
+            fenv[fp] = null;
+            regs[base + code[pc-5]] = value;
+            break;
+          }
+
+          default:
+            throw new IllegalStateException( "Invalid opcode "+ code[pc] );
+          }
+        }
+      }
+      catch (AST.Escape x)
+      {
+        if (!(x.target instanceof EscapeContinuation) ||
+            ((EscapeContinuation) x.target).m_prompt != prompt)
+          throw x;
+        EscapeContinuation c = (EscapeContinuation) x.target;
+
+        // Its frame must still be live: either pending, or the current one, still executing the
+        // CALLEC
+        int d = c.m_depth;
+        if (d < fp && fbody[d] == c.m_body && fenv[d] == c.m_env && fpc[d] == c.m_pc)
+        {
+          for ( int i = d; i < fp; ++i )
+          {
+            fbody[i] = null;
+            fenv[i] = null;
+          }
+          fp = d;
+        }
+        else if (!(d == fp && body == c.m_body && env == c.m_env && pc == c.m_pc - 6))
+          throw new SchemeError( "Escape continuation invoked outside of its extent" );
+
+        ctx.rewind( c.winders );
+        body = c.m_body;
+        code = body.m_code;
+        k = body.m_consts;
+        env = c.m_env;
+        pc = c.m_pc;
+        base = c.m_base;
+        regs[base + code[pc-5]] = x.value;
+      }
+      catch (Resume r)
+      {
+        Continuation c = r.continuation;
+        if (!c.belongsTo( prompt ))
+          throw r;
+
+        ctx.rewind( c.m_winders );
+        // Instate a copy of the captured frames and return the value to the top one
+        int n = c.m_bodies.length;
+        if (n == 0)
+          return r.value;
+        if (c.m_regs.length > regs.length)
+          regs = new Object[c.m_regs.length*2];
+        System.arraycopy( c.m_regs, 0, regs, 0, c.m_regs.length );
+        if (n > fbody.length)
+        {
+          fbody = new Body[n*2];
+          fenv = new Object[n*2][];
+          fpc = new int[n*2];
+          fbase = new int[n*2];
+        }
+        for ( int i = n; i < fp; ++i )
+        {
+          fbody[i] = null;
+          fenv[i] = null;
+        }
+        fp = n - 1;
+        System.arraycopy( c.m_bodies, 0, fbody, 0, fp );
+        System.arraycopy( c.m_envs, 0, fenv, 0, fp );
+        System.arraycopy( c.m_pcs, 0, fpc, 0, fp );
+        System.arraycopy( c.m_bases, 0, fbase, 0, fp );
+        body = c.m_bodies[fp];
+        code = body.m_code;
+        k = body.m_consts;
+        env = c.m_envs[fp];
+        pc = c.m_pcs[fp];
+        base = c.m_bases[fp];
+        if (base + body.m_regCount > regs.length)
+          regs = grow( regs, base + body.m_regCount );
+        regs[base + code[pc-5]] = r.value;
+      }
+    }
+  }
+  catch (Exception e)
+  {
+    // An error leaves the dynamic-winds entered by this loop
+    if (!(e instanceof AST.ControlTransfer) && ctx.winders != savedWinders)
+      ctx.rewind( savedWinders );
+
+    // Report the error like the nested evaluation of the instruction tree would: through the
+    // failing call site and then through the call site of every pending frame
+    if (code[pc] == CALL || code[pc] == CALLCC || code[pc] == CALLEC)
+      e = report( (AST) k[code[pc+5]], e );
+    else if (code[pc] == TCALL || code[pc] == TCALLCC)
+      e = report( (AST) k[code[pc+4]], e );
+    while (fp > 0)
+    {
+      --fp;
+      int[] c = fbody[fp].m_code;
+      e = report( (AST) fbody[fp].m_consts[c[fpc[fp]-1]], e );
+    }
+    if (e instanceof SchemeError)
+      throw (SchemeError) e;
+    throw (RuntimeException) e;
+  }
+  finally
+  {
+    prompt.active = false;
+    ctx.vmRegs = savedRegs;
+    ctx.vmBase = savedBase;
+  }
+}
+
+/**
+ * Pass an exception through the handler of a call site
+ * @return the exception it throws
+ */
+private static Exception report ( AST site, Exception e )
+{
+  try
+  {
+    site.handleException( e );
+  }
+  catch (Exception res)
+  {
+    return res;
+  }
+  return e; // unreachable
+}
+
+} // class
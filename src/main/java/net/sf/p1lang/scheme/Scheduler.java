@@ -0,0 +1,317 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many evaluations at once, but at most a fixed number of them at a time.
+ *
+ * <p>A started task evaluates in a thread of its own (a virtual thread where they are
+ * supported), and runs only while it holds one of the worker permits. At the end of each time
+ * slice (see {@link EvalContext#poll}) a task gives up its permit if other tasks are waiting for
+ * one and queues behind them, so a runaway evaluation delays the others by at most a slice. The
+ * waiting tasks are suspended, and their time doesn't count against their CPU budget.
+ *
+ * <p>Without virtual threads every started task occupies a platform thread until it finishes,
+ * so the number of started tasks is limited as well (see {@link #Scheduler(int, int)}). The
+ * tasks beyond the limit wait in the order they were submitted, without a thread, until a
+ * started task finishes; their timeout runs while they wait. They don't get time slices, so
+ * with more runaway tasks than threads the others can wait until the runaways time out. With
+ * virtual threads every task is started immediately. Coroutines created by a task run in
+ * threads of their own, which aren't counted.
+ *
+ * <p>A scheduler which is no longer needed must be {@link #shutdown() shut down}, so that its
+ * threads exit when its tasks finish.
+ *
+ * <p>An interpreter is not thread safe, so tasks which may run at the same time must use
+ * different interpreters, for example forks of the same one (see {@link SchemeInterpreter#fork}).
+ */
+public final class Scheduler
+{
+private final Semaphore m_workers;
+/** The threads of the started tasks */
+private final ThreadPoolExecutor m_threads;
+/** The tasks which haven't finished */
+private final Set<Task> m_tasks = Collections.synchronizedSet( new HashSet<Task>() );
+
+/**
+ * Create a scheduler which starts up to {@code 4*workers} tasks.
+ * @param workers the number of tasks running at the same time
+ */
+public Scheduler ( int workers )
+{
+  this( workers, workers * 4 );
+}
+
+/**
+ * @param workers the number of tasks running at the same time
+ * @param threads the number of tasks started at the same time, and so of threads. The tasks
+ *   share the workers in time slices. Virtual threads are cheap, so where they are supported
+ *   there is no limit.
+ */
+public Scheduler ( int workers, int threads )
+{
+  if (workers < 1)
+    throw new IllegalArgumentException( "Invalid number of workers" );
+  if (threads < workers)
+    throw new IllegalArgumentException( "Fewer threads than workers" );
+  m_workers = new Semaphore( workers, true );
+  if (Coroutine.virtualThreads())
+    threads = Integer.MAX_VALUE;
+  m_threads = new ThreadPoolExecutor( threads, threads, 10, TimeUnit.SECONDS,
+                                      new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+    public Thread newThread ( Runnable r )
+    {
+      return Coroutine.newThread( r, "scheduler" );
+    }
+  });
+  // Don't keep idle threads
+  m_threads.allowCoreThreadTimeOut( true );
+}
+
+/**
+ * Evaluate a string in a new task. The task is started when fewer than the maximum number of
+ * tasks are running.
+ * @param budget the limits of the evaluation, or null for none
+ * @throws IllegalStateException if the scheduler has been shut down
+ */
+public Task submit ( SchemeInterpreter interp, String code, Budget budget )
+{
+  Task task = new Task( budget != null ? budget : new Budget() );
+  m_tasks.add( task );
+  try
+  {
+    m_threads.execute( new Start( task, interp, code ) );
+  }
+  catch (RejectedExecutionException e)
+  {
+    m_tasks.remove( task );
+    throw new IllegalStateException( "Scheduler is shut down" );
+  }
+  return task;
+}
+
+/**
+ * Stop accepting tasks. The submitted tasks still run, and the threads exit when they finish.
+ */
+public void shutdown ()
+{
+  m_threads.shutdown();
+}
+
+/**
+ * Stop accepting tasks and cancel the unfinished ones: the running tasks fail with
+ * {@link BudgetExceededError} at their next check, the waiting ones right away. The threads
+ * are interrupted, which also wakes up tasks blocked in Java code.
+ */
+public void shutdownNow ()
+{
+  Task[] tasks;
+  synchronized (m_tasks)
+  {
+    tasks = m_tasks.toArray( new Task[m_tasks.size()] );
+  }
+  for ( Task task : tasks )
+    task.cancel();
+  // The tasks which were never started
+  for ( Runnable r : m_threads.shutdownNow() )
+    ((Start) r).m_task.finish( new BudgetExceededError( null, "Evaluation cancelled" ) );
+}
+
+public boolean isShutdown ()
+{
+  return m_threads.isShutdown();
+}
+
+/**
+ * Wait for all tasks to finish after a shutdown.
+ * @return false if the timeout elapsed first
+ */
+public boolean awaitTermination ( long timeout, TimeUnit unit ) throws InterruptedException
+{
+  return m_threads.awaitTermination( timeout, unit );
+}
+
+/** Runs a task in a thread of the pool */
+private static final class Start implements Runnable
+{
+  final Task m_task;
+  private final SchemeInterpreter m_interp;
+  private final String m_code;
+
+  Start ( Task task, SchemeInterpreter interp, String code )
+  {
+    m_task = task;
+    m_interp = interp;
+    m_code = code;
+  }
+
+  public void run ()
+  {
+    m_task.run( m_interp, m_code );
+  }
+}
+
+/**
+ * An evaluation submitted to the scheduler
+ */
+public final class Task
+{
+  private final Budget m_budget;
+  private final CountDownLatch m_done = new CountDownLatch( 1 );
+  private Object m_value;
+  private Throwable m_error;
+  /** The task holds a permit */
+  private volatile boolean m_running;
+  /** The thread of the task while it waits for a permit. Guarded by {@code this}. */
+  private Thread m_waiter;
+
+  private Task ( Budget budget )
+  {
+    m_budget = budget;
+    // Waiting to be started counts towards the timeout. If the budget is already exhausted
+    // the task fails when it starts.
+    try
+    {
+      budget.start();
+    }
+    catch (BudgetExceededError ignored)
+    {}
+  }
+
+  private void run ( SchemeInterpreter interp, String code )
+  {
+    Throwable error = null;
+    try
+    {
+      // Waiting for the first slice counts towards the timeout
+      acquire( null );
+      m_value = interp.eval( code, m_budget, this );
+    }
+    catch (Throwable e)
+    {
+      error = e;
+    }
+    finally
+    {
+      if (m_running)
+      {
+        m_running = false;
+        m_workers.release();
+      }
+      finish( error );
+    }
+  }
+
+  private void finish ( Throwable error )
+  {
+    m_error = error;
+    m_tasks.remove( this );
+    m_done.countDown();
+  }
+
+  /**
+   * Wait for a permit. Without a timeout the wait is unbounded, so {@link #cancel()}
+   * interrupts it.
+   */
+  private void acquire ( AST site ) throws BudgetExceededError
+  {
+    synchronized (this)
+    {
+      if (m_budget.isCancelled())
+        throw new BudgetExceededError( site, "Evaluation cancelled" );
+      m_waiter = Thread.currentThread();
+    }
+    boolean acquired;
+    try
+    {
+      acquired = m_workers.tryAcquire( m_budget.remaining(), TimeUnit.NANOSECONDS );
+    }
+    catch (InterruptedException e)
+    {
+      throw new BudgetExceededError( site, "Evaluation cancelled" );
+    }
+    finally
+    {
+      synchronized (this)
+      {
+        m_waiter = null;
+        // Clear an interrupt which came after we got the permit
+        Thread.interrupted();
+      }
+    }
+    if (!acquired)
+      throw new BudgetExceededError( site, "Evaluation timed out" );
+    m_running = true;
+    m_budget.check( site );
+  }
+
+  /**
+   * Called at the end of a slice: let the waiting tasks run first
+   */
+  final void yield ( EvalContext ctx, AST site ) throws BudgetExceededError
+  {
+    if (m_workers.hasQueuedThreads())
+    {
+      m_running = false;
+      m_workers.release();
+      acquire( site );
+      ctx.restartSlice();
+    }
+  }
+
+  public Budget getBudget ()
+  {
+    return m_budget;
+  }
+
+  /**
+   * Cancel the budget of the task. A running task stops at its next check, a task waiting for
+   * its slice right away.
+   */
+  public synchronized void cancel ()
+  {
+    m_budget.cancel();
+    if (m_waiter != null)
+      m_waiter.interrupt();
+  }
+
+  public boolean isDone ()
+  {
+    return m_done.getCount() == 0;
+  }
+
+  /**
+   * Wait for the task to finish.
+   * @return the value of the evaluation
+   * @throws SchemeError the error of the evaluation, e.g. {@link BudgetExceededError}
+   */
+  public Object get () throws SchemeError, InterruptedException
+  {
+    m_done.await();
+    if (m_error == null)
+      return m_value;
+    if (m_error instanceof SchemeError)
+      throw (SchemeError) m_error;
+    if (m_error instanceof RuntimeException)
+      throw (RuntimeException) m_error;
+    throw (Error) m_error;
+  }
+}
+
+} // class
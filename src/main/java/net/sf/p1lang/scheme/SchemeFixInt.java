@@ -19,8 +19,17 @@ public final long value;
 static final BigInteger s_biMIN_VALUE = BigInteger.valueOf(Long.MIN_VALUE);
 static final BigInteger s_biMAX_VALUE = BigInteger.valueOf(Long.MAX_VALUE);
 
-private static final int MIN_PREALLOC = -100;
-private static final int MAX_PREALLOC = 1000;
+/**
+ * Small integers are preallocated. The upper bound can be changed with the system property
+ * {@code scheme.fixint.cache}, since loop counters often go well beyond the default. It is
+ * clamped to {@link #MIN_CACHE}..{@link #MAX_CACHE}, so that the table is neither useless nor
+ * huge.
+ */
+private static final int MIN_PREALLOC = -128;
+private static final int MIN_CACHE = 127;
+private static final int MAX_CACHE = 65535;
+private static final int MAX_PREALLOC =
+  Math.min( Math.max( MIN_CACHE, Integer.getInteger( "scheme.fixint.cache", 4095 ) ), MAX_CACHE );
 private static final SchemeFixInt[] s_prealloc = new SchemeFixInt[MAX_PREALLOC-MIN_PREALLOC+1];
 static {
   for ( int i = MIN_PREALLOC; i <= MAX_PREALLOC; ++i )
@@ -144,12 +153,7 @@ public SchemeNumber add ( final SchemeNumber o ) throws ArithmeticException
     return o.add( this );
 
   // We know there is no lesser rank than us, so we optimize a little
-  long a = value;
-  long b = ((SchemeFixInt)o).value;
-  if (b >= 0 && a + b < a || b < 0 && a + b > a)
-    return SchemeBigInt.makeBigInt(BigInteger.valueOf(a).add(BigInteger.valueOf(b)));
-  else
-    return make( a + b );
+  return add( value, ((SchemeFixInt)o).value );
 }
 
 public SchemeNumber sub ( final SchemeNumber o ) throws ArithmeticException
@@ -158,23 +162,13 @@ public SchemeNumber sub ( final SchemeNumber o ) throws ArithmeticException
     return o.subr( this );
 
   // We know there is no lesser rank than us, so we optimize a little
-  long a = value;
-  long b = ((SchemeFixInt)o).value;
-  if (b >= 0 && a - b > a || b < 0 && a - b < a)
-    return SchemeBigInt.makeBigInt(BigInteger.valueOf(a).subtract(BigInteger.valueOf(b)));
-  else
-    return make( a - b );
+  return sub( value, ((SchemeFixInt)o).value );
 }
 
 protected SchemeNumber subr ( final SchemeNumber o ) throws ArithmeticException
 {
   // We know there is no lesser rank than us, so we optimize a little
-  long a = ((SchemeFixInt)o).value;
-  long b = value;
-  if (b >= 0 && a - b > a || b < 0 && a - b < a)
-    return SchemeBigInt.makeBigInt(BigInteger.valueOf(a).subtract(BigInteger.valueOf(b)));
-  else
-    return make( a - b );
+  return sub( ((SchemeFixInt)o).value, value );
 }
 
 public SchemeNumber mul ( final SchemeNumber o ) throws ArithmeticException
@@ -183,36 +177,56 @@ public SchemeNumber mul ( final SchemeNumber o ) throws ArithmeticException
     return o.mul( this );
 
   // We know there is no lesser rank than us, so we optimize a little
-  long a = value;
-  long b = ((SchemeFixInt)o).value;
-  if (a == 0 || b == 0)
-    return ZERO;
-  if (b == 1)
+  if (((SchemeFixInt)o).value == 1)
     return this;
+  return mul( value, ((SchemeFixInt)o).value );
+}
 
-  boolean ovf = false;
+/*
+ * Arithmetic on unboxed values, used directly by the builtins when both operands are fixnums.
+ * The JIT compiles Math.addExact() and friends to the machine's overflow checks.
+ */
 
-  if (a > 0 && b > 0)
+static SchemeInteger add ( final long a, final long b )
+{
+  final long r;
+  try
   {
-    if (b > Long.MAX_VALUE / a) ovf = true;
+    r = Math.addExact( a, b );
   }
-  else if (a > 0 && b < 0)
+  catch (ArithmeticException overflow)
   {
-    if (b < Long.MIN_VALUE / a) ovf = true;
+    return SchemeBigInt.makeBigInt( BigInteger.valueOf(a).add( BigInteger.valueOf(b) ) );
   }
-  else if (a < 0 && b > 0)
+  return make( r );
+}
+
+static SchemeInteger sub ( final long a, final long b )
+{
+  final long r;
+  try
   {
-    if (a < Long.MIN_VALUE / b) ovf = true;
+    r = Math.subtractExact( a, b );
   }
-  else
+  catch (ArithmeticException overflow)
   {
-    if (b < Long.MAX_VALUE / a) ovf = true;
+    return SchemeBigInt.makeBigInt( BigInteger.valueOf(a).subtract( BigInteger.valueOf(b) ) );
   }
+  return make( r );
+}
 
-  if (ovf)
-    return SchemeBigInt.makeBigInt(BigInteger.valueOf(a).multiply(BigInteger.valueOf(b)));
-  else
-    return make( a * b );
+static SchemeInteger mul ( final long a, final long b )
+{
+  final long r;
+  try
+  {
+    r = Math.multiplyExact( a, b );
+  }
+  catch (ArithmeticException overflow)
+  {
+    return SchemeBigInt.makeBigInt( BigInteger.valueOf(a).multiply( BigInteger.valueOf(b) ) );
+  }
+  return make( r );
 }
 
 public SchemeNumber div ( final SchemeNumber o ) throws ArithmeticException
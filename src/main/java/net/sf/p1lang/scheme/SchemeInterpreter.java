@@ -10,9 +10,11 @@ package net.sf.p1lang.scheme;
 import java.io.StringReader;
 import java.io.Reader;
 import java.io.IOException;
+import java.io.Serializable;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.List;
 import java.util.ArrayList;
 import java.net.URL;
@@ -24,23 +26,223 @@ import net.sf.p1lang.scheme.baselib.NumberToStringProcedure;
 
 public class SchemeInterpreter
 {
-private final SymbolMap m_map = new SymbolMap();
-private final HashMap<Symbol, BuiltinFactory> m_builtins = new HashMap<Symbol,BuiltinFactory>();
+/**
+ * Configuration of an interpreter instance. The defaults can be overridden with system
+ * properties, which is convenient for running an unmodified program or test suite in a different
+ * configuration.
+ */
+public static final class Options
+{
+  /**
+   * Rewrite compiled code into instructions specialized by number of parameters and environment
+   * depth (see {@link Specializer}). System property {@code scheme.specialize}.
+   */
+  public boolean specialize = Boolean.getBoolean( "scheme.specialize" );
+
+  /**
+   * Compile a lambda to JVM bytecode after it has been invoked this many times (see
+   * {@link BytecodeCompiler}). Zero disables compilation. System property
+   * {@code scheme.jit.threshold}.
+   */
+  public int jitThreshold = Integer.getInteger( "scheme.jit.threshold", 0 );
+
+  /**
+   * Reuse the environments of procedures which can't let them escape, instead of allocating
+   * new ones on every non-tail call (see {@link Lambda#reuseFrame}). System property
+   * {@code scheme.reuseFrames}.
+   */
+  public boolean reuseFrames = Boolean.getBoolean( "scheme.reuseFrames" );
+
+  /**
+   * Convert nested lambdas to flat closures, which copy the variables they use instead of
+   * linking to the enclosing environments (see {@link ClosureConverter}). System property
+   * {@code scheme.flatClosures}.
+   */
+  public boolean flatClosures = Boolean.getBoolean( "scheme.flatClosures" );
+
+  /**
+   * Use inline caches for calls to procedures in top level variables (see {@link CachedApply}).
+   * System property {@code scheme.inlineCaches}.
+   */
+  public boolean inlineCaches = Boolean.getBoolean( "scheme.inlineCaches" );
+
+  /**
+   * Fold constant expressions and remove dead code (see {@link Optimizer}). System property
+   * {@code scheme.optimize}.
+   */
+  public boolean optimize = Boolean.getBoolean( "scheme.optimize" );
+
+  /**
+   * Inline calls to top level procedures with at most this many instructions (see
+   * {@link Inliner}). Zero disables inlining. System property {@code scheme.inline}.
+   */
+  public int inlineSize = Integer.getInteger( "scheme.inline", 0 );
+
+  /**
+   * Compile the self tail calls of named let (and {@code do}) loops to jumps which update the
+   * parameters in place (see {@link LoopConverter}). System property {@code scheme.loops}.
+   */
+  public boolean loops = Boolean.getBoolean( "scheme.loops" );
+
+  /**
+   * Sealed top level: inlined procedures are not guarded against redefinition. Instead,
+   * assigning or redefining a top level variable which has been inlined is a compile error.
+   * System property {@code scheme.sealed}.
+   */
+  public boolean sealed = Boolean.getBoolean( "scheme.sealed" );
+
+  /**
+   * Execute compiled code with the register machine (see {@link RegisterVM}) instead of the
+   * instruction tree. It replaces {@link #specialize} and {@link #jitThreshold}, which are
+   * ignored. System property {@code scheme.vm}.
+   *
+   * <p>This is a mode for deep non-tail recursion, which isn't limited by the Java stack, and for
+   * re-entrant, multi-shot continuations. It is not a performance mode: calls through the
+   * dispatch loop are slower than in the instruction tree.
+   */
+  public boolean vm = Boolean.getBoolean( "scheme.vm" );
+
+  /**
+   * Parse the source of the standard library instead of loading it from the prebuilt image (see
+   * {@link BootImage}). System property {@code scheme.bootstrapFromSource}.
+   */
+  public boolean bootstrapFromSource = Boolean.getBoolean( "scheme.bootstrapFromSource" );
+
+  /**
+   * Compile the bodies of lambdas defined at the top level when they are first called instead of
+   * when they are defined (see {@link LazyBody}). Macros are expanded in the body at that time,
+   * and compile errors are reported by the call. System property {@code scheme.lazy}.
+   *
+   * <p>After an interpreter has been forked, it and its forks compile new lambdas right away,
+   * since a lambda reachable from several interpreters may be called by several threads.
+   */
+  public boolean lazy = Boolean.getBoolean( "scheme.lazy" );
+
+  /**
+   * Load all libraries of the bootstrap into the interpreter, instead of loading most of them
+   * on the first reference to one of their definitions (see {@link Autoload}). System property
+   * {@code scheme.eagerLibraries}.
+   */
+  public boolean eagerLibraries = Boolean.getBoolean( "scheme.eagerLibraries" );
+}
+
+/**
+ * Hit and miss counters of all inline caches of an interpreter. The counters are not
+ * synchronized, so with several threads they are only approximate.
+ */
+public static final class InlineCacheStats implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  long hits, misses;
+
+  public long getHits ()
+  {
+    return hits;
+  }
+
+  public long getMisses ()
+  {
+    return misses;
+  }
+
+  /** @return the fraction of calls that hit, or 0 if there were none */
+  public double getHitRate ()
+  {
+    long total = hits + misses;
+    return total != 0 ? (double)hits / total : 0;
+  }
+
+  public void reset ()
+  {
+    hits = misses = 0;
+  }
+
+  public String toString ()
+  {
+    return String.format( "hits=%d misses=%d rate=%.3f", hits, misses, getHitRate() );
+  }
+}
+
+final Options m_options;
+final InlineCacheStats m_cacheStats = new InlineCacheStats();
+final Inliner m_inliner;
+
+private final SymbolMap m_map;
+private HashMap<Symbol, BuiltinFactory<?>> m_builtins = new HashMap<Symbol,BuiltinFactory<?>>();
+/** {@link #m_builtins} is shared with a fork and must be copied before it is modified */
+private boolean m_sharedBuiltins;
 
-private final TopLevelScope m_topLevelScope;
+final TopLevelScope m_topLevelScope;
+final Autoload m_autoload;
+
+/** The libraries which are loaded on first reference, in the order of the bootstrap */
+static final String[] AUTOLOAD_LIBRARIES = { "srfi-1.scm", "srfi-9.scm", "srfi-69.scm",
+                                             "coroutines.scm" };
 
 private int m_nextTempSymbol = 0;
 
 public SchemeInterpreter () throws SchemeError, IOException
 {
+  this( new Options() );
+}
+
+public SchemeInterpreter ( Options options ) throws SchemeError, IOException
+{
+  m_options = options;
+  m_inliner = new Inliner( this );
+  m_map = new SymbolMap();
   Builtins.define( m_map, m_builtins );
   defineBuiltin( "CallCC", AST.CallCC.class );
+  defineBuiltin( "CallEC", AST.CallEC.class );
+  defineBuiltin( "DynamicWind", AST.DynamicWind.class );
+  defineBuiltin( "Values", MultipleValues.Values.class );
+  defineBuiltin( "ListValues", MultipleValues.ListValues.class );
+  defineBuiltin( "MakeCoroutine", Coroutine.MakeCoroutine.class );
+  defineBuiltin( "Resume", Coroutine.Resume.class );
+  defineBuiltin( "Yield", Coroutine.Yield.class );
+  defineBuiltin( "CoroutinePred", Coroutine.CoroutinePred.class );
+  defineBuiltin( "CoroutineDone", Coroutine.CoroutineDone.class );
+  defineBuiltin( "CoroutineClose", Coroutine.CoroutineClose.class );
   defineBuiltin( "Apply", AST.Apply.class );
 
   m_topLevelScope = new TopLevelScope( this, 1024 );
+  m_autoload = new Autoload();
   bootstrap();
 }
 
+private SchemeInterpreter ( SchemeInterpreter parent )
+{
+  m_options = parent.m_options;
+  m_inliner = parent.m_inliner.fork( this );
+  m_map = parent.m_map;
+  m_builtins = parent.m_builtins;
+  m_sharedBuiltins = parent.m_sharedBuiltins = true;
+  m_nextTempSymbol = parent.m_nextTempSymbol;
+  m_topLevelScope = parent.m_topLevelScope.fork( this );
+  m_autoload = new Autoload( parent.m_autoload );
+  defineJavaProcedure( m_topLevelScope, "gentemp", new GentempProcedure(this) );
+}
+
+/**
+ * Create an independent copy of the interpreter, which is much cheaper than a new one. Top level
+ * definitions and assignments in the copy are not visible in this interpreter and vice versa,
+ * even to the procedures they share through data structures.
+ *
+ * <p>The copy shares the symbol table, the bindings and the compiled code of this interpreter,
+ * including the standard library. The bindings are copy-on-write (see {@link TopLevelScope#fork}).
+ * The shared code is safe to run in several threads, so the copy and this interpreter may be
+ * used by different threads at the same time, e.g. by a {@link Scheduler}. Like any interpreter,
+ * each of them must be used by one thread at a time, and this includes forking it.
+ */
+public SchemeInterpreter fork ()
+{
+  // The fork must not create bindings in our scope, which would happen if it compiled our lazy
+  // bodies
+  m_topLevelScope.compileLazyBodies();
+  return new SchemeInterpreter( this );
+}
+
 public void defineJavaProcedure ( String name, JavaProcedure proc )
 {
   defineJavaProcedure( m_topLevelScope, name, proc );
@@ -48,17 +250,32 @@ public void defineJavaProcedure ( String name, JavaProcedure proc )
 
 public <T extends AST.Builtin> void defineBuiltin ( String name, Class<T> clz )
 {
+  if (m_sharedBuiltins)
+  {
+    m_builtins = new HashMap<Symbol,BuiltinFactory<?>>( m_builtins );
+    m_sharedBuiltins = false;
+  }
   m_builtins.put( m_map.newSymbol(name), new BuiltinFactory<T>(clz) );
 }
 
 public Object getTopLevelVar ( String name ) throws SchemeError
 {
+  Symbol sym = m_map.newSymbol(name);
   VarBinding b;
-  if ( (b = m_topLevelScope.lookupVar( m_map.newSymbol(name) )) == null)
+  if ( (b = m_topLevelScope.lookupVar( sym )) == null &&
+       (!autoload( sym ) || (b = m_topLevelScope.lookupVar( sym )) == null))
     throw new SchemeError( String.format("Variable '%s' is not bound", name ) );
   return m_topLevelScope.m_env[b.index];
 }
 
+/**
+ * The counters of the inline caches. See {@link Options#inlineCaches}
+ */
+public InlineCacheStats getInlineCacheStats ()
+{
+  return m_cacheStats;
+}
+
 public Closure getTopLevelClosure ( String name ) throws SchemeError
 {
   Object o = getTopLevelVar( name );
@@ -84,6 +301,11 @@ private void defineStdLib ( TopLevelScope scope )
   defineJavaProcedure( scope, "gentemp", new GentempProcedure(this) );
   defineJavaProcedure( scope, "__%string-append", new StringAppendProcedure());
   defineJavaProcedure( scope, "__%number->string", new NumberToStringProcedure());
+
+  HashMap<String,JavaProcedure> procs = new HashMap<String,JavaProcedure>();
+  Builtins.defineProcedures( procs );
+  for ( Map.Entry<String,JavaProcedure> e : procs.entrySet() )
+    defineJavaProcedure( scope, e.getKey(), e.getValue() );
 }
 
 private void defineJavaProcedure ( TopLevelScope scope, String name, JavaProcedure proc )
@@ -106,43 +328,36 @@ private void bootstrap ()
     // Our bootstrap procedure is subtle. The problem is that macros can only use functions and
     // macros which have previously been compiled and their definitions executed (bound in the
     // top environment)
-    // So we compile every stage in the top level environment, then copy the top level into the
-    // macro environment and execute the code of all stages up to here.
+    // So we compile every stage in the top level environment, then import its bindings into the
+    // macro environment and execute the stage there. The macro environment grows with every
+    // stage, so each stage is executed in it exactly once.
 
-    TopLevelScope macroScope;
-    ParsedList plist = parse( SchemeInterpreter.class.getResource("base0.scm" ), errors );
+    HashMap<String,Pair> image = !m_options.bootstrapFromSource ? BootImage.load( m_map ) : null;
 
     ArrayList<Pair> stages = new ArrayList<Pair>();
     ArrayList<CompiledCode> compiled = new ArrayList<CompiledCode>();
 
-    for ( Pair list = plist.m_list; list != Pair.NULL; list = (Pair) list.getCdr())
+    for ( Pair list = readLibrary( image, "base0.scm", errors ); list != Pair.NULL; list = (Pair) list.getCdr())
       stages.add( (Pair) list.getCar());
 
-    stages.add( parse(SchemeInterpreter.class.getResource("srfi-1.scm" ),errors).m_list );
+    // Libs are compiled after the stages and don't require the recursive initialization, but
+    // their definitions are made available to the macros of the following ones all the same.
+    // Unless we need all of them, they are loaded when they are first referenced
+    for ( String name : AUTOLOAD_LIBRARIES )
+      if (m_options.eagerLibraries)
+        stages.add( readLibrary( image, name, errors ) );
+      else
+        m_autoload.register( name, readLibrary( image, name, errors ) );
 
     defineStdLib(m_topLevelScope);
-    for (Pair stage : stages)
-    {
-      compiled.add(compile(m_topLevelScope, stage, errors, false));
-
-      macroScope = m_topLevelScope.copy();
-      defineStdLib(macroScope);
-      for (CompiledCode cc : compiled)
-        cc.eval(macroScope.m_env);
-
-      m_topLevelScope.setMacroScope(macroScope);
-    }
-
-    // Libs are compiled after the stages and don't require the recursive initialization
-
-    compiled.add( compile( parse(SchemeInterpreter.class.getResource("srfi-9.scm" ),errors), errors, false ) );
-    compiled.add( compile( parse(SchemeInterpreter.class.getResource("srfi-69.scm" ),errors), errors, false ) );
-
-    // Prepare the final version of the macro environment by evaluating all compiled code in it
-    macroScope = m_topLevelScope.copy();
+    TopLevelScope macroScope = m_topLevelScope.copy();
     defineStdLib(macroScope);
-    for (CompiledCode cc : compiled)
-      cc.eval(macroScope.m_env);
+    m_topLevelScope.setMacroScope(macroScope);
+    // The macros used by macros run in the same environment, where their variables are
+    macroScope.setMacroScope(macroScope);
+
+    for (Pair stage : stages)
+      compiled.add( compileStage( stage, errors ) );
 
     // Finally evaluate all compiled code in the top level environment
     for ( CompiledCode cc : compiled )
@@ -164,6 +379,101 @@ private void bootstrap ()
   }
 }
 
+/**
+ * Compile a stage in the top level scope and execute it in the macro environment, so the
+ * definitions become visible to the macros of the following stages.
+ * @return the compiled code, which still has to be evaluated in the top level environment
+ */
+private CompiledCode compileStage ( Pair stage, IErrorReporter errors ) throws ParseErrors, SchemeError
+{
+  CompiledCode cc = compile( m_topLevelScope, stage, errors, false );
+  TopLevelScope macroScope = m_topLevelScope.getMacroScope();
+  macroScope.importBindings( m_topLevelScope );
+  cc.eval( macroScope.m_env );
+  return cc;
+}
+
+/**
+ * Load the library exporting a symbol, if it hasn't been loaded yet (see {@link Autoload}). The
+ * library is loaded like a stage of the bootstrap, so its definitions are also available to
+ * macros.
+ *
+ * <p>The library doesn't replace the existing bindings of the symbols it defines: they were
+ * created by the program, which would have redefined them if the library had been loaded by
+ * the bootstrap.
+ *
+ * @return true if a library was loaded
+ */
+final boolean autoload ( Symbol sym ) throws SchemeError
+{
+  String name = m_autoload.library( sym );
+  if (name == null)
+    return false;
+  // Before anything else, so the references of the library to its own definitions don't load it
+  Pair forms = m_autoload.take( name );
+
+  ArrayList<Binding> saved = new ArrayList<Binding>();
+  ArrayList<Object> savedValues = new ArrayList<Object>();
+  for ( Symbol s : m_autoload.exports( name ) )
+  {
+    Binding b = m_topLevelScope.lookupAny( s );
+    if (b != null)
+    {
+      saved.add( b );
+      savedValues.add( b instanceof VarBinding ? m_topLevelScope.m_env[((VarBinding) b).index] : null );
+    }
+  }
+
+  SimpleErrorReporter errors = new SimpleErrorReporter( 1 );
+  try
+  {
+    compileStage( forms, errors ).eval( m_topLevelScope.m_env );
+  }
+  catch (ParseErrors e)
+  {
+    throw new SchemeError( String.format( "Error loading %s: %s", name,
+                                          errors.getErrorList().get( 0 ).formatMessage() ), e );
+  }
+
+  for ( int i = 0; i < saved.size(); ++i )
+  {
+    Binding b = saved.get( i );
+    if (m_topLevelScope.get( b.sym ) != b)
+      m_topLevelScope.put( b.sym, b );
+    if (b instanceof VarBinding)
+      m_topLevelScope.m_env[((VarBinding) b).index] = savedValues.get( i );
+  }
+  return true;
+}
+
+/**
+ * Compile and evaluate a list of stages in the same way as the stages of the bootstrap. Every
+ * element of the list is a list of forms.
+ */
+void evalStages ( ParsedList stages, IErrorReporter errors ) throws ParseErrors, SchemeError
+{
+  if (stages.m_interp != this)
+    throw new IllegalArgumentException( "ParsedList from another interpreter instance" );
+  ArrayList<CompiledCode> compiled = new ArrayList<CompiledCode>();
+  for ( Pair list = stages.m_list; list != Pair.NULL; list = (Pair) list.getCdr() )
+    compiled.add( compileStage( (Pair) list.getCar(), errors ) );
+  for ( CompiledCode cc : compiled )
+    cc.eval( m_topLevelScope.m_env );
+}
+
+/**
+ * Read a library of the bootstrap from the image, or parse its source if it isn't there.
+ * @param image the libraries loaded by {@link BootImage#load}, or null
+ */
+private Pair readLibrary ( HashMap<String,Pair> image, String name, IErrorReporter errors )
+        throws ParseErrors, IOException
+{
+  Pair list;
+  if (image != null && (list = image.get( name )) != null)
+    return list;
+  return parse( SchemeInterpreter.class.getResource( name ), errors ).m_list;
+}
+
 private final Lexer makeLexer ( Reader in, String name, IErrorReporter errors )
 {
   return new Lexer( in, name, m_map, errors );
@@ -198,7 +508,8 @@ public ParsedList parse ( URL url, IErrorReporter errors ) throws ParseErrors, I
 {
   if (url == null)
     throw new IllegalArgumentException();
-  return parse( new BufferedReader( new InputStreamReader(url.openStream()) ), url.toString(), errors );
+  return parse( new BufferedReader( new InputStreamReader( url.openStream(), "UTF-8" ) ),
+                url.toString(), errors );
 }
 
 public Object eval ( URL url, IErrorReporter errors ) throws IOException, SchemeError
@@ -300,9 +611,25 @@ private CompiledCode compile ( TopLevelScope scope, Pair list, IErrorReporter er
 
 public Object eval ( String str )
   throws ParseErrors, SchemeError, SchemeUncheckedError
+{
+  return eval( str, null, null );
+}
+
+/**
+ * Evaluate within the limits of a budget.
+ * @throws BudgetExceededError if the evaluation exceeds the budget
+ */
+public Object eval ( String str, Budget budget )
+  throws ParseErrors, SchemeError, SchemeUncheckedError
+{
+  return eval( str, budget, null );
+}
+
+Object eval ( String str, Budget budget, Scheduler.Task task )
+  throws ParseErrors, SchemeError, SchemeUncheckedError
 {
   SimpleErrorReporter errors = new SimpleErrorReporter(1);
-  return compile( parse( new StringReader(str), "<null>", errors ), errors, true ).eval();
+  return compile( parse( new StringReader(str), "<null>", errors ), errors, true ).eval( budget, task );
 }
 
 public Symbol gentemp ()
@@ -48,6 +48,24 @@ public abstract SchemeNumber imagPart ();
 
 public abstract SchemeNumber expt ( SchemeNumber power );
 
+/**
+ * The larger of two real numbers. It is inexact if either of them is.
+ */
+public SchemeNumber max ( SchemeNumber o )
+{
+  SchemeNumber res = cmp( o ) >= 0 ? this : o;
+  return isExact() && o.isExact() ? res : res.toInexact();
+}
+
+/**
+ * The smaller of two real numbers. It is inexact if either of them is.
+ */
+public SchemeNumber min ( SchemeNumber o )
+{
+  SchemeNumber res = cmp( o ) <= 0 ? this : o;
+  return isExact() && o.isExact() ? res : res.toInexact();
+}
+
 public abstract String numberToString ( int radix, int precision ) throws SchemeError;
 } // class
 
@@ -96,6 +96,16 @@ public final int getBindingCount ()
   return !this.lexical ? m_bindingCount : m_parent.getBindingCount();
 }
 
+/**
+ * Make sure that new bindings in this scope are assigned indexes of at least {@code count}.
+ */
+final void reserveBindings ( int count )
+{
+  assert !this.lexical;
+  if (m_bindingCount < count)
+    m_bindingCount = count;
+}
+
 /**
  * Create a new variable binging in the nearest non-lexical scope.
  * @return the new binding
@@ -133,16 +143,39 @@ public final VarBinding bindVar ( Symbol sym ) throws SchemeUncheckedError
   return vb;
 }
 
+/**
+ * Bind a macro in this scope. If the symbol is already bound to a macro, return the existing
+ * binding, unless it is shared with other scopes (see {@link #isShared}). In that case it is
+ * replaced by a copy in this scope, so it can be modified.
+ *
+ * @param sym the symbol to bind
+ * @return the binding
+ */
 public final MacroBinding bindMacro ( Symbol sym ) throws SchemeUncheckedError
 {
   Binding t;
-  if ( (t = get( sym )) != null && t instanceof MacroBinding)
+  if ( (t = get( sym )) != null && t instanceof MacroBinding && !isShared( t ))
     return (MacroBinding)t;
 
   MacroBinding mb = new MacroBinding( this, sym );
+  if (t instanceof MacroBinding)
+  {
+    mb.combination = ((MacroBinding) t).combination;
+    mb.identifier = ((MacroBinding) t).identifier;
+    mb.set = ((MacroBinding) t).set;
+  }
   put( sym, mb );
   return mb;
 }
 
+/**
+ * Check whether a binding returned by {@link #get} is shared with other scopes and must not be
+ * modified.
+ */
+boolean isShared ( Binding binding )
+{
+  return false;
+}
+
 }
 
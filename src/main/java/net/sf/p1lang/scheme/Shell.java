@@ -220,7 +220,7 @@ private void load ( String fileName ) throws SchemeError
 
 private void extend ( String className ) throws SchemeError
 {
-  Class clz;
+  Class<?> clz;
   Method method;
   try
   {
@@ -262,6 +262,12 @@ private void dis ( String name ) throws SchemeError
     if (l.lambda.body != null)
     {
       displayIndented( 0, l.lambda.body.dis() );
+      if (l.lambda.optimizerLog != null)
+      {
+        m_out.println();
+        for ( String s : l.lambda.optimizerLog )
+          m_out.println( "; " + s );
+      }
     }
     else
       m_out.print( "null" );
@@ -0,0 +1,564 @@
+/*
+ * This file is distributed under the terms of the GPL v3.0 license.
+ * See file COPYING in the root project folder
+ *
+ * Copyright Tzvetan Mikov <tmikov@gmail.com>
+ */
+
+package net.sf.p1lang.scheme;
+
+/**
+ * Rewrites an instruction tree produced by the {@link Compiler} into a tree of specialized
+ * instructions.
+ *
+ * <p>The generic instructions are written to handle every case: {@link AST.Var} walks an
+ * arbitrary number of environments, {@link AST.Apply} loops over an array of parameters and
+ * supports an {@code (apply ...)} list at the end, etc. Here we replace them with classes
+ * specialized by environment depth and by number of parameters, which keep their operands in
+ * final fields. The resulting code has no loops on the fast paths and gives the JIT a much better
+ * chance of inlining through it.
+ *
+ * <p>The specialized instructions have exactly the same semantics as the generic ones and the
+ * two can be mixed freely. Instructions which don't have a specialized version are kept, but
+ * their operands are still specialized.
+ *
+ * <p>Nested lambdas are specialized when they are compiled, so we never descend into
+ * {@link AST.MakeClosure}. The display of a {@link ClosureConverter.FlatClosure} is evaluated
+ * in the current environment, so that is specialized.
+ */
+final class Specializer
+{
+private Specializer () {}
+
+static AST specialize ( AST ast )
+{
+  if (ast == null)
+    return null;
+
+  if (ast instanceof AST.Var)
+  {
+    AST.Var var = (AST.Var) ast;
+    // A global is read from the root environment, wherever it is
+    if (var.global && var.envIndex > 0)
+      return ast;
+    switch (var.envIndex)
+    {
+    case 0: return new Var0( var, var.name, var.bindingIndex );
+    case 1: return new Var1( var, var.name, var.bindingIndex );
+    default: return ast;
+    }
+  }
+  else if (ast instanceof AST.SetBang)
+  {
+    AST.SetBang sb = (AST.SetBang) ast;
+    AST value = specialize( sb.value );
+    if (sb.global && sb.envIndex > 0)
+      return new AST.SetBang( sb, sb.name, sb.envIndex, sb.bindingIndex, true, value );
+    switch (sb.envIndex)
+    {
+    case 0: return new SetBang0( sb, sb.name, sb.bindingIndex, value );
+    case 1: return new SetBang1( sb, sb.name, sb.bindingIndex, value );
+    default: return new AST.SetBang( sb, sb.name, sb.envIndex, sb.bindingIndex, false, value );
+    }
+  }
+  else if (ast instanceof AST.If)
+  {
+    AST.If i = (AST.If) ast;
+    AST cond = specialize( i.m_evalCond );
+    // A literal condition can be resolved right away
+    if (cond instanceof AST.Lit)
+      return specialize( ((AST.Lit)cond).datum != Boolean.FALSE ? i.m_evalThen : i.m_evalElse );
+    return new AST.If( i, cond, specialize( i.m_evalThen ), specialize( i.m_evalElse ) );
+  }
+  else if (ast instanceof AST.Case)
+  {
+    AST.Case c = (AST.Case) ast;
+    AST key = specialize( c.m_key );
+    if (key instanceof AST.Lit)
+      return specialize( c.m_bodies[c.m_table.index( ((AST.Lit) key).datum )] );
+    AST[] bodies = c.m_bodies;
+    for ( int i = 0; i < bodies.length; ++i )
+      bodies[i] = specialize( bodies[i] );
+    return new AST.Case( c, key, c.m_table, bodies );
+  }
+  else if (ast instanceof AST.Apply)
+    return specializeApply( (AST.Apply) ast );
+  else if (ast instanceof AST.Builtin)
+  {
+    // Builtins are generated code with their operands in an array, so specialize them in place
+    AST[] v = ((AST.Builtin) ast).v;
+    for ( int i = 0; i < v.length; ++i )
+      v[i] = specialize( v[i] );
+    return ast;
+  }
+  else if (ast instanceof AST.Begin)
+  {
+    AST[] body = ((AST.Begin) ast).m_body;
+    for ( int i = 0; i < body.length; ++i )
+      body[i] = specialize( body[i] );
+    return ast;
+  }
+  else if (ast instanceof AST.MakeVector)
+  {
+    AST[] values = ((AST.MakeVector) ast).values;
+    for ( int i = 0; i < values.length; ++i )
+      values[i] = specialize( values[i] );
+    return ast;
+  }
+  else if (ast instanceof AST.Trampoline)
+    return new AST.Trampoline( ast, specialize( ((AST.Trampoline) ast).m_ast ) );
+  else if (ast instanceof AST.Loop)
+    return new AST.Loop( ast, specialize( ((AST.Loop) ast).m_body ) );
+  else if (ast instanceof AST.LoopJump)
+  {
+    AST[] values = ((AST.LoopJump) ast).m_values;
+    for ( int i = 0; i < values.length; ++i )
+      values[i] = specialize( values[i] );
+    return ast;
+  }
+  else if (ast instanceof ClosureConverter.FlatClosure)
+  {
+    AST[] captures = ((ClosureConverter.FlatClosure) ast).m_captures;
+    for ( int i = 0; i < captures.length; ++i )
+      captures[i] = specialize( captures[i] );
+    return ast;
+  }
+  else if (ast instanceof ClosureConverter.BoxSetBang)
+  {
+    ClosureConverter.BoxSetBang sb = (ClosureConverter.BoxSetBang) ast;
+    return new ClosureConverter.BoxSetBang( sb, sb.name, sb.envIndex, sb.bindingIndex,
+                                            specialize( sb.value ) );
+  }
+  else if (ast instanceof ClosureConverter.Boxes)
+  {
+    ClosureConverter.Boxes b = (ClosureConverter.Boxes) ast;
+    return new ClosureConverter.Boxes( b, b.m_slots, specialize( b.m_body ) );
+  }
+  else
+    return ast;
+}
+
+private static AST specializeApply ( AST.Apply apply )
+{
+  AST[] v = apply.v;
+  for ( int i = 0; i < v.length; ++i )
+    v[i] = specialize( v[i] );
+
+  // Calls with an (apply ...) list at the end stay generic
+  if (v[v.length-1] != AST.Lit.LIT_NULL)
+    return apply;
+
+  switch (v.length - 2)
+  {
+  case 0: return new Apply0( apply );
+  case 1: return new Apply1( apply );
+  case 2: return new Apply2( apply );
+  case 3: return new Apply3( apply );
+  case 4: return new Apply4( apply );
+  default: return apply;
+  }
+}
+
+/**
+ * A variable in the current environment.
+ */
+static final class Var0 extends AST
+{
+  private static final long serialVersionUID = 1L;
+  private final Symbol m_name;
+  final int m_index;
+
+  Var0 ( ISourceCoords coords, Symbol name, int index )
+  {
+    super(coords);
+    m_name = name;
+    m_index = index;
+  }
+
+  public final Object evalValue ( final Object[] env, final EvalContext ctx )
+  {
+    return env[m_index];
+  }
+
+  public String toString ()
+  {
+    return "(var0 "+m_name+":"+m_index+")";
+  }
+
+  public Object dis ()
+  {
+    return toString();
+  }
+}
+
+/**
+ * A variable in the parent environment.
+ */
+static final class Var1 extends AST
+{
+  private static final long serialVersionUID = 1L;
+  private final Symbol m_name;
+  final int m_index;
+
+  Var1 ( ISourceCoords coords, Symbol name, int index )
+  {
+    super(coords);
+    m_name = name;
+    m_index = index;
+  }
+
+  public final Object evalValue ( final Object[] env, final EvalContext ctx )
+  {
+    return ((Object[])env[Scope.PARENT_SLOT])[m_index];
+  }
+
+  public String toString ()
+  {
+    return "(var1 "+m_name+":"+m_index+")";
+  }
+
+  public Object dis ()
+  {
+    return toString();
+  }
+}
+
+static final class SetBang0 extends AST
+{
+  private static final long serialVersionUID = 1L;
+  private final Symbol m_name;
+  final int m_index;
+  final AST m_value;
+
+  SetBang0 ( ISourceCoords coords, Symbol name, int index, AST value )
+  {
+    super(coords);
+    m_name = name;
+    m_index = index;
+    m_value = value;
+  }
+
+  public final Object evalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    env[m_index] = m_value.evalValue( env, ctx );
+    return Unspec.UNSPEC;
+  }
+
+  public String toString ()
+  {
+    return "(set0! "+m_name+":"+m_index+" "+ m_value +")";
+  }
+
+  public Object dis ()
+  {
+    return new Pair( "set0! "+m_name+":"+m_index, new Pair( m_value.dis() ) );
+  }
+}
+
+static final class SetBang1 extends AST
+{
+  private static final long serialVersionUID = 1L;
+  private final Symbol m_name;
+  final int m_index;
+  final AST m_value;
+
+  SetBang1 ( ISourceCoords coords, Symbol name, int index, AST value )
+  {
+    super(coords);
+    m_name = name;
+    m_index = index;
+    m_value = value;
+  }
+
+  public final Object evalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    ((Object[])env[Scope.PARENT_SLOT])[m_index] = m_value.evalValue( env, ctx );
+    return Unspec.UNSPEC;
+  }
+
+  public String toString ()
+  {
+    return "(set1! "+m_name+":"+m_index+" "+ m_value +")";
+  }
+
+  public Object dis ()
+  {
+    return new Pair( "set1! "+m_name+":"+m_index, new Pair( m_value.dis() ) );
+  }
+}
+
+/**
+ * Base of the calls specialized by number of parameters.
+ *
+ * <p>{@link #buildEnv} handles the common case of a target expecting exactly the number of
+ * parameters we are passing. Targets with a "rest" parameter are handled by
+ * {@link #buildRestEnv}; everything else (including errors) is left to the generic
+ * {@link AST.Apply} instruction we were created from.
+ */
+static abstract class SpecApply extends AST
+{
+  private static final long serialVersionUID = 1L;
+
+  protected final AST m_target;
+  /** The parameters, for the less common cases */
+  protected final AST[] m_args;
+  private final AST.Apply m_generic;
+
+  SpecApply ( AST.Apply generic )
+  {
+    super(generic);
+    m_generic = generic;
+    m_target = generic.v[0];
+    m_args = new AST[generic.v.length - 2];
+    System.arraycopy( generic.v, 1, m_args, 0, m_args.length );
+  }
+
+  private final Closure evalTarget ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    Object target = m_target.evalValue( env, ctx );
+    if (!(target instanceof Closure))
+      throw new EvalError( this, "Call of non-procedure" );
+    return (Closure)target;
+  }
+
+  /**
+   * @param pooled allocate the environment with {@link EvalContext#pushFrame(int)}
+   */
+  protected abstract Object[] buildEnv ( Object[] env, EvalContext ctx, Closure closure,
+                                         boolean pooled ) throws SchemeError;
+
+  /**
+   * Fill the rest of the environment with unspecified values
+   */
+  protected static Object[] fillUnspec ( Object[] callEnv, int from )
+  {
+    for ( int end = callEnv.length; from < end; ++from )
+      callEnv[from] = Unspec.UNSPEC;
+    return callEnv;
+  }
+
+  protected final Object[] buildRestEnv ( Object[] env, EvalContext ctx, Closure closure,
+                                         boolean pooled ) throws SchemeError
+  {
+    Lambda proc = closure.lambda;
+    if (!proc.haveRest || proc.spreadRest || proc.paramCount > m_args.length || proc.envSize == 0)
+      return m_generic.buildEnv( env, ctx, closure, pooled );
+
+    Object[] callEnv = ctx.newFrame( proc.envSize, pooled );
+    callEnv[Scope.PARENT_SLOT] = closure.parentEnv;
+    int i;
+    for ( i = 0; i < proc.paramCount; ++i )
+      callEnv[Scope.RESERVED_SLOTS+i] = m_args[i].evalValue( env, ctx );
+
+    // Like the generic Apply, build the list in reverse
+    Pair rest = Pair.NULL;
+    for ( int j = m_args.length-1; j >= i; --j )
+      rest = new Pair( m_args[j].evalValue( env, ctx ), rest );
+    callEnv[Scope.RESERVED_SLOTS+i] = rest;
+
+    return fillUnspec( callEnv, Scope.RESERVED_SLOTS+i+1 );
+  }
+
+  public final AST evalCont ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    ctx.poll( this );
+    Closure closure = evalTarget( env, ctx );
+    Lambda proc = closure.lambda;
+    // Read the body before evaluating the parameters, which may replace a LazyBody
+    AST body = proc.body;
+    ctx.outEnv = buildEnv( env, ctx, closure, false );
+    if (proc instanceof JavaProcedure)
+      return ((JavaProcedure)proc).cont;
+    else
+      return body;
+  }
+
+  public final Object evalValue ( final Object[] env, final EvalContext ctx ) throws SchemeError
+  {
+    try
+    {
+      ctx.poll( this );
+      Closure closure = evalTarget( env, ctx );
+      Lambda proc = closure.lambda;
+      if (proc.reuseFrame)
+      {
+        int mark = ctx.frameMark();
+        try
+        {
+          return proc.body.evalValue( buildEnv( env, ctx, closure, true ), ctx );
+        }
+        finally
+        {
+          ctx.popFrames( mark );
+        }
+      }
+
+      AST body = proc.body;
+      Object[] callEnv = buildEnv( env, ctx, closure, false );
+      if (proc instanceof JavaProcedure)
+        return ((JavaProcedure)proc).apply( callEnv );
+      else
+        return body.evalValue( callEnv, ctx );
+    }
+    catch (Exception e)
+    {
+      handleException( e );
+      return null; // unreachable
+    }
+  }
+
+  public String toString ()
+  {
+    StringBuilder res = new StringBuilder(32+m_args.length*32);
+
+    res.append( "(apply" ).append( m_args.length ).append( ' ' ).append( m_target );
+    for ( AST a : m_args )
+      res.append(' ').append( a.toString() );
+    res.append( ')' );
+    return res.toString();
+  }
+
+  public Object dis ()
+  {
+    Pair res = Pair.NULL;
+    for ( int i = m_args.length-1; i >= 0; --i )
+      res = new Pair( m_args[i].dis(), res );
+    return new Pair( "apply"+m_args.length, new Pair( m_target.dis(), res ) );
+  }
+}
+
+static final class Apply0 extends SpecApply
+{
+  private static final long serialVersionUID = 1L;
+
+  Apply0 ( AST.Apply generic )
+  {
+    super(generic);
+  }
+
+  protected final Object[] buildEnv ( Object[] env, EvalContext ctx, Closure closure, boolean pooled )
+          throws SchemeError
+  {
+    Lambda proc = closure.lambda;
+    if (proc.paramCount != 0 || proc.haveRest || proc.envSize == 0)
+      return buildRestEnv( env, ctx, closure, pooled );
+
+    Object[] callEnv = ctx.newFrame( proc.envSize, pooled );
+    callEnv[Scope.PARENT_SLOT] = closure.parentEnv;
+    return fillUnspec( callEnv, Scope.RESERVED_SLOTS );
+  }
+}
+
+static final class Apply1 extends SpecApply
+{
+  private static final long serialVersionUID = 1L;
+  private final AST m_a0;
+
+  Apply1 ( AST.Apply generic )
+  {
+    super(generic);
+    m_a0 = m_args[0];
+  }
+
+  protected final Object[] buildEnv ( Object[] env, EvalContext ctx, Closure closure, boolean pooled )
+          throws SchemeError
+  {
+    Lambda proc = closure.lambda;
+    if (proc.paramCount != 1 || proc.haveRest)
+      return buildRestEnv( env, ctx, closure, pooled );
+
+    Object[] callEnv = ctx.newFrame( proc.envSize, pooled );
+    callEnv[Scope.PARENT_SLOT] = closure.parentEnv;
+    callEnv[Scope.RESERVED_SLOTS+0] = m_a0.evalValue( env, ctx );
+    return fillUnspec( callEnv, Scope.RESERVED_SLOTS+1 );
+  }
+}
+
+static final class Apply2 extends SpecApply
+{
+  private static final long serialVersionUID = 1L;
+  private final AST m_a0, m_a1;
+
+  Apply2 ( AST.Apply generic )
+  {
+    super(generic);
+    m_a0 = m_args[0];
+    m_a1 = m_args[1];
+  }
+
+  protected final Object[] buildEnv ( Object[] env, EvalContext ctx, Closure closure, boolean pooled )
+          throws SchemeError
+  {
+    Lambda proc = closure.lambda;
+    if (proc.paramCount != 2 || proc.haveRest)
+      return buildRestEnv( env, ctx, closure, pooled );
+
+    Object[] callEnv = ctx.newFrame( proc.envSize, pooled );
+    callEnv[Scope.PARENT_SLOT] = closure.parentEnv;
+    callEnv[Scope.RESERVED_SLOTS+0] = m_a0.evalValue( env, ctx );
+    callEnv[Scope.RESERVED_SLOTS+1] = m_a1.evalValue( env, ctx );
+    return fillUnspec( callEnv, Scope.RESERVED_SLOTS+2 );
+  }
+}
+
+static final class Apply3 extends SpecApply
+{
+  private static final long serialVersionUID = 1L;
+  private final AST m_a0, m_a1, m_a2;
+
+  Apply3 ( AST.Apply generic )
+  {
+    super(generic);
+    m_a0 = m_args[0];
+    m_a1 = m_args[1];
+    m_a2 = m_args[2];
+  }
+
+  protected final Object[] buildEnv ( Object[] env, EvalContext ctx, Closure closure, boolean pooled )
+          throws SchemeError
+  {
+    Lambda proc = closure.lambda;
+    if (proc.paramCount != 3 || proc.haveRest)
+      return buildRestEnv( env, ctx, closure, pooled );
+
+    Object[] callEnv = ctx.newFrame( proc.envSize, pooled );
+    callEnv[Scope.PARENT_SLOT] = closure.parentEnv;
+    callEnv[Scope.RESERVED_SLOTS+0] = m_a0.evalValue( env, ctx );
+    callEnv[Scope.RESERVED_SLOTS+1] = m_a1.evalValue( env, ctx );
+    callEnv[Scope.RESERVED_SLOTS+2] = m_a2.evalValue( env, ctx );
+    return fillUnspec( callEnv, Scope.RESERVED_SLOTS+3 );
+  }
+}
+
+static final class Apply4 extends SpecApply
+{
+  private static final long serialVersionUID = 1L;
+  private final AST m_a0, m_a1, m_a2, m_a3;
+
+  Apply4 ( AST.Apply generic )
+  {
+    super(generic);
+    m_a0 = m_args[0];
+    m_a1 = m_args[1];
+    m_a2 = m_args[2];
+    m_a3 = m_args[3];
+  }
+
+  protected final Object[] buildEnv ( Object[] env, EvalContext ctx, Closure closure, boolean pooled )
+          throws SchemeError
+  {
+    Lambda proc = closure.lambda;
+    if (proc.paramCount != 4 || proc.haveRest)
+      return buildRestEnv( env, ctx, closure, pooled );
+
+    Object[] callEnv = ctx.newFrame( proc.envSize, pooled );
+    callEnv[Scope.PARENT_SLOT] = closure.parentEnv;
+    callEnv[Scope.RESERVED_SLOTS+0] = m_a0.evalValue( env, ctx );
+    callEnv[Scope.RESERVED_SLOTS+1] = m_a1.evalValue( env, ctx );
+    callEnv[Scope.RESERVED_SLOTS+2] = m_a2.evalValue( env, ctx );
+    callEnv[Scope.RESERVED_SLOTS+3] = m_a3.evalValue( env, ctx );
+    return fillUnspec( callEnv, Scope.RESERVED_SLOTS+4 );
+  }
+}
+
+} // class
@@ -21,17 +21,24 @@ public enum SymCode
   UNSYNTAX_SPLICING,
 
   IF,
+  CASE,
   BEGIN,
   LAMBDA,
+  CASE_LAMBDA,
   DEFINE,
   SETBANG,
   LET,
   LETREC,
   LETREC_STAR,
+  LET_VALUES,
 
   BUILTIN,
   DEFINE_MACRO,
   DEFINE_IDENTIFIER_MACRO,
   DEFINE_SET_MACRO,
-  MACRO_ENV;
+  MACRO_ENV,
+
+  // DSSSL lambda list keywords
+  OPTIONAL,
+  REST;
 }
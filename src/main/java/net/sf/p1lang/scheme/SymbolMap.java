@@ -7,11 +7,12 @@
 
 package net.sf.p1lang.scheme;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class SymbolMap
 {
-private final HashMap<String,Symbol> m_map = new HashMap<String, Symbol>();
+/** Forks of an interpreter share the symbols and may create them in different threads */
+private final ConcurrentHashMap<String,Symbol> m_map = new ConcurrentHashMap<String, Symbol>();
 
 public final Symbol sym_quote             = special( "quote", SymCode.QUOTE );
 public final Symbol sym_quasiquore        = special( "quasiquote", SymCode.NONE /*SymCode.QUASIQUOTE*/ );
@@ -23,13 +24,16 @@ public final Symbol sym_unsyntax          = special( "unsyntax", SymCode.UNSYNTA
 public final Symbol sym_unsyntax_splicing = special( "unsyntax-splicing", SymCode.UNSYNTAX_SPLICING );
 
 public final Symbol sym_if                = special( "if", SymCode.IF );
+public final Symbol sym_case              = special( "case", SymCode.CASE );
 public final Symbol sym_begin             = special( "begin", SymCode.BEGIN );
 public final Symbol sym_lambda            = special( "lambda", SymCode.LAMBDA );
+public final Symbol sym_case_lambda       = special( "case-lambda", SymCode.CASE_LAMBDA );
 public final Symbol sym_define            = special( "define", SymCode.DEFINE );
 public final Symbol sym_setbang           = special( "set!", SymCode.SETBANG );
 public final Symbol sym_let               = special( "let", SymCode.LET );
 public final Symbol sym_letrec            = special( "letrec", SymCode.LETREC );
 public final Symbol sym_letrec_star       = special( "letrec*", SymCode.LETREC_STAR );
+public final Symbol sym_let_values        = special( "let-values", SymCode.LET_VALUES );
 
 public final Symbol sym_builtin           = special( "__%builtin", SymCode.BUILTIN );
 public final Symbol sym_define_macro      = special( "define-macro", SymCode.DEFINE_MACRO );
@@ -37,6 +41,9 @@ public final Symbol sym_define_identifier_macro = special( "define-identifier-ma
 public final Symbol sym_define_det_macro  = special( "define-set-macro", SymCode.DEFINE_SET_MACRO );
 public final Symbol sym_macro_env         = special( "macro-env", SymCode.MACRO_ENV );
 
+public final Symbol sym_optional          = special( "#!optional", SymCode.OPTIONAL );
+public final Symbol sym_rest              = special( "#!rest", SymCode.REST );
+
 
 private final Symbol special ( String name, SymCode code )
 {
@@ -46,11 +53,15 @@ private final Symbol special ( String name, SymCode code )
   return res;
 }
 
-public final /*synchronized*/ Symbol newSymbol ( String name )
+public final Symbol newSymbol ( String name )
 {
   Symbol res;
   if ( (res = m_map.get( name )) == null)
-    m_map.put( name, res = new Symbol( name, SymCode.NONE ) );
+  {
+    Symbol sym = new Symbol( name, SymCode.NONE );
+    if ( (res = m_map.putIfAbsent( name, sym )) == null)
+      res = sym;
+  }
   return res;
 }
 
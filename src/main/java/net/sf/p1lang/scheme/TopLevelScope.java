@@ -7,7 +7,11 @@
 
 package net.sf.p1lang.scheme;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
 public class TopLevelScope extends Scope
 {
@@ -18,6 +22,26 @@ final Object[] m_env;
 
 TopLevelScope m_macroScope;
 
+/**
+ * The bindings inherited from the scope we were forked from (see {@link #fork}). The layer is
+ * shared and never modified, so its bindings are copied before they are modified. It has no
+ * base of its own, so a lookup never goes through more than one layer.
+ */
+private TopLevelScope m_base;
+/**
+ * In a layer of shared bindings, the environments of the scopes they were moved from,
+ * including the ones of the layers it was flattened from
+ */
+private Set<Object[]> m_frozenEnvs;
+
+/** Set once we have been forked or are a fork. See {@link #isShared()} */
+private boolean m_shared;
+
+/** The lambda bodies compiled lazily in this scope (see {@link LazyBody}) */
+private final ArrayList<LazyBody> m_lazyBodies = new ArrayList<LazyBody>();
+/** Remove the compiled bodies from {@link #m_lazyBodies} when it reaches this size */
+private int m_lazyLimit = 64;
+
 TopLevelScope ( SchemeInterpreter interp, int envSize )
 {
   super(null, envSize, false);
@@ -26,6 +50,57 @@ TopLevelScope ( SchemeInterpreter interp, int envSize )
   Arrays.fill( m_env, Unspec.UNSPEC );
 }
 
+/**
+ * @param env the environment, or null for a layer of shared bindings (see {@link #freeze})
+ */
+private TopLevelScope ( SchemeInterpreter interp, int envSize, Object[] env, TopLevelScope base )
+{
+  super(null, envSize, false);
+  m_interp = interp;
+  m_env = env;
+  m_base = base;
+}
+
+public Binding get ( Object sym )
+{
+  Binding b = super.get( sym );
+  return b == null && m_base != null ? m_base.get( sym ) : b;
+}
+
+boolean isShared ( Binding binding )
+{
+  return m_base != null && super.get( binding.sym ) != binding;
+}
+
+/**
+ * @return true if the code compiled in this scope may be shared with another interpreter,
+ *   because it has been forked or is a fork
+ */
+final boolean isShared ()
+{
+  return m_shared;
+}
+
+/**
+ * @return true if env is our environment or the one of a scope we were forked from. Their top
+ *   level closures are the same procedures, since their code uses our variables.
+ */
+final boolean isForkOf ( Object[] env )
+{
+  return env == m_env || m_base != null && m_base.m_frozenEnvs.contains( env );
+}
+
+/**
+ * @return the number of layers of shared bindings below us
+ */
+final int getLayerCount ()
+{
+  int count = 0;
+  for ( TopLevelScope layer = m_base; layer != null; layer = layer.m_base )
+    ++count;
+  return count;
+}
+
 void define ( Symbol sym, Object value ) throws SchemeUncheckedError
 {
   m_env[bindVar( sym ).index] = value;
@@ -51,9 +126,106 @@ final void setMacroScope ( TopLevelScope macroScope )
 TopLevelScope copy ()
 {
   TopLevelScope res = new TopLevelScope( m_interp, m_env.length );
-  res.putAll( this );
+  res.importBindings( this );
+  return res;
+}
+
+/**
+ * Add (or replace) all bindings of another top level scope with the same environment layout,
+ * so code compiled in it can be evaluated in our environment. Only the bindings created after
+ * the last {@link #fork} of the other scope are imported.
+ */
+void importBindings ( TopLevelScope from )
+{
+  putAll( from );
+  reserveBindings( from.getBindingCount() );
+}
+
+/**
+ * Create a copy-on-write fork of this scope for another interpreter.
+ *
+ * <p>The bindings are not copied. Instead we move them to a new layer, which is shared with the
+ * fork and never modified, so only the first fork after new definitions pays for it. The
+ * environment is copied (it is small). The closures in it are not: their code reads the top
+ * level variables from the environment of the evaluation calling them (see {@link AST.Var}),
+ * so redefinitions and assignments in the fork are visible to them when the fork calls them,
+ * however they were reached, but never in the parent. The macro scope is forked the same way,
+ * so later macros of the parent don't leak into the fork.
+ *
+ * <p>Other mutable values, like vectors, hash tables or the local variables captured by
+ * closures, are still shared.
+ */
+TopLevelScope fork ( SchemeInterpreter interp )
+{
+  freeze();
+  m_shared = true;
+
+  TopLevelScope res = new TopLevelScope( interp, m_env.length, m_env.clone(), m_base );
+  res.reserveBindings( getBindingCount() );
+  res.m_shared = true;
+  if (m_macroScope == this)
+    res.m_macroScope = res;
+  else if (m_macroScope != null)
+    res.m_macroScope = m_macroScope.fork( interp );
   return res;
 }
 
+final void addLazyBody ( LazyBody body )
+{
+  if (m_lazyBodies.size() == m_lazyLimit)
+  {
+    int j = 0;
+    for ( LazyBody b : m_lazyBodies )
+      if (!b.isCompiled())
+        m_lazyBodies.set( j++, b );
+    m_lazyBodies.subList( j, m_lazyBodies.size() ).clear();
+    m_lazyLimit = Math.max( m_lazyLimit, 2 * j );
+  }
+  m_lazyBodies.add( body );
+}
+
+/**
+ * Compile all lambda bodies which haven't been called yet. Errors are ignored here: they will be
+ * reported when the lambda is called.
+ */
+final void compileLazyBodies ()
+{
+  for ( LazyBody body : m_lazyBodies )
+  {
+    try
+    {
+      body.compile();
+    }
+    catch (SchemeError ignored)
+    {}
+  }
+  m_lazyBodies.clear();
+}
+
+/**
+ * Move our bindings to a new shared layer. It records our environment even if we have no
+ * bindings of our own (see {@link #isForkOf}).
+ *
+ * <p>The bindings of our current layer are copied into the new one instead of being
+ * referenced, so that forks of forks don't build ever longer chains of layers. The old layer is
+ * left unchanged for the other scopes sharing it.
+ */
+private void freeze ()
+{
+  if (isEmpty() && m_base != null && m_base.m_frozenEnvs.contains( m_env ))
+    return;
+  TopLevelScope layer = new TopLevelScope( m_interp, m_env.length, null, null );
+  layer.m_frozenEnvs = Collections.newSetFromMap( new IdentityHashMap<Object[],Boolean>() );
+  if (m_base != null)
+  {
+    layer.putAll( m_base );
+    layer.m_frozenEnvs.addAll( m_base.m_frozenEnvs );
+  }
+  layer.m_frozenEnvs.add( m_env );
+  layer.putAll( this );
+  clear();
+  m_base = layer;
+}
+
 } // class
 
@@ -109,6 +109,9 @@
 
 (define (call-with-current-continuation p) (__%builtin CallCC p))
 (define call/cc call-with-current-continuation)
+(define (call-with-escape-continuation p) (__%builtin CallEC p))
+(define call/ec call-with-escape-continuation)
+(define (dynamic-wind before thunk after) (__%builtin DynamicWind before thunk after))
 
 ;;
 ;; length
@@ -126,6 +129,30 @@
             b
             (cons (car a) (__%apnd (cdr a) b)))))
 
+;; The expansions of the arithmetic and comparison macros in stage 2. "bop" is a binary
+;; builtin and "nop" its variadic version.
+;; (op x1 x2 ... xn) => (bop ... (bop (bop x1 x2) x3) ... xn)
+;; (op x) => (bop unit x), if there is a unit
+(define (__%expand-fold bop nop unit params)
+    (if (null? params)
+        (list '__%builtin nop)
+        (if (null? (cdr params))
+            (if unit
+                (list '__%builtin bop unit (car params))
+                (list '__%builtin nop (car params)))
+            (let lp ([acc (car params)] [params (cdr params)])
+                (if (null? params)
+                    acc
+                    (lp (list '__%builtin bop acc (car params)) (cdr params)))))))
+
+;; (op x y) => (bop x y), otherwise (nop x ...)
+(define (__%expand-compare bop nop params)
+    (cons '__%builtin
+          (cons (if (pair? params)
+                    (if (pair? (cdr params)) (if (null? (cddr params)) bop nop) nop)
+                    nop)
+                params)))
+
 )  ; stage 1
 
 (  ; stage 2
@@ -345,60 +372,46 @@
 (define-identifier-macro (apply _) '__%apply)
 
 ;;
-;; +
+;; Arithmetic and comparison
+;;
+;; Calls are expanded into chains of binary builtins, or into variadic builtins when that isn't
+;; possible (see __%expand-fold and __%expand-compare). As values, the operations are Java
+;; procedures (see gen-variadic in Builtins-gen.scm). Neither allocates a list for the
+;; parameters.
 ;;
-(define-macro (+ . params)
-    (if (null? params)
-        0
-        (if (null? (cdr params))
-            (list '__%builtin 'Add 0 (car params))
-            (let lp ([acc (car params)] [params (cdr params)])
-                (if (null? params)
-                    acc
-                    (lp (list '__%builtin 'Add acc (car params)) (cdr params)))))))
 
+(define-macro (+ . params) (__%expand-fold 'Add 'AddN 0 params))
 (define-identifier-macro (+ _) '__%+)
 
-(define (__%+ . params)
-    (let helper ([acc 0] [params params])
-        (if (null? params)
-            acc
-            (helper (+ acc (car params)) (cdr params)))))
+(define-macro (* . params) (__%expand-fold 'Mul 'MulN 1 params))
+(define-identifier-macro (* _) '__%*)
 
-;;;
-;;;
+(define-macro (- . params) (__%expand-fold 'Sub 'SubN 0 params))
+(define-identifier-macro (- _) '__%-)
 
-;; FIXME
-(define (<= a b)  (__%builtin NumberLE a b))
-(define (< a b)  (__%builtin NumberLT a b))
-(define (= a b)  (__%builtin NumberEQ a b))
-(define (>= a b)  (__%builtin NumberLE b a))
-(define (> a b)  (__%builtin NumberLT b a))
-
-(define (* . params)
-    (define (helper acc params)
-        (if (null? params)
-            acc
-            (helper (__%builtin Mul acc (car params)) (cdr params))))
-    (helper 1 params))
-
-(define (- a . params)
-    (define (helper acc params)
-        (if (null? params)
-            acc
-            (helper (__%builtin Sub acc (car params)) (cdr params))))
-    (if (null? params)
-        (__%builtin Sub 0 a)
-        (helper (__%builtin Sub a (car params)) (cdr params))))
-
-(define (/ a . params)
-    (define (helper acc params)
-        (if (null? params)
-            acc
-            (helper (__%builtin Div acc (car params)) (cdr params))))
-    (if (null? params)
-        (__%builtin Div 1 a)
-        (helper (__%builtin Div a (car params)) (cdr params))))
+(define-macro (/ . params) (__%expand-fold 'Div 'DivN 1 params))
+(define-identifier-macro (/ _) '__%/)
+
+(define-macro (max . params) (__%expand-fold 'Max 'MaxN #f params))
+(define-identifier-macro (max _) '__%max)
+
+(define-macro (min . params) (__%expand-fold 'Min 'MinN #f params))
+(define-identifier-macro (min _) '__%min)
+
+(define-macro (< . params) (__%expand-compare 'NumberLT 'NumberLTN params))
+(define-identifier-macro (< _) '__%<)
+
+(define-macro (<= . params) (__%expand-compare 'NumberLE 'NumberLEN params))
+(define-identifier-macro (<= _) '__%<=)
+
+(define-macro (= . params) (__%expand-compare 'NumberEQ 'NumberEQN params))
+(define-identifier-macro (= _) '__%=)
+
+(define-macro (> . params) (__%expand-compare 'NumberGT 'NumberGTN params))
+(define-identifier-macro (> _) '__%>)
+
+(define-macro (>= . params) (__%expand-compare 'NumberGE 'NumberGEN params))
+(define-identifier-macro (>= _) '__%>=)
 
 
 ;;;;;;;;;; Strings ;;;;;;;;;;;;;;;;;;;
@@ -524,31 +537,6 @@
                 (- r b))
             r)))
 
-; From Scheme48
-; Messy because of inexact contagion.
-
-(define (max first . rest)
-  (max-or-min first rest #t))
-
-(define (min first . rest)
-  (max-or-min first rest #f))
-
-(define (max-or-min first rest max?)
-  (let loop ((result first) (rest rest) (lose? (inexact? first)))
-    (if (null? rest)
-        (if (and lose? (exact? result))
-            (exact->inexact result)
-            result)
-        (let ((next (car rest)))
-          (loop (if (if max?
-                        (< result next)
-                        (> result next))
-                    next
-                    result)
-                (cdr rest)
-                (or lose? (inexact? next)))))))
-
-
 (define (real-part x) (__%builtin RealPart x))
 (define (imag-part x) (__%builtin ImagPart x))
 
@@ -576,13 +564,8 @@
 (define-identifier-macro (vector-length _) '__%vector-length)
 (define (__%vector-length vec ind) (vector-length vec))
 
-(define (make-vector k . fill)
-    (__%builtin MakeVector
-        k
-        (if (not (null? fill))
-            (if (null? (cdr fill))
-                (car fill)
-                (error "(make-vector)" "Need 1 or 2 arguments")))))
+(define (make-vector k #!optional (fill __%VOID))
+    (__%builtin MakeVector k fill))
 
 ;++ TODO: map.put( sm.newSymbol("Vector"), new BuiltinFactory<Vector>(Vector.class) );
 (define (vector . lst) (list->vector lst))
@@ -608,26 +591,32 @@
 ;;; Multiple values
 ;;;
 
-(define __%values-marker '__%values-marker)
-
-(define (__%values? v) (and (pair? v) (eq? (car v) __%values-marker)))
-
-(define (values . vals)
-    (cond
-        ((null? vals) vals)
-        ((null? (cdr vals)) (car vals))
-        (else (cons __%values-marker vals))))
+;; Other than one value are returned in a carrier reused by all calls. let-values assigns
+;; them straight to its variables, so no list is allocated. receive and call-with-values
+;; with a lambda consumer expand into it.
 
-(define (call-with-values producer consumer)
-    (let ([vals (producer)])
-        (if (__%values? vals)
-            (apply consumer (cdr vals))
-            (apply consumer vals '()))))
+(define-macro (values . vals) (cons '__%builtin (cons 'Values vals)))
+(define-identifier-macro (values _) '__%values)
+(define (__%values . vals) (__%builtin ListValues vals))
 
 (define-macro (receive formals expression . body)
-    (list 'call-with-values
-        (list 'lambda '() expression)
-        (cons 'lambda (cons formals body))))
+    (cons 'let-values (cons (list (list formals expression)) body)))
+
+(define-macro (let*-values bindings . body)
+    (if (if (null? bindings) #t (null? (cdr bindings)))
+        (cons 'let-values (cons bindings body))
+        (list 'let-values (list (car bindings)) (cons 'let*-values (cons (cdr bindings) body)))))
+
+(define-macro (call-with-values producer consumer)
+    (let ([expr (if (if (pair? producer) (if (eq? (car producer) 'lambda) (null? (cadr producer)) #f) #f)
+                    (cons 'let (cons '() (cddr producer)))
+                    (list producer))])
+        (if (if (pair? consumer) (eq? (car consumer) 'lambda) #f)
+            (cons 'let-values (cons (list (list (cadr consumer) expr)) (cddr consumer)))
+            (list 'let-values (list (list '__%vals expr)) (list 'apply consumer '__%vals)))))
+(define-identifier-macro (call-with-values _) '__%call-with-values)
+(define (__%call-with-values producer consumer)
+    (let-values ([vals (producer)]) (apply consumer vals)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
@@ -662,11 +651,11 @@
           ((proc (caar alist)) (car alist))
           (else (assp proc (cdr alist)))))
 
-;Note: Extended version is defined in srfi-1
-(define (assoc obj alist)
+;Note: Extended with the optional comparison of srfi-1, which is loaded on demand
+(define (assoc obj alist #!optional (= equal?))
     (cond ((null? alist) #f)
-          ((equal? obj (caar alist)) (car alist))
-          (else (assoc obj (cdr alist)))))
+          ((= obj (caar alist)) (car alist))
+          (else (assoc obj (cdr alist) =))))
 
 (define (assv obj alist)
     (cond ((null? alist) #f)
@@ -684,57 +673,9 @@
 ( ; stage 3
 
 ;;
-;; (case <key> <case clause> <case clause> ...)
+;; (case <key> <case clause> <case clause> ...) is a special form, which selects the clause
+;; with a table lookup (see AST.Case)
 ;;
-;;   ==>
-;;      (let ([%tmp key])
-;;          (if (or (eqv? key a)(eqv? key b)....)
-;;              clause1-body
-;;              (if (or (eqv? key c)(eqv? key d)....)
-;;                  clause2-body
-;;
-;;+TODO: build a table, do a binary search, index lookup, etc
-(define-macro (case key . clauses)
-    (if (null? clauses)
-        key ; evalue key for its side effects only
-        (let ([tmp (gentemp)])
-            (list
-                'let (list (list tmp key)) ; the outer let
-                (let recurse-clause ([clauses clauses])
-                    (let* ([cur-clause (car clauses)]
-                           [datum-list (car cur-clause)]
-                           [clause-body (cdr cur-clause)])
-                        (if (eq? datum-list 'else)
-                            ;; else clause
-                            (if (null? (cdr clauses))   ; Is 'else the last clause ?
-                                (cons 'begin clause-body)
-                                (syntax-error cur-clause "(case...): else must be the last clause"))
-                            ;; Regular clause
-                            (begin
-                                (if (not (list? datum-list))
-                                    (syntax-error cur-clause "(case...): datum list expected"))
-                                (__%apnd
-                                    ;; (if (..match..) body
-                                    (list
-                                        'if
-                                        ;; (or (eqv? ..)(eqv? ..))
-                                        (cons
-                                            'or
-                                            (let loop-datum ([datum-list datum-list])
-                                                (if (null? datum-list)
-                                                    '()
-                                                    (cons
-                                                        (list 'eqv?
-                                                              tmp
-                                                              (list 'quote (car datum-list)))
-                                                        (loop-datum (cdr datum-list))))))
-                                        (cons 'begin clause-body))
-                                    ;; Append the 'else' part of the 'if':
-                                    ;; either recurse into the next clause, or nothing
-                                    (if (null? (cdr clauses))
-                                        '()
-                                        (list (recurse-clause (cdr clauses)))))))))))))
-
 
 ;; Based on Scheme48
 (define-macro (quasiquote exp)
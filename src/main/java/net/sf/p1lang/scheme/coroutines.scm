@@ -0,0 +1,75 @@
+;;; Coroutines and generators
+;;;
+;;; A coroutine runs a procedure on its own stack:
+;;;   (make-coroutine proc)         -> <coroutine>
+;;;   (resume <coroutine> [value])  -> the next yielded value, or the value of proc
+;;;   (yield [value])               -> the value of the next resume
+;;;   (coroutine-close <coroutine>) -> unwind a suspended coroutine from its yield
+;;; The first resume passes its value to proc.
+;;;
+;;; A generator is a thunk returning successive values, and then the unique object
+;;; generator-end. The generators made by make-generator (and so by all procedures here) can
+;;; also be closed with generator-close, which finishes their coroutine.
+
+(define (make-coroutine proc) (__%builtin MakeCoroutine proc))
+(define (coroutine? x) (__%builtin CoroutinePred x))
+(define (coroutine-done? co) (__%builtin CoroutineDone co))
+(define (resume co #!optional (value __%VOID)) (__%builtin Resume co value))
+(define (coroutine-close co) (__%builtin CoroutineClose co))
+(define (yield #!optional (value __%VOID)) (__%builtin Yield value))
+
+(define generator-end (list 'generator-end))
+(define (generator-end? x) (eq? x generator-end))
+
+;; (proc yield) produces the values of the generator by calling yield. Called with generator-end,
+;; the generator is closed.
+(define (make-generator proc)
+  (define co (make-coroutine (__%generator-body proc)))
+  (lambda (#!optional (close #f))
+    (cond ((eq? close generator-end) (coroutine-close co) generator-end)
+          ((coroutine-done? co) generator-end)
+          (else (resume co)))))
+
+;; The procedure of the coroutine of a generator. It is created outside of the scope of the
+;; coroutine, which then isn't reachable from its own thread and can be collected with the
+;; generator.
+(define (__%generator-body proc)
+  (lambda (ignored) (proc yield) generator-end))
+
+;; Close a generator made by make-generator
+(define (generator-close g)
+  (g generator-end))
+
+(define (list->generator lst)
+  (make-generator (lambda (yield) (for-each yield lst))))
+
+(define (generator-fold kons knil g)
+  (let loop ((acc knil))
+    (let ((x (g)))
+      (if (generator-end? x) acc (loop (kons x acc))))))
+
+(define (generator-for-each f g)
+  (let loop ()
+    (let ((x (g)))
+      (if (not (generator-end? x))
+        (begin (f x) (loop))))))
+
+(define (generator->list g)
+  (reverse (generator-fold cons '() g)))
+
+(define (generator-map f g)
+  (make-generator (lambda (yield) (generator-for-each (lambda (x) (yield (f x))) g))))
+
+(define (generator-filter pred g)
+  (make-generator (lambda (yield) (generator-for-each (lambda (x) (if (pred x) (yield x))) g))))
+
+;; The first n values of the generator g, which is closed after them
+(define (generator-take g n)
+  (make-generator
+    (lambda (yield)
+      (let loop ((n n))
+        (if (> n 0)
+          (let ((x (g)))
+            (if (not (generator-end? x))
+              (begin (yield x) (loop (- n 1)))))
+          (generator-close g))))))
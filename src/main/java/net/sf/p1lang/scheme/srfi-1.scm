@@ -258,15 +258,11 @@
 
 ;;; Make a list of length LEN.
 
-(define (make-list len . maybe-elt)
+(define (make-list len #!optional elt) ; #f by default
   (check-arg (lambda (n) (and (integer? n) (>= n 0))) len make-list)
-  (let ((elt (cond ((null? maybe-elt) #f) ; Default value
-		   ((null? (cdr maybe-elt)) (car maybe-elt))
-		   (else (error "Too many arguments to MAKE-LIST"
-				(cons len maybe-elt))))))
-    (do ((i len (- i 1))
-	 (ans '() (cons elt ans)))
-	((<= i 0) ans))))
+  (do ((i len (- i 1))
+       (ans '() (cons elt ans)))
+      ((<= i 0) ans)))
 
 
 ;(define (list . ans) ans)	; R4RS
@@ -302,17 +298,16 @@
 
 ;;; IOTA count [start step]	(start start+step ... start+(count-1)*step)
 
-(define (iota count . maybe-start+step)
+(define (iota count #!optional (start 0) (step 1)) ; TZM: changed from (let-optionals)
   (check-arg integer? count iota)
   (if (< count 0) (error "Negative step count" iota count))
-  (let-optionals* maybe-start+step ((start 0) (step 1)) ; TZM: changed from (let-optionals)
-    (check-arg number? start iota)
-    (check-arg number? step iota)
-    (let loop ((n 0) (r '()))
-      (if (= n count)
-	  (reverse r)
-	  (loop (+ 1 n)
-		(cons (+ start (* n step)) r))))))
+  (check-arg number? start iota)
+  (check-arg number? step iota)
+  (let loop ((n 0) (r '()))
+    (if (= n count)
+	(reverse r)
+	(loop (+ 1 n)
+	      (cons (+ start (* n step)) r)))))
 
 ;;; I thought these were lovely, but the public at large did not share my
 ;;; enthusiasm...
@@ -827,11 +822,11 @@
 ;;; fold/unfold
 ;;;;;;;;;;;;;;;
 
-(define (unfold-right p f g seed . maybe-tail)
+(define (unfold-right p f g seed #!optional (tail '()))
   (check-arg procedure? p unfold-right)
   (check-arg procedure? f unfold-right)
   (check-arg procedure? g unfold-right)
-  (let lp ((seed seed) (ans (:optional maybe-tail '())))
+  (let lp ((seed seed) (ans tail))
     (if (p seed) ans
 	(lp (g seed)
 	    (cons (f seed) ans)))))
@@ -1225,18 +1220,15 @@
 ;;; assoc key lis [=]		Search alist by key comparison
 ;;; alist-delete key alist [=]	Alist-delete by key comparison
 
-(define (delete x lis . maybe-=)
-  (let ((= (:optional maybe-= equal?)))
-    (filter (lambda (y) (not (= x y))) lis)))
+(define (delete x lis #!optional (= equal?))
+  (filter (lambda (y) (not (= x y))) lis))
 
-(define (delete! x lis . maybe-=)
-  (let ((= (:optional maybe-= equal?)))
-    (filter! (lambda (y) (not (= x y))) lis)))
+(define (delete! x lis #!optional (= equal?))
+  (filter! (lambda (y) (not (= x y))) lis))
 
 ;;; Extended from R4RS to take an optional comparison argument.
-(define (member x lis . maybe-=)
-  (let ((= (:optional maybe-= equal?)))
-    (find-tail (lambda (y) (= x y)) lis)))
+(define (member x lis #!optional (= equal?))
+  (find-tail (lambda (y) (= x y)) lis))
 
 ;;; R4RS, hence we don't bother to define.
 ;;; The MEMBER and then FIND-TAIL call should definitely
@@ -1254,15 +1246,14 @@
 ;;; linear-time algorithm to kill the dups. Or use an algorithm based on
 ;;; element-marking. The former gives you O(n lg n), the latter is linear.
 
-(define (delete-duplicates lis . maybe-=)
-  (let ((elt= (:optional maybe-= equal?)))
-    (check-arg procedure? elt= delete-duplicates)
-    (let recur ((lis lis))
-      (if (null-list? lis) lis
-	  (let* ((x (car lis))
-		 (tail (cdr lis))
-		 (new-tail (recur (delete x tail elt=))))
-	    (if (eq? tail new-tail) lis (cons x new-tail)))))))
+(define (delete-duplicates lis #!optional (elt= equal?))
+  (check-arg procedure? elt= delete-duplicates)
+  (let recur ((lis lis))
+    (if (null-list? lis) lis
+        (let* ((x (car lis))
+               (tail (cdr lis))
+               (new-tail (recur (delete x tail elt=))))
+          (if (eq? tail new-tail) lis (cons x new-tail))))))
 
 (define (delete-duplicates! lis maybe-=)
   (let ((elt= (:optional maybe-= equal?)))
@@ -1278,9 +1269,7 @@
 ;;;;;;;;;;;;;;;
 
 ;;; Extended from R4RS to take an optional comparison argument.
-(define (assoc x lis . maybe-=)
-  (let ((= (:optional maybe-= equal?)))
-    (find (lambda (entry) (= x (car entry))) lis)))
+;;; TZM: defined in base0, so it doesn't depend on loading this library
 
 (define (alist-cons key datum alist) (cons (cons key datum) alist))
 
@@ -1288,13 +1277,11 @@
   (map (lambda (elt) (cons (car elt) (cdr elt)))
        alist))
 
-(define (alist-delete key alist . maybe-=)
-  (let ((= (:optional maybe-= equal?)))
-    (filter (lambda (elt) (not (= key (car elt)))) alist)))
+(define (alist-delete key alist #!optional (= equal?))
+  (filter (lambda (elt) (not (= key (car elt)))) alist))
 
-(define (alist-delete! key alist . maybe-=)
-  (let ((= (:optional maybe-= equal?)))
-    (filter! (lambda (elt) (not (= key (car elt)))) alist)))
+(define (alist-delete! key alist #!optional (= equal?))
+  (filter! (lambda (elt) (not (= key (car elt)))) alist))
 
 ;;; find find-tail take-while drop-while span break any every list-index
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
@@ -21,6 +21,7 @@
 
 ;; Changes made by TZM:
 ;;   - use (remainder) instead of (modulo). It is much more efficient
+;;   - use #!optional parameters instead of rest lists, so calls don't allocate
 
 
 (define *default-bound* (- (expt 2 29) 3))
@@ -34,35 +35,31 @@
                             (char->integer (ch-conv (string-ref s index))))
                          *default-bound*)))))
 
-(define (string-hash s . maybe-bound)
-  (let ((bound (if (null? maybe-bound) *default-bound* (car maybe-bound))))
-    (%string-hash s (lambda (x) x) bound)))
-
-(define (string-ci-hash s . maybe-bound)
-  (let ((bound (if (null? maybe-bound) *default-bound* (car maybe-bound))))
-    (%string-hash s char-downcase bound)))
-
-(define (symbol-hash s . maybe-bound)
-  (let ((bound (if (null? maybe-bound) *default-bound* (car maybe-bound))))
-    (%string-hash (symbol->string s) (lambda (x) x) bound)))
-
-(define (hash obj . maybe-bound)
-  (let ((bound (if (null? maybe-bound) *default-bound* (car maybe-bound))))
-    (cond ((integer? obj) (remainder obj bound))
-          ((string? obj) (string-hash obj bound))
-          ((symbol? obj) (symbol-hash obj bound))
-          ((real? obj) (remainder (+ (numerator obj) (denominator obj)) bound))
-          ((number? obj)
-           (remainder (+ (hash (real-part obj)) (* 3 (hash (imag-part obj))))
-                   bound))
-          ((char? obj) (remainder (char->integer obj) bound))
-          ((vector? obj) (vector-hash obj bound))
-          ((pair? obj) (remainder (+ (hash (car obj)) (* 3 (hash (cdr obj))))
-                               bound))
-          ((null? obj) 0)
-          ((not obj) 0)
-          ((procedure? obj) (error "hash: procedures cannot be hashed" obj))
-          (else 1))))
+(define (string-hash s #!optional (bound *default-bound*))
+  (%string-hash s (lambda (x) x) bound))
+
+(define (string-ci-hash s #!optional (bound *default-bound*))
+  (%string-hash s char-downcase bound))
+
+(define (symbol-hash s #!optional (bound *default-bound*))
+  (%string-hash (symbol->string s) (lambda (x) x) bound))
+
+(define (hash obj #!optional (bound *default-bound*))
+  (cond ((integer? obj) (remainder obj bound))
+        ((string? obj) (string-hash obj bound))
+        ((symbol? obj) (symbol-hash obj bound))
+        ((real? obj) (remainder (+ (numerator obj) (denominator obj)) bound))
+        ((number? obj)
+         (remainder (+ (hash (real-part obj)) (* 3 (hash (imag-part obj))))
+                 bound))
+        ((char? obj) (remainder (char->integer obj) bound))
+        ((vector? obj) (vector-hash obj bound))
+        ((pair? obj) (remainder (+ (hash (car obj)) (* 3 (hash (cdr obj))))
+                             bound))
+        ((null? obj) 0)
+        ((not obj) 0)
+        ((procedure? obj) (error "hash: procedures cannot be hashed" obj))
+        (else 1)))
 
 (define hash-by-identity hash)
 
@@ -96,15 +93,11 @@
       (and (eq? comparison string-ci=?) string-ci-hash)
       hash))
 
-(define (make-hash-table . args)
-  (let* ((comparison (if (null? args) equal? (car args)))
-         (hash
-           (if (or (null? args) (null? (cdr args)))
-             (appropriate-hash-function-for comparison) (cadr args)))
-         (size
-           (if (or (null? args) (null? (cdr args)) (null? (cddr args)))
-             *default-table-size* (caddr args)))
-         (association
+(define (make-hash-table #!optional (comparison equal?)
+                                   (hash (appropriate-hash-function-for comparison))
+                                   (size *default-table-size*)
+                         #!rest implementation-specific)
+  (let* ((association
            (or (and (eq? comparison eq?) assq)
                (and (eq? comparison eqv?) assv)
                (and (eq? comparison equal?) assoc)
@@ -118,7 +111,7 @@
     (%make-hash-table 0 hash comparison association (make-vector size '()))))
 
 (define (make-hash-table-maker comp hash)
-  (lambda args (apply make-hash-table (cons comp (cons hash args)))))
+  (lambda (#!optional (size *default-table-size*)) (make-hash-table comp hash size)))
 (define make-symbol-hash-table
   (make-hash-table-maker eq? symbol-hash))
 (define make-string-hash-table
@@ -171,14 +164,16 @@
           old-entries)
         (hash-table-set-entries! hash-table new-entries)))))
 
-(define (hash-table-ref hash-table key . maybe-default)
-  (cond ((%hash-table-find (hash-table-entries hash-table)
-                           (hash-table-association-function hash-table)
-                           (%hash-table-hash hash-table key) key)
-         => %hash-node-value)
-        ((null? maybe-default)
-         (error "hash-table-ref: no value associated with" key))
-        (else ((car maybe-default)))))
+(define (hash-table-ref hash-table key #!optional thunk success)
+  (let ((node (%hash-table-find (hash-table-entries hash-table)
+                                (hash-table-association-function hash-table)
+                                (%hash-table-hash hash-table key) key)))
+    (cond ((not node)
+           (if thunk
+             (thunk)
+             (error "hash-table-ref: no value associated with" key)))
+          (success (success (%hash-node-value node)))
+          (else (%hash-node-value node)))))
 
 (define (hash-table-ref/default hash-table key default)
   (hash-table-ref hash-table key (lambda () default)))
@@ -195,7 +190,7 @@
                                        (+ 1 (hash-table-size hash-table)))
                 (%hash-table-maybe-resize! hash-table)))))
 
-(define (hash-table-update! hash-table key function . maybe-default)
+(define (hash-table-update! hash-table key function #!optional thunk)
   (let ((hash (%hash-table-hash hash-table key))
         (entries (hash-table-entries hash-table)))
     (cond ((%hash-table-find entries
@@ -204,10 +199,10 @@
            => (lambda (node)
                 (%hash-node-set-value!
                   node (function (%hash-node-value node)))))
-          ((null? maybe-default)
+          ((not thunk)
            (error "hash-table-update!: no value exists for key" key))
           (else (%hash-table-add! entries hash key
-                                  (function ((car maybe-default))))
+                                  (function (thunk)))
                 (hash-table-set-size! hash-table
                                        (+ 1 (hash-table-size hash-table)))
                 (%hash-table-maybe-resize! hash-table)))))
@@ -236,15 +231,11 @@
                        (lambda (key value) (set! acc (f key value acc))))
   acc)
 
-(define (alist->hash-table alist . args)
-  (let* ((comparison (if (null? args) equal? (car args)))
-         (hash
-           (if (or (null? args) (null? (cdr args)))
-             (appropriate-hash-function-for comparison) (cadr args)))
-         (size
-           (if (or (null? args) (null? (cdr args)) (null? (cddr args)))
-             (max *default-table-size* (* 2 (length alist))) (caddr args)))
-         (hash-table (make-hash-table comparison hash size)))
+(define (alist->hash-table alist #!optional (comparison equal?)
+                                  (hash (appropriate-hash-function-for comparison))
+                                  (size (max *default-table-size* (* 2 (length alist))))
+                            #!rest implementation-specific)
+  (let ((hash-table (make-hash-table comparison hash size)))
     (for-each
       (lambda (elem)
         (hash-table-update!/default
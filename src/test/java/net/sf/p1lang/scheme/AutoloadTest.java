@@ -0,0 +1,105 @@
+package net.sf.p1lang.scheme;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * Tests loading of libraries on first reference.
+ *
+ * @author T.Mikov
+ */
+public class AutoloadTest extends TestCase
+{
+public AutoloadTest(String name)
+{
+  super(name);
+}
+
+public void testLoad () throws Exception
+{
+  SchemeInterpreter sc = new SchemeInterpreter();
+  for ( String name : SchemeInterpreter.AUTOLOAD_LIBRARIES )
+    assertTrue( name, sc.m_autoload.isPending( name ) );
+
+  assertEquals( "(1 2 3)", TestUtils.eval( sc, "(list 1 2 3)" ) );
+  assertTrue( sc.m_autoload.isPending( "srfi-1.scm" ) );
+
+  // A variable reference
+  assertEquals( "6", TestUtils.eval( sc, "(fold + 0 '(1 2 3))" ) );
+  assertFalse( sc.m_autoload.isPending( "srfi-1.scm" ) );
+  assertTrue( sc.m_autoload.isPending( "srfi-9.scm" ) );
+
+  // A macro, and a library which depends on others
+  assertEquals( "2", TestUtils.eval( sc,
+    "(begin (define-record-type point (make-point x y) point? (x point-x) (y point-y))" +
+    " (point-y (make-point 1 2)))" ) );
+  assertFalse( sc.m_autoload.isPending( "srfi-9.scm" ) );
+  assertEquals( "1", TestUtils.eval( sc,
+    "(let ((h (make-hash-table))) (hash-table-set! h 'a 1) (hash-table-ref/default h 'a 0))" ) );
+  assertEquals( "2", TestUtils.eval( sc, "(let ((g (make-coroutine (lambda (x) (yield (+ x 1)) 0)))) (resume g 1))" ) );
+
+  // From Java
+  SchemeInterpreter sc2 = new SchemeInterpreter();
+  assertNotNull( sc2.getTopLevelClosure( "delete-duplicates" ) );
+  assertFalse( sc2.m_autoload.isPending( "srfi-1.scm" ) );
+
+  // In set!
+  SchemeInterpreter sc3 = new SchemeInterpreter();
+  sc3.eval( "(set! iota 1)" );
+  assertEquals( "1", TestUtils.eval( sc3, "iota" ) );
+  assertFalse( sc3.m_autoload.isPending( "srfi-1.scm" ) );
+
+  // In a macro
+  SchemeInterpreter sc4 = new SchemeInterpreter();
+  sc4.eval( "(define-macro (m x) (list '+ x (fold + 0 '(5 5))))" );
+  assertEquals( "12", TestUtils.eval( sc4, "(m 2)" ) );
+}
+
+public void testRedefinitions () throws Exception
+{
+  SchemeInterpreter sc = new SchemeInterpreter();
+  // Defined before the library is loaded: like a redefinition after the library
+  sc.eval( "(define (filter p l) 'mine)" +
+           "(define-macro (reduce . x) ''my-macro)" );
+  assertEquals( "(1 2)", TestUtils.eval( sc, "(map car '((1) (2)))" ) );
+  assertEquals( "mine", TestUtils.eval( sc, "(filter odd? '(1 2))" ) );
+  assertEquals( "my-macro", TestUtils.eval( sc, "(reduce + 0 '(1 2))" ) );
+  // The library uses the redefinitions
+  assertEquals( "mine", TestUtils.eval( sc, "(remove odd? '(1 2))" ) );
+
+  // base0 has the extended assoc of srfi-1
+  SchemeInterpreter sc2 = new SchemeInterpreter();
+  assertEquals( "(2 b)", TestUtils.eval( sc2, "(assoc 2.0 '((1 a) (2 b)) =)" ) );
+  assertTrue( sc2.m_autoload.isPending( "srfi-1.scm" ) );
+}
+
+public void testFork () throws Exception
+{
+  SchemeInterpreter parent = new SchemeInterpreter();
+  SchemeInterpreter fork = parent.fork();
+  assertEquals( "6", TestUtils.eval( fork, "(fold + 0 '(1 2 3))" ) );
+  assertFalse( fork.m_autoload.isPending( "srfi-1.scm" ) );
+  assertTrue( parent.m_autoload.isPending( "srfi-1.scm" ) );
+  assertEquals( "(0 1)", TestUtils.eval( parent, "(iota 2)" ) );
+
+  SchemeInterpreter fork2 = parent.fork();
+  assertFalse( fork2.m_autoload.isPending( "srfi-1.scm" ) );
+  assertEquals( "3", TestUtils.eval( fork2, "(reduce + 0 '(1 2))" ) );
+}
+
+public void testEager () throws Exception
+{
+  SchemeInterpreter.Options options = new SchemeInterpreter.Options();
+  options.eagerLibraries = true;
+  SchemeInterpreter sc = new SchemeInterpreter( options );
+  for ( String name : SchemeInterpreter.AUTOLOAD_LIBRARIES )
+    assertFalse( name, sc.m_autoload.isPending( name ) );
+  assertEquals( "6", TestUtils.eval( sc, "(fold + 0 '(1 2 3))" ) );
+}
+
+public static Test suite()
+{
+  return new TestSuite(AutoloadTest.class);
+}
+} // AutoloadTest
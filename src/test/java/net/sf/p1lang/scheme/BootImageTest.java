@@ -0,0 +1,162 @@
+package net.sf.p1lang.scheme;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.HashMap;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * Tests the image of the standard library.
+ *
+ * @author T.Mikov
+ */
+public class BootImageTest extends TestCase
+{
+public BootImageTest(String name)
+{
+  super(name);
+}
+
+private static byte[] image () throws Exception
+{
+  ByteArrayOutputStream out = new ByteArrayOutputStream();
+  BootImage.write( out, new SimpleErrorReporter( 1 ) );
+  return out.toByteArray();
+}
+
+private static Pair parse ( SymbolMap map, String name ) throws Exception
+{
+  URL url = SchemeInterpreter.class.getResource( name );
+  DatumParser dp = new DatumParser( new Lexer(
+    new BufferedReader( new InputStreamReader( url.openStream() ) ), url.toString(), map,
+    new SimpleErrorReporter( 1 ) ) );
+  Pair list = Pair.NULL;
+  Object datum;
+  while ((datum = dp.parseDatum()) != DatumParser.EOF)
+    list = new Pair( datum, list );
+  return Misc.reverse( list );
+}
+
+/** Compare data including the positions of the pairs */
+private static void assertDatum ( Object expected, Object actual )
+{
+  if (expected instanceof Pair && expected != Pair.NULL)
+  {
+    assertTrue( String.valueOf( actual ), actual instanceof Pair && actual != Pair.NULL );
+    assertEquals( expected.getClass(), actual.getClass() );
+    if (expected instanceof PositionedPair)
+    {
+      assertEquals( ((PositionedPair) expected).getFileName(), ((PositionedPair) actual).getFileName() );
+      assertEquals( ((PositionedPair) expected).getPosition(), ((PositionedPair) actual).getPosition() );
+    }
+    assertDatum( ((Pair) expected).getCar(), ((Pair) actual).getCar() );
+    assertDatum( ((Pair) expected).getCdr(), ((Pair) actual).getCdr() );
+  }
+  else if (expected instanceof Object[])
+  {
+    assertTrue( actual instanceof Object[] );
+    Object[] e = (Object[]) expected, a = (Object[]) actual;
+    assertEquals( e.length, a.length );
+    for ( int i = 0; i < e.length; ++i )
+      assertDatum( e[i], a[i] );
+  }
+  else if (expected instanceof Symbol || expected instanceof Boolean || expected == Pair.NULL)
+    assertSame( expected, actual );
+  else
+    assertEquals( expected, actual );
+}
+
+public void testRoundTrip () throws Exception
+{
+  SymbolMap map = new SymbolMap();
+  HashMap<String,Pair> libs = BootImage.read( image(), map );
+  assertNotNull( libs );
+  assertEquals( BootImage.LIBRARIES.length, libs.size() );
+  for ( String name : BootImage.LIBRARIES )
+    assertDatum( parse( map, name ), libs.get( name ) );
+}
+
+public void testInvalid () throws Exception
+{
+  byte[] image = image();
+  byte[] truncated = new byte[image.length / 2];
+  System.arraycopy( image, 0, truncated, 0, truncated.length );
+  assertNull( BootImage.read( new byte[]{ 1, 2, 3 }, new SymbolMap() ) );
+  assertNull( BootImage.read( truncated, new SymbolMap() ) );
+  image[7] = 99; // The version
+  assertNull( BootImage.read( image, new SymbolMap() ) );
+}
+
+public void testInterpreter () throws Exception
+{
+  SchemeInterpreter.Options options = new SchemeInterpreter.Options();
+  options.bootstrapFromSource = true;
+  SchemeInterpreter fromSource = new SchemeInterpreter( options );
+  SchemeInterpreter fromImage = new SchemeInterpreter();
+
+  String[] exprs = {
+    "(fold + 0 (iota 10))",
+    "(let-values (((q r) (values 3 1))) (list q r))",
+    "(begin (define-record-type point (make-point x y) point? (x point-x) (y point-y)) (point-y (make-point 1 2)))",
+    "(let ((h (make-hash-table))) (hash-table-set! h 'a 1) (hash-table-ref/default h 'a 0))",
+    "(let ((g (make-coroutine (lambda (x) (yield (+ x 1)) 0)))) (resume g 1))",
+    "(eq? 'lambda (car '(lambda)))",
+  };
+  for ( String expr : exprs )
+    assertEquals( expr, TestUtils.eval( fromSource, expr ), TestUtils.eval( fromImage, expr ) );
+}
+
+private static byte[] source ( String name ) throws Exception
+{
+  InputStream is = SchemeInterpreter.class.getResourceAsStream( name );
+  ByteArrayOutputStream out = new ByteArrayOutputStream();
+  byte[] buf = new byte[4096];
+  int n;
+  while ((n = is.read( buf )) > 0)
+    out.write( buf, 0, n );
+  is.close();
+  return out.toByteArray();
+}
+
+public void testEditedSource () throws Exception
+{
+  // An image built before the source of srfi-1 was edited
+  byte[][] sources = new byte[BootImage.LIBRARIES.length][];
+  for ( int i = 0; i < sources.length; ++i )
+  {
+    sources[i] = source( BootImage.LIBRARIES[i] );
+    if (BootImage.LIBRARIES[i].equals( "srfi-1.scm" ))
+      sources[i] = (new String( sources[i], "UTF-8" ) + "\n(define (iota . x) 'stale)\n").getBytes( "UTF-8" );
+  }
+  ByteArrayOutputStream out = new ByteArrayOutputStream();
+  BootImage.write( out, BootImage.LIBRARIES, sources, new SimpleErrorReporter( 1 ) );
+  byte[] stale = out.toByteArray();
+
+  HashMap<String,Pair> libs = BootImage.read( stale, new SymbolMap() );
+  assertNotNull( libs );
+  assertNull( libs.get( "srfi-1.scm" ) );
+  assertNotNull( libs.get( "base0.scm" ) );
+
+  BootImage.setImage( stale );
+  try
+  {
+    SchemeInterpreter sc = new SchemeInterpreter();
+    assertEquals( "(0 1 2)", TestUtils.eval( sc, "(iota 3)" ) );
+  }
+  finally
+  {
+    BootImage.setImage( null );
+  }
+}
+
+public static Test suite()
+{
+  return new TestSuite(BootImageTest.class);
+}
+} // BootImageTest
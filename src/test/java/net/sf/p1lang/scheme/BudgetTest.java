@@ -0,0 +1,340 @@
+package net.sf.p1lang.scheme;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * Tests evaluation budgets and the scheduler.
+ *
+ * @author T.Mikov
+ */
+public class BudgetTest extends TestCase
+{
+private SchemeInterpreter sc;
+
+public BudgetTest(String name)
+{
+  super(name);
+}
+
+public void tearDown() throws Exception
+{
+  sc = null;
+  super.tearDown();
+}
+
+private static final int ENGINES = 4;
+
+/** The configurations: tree, register VM, JIT, flat closures with the specializer */
+private static SchemeInterpreter create ( int engine ) throws Exception
+{
+  SchemeInterpreter.Options options = TestUtils.options( engine );
+  options.inlineCaches = engine == 2;
+  options.flatClosures = engine == 3;
+  options.specialize = engine == 3;
+  options.loops = engine != 0;
+  return new SchemeInterpreter( options );
+}
+
+private void needExceeded ( String code, Budget budget, String message ) throws Exception
+{
+  try
+  {
+    sc.eval( code, budget );
+    fail( "Exception not thrown" );
+  }
+  catch (BudgetExceededError e)
+  {
+    assertTrue( e.getMessage(), e.getMessage().contains( message ) );
+  }
+}
+
+public void testCpuTime () throws Exception
+{
+  for ( int engine = 0; engine < ENGINES; ++engine )
+  {
+    sc = create( engine );
+    sc.eval( "(define (spin) (spin))" +
+             "(define (count n) (let loop ((i 0)) (if (< i n) (loop (+ i 1)) i)))" +
+             "(define (fib n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))" +
+             "(define (fibs) (fib 15) (fibs))" );
+    // Tail calls, loops and non-tail calls
+    needExceeded( "(spin)", new Budget( 50, 0, TimeUnit.MILLISECONDS ), "CPU time" );
+    needExceeded( "(let loop ((i 0)) (loop (+ i 1)))", new Budget( 50, 0, TimeUnit.MILLISECONDS ), "CPU time" );
+    needExceeded( "(count 1000000000000)", new Budget( 50, 0, TimeUnit.MILLISECONDS ), "CPU time" );
+    needExceeded( "(fibs)", new Budget( 50, 0, TimeUnit.MILLISECONDS ), "CPU time" );
+    needExceeded( "(resume (make-coroutine (lambda (x) (spin))) 1)",
+                  new Budget( 50, 0, TimeUnit.MILLISECONDS ), "CPU time" );
+
+    // Evaluations within the budget are unaffected, and their time adds up
+    Budget budget = new Budget( 10, 0, TimeUnit.SECONDS );
+    assertEquals( 100000L, SchemeInterpreter.asLong( sc.eval( "(count 100000)", budget ) ) );
+    assertEquals( 610L, SchemeInterpreter.asLong( sc.eval( "(fib 15)", budget ) ) );
+    assertTrue( budget.getCpuTime( TimeUnit.NANOSECONDS ) > 0 );
+    assertEquals( 610L, SchemeInterpreter.asLong( sc.eval( "(fib 15)" ) ) );
+  }
+}
+
+public void testPartialSlice () throws Exception
+{
+  for ( int engine = 0; engine < ENGINES; ++engine )
+  {
+    sc = create( engine );
+    sc.eval( "(define (count n) (let loop ((i 0)) (if (< i n) (loop (+ i 1)) i)))" +
+             "(define (gen) (make-coroutine (lambda (x) (yield (count 100)) (count 100))))" );
+    // Far fewer polls than a slice: only the end of the evaluation charges them
+    Budget budget = new Budget();
+    assertEquals( 1000L, SchemeInterpreter.asLong( sc.eval( "(count 1000)", budget ) ) );
+    long used = budget.getCpuTime( TimeUnit.NANOSECONDS );
+    assertTrue( used > 0 );
+    // The slices of a coroutine end when it yields and when it finishes
+    assertEquals( 100L, SchemeInterpreter.asLong(
+      sc.eval( "(let ((g (gen))) (resume g 0) (resume g 0))", budget ) ) );
+    assertTrue( budget.getCpuTime( TimeUnit.NANOSECONDS ) > used );
+  }
+}
+
+public void testExhausted () throws Exception
+{
+  for ( int engine = 0; engine < ENGINES; ++engine )
+  {
+    sc = create( engine );
+    sc.eval( "(define (spin) (spin))" );
+    // An exhausted budget doesn't allow even a trivial evaluation
+    Budget cpu = new Budget( 20, 0, TimeUnit.MILLISECONDS );
+    needExceeded( "(spin)", cpu, "CPU time" );
+    needExceeded( "(+ 1 2)", cpu, "CPU time" );
+    Budget timeout = new Budget( 0, 20, TimeUnit.MILLISECONDS );
+    needExceeded( "(spin)", timeout, "timed out" );
+    needExceeded( "1", timeout, "timed out" );
+    Budget cancelled = new Budget();
+    cancelled.cancel();
+    needExceeded( "1", cancelled, "cancelled" );
+  }
+}
+
+public void testTimeout () throws Exception
+{
+  for ( int engine = 0; engine < ENGINES; ++engine )
+  {
+    sc = create( engine );
+    sc.eval( "(define (spin) (spin))" );
+    needExceeded( "(spin)", new Budget( 0, 50, TimeUnit.MILLISECONDS ), "timed out" );
+    Budget cancelled = new Budget();
+    cancelled.cancel();
+    needExceeded( "(spin)", cancelled, "cancelled" );
+  }
+}
+
+public void testScheduler () throws Exception
+{
+  // A single worker: the runaway task must not keep the others from running
+  Scheduler scheduler = new Scheduler( 1 );
+  SchemeInterpreter spinner = create( 0 );
+  spinner.eval( "(define (spin) (spin))" );
+  Scheduler.Task runaway = scheduler.submit( spinner, "(spin)", new Budget( 0, 60, TimeUnit.SECONDS ) );
+
+  Scheduler.Task[] tasks = new Scheduler.Task[ENGINES];
+  for ( int engine = 0; engine < ENGINES; ++engine )
+    tasks[engine] = scheduler.submit( create( engine ),
+                                      "(let loop ((i 0) (s 0)) (if (< i 100000) (loop (+ i 1) (+ s i)) s))",
+                                      null );
+  for ( Scheduler.Task t : tasks )
+    assertEquals( 4999950000L, SchemeInterpreter.asLong( t.get() ) );
+  assertFalse( runaway.isDone() );
+
+  runaway.cancel();
+  try
+  {
+    runaway.get();
+    fail( "Exception not thrown" );
+  }
+  catch (BudgetExceededError e)
+  {
+    assertTrue( e.getMessage(), e.getMessage().contains( "cancelled" ) );
+  }
+  assertTrue( runaway.isDone() );
+
+  // The budgets of scheduled tasks
+  Scheduler.Task limited = scheduler.submit( spinner, "(spin)", new Budget( 50, 0, TimeUnit.MILLISECONDS ) );
+  try
+  {
+    limited.get();
+    fail( "Exception not thrown" );
+  }
+  catch (BudgetExceededError e)
+  {
+    assertTrue( e.getMessage(), e.getMessage().contains( "CPU time" ) );
+  }
+  scheduler.shutdown();
+}
+
+public void testSchedulerThreads () throws Exception
+{
+  // Virtual threads aren't limited
+  if (Coroutine.virtualThreads())
+    return;
+
+  // Two started tasks at most: the third one waits for one of the runaways to finish
+  Scheduler scheduler = new Scheduler( 1, 2 );
+  SchemeInterpreter spinner = create( 0 );
+  spinner.eval( "(define (spin) (spin))" );
+  Scheduler.Task a = scheduler.submit( spinner.fork(), "(spin)", null );
+  Scheduler.Task b = scheduler.submit( spinner.fork(), "(spin)", null );
+  Scheduler.Task c = scheduler.submit( create( 0 ), "(+ 1 2)", null );
+  Thread.sleep( 200 );
+  assertFalse( c.isDone() );
+  assertEquals( 0, c.getBudget().getCpuTime( TimeUnit.NANOSECONDS ) );
+
+  a.cancel();
+  assertEquals( 3, SchemeInterpreter.asLong( c.get() ) );
+  b.cancel();
+  try
+  {
+    b.get();
+    fail( "Exception not thrown" );
+  }
+  catch (BudgetExceededError expected)
+  {}
+
+  // The timeout runs while a task waits to be started
+  Scheduler single = new Scheduler( 1, 1 );
+  Scheduler.Task d = single.submit( spinner.fork(), "(spin)", null );
+  Scheduler.Task e = single.submit( create( 0 ), "(+ 1 2)", new Budget( 0, 50, TimeUnit.MILLISECONDS ) );
+  Thread.sleep( 100 );
+  d.cancel();
+  try
+  {
+    e.get();
+    fail( "Exception not thrown" );
+  }
+  catch (BudgetExceededError ex)
+  {
+    assertTrue( ex.getMessage(), ex.getMessage().contains( "timed out" ) );
+  }
+  scheduler.shutdown();
+  single.shutdown();
+}
+
+public void testSchedulerShutdown () throws Exception
+{
+  SchemeInterpreter spinner = create( 0 );
+  spinner.eval( "(define (spin) (spin))" );
+
+  // The submitted tasks still run after a shutdown
+  Scheduler scheduler = new Scheduler( 1, 1 );
+  Scheduler.Task a = scheduler.submit( create( 0 ), "(+ 1 2)", null );
+  Scheduler.Task b = scheduler.submit( create( 0 ), "(+ 3 4)", null );
+  scheduler.shutdown();
+  assertTrue( scheduler.isShutdown() );
+  try
+  {
+    scheduler.submit( create( 0 ), "1", null );
+    fail( "Exception not thrown" );
+  }
+  catch (IllegalStateException expected)
+  {}
+  assertTrue( scheduler.awaitTermination( 10, TimeUnit.SECONDS ) );
+  assertEquals( 3, SchemeInterpreter.asLong( a.get() ) );
+  assertEquals( 7, SchemeInterpreter.asLong( b.get() ) );
+
+  // shutdownNow() cancels the started and the waiting tasks
+  scheduler = new Scheduler( 1, 1 );
+  Scheduler.Task c = scheduler.submit( spinner.fork(), "(spin)", null );
+  Scheduler.Task d = scheduler.submit( spinner.fork(), "(spin)", null );
+  Thread.sleep( 100 );
+  scheduler.shutdownNow();
+  assertTrue( scheduler.awaitTermination( 10, TimeUnit.SECONDS ) );
+  for ( Scheduler.Task t : new Scheduler.Task[]{ c, d } )
+  {
+    try
+    {
+      t.get();
+      fail( "Exception not thrown" );
+    }
+    catch (BudgetExceededError e)
+    {
+      assertTrue( e.getMessage(), e.getMessage().contains( "cancelled" ) );
+    }
+  }
+}
+
+/** An interpreter with a procedure which blocks in Java code, without ever yielding its slice */
+private static SchemeInterpreter blocking ( final CountDownLatch latch ) throws Exception
+{
+  SchemeInterpreter sc = create( 0 );
+  sc.defineJavaProcedure( "block", new JavaProcedure( 0, false ) {
+    public Object apply ( Object[] argv ) throws SchemeError
+    {
+      try
+      {
+        latch.await();
+      }
+      catch (InterruptedException e)
+      {
+        throw new EvalError( "Interrupted" );
+      }
+      return Unspec.UNSPEC;
+    }
+  });
+  return sc;
+}
+
+private static void needCancelled ( Scheduler.Task task ) throws Exception
+{
+  for ( int i = 0; i < 500 && !task.isDone(); ++i )
+    Thread.sleep( 10 );
+  assertTrue( task.isDone() );
+  try
+  {
+    task.get();
+    fail( "Exception not thrown" );
+  }
+  catch (BudgetExceededError e)
+  {
+    assertTrue( e.getMessage(), e.getMessage().contains( "cancelled" ) );
+  }
+}
+
+public void testCancelWaiting () throws Exception
+{
+  // The only permit is held by a task which never yields it
+  CountDownLatch latch = new CountDownLatch( 1 );
+  Scheduler scheduler = new Scheduler( 1, 2 );
+  Scheduler.Task blocked = scheduler.submit( blocking( latch ), "(block)", null );
+  Scheduler.Task waiting = scheduler.submit( create( 0 ), "(+ 1 2)", null );
+  Thread.sleep( 100 );
+  assertFalse( waiting.isDone() );
+  waiting.cancel();
+  needCancelled( waiting );
+  latch.countDown();
+  blocked.get();
+
+  // shutdownNow() wakes up the blocked task and fails the waiting and the unstarted ones
+  scheduler = new Scheduler( 1, 2 );
+  blocked = scheduler.submit( blocking( new CountDownLatch( 1 ) ), "(block)", null );
+  waiting = scheduler.submit( create( 0 ), "(+ 1 2)", null );
+  Scheduler.Task queued = scheduler.submit( create( 0 ), "(+ 1 2)", null );
+  Thread.sleep( 100 );
+  scheduler.shutdownNow();
+  assertTrue( scheduler.awaitTermination( 10, TimeUnit.SECONDS ) );
+  needCancelled( waiting );
+  needCancelled( queued );
+  try
+  {
+    blocked.get();
+    fail( "Exception not thrown" );
+  }
+  catch (SchemeError expected)
+  {}
+}
+
+public static Test suite()
+{
+  return new TestSuite(BudgetTest.class);
+}
+} // BudgetTest
@@ -0,0 +1,92 @@
+package net.sf.p1lang.scheme;
+
+import java.util.concurrent.Callable;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * Tests the builtins which specialize themselves on the types of their parameters.
+ *
+ * @author T.Mikov
+ */
+public class BuiltinsTest extends TestCase
+{
+private SchemeInterpreter sc;
+
+public BuiltinsTest(String name)
+{
+  super(name);
+}
+
+public void setUp() throws Exception
+{
+  super.setUp();
+  SchemeInterpreter.Options options = new SchemeInterpreter.Options();
+  options.specialize = false;
+  options.jitThreshold = 0;
+  options.inlineSize = 0;
+  options.vm = false;
+  sc = new SchemeInterpreter( options );
+}
+
+public void tearDown() throws Exception
+{
+  sc = null;
+  super.tearDown();
+}
+
+/** The builtin forming the body of a procedure */
+private AST.Builtin body ( String name ) throws SchemeError
+{
+  return (AST.Builtin) sc.getTopLevelClosure( name ).lambda.body;
+}
+
+public void testArithmetic () throws Exception
+{
+  TestUtils.eval( sc, "(define (add a b) (+ a b))" +
+                      "(define (lt a b) (__%builtin NumberLT a b))" );
+  assertEquals( "uninitialized", body( "add" ).specialization() );
+  assertEquals( "3", TestUtils.eval( sc, "(add 1 2)" ) );
+  assertEquals( "fixint", body( "add" ).specialization() );
+  assertEquals( "9223372036854775808", TestUtils.eval( sc, "(add 9223372036854775807 1)" ) );
+  assertEquals( "fixint", body( "add" ).specialization() );
+  assertEquals( "4.0", TestUtils.eval( sc, "(add 1.5 2.5)" ) );
+  assertEquals( "generic", body( "add" ).specialization() );
+  assertEquals( "5", TestUtils.eval( sc, "(add 2 3)" ) );
+  assertEquals( "1/2", TestUtils.eval( sc, "(add 1/4 1/4)" ) );
+
+  assertEquals( "true", TestUtils.eval( sc, "(lt 1.5 2.5)" ) );
+  assertEquals( "real", body( "lt" ).specialization() );
+  assertEquals( "false", TestUtils.eval( sc, "(lt 2.5 1.5)" ) );
+  assertEquals( "real", body( "lt" ).specialization() );
+  assertEquals( "true", TestUtils.eval( sc, "(lt 1 2)" ) );
+  assertEquals( "generic", body( "lt" ).specialization() );
+}
+
+public void testAccessors () throws Exception
+{
+  TestUtils.eval( sc, "(define (first x) (car x))" +
+                      "(define (ref v i) (__%builtin VectorRef v i))" );
+  assertEquals( "1", TestUtils.eval( sc, "(first '(1 2))" ) );
+  assertEquals( "pair", body( "first" ).specialization() );
+  TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+    return TestUtils.eval( sc, "(first '())" );
+  }});
+  assertEquals( "generic", body( "first" ).specialization() );
+  assertEquals( "3", TestUtils.eval( sc, "(first '(3))" ) );
+
+  assertEquals( "b", TestUtils.eval( sc, "(ref (vector 'a 'b) 1)" ) );
+  assertEquals( "fixint", body( "ref" ).specialization() );
+  // Must not be truncated to 1
+  TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+    return TestUtils.eval( sc, "(ref (vector 'a 'b) 4294967297)" );
+  }});
+}
+
+public static Test suite()
+{
+  return new TestSuite(BuiltinsTest.class);
+}
+} // BuiltinsTest
@@ -0,0 +1,90 @@
+package net.sf.p1lang.scheme;
+
+import java.lang.ref.WeakReference;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * BytecodeCompiler Tester.
+ *
+ * @author T.Mikov
+ */
+public class BytecodeCompilerTest extends TestCase
+{
+private SchemeInterpreter sc;
+
+public BytecodeCompilerTest(String name)
+{
+  super(name);
+}
+
+public void setUp() throws Exception
+{
+  super.setUp();
+  SchemeInterpreter.Options options = TestUtils.options( 0 );
+  options.specialize = true;
+  options.jitThreshold = 2;
+  sc = new SchemeInterpreter( options );
+}
+
+public void tearDown() throws Exception
+{
+  sc = null;
+  super.tearDown();
+}
+
+public void testCalls () throws Exception
+{
+  TestUtils.eval( sc, "(define (fib n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))" );
+  assertEquals( "610", TestUtils.eval( sc, "(fib 15)" ) );
+  assertTrue( sc.getTopLevelClosure( "fib" ).lambda.body instanceof CompiledBody );
+}
+
+public void testTailCalls () throws Exception
+{
+  // A self tail call through an instruction that isn't compiled
+  TestUtils.eval( sc, "(define (g n acc) (if (= n 0) acc (apply g (list (- n 1) (+ acc 1)))))" );
+  assertEquals( "200000", TestUtils.eval( sc, "(g 200000 0)" ) );
+  assertTrue( sc.getTopLevelClosure( "g" ).lambda.body instanceof CompiledBody );
+}
+
+public void testFallback () throws Exception
+{
+  TestUtils.eval( sc, "(define (f k) (if (< k 0) (call/cc (lambda (ret) (ret 'neg))) (vector k (list k))))" );
+  for ( int i = 0; i < 3; ++i )
+  {
+    assertEquals( "neg", TestUtils.eval( sc, "(f -1)" ) );
+    assertEquals( "#(1 (1))", TestUtils.eval( sc, "(f 1)" ) );
+  }
+  assertTrue( sc.getTopLevelClosure( "f" ).lambda.body instanceof CompiledBody );
+}
+
+public void testUnload () throws Exception
+{
+  if (!BytecodeCompiler.classesUnloadable())
+    return;
+
+  TestUtils.eval( sc, "(define (f x) (+ x 1))" );
+  assertEquals( "3", TestUtils.eval( sc, "(begin (f 1) (f 2))" ) );
+  Class<?> cls = sc.getTopLevelClosure( "f" ).lambda.body.getClass();
+  assertTrue( CompiledBody.class.isAssignableFrom( cls ) );
+
+  // The class goes away with the interpreter
+  WeakReference<Class<?>> ref = new WeakReference<Class<?>>( cls );
+  cls = null;
+  sc = null;
+  for ( int i = 0; i < 50 && ref.get() != null; ++i )
+  {
+    System.gc();
+    Thread.sleep( 20 );
+  }
+  assertNull( ref.get() );
+}
+
+public static Test suite()
+{
+  return new TestSuite(BytecodeCompilerTest.class);
+}
+} // BytecodeCompilerTest
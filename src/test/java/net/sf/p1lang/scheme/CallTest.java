@@ -0,0 +1,138 @@
+package net.sf.p1lang.scheme;
+
+import java.util.concurrent.Callable;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * Tests procedure calls in every configuration that compiles them differently.
+ *
+ * @author T.Mikov
+ */
+public class CallTest extends TestCase
+{
+private static final int CONFIGS = 5;
+
+private SchemeInterpreter sc;
+
+public CallTest(String name)
+{
+  super(name);
+}
+
+public void tearDown() throws Exception
+{
+  sc = null;
+  super.tearDown();
+}
+
+/** The configurations: tree, register VM, specializer, inline caches, JIT */
+private void start ( int config ) throws Exception
+{
+  SchemeInterpreter.Options options = TestUtils.options( config < 2 ? config : 0 );
+  options.specialize = config == 2 || config == 4;
+  options.inlineCaches = config == 3;
+  if (config == 4)
+    options.jitThreshold = 2;
+  sc = new SchemeInterpreter( options );
+}
+
+public void testCalls () throws Exception
+{
+  for ( int config = 0; config < CONFIGS; ++config )
+  {
+    start( config );
+    TestUtils.eval( sc, "(define (fib n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))" );
+    assertEquals( "610", TestUtils.eval( sc, "(fib 15)" ) );
+
+    TestUtils.eval( sc, "(define (f0) 0)" +
+                        "(define (f1 a) a)" +
+                        "(define (f2 a b) (+ a b))" +
+                        "(define (f3 a b c) (+ a b c))" +
+                        "(define (f4 a b c d) (+ a b c d))" +
+                        "(define (f5 a b c d e) (+ a b c d e))" );
+    assertEquals( "15", TestUtils.eval( sc, "(+ (f0) (f1 1) (f2 1 1) (f3 1 1 1) (f4 1 1 1 1) (f5 1 1 1 1 1))" ) );
+  }
+}
+
+public void testRest () throws Exception
+{
+  for ( int config = 0; config < CONFIGS; ++config )
+  {
+    start( config );
+    TestUtils.eval( sc, "(define (r0 . r) r)" +
+                        "(define (r2 a b . r) (list a b r))" );
+    assertEquals( "()", TestUtils.eval( sc, "(r0)" ) );
+    assertEquals( "(1 2 3)", TestUtils.eval( sc, "(r0 1 2 3)" ) );
+    assertEquals( "(1 2 ())", TestUtils.eval( sc, "(r2 1 2)" ) );
+    assertEquals( "(1 2 (3 4))", TestUtils.eval( sc, "(r2 1 2 3 4)" ) );
+    assertEquals( "(1 2 (3 4))", TestUtils.eval( sc, "(apply r2 1 '(2 3 4))" ) );
+  }
+}
+
+public void testClosures () throws Exception
+{
+  for ( int config = 0; config < CONFIGS; ++config )
+  {
+    start( config );
+    TestUtils.eval( sc, "(define (make-counter init step)" +
+                        "  (define (next)" +
+                        "    (define res init)" +
+                        "    (set! init (+ init step))" +
+                        "    res)" +
+                        "  next)" +
+                        "(define c1 (make-counter 0 2))" );
+    TestUtils.eval( sc, "(c1)" );
+    TestUtils.eval( sc, "(c1)" );
+    assertEquals( "4", TestUtils.eval( sc, "(c1)" ) );
+    assertEquals( "10", TestUtils.eval( sc, "(let loop ((i 0) (acc 0)) (if (= i 5) acc (loop (+ i 1) (+ acc i))))" ) );
+  }
+}
+
+public void testTailCalls () throws Exception
+{
+  for ( int config = 0; config < CONFIGS; ++config )
+  {
+    start( config );
+    TestUtils.eval( sc, "(define (loop n) (if (= n 0) 'done (loop (- n 1))))" );
+    assertEquals( "done", TestUtils.eval( sc, "(loop 100000)" ) );
+    TestUtils.eval( sc, "(define (g n acc) (if (= n 0) acc (apply g (list (- n 1) (+ acc 1)))))" );
+    assertEquals( "200000", TestUtils.eval( sc, "(g 200000 0)" ) );
+  }
+}
+
+public void testErrors () throws Exception
+{
+  for ( int config = 0; config < CONFIGS; ++config )
+  {
+    start( config );
+    TestUtils.eval( sc, "(define (f2 a b) a)" +
+                        "(define (r2 a b . r) a)" +
+                        "(define (g x) (car x))" );
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(f2 1)" );
+    }});
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(f2 1 2 3)" );
+    }});
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(r2 1)" );
+    }});
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(1 2)" );
+    }});
+    TestUtils.eval( sc, "(g '(1))" );
+    TestUtils.eval( sc, "(g '(1))" );
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(g 1)" );
+    }});
+  }
+}
+
+public static Test suite()
+{
+  return new TestSuite(CallTest.class);
+}
+} // CallTest
@@ -0,0 +1,166 @@
+package net.sf.p1lang.scheme;
+
+import java.util.concurrent.Callable;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * Tests case-lambda and lambdas with DSSSL style #!optional parameters.
+ *
+ * @author T.Mikov
+ */
+public class CaseLambdaTest extends TestCase
+{
+private SchemeInterpreter sc;
+
+public CaseLambdaTest(String name)
+{
+  super(name);
+}
+
+public void tearDown() throws Exception
+{
+  sc = null;
+  super.tearDown();
+}
+
+private static final int ENGINES = 4;
+
+/** The configurations: tree, register VM, JIT, flat closures with the specializer */
+private void start ( int engine ) throws Exception
+{
+  SchemeInterpreter.Options options = TestUtils.options( engine );
+  options.inlineCaches = engine == 2;
+  options.flatClosures = engine == 3;
+  options.specialize = engine == 3;
+  options.reuseFrames = engine == 3;
+  sc = new SchemeInterpreter( options );
+}
+
+public void testCaseLambda () throws Exception
+{
+  for ( int engine = 0; engine < ENGINES; ++engine )
+  {
+    start( engine );
+    TestUtils.eval( sc, "(define f (case-lambda ((a) (list 'one a)) ((a b) (list 'two a b)) ((a . r) (list 'many a r))))" );
+    assertEquals( "(one 1)", TestUtils.eval( sc, "(f 1)" ) );
+    assertEquals( "(two 1 2)", TestUtils.eval( sc, "(f 1 2)" ) );
+    assertEquals( "(many 1 (2 3))", TestUtils.eval( sc, "(f 1 2 3)" ) );
+    // Calls which don't know the number of parameters go through the dispatcher
+    assertEquals( "(two 4 5)", TestUtils.eval( sc, "(apply f '(4 5))" ) );
+    assertEquals( "(many 4 (5 6))", TestUtils.eval( sc, "(apply f 4 '(5 6))" ) );
+    assertEquals( "((one 7) (one 8))", TestUtils.eval( sc, "(map f '(7 8))" ) );
+    assertEquals( "(one k)", TestUtils.eval( sc, "(call/cc (case-lambda ((k) (f 'k))))" ) );
+
+    // The clauses share the environment of the closure
+    TestUtils.eval( sc, "(define (make-cell x) (case-lambda (() x) ((y) (set! x y) x)))" +
+                        "(define c (make-cell 3))" );
+    assertEquals( "3", TestUtils.eval( sc, "(c)" ) );
+    assertEquals( "9", TestUtils.eval( sc, "(c 9)" ) );
+    assertEquals( "9", TestUtils.eval( sc, "(c)" ) );
+
+    // Tail calls between the clauses run in constant space
+    TestUtils.eval( sc, "(define count (case-lambda ((n) (count n 0)) ((n acc) (if (= n 0) acc (count (- n 1) (+ acc 1))))))" );
+    assertEquals( "100000", TestUtils.eval( sc, "(count 100000)" ) );
+    assertEquals( "true", TestUtils.eval( sc, "(procedure? count)" ) );
+  }
+}
+
+public void testOptional () throws Exception
+{
+  for ( int engine = 0; engine < ENGINES; ++engine )
+  {
+    start( engine );
+    TestUtils.eval( sc, "(define (g a #!optional (b (+ a 1)) c #!rest r) (list a b c r))" );
+    assertEquals( "(1 2 false ())", TestUtils.eval( sc, "(g 1)" ) );
+    assertEquals( "(1 5 false ())", TestUtils.eval( sc, "(g 1 5)" ) );
+    assertEquals( "(1 5 6 ())", TestUtils.eval( sc, "(g 1 5 6)" ) );
+    assertEquals( "(1 5 6 (7 8))", TestUtils.eval( sc, "(g 1 5 6 7 8)" ) );
+    assertEquals( "(1 5 false ())", TestUtils.eval( sc, "(apply g '(1 5))" ) );
+    // The defaults are evaluated at each call, in the environment of the lambda
+    TestUtils.eval( sc, "(define n 0)" +
+                        "(define h (let ((k 10)) (lambda (#!optional (x (begin (set! n (+ n 1)) k))) x)))" );
+    assertEquals( "(10 3 10 2)", TestUtils.eval( sc, "(let* ((a (h)) (b (h 3)) (c (h))) (list a b c n))" ) );
+    // Just #!rest
+    assertEquals( "(1 (2 3))", TestUtils.eval( sc, "((lambda (a #!rest r) (list a r)) 1 2 3)" ) );
+    // Named and in an internal definition
+    assertEquals( "6", TestUtils.eval( sc, "(let () (define (sum l #!optional (acc 0)) (if (null? l) acc (sum (cdr l) (+ acc (car l))))) (sum '(1 2 3)))" ) );
+    assertEquals( "(1 2)", TestUtils.eval( sc, "((case-lambda ((a #!optional (b 2)) (list a b)) ((a b c) 'three)) 1)" ) );
+    assertEquals( "three", TestUtils.eval( sc, "((case-lambda ((a #!optional (b 2)) (list a b)) ((a b c) 'three)) 1 2 3)" ) );
+  }
+}
+
+public void testErrors () throws Exception
+{
+  for ( int engine = 0; engine < ENGINES; ++engine )
+  {
+    start( engine );
+    TestUtils.eval( sc, "(define f (case-lambda ((a) a) ((a b c) c)))" +
+                        "(define (g a #!optional b) a)" );
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(f 1 2)" );
+    }});
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(apply f '())" );
+    }});
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(g)" );
+    }});
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(g 1 2 3)" );
+    }});
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(lambda (a #!optional b #!optional c) a)" );
+    }});
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(lambda (a #!optional a) a)" );
+    }});
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(lambda (a #!rest b c) a)" );
+    }});
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(case-lambda (a))" );
+    }});
+    assertEquals( "3", TestUtils.eval( sc, "(f 1 2 3)" ) );
+  }
+}
+
+public void testLibrary () throws Exception
+{
+  for ( int engine = 0; engine < ENGINES; ++engine )
+  {
+    start( engine );
+    TestUtils.eval( sc, "(define t (make-hash-table))" +
+                        "(hash-table-set! t 'a 1)" +
+                        "(define s (make-hash-table string=? string-hash 8))" +
+                        "(hash-table-set! s \"x\" 2)" );
+    assertEquals( "(1 none 2 7)",
+                  TestUtils.eval( sc, "(list (hash-table-ref t 'a) (hash-table-ref t 'b (lambda () 'none))" +
+                                      "      (hash-table-ref s \"x\") (hash-table-ref/default t 'c 7))" ) );
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(hash-table-ref t 'b)" );
+    }});
+    TestUtils.eval( sc, "(hash-table-update! t 'a (lambda (x) (+ x 1)))" +
+                        "(hash-table-update! t 'b (lambda (x) (+ x 1)) (lambda () 10))" );
+    assertEquals( "(2 11)", TestUtils.eval( sc, "(list (hash-table-ref t 'a) (hash-table-ref t 'b))" ) );
+    // The success procedure is applied to a found value only
+    assertEquals( "((2) none)", TestUtils.eval( sc, "(list (hash-table-ref t 'a (lambda () 'none) list)" +
+                                                    "      (hash-table-ref t 'z (lambda () 'none) list))" ) );
+    // Implementation specific parameters are accepted and ignored
+    assertEquals( "(1 0)", TestUtils.eval( sc, "(list (hash-table-ref (alist->hash-table '((a . 1)) eq? hash 8 'x 'y) 'a)" +
+                                               "      (hash-table-size (make-hash-table equal? hash 8 'x 'y)))" ) );
+    assertEquals( "true", TestUtils.eval( sc, "(= (string-hash \"abc\") (string-hash \"abc\" 536870909))" ) );
+    assertEquals( "true", TestUtils.eval( sc, "(< (hash '(1 2) 10) 10)" ) );
+    assertEquals( "((0 1 2) (1 2 3) (1 3 5))", TestUtils.eval( sc, "(list (iota 3) (iota 3 1) (iota 3 1 2))" ) );
+    assertEquals( "((2 3) (2.0 3))", TestUtils.eval( sc, "(list (member 2 '(1 2 3)) (member 2 '(1 2.0 3) =))" ) );
+    assertEquals( "(#(0 0) (x x))", TestUtils.eval( sc, "(list (make-vector 2 0) (make-list 2 'x))" ) );
+  }
+}
+
+public static Test suite()
+{
+  return new TestSuite(CaseLambdaTest.class);
+}
+} // CaseLambdaTest
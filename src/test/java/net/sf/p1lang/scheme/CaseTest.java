@@ -0,0 +1,109 @@
+package net.sf.p1lang.scheme;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * Tests the table lookup of {@code case}.
+ *
+ * @author T.Mikov
+ */
+public class CaseTest extends TestCase
+{
+private SchemeInterpreter sc;
+
+public CaseTest(String name)
+{
+  super(name);
+}
+
+public void tearDown() throws Exception
+{
+  sc = null;
+  super.tearDown();
+}
+
+private static final int ENGINES = 4;
+
+/** The configurations: tree, register VM, JIT, flat closures with the specializer */
+private void start ( int engine ) throws Exception
+{
+  SchemeInterpreter.Options options = TestUtils.options( engine );
+  options.optimize = engine == 2;
+  options.flatClosures = engine == 3;
+  options.specialize = engine == 3;
+  sc = new SchemeInterpreter( options );
+}
+
+public void testCase () throws Exception
+{
+  for ( int engine = 0; engine < ENGINES; ++engine )
+  {
+    start( engine );
+    TestUtils.eval( sc, "(define (op x) (case x ((add plus) '+) ((sub) '-) ((mul) '*) (else '?)))" +
+                        "(define (digit x) (case x ((0 2 4 6 8) 'even) ((1 3 5 7 9) 'odd) (else 'none)))" +
+                        "(define (sparse x) (case x ((1) 'a) ((1000) 'b) ((-1000000) 'c) ((#\\a x) 'd)))" +
+                        "(define (kind c) (case c ((#\\a #\\e #\\i #\\o #\\u) 'vowel) ((#\\space) 'space) (else 'other)))" +
+                        "(define (other x) (case x ((\"s\" 1.5) 'a) ((#t ()) 'b) ((#f) 'c) (else 'd)))" );
+    // Repeat the calls, so that the JIT compiles them
+    for ( int i = 0; i < 2; ++i )
+    {
+      assertEquals( "(+ + - * ?)", TestUtils.eval( sc, "(map op '(add plus sub mul div))" ) );
+      assertEquals( "(even odd even none none)", TestUtils.eval( sc, "(map digit '(0 1 8 10 #\\0))" ) );
+      assertEquals( "(a b c d d none)",
+                    TestUtils.eval( sc, "(map (lambda (x) (let ((r (sparse x))) (if (symbol? r) r 'none))) '(1 1000 -1000000 #\\a x 2))" ) );
+      assertEquals( "(vowel space other other)", TestUtils.eval( sc, "(map kind '(#\\e #\\space #\\z 1))" ) );
+      assertEquals( "(a a b b c d)", TestUtils.eval( sc, "(map other (list 1.5 3/2 #t '() #f \"s\"))" ) );
+    }
+    if (engine == 2)
+      assertTrue( sc.getTopLevelClosure( "digit" ).lambda.body instanceof CompiledBody );
+  }
+}
+
+public void testSemantics () throws Exception
+{
+  for ( int engine = 0; engine < ENGINES; ++engine )
+  {
+    start( engine );
+    // The key is evaluated once and the first clause containing a datum wins
+    assertEquals( "(one 1)", TestUtils.eval( sc, "(let* ((n 0) (r (case (begin (set! n (+ n 1)) 1) ((1) 'one) ((1 2) 'two)))) (list r n))" ) );
+    // Numbers are compared as with eqv?
+    assertEquals( TestUtils.eval( sc, "(if (eqv? 2.0 2) 'two 'other)" ), TestUtils.eval( sc, "(case 2.0 ((1) 'one) ((2) 'two) (else 'other))" ) );
+    assertEquals( "big", TestUtils.eval( sc, "(case 100000000000000000000 ((1 2) 'small) ((100000000000000000000) 'big))" ) );
+    // The value of the last expression in the body, the key alone without clauses
+    assertEquals( "3", TestUtils.eval( sc, "(case 'a ((a) 1 2 3) (else 4))" ) );
+    assertEquals( "5", TestUtils.eval( sc, "(case 5)" ) );
+    assertEquals( "x", TestUtils.eval( sc, "(case 'x (else 'x))" ) );
+    // Tail calls in the clauses run in constant space
+    TestUtils.eval( sc, "(define (count n acc) (case (if (= n 0) 'done 'more) ((done) acc) ((more) (count (- n 1) (+ acc 1)))))" );
+    assertEquals( "100000", TestUtils.eval( sc, "(count 100000 0)" ) );
+    // case is an ordinary identifier when it is bound
+    assertEquals( "7", TestUtils.eval( sc, "(let ((case (lambda (x) (+ x 1)))) (case 6))" ) );
+  }
+}
+
+public void testTables () throws Exception
+{
+  start( 0 );
+  String code = TestUtils.code( sc, "(lambda (x) (case x ((1 2) 'a) ((3 4) 'b)))" );
+  assertTrue( code, code.startsWith( "(case/array " ) );
+  code = TestUtils.code( sc, "(lambda (x) (case x ((#\\a) 'a) ((#\\c) 'b)))" );
+  assertTrue( code, code.startsWith( "(case/array " ) );
+  code = TestUtils.code( sc, "(lambda (x) (case x ((1 1000000) 'a) ((b) 'b)))" );
+  assertTrue( code, code.startsWith( "(case/hash " ) );
+  code = TestUtils.code( sc, "(lambda (x) (case x ((1 \"s\") 'a)))" );
+  assertTrue( code, code.startsWith( "(case/linear " ) );
+  try
+  {
+    TestUtils.eval( sc, "(case 1 (else 2) ((1) 3))" );
+    fail( "Exception not thrown" );
+  }
+  catch (SchemeError ignored) {}
+}
+
+public static Test suite()
+{
+  return new TestSuite(CaseTest.class);
+}
+} // CaseTest
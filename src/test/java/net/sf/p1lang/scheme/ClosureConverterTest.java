@@ -0,0 +1,94 @@
+package net.sf.p1lang.scheme;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * ClosureConverter Tester.
+ *
+ * @author T.Mikov
+ */
+public class ClosureConverterTest extends TestCase
+{
+private SchemeInterpreter sc;
+
+public ClosureConverterTest(String name)
+{
+  super(name);
+}
+
+public void setUp() throws Exception
+{
+  super.setUp();
+  SchemeInterpreter.Options options = new SchemeInterpreter.Options();
+  options.flatClosures = true;
+  sc = new SchemeInterpreter( options );
+}
+
+public void tearDown() throws Exception
+{
+  sc = null;
+  super.tearDown();
+}
+
+public void testCapture () throws Exception
+{
+  TestUtils.eval( sc, "(define (f a b) (lambda (x) (lambda (y) (list a b x y g))))" +
+                      "(define g 'global)" );
+  assertEquals( "(1 2 3 4 global)", TestUtils.eval( sc, "(((f 1 2) 3) 4)" ) );
+  TestUtils.eval( sc, "(set! g 'changed)" );
+  assertEquals( "(1 2 3 4 changed)", TestUtils.eval( sc, "(((f 1 2) 3) 4)" ) );
+  assertTrue( sc.getTopLevelClosure( "f" ).lambda.body.toString().contains( "(flat-closure " ) );
+}
+
+public void testDisplay () throws Exception
+{
+  TestUtils.eval( sc, "(define (f a) (define big (make-vector 100 0)) (lambda () a))" );
+  Closure c = (Closure) sc.eval( "(f 1)" );
+  // Only the top level environment and the captured variable
+  assertEquals( 2, c.parentEnv.length );
+  assertEquals( "1", TestUtils.eval( sc, "((f 1))" ) );
+}
+
+public void testMutation () throws Exception
+{
+  TestUtils.eval( sc, "(define (make-counter)" +
+                      "  (define n 0)" +
+                      "  (cons (lambda () (set! n (+ n 1)) n)" +
+                      "        (lambda () n)))" +
+                      "(define c (make-counter))" );
+  TestUtils.eval( sc, "((car c))" );
+  TestUtils.eval( sc, "((car c))" );
+  assertEquals( "2", TestUtils.eval( sc, "((cdr c))" ) );
+
+  // Assigned in the defining lambda after the capture
+  TestUtils.eval( sc, "(define (f) (define x 1) (define g (lambda () x)) (set! x 2) (g))" );
+  assertEquals( "2", TestUtils.eval( sc, "(f)" ) );
+
+  // Assigned two levels down
+  TestUtils.eval( sc, "(define (h x) ((lambda () ((lambda () (set! x (* x 10)))))) x)" );
+  assertEquals( "50", TestUtils.eval( sc, "(h 5)" ) );
+}
+
+public void testLoops () throws Exception
+{
+  TestUtils.eval( sc, "(define (sum n)" +
+                      "  (let loop ((i 0) (acc 0))" +
+                      "    (if (> i n) acc (loop (+ i 1) (+ acc i)))))" );
+  assertEquals( "5050", TestUtils.eval( sc, "(sum 100)" ) );
+  TestUtils.eval( sc, "(define (evens n)" +
+                      "  (define (even? n) (if (= n 0) #t (odd? (- n 1))))" +
+                      "  (define (odd? n) (if (= n 0) #f (even? (- n 1))))" +
+                      "  (let loop ((i 0) (res '()))" +
+                      "    (if (= i n) (reverse res) (loop (+ i 1) (if (even? i) (cons i res) res)))))" );
+  assertEquals( "(0 2 4 6 8)", TestUtils.eval( sc, "(evens 10)" ) );
+  assertEquals( "(0 1 2)", TestUtils.eval( sc, "(map (lambda (x) (- x 1)) '(1 2 3))" ) );
+  assertEquals( "5", TestUtils.eval( sc, "(call/cc (lambda (k) (for-each (lambda (x) (if (> x 4) (k x))) '(1 5 7)) 0))" ) );
+}
+
+public static Test suite()
+{
+  return new TestSuite(ClosureConverterTest.class);
+}
+} // ClosureConverterTest
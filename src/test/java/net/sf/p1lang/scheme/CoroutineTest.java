@@ -0,0 +1,183 @@
+package net.sf.p1lang.scheme;
+
+import java.util.concurrent.Callable;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * Tests coroutines and generators in both execution engines.
+ *
+ * @author T.Mikov
+ */
+public class CoroutineTest extends TestCase
+{
+private SchemeInterpreter sc;
+
+public CoroutineTest(String name)
+{
+  super(name);
+}
+
+public void tearDown() throws Exception
+{
+  sc = null;
+  super.tearDown();
+}
+
+private void start ( boolean vm ) throws Exception
+{
+  SchemeInterpreter.Options options = new SchemeInterpreter.Options();
+  options.vm = vm;
+  sc = new SchemeInterpreter( options );
+}
+
+public void testCoroutine () throws Exception
+{
+  for ( boolean vm : new boolean[]{ false, true } )
+  {
+    start( vm );
+    TestUtils.eval( sc, "(define co (make-coroutine (lambda (x)" +
+                        "  (let loop ((x x) (sum 0))" +
+                        "    (if (eq? x 'stop) sum (loop (yield (+ sum x)) (+ sum x)))))))" );
+    assertEquals( "true", TestUtils.eval( sc, "(coroutine? co)" ) );
+    assertEquals( "1", TestUtils.eval( sc, "(resume co 1)" ) );
+    assertEquals( "3", TestUtils.eval( sc, "(resume co 2)" ) );
+    assertEquals( "false", TestUtils.eval( sc, "(coroutine-done? co)" ) );
+    assertEquals( "6", TestUtils.eval( sc, "(resume co 3)" ) );
+    assertEquals( "6", TestUtils.eval( sc, "(resume co 'stop)" ) );
+    assertEquals( "true", TestUtils.eval( sc, "(coroutine-done? co)" ) );
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(resume co 1)" );
+    }});
+
+    // Yield from deep inside a non-tail recursion
+    TestUtils.eval( sc, "(define (walk tree)" +
+                        "  (if (pair? tree) (begin (walk (car tree)) (walk (cdr tree)))" +
+                        "      (if (not (null? tree)) (yield tree))))" +
+                        "(define w (make-coroutine (lambda (t) (walk t) 'end)))" );
+    assertEquals( "(a b c end)",
+                  TestUtils.eval( sc, "(let* ((a (resume w '((a) (b . c)))) (b (resume w)) (c (resume w)))" +
+                                      "  (list a b c (resume w)))" ) );
+  }
+}
+
+public void testErrors () throws Exception
+{
+  for ( boolean vm : new boolean[]{ false, true } )
+  {
+    start( vm );
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(yield 1)" );
+    }});
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(resume 1)" );
+    }});
+    // An error in the coroutine is reported by resume
+    TestUtils.eval( sc, "(define bad (make-coroutine (lambda (x) (car x))))" );
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(resume bad 1)" );
+    }});
+    assertEquals( "true", TestUtils.eval( sc, "(coroutine-done? bad)" ) );
+    // An escape leaves the coroutine
+    assertEquals( "out", TestUtils.eval( sc, "(call/ec (lambda (k) (resume (make-coroutine (lambda (x) (k 'out))))))" ) );
+    // Resuming itself
+    TestUtils.eval( sc, "(define self #f)" +
+                        "(set! self (make-coroutine (lambda (x) (resume self))))" );
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(resume self)" );
+    }});
+  }
+}
+
+public void testGenerators () throws Exception
+{
+  for ( boolean vm : new boolean[]{ false, true } )
+  {
+    start( vm );
+    assertEquals( "(1 2 3)", TestUtils.eval( sc, "(generator->list (list->generator '(1 2 3)))" ) );
+    assertEquals( "(4 16)", TestUtils.eval( sc,
+      "(generator->list (generator-map (lambda (x) (* x x))" +
+      "                   (generator-filter even? (list->generator '(1 2 3 4 5)))))" ) );
+    TestUtils.eval( sc, "(define (naturals) (make-generator (lambda (yield)" +
+                        "  (let loop ((i 0)) (yield i) (loop (+ i 1))))))" );
+    assertEquals( "(0 1 2 3 4)", TestUtils.eval( sc, "(generator->list (generator-take (naturals) 5))" ) );
+    assertEquals( "4950", TestUtils.eval( sc, "(generator-fold + 0 (generator-take (naturals) 100))" ) );
+    TestUtils.eval( sc, "(define g (list->generator '(a)))" );
+    assertEquals( "a", TestUtils.eval( sc, "(g)" ) );
+    assertEquals( "true", TestUtils.eval( sc, "(generator-end? (g))" ) );
+    assertEquals( "true", TestUtils.eval( sc, "(generator-end? (g))" ) );
+  }
+}
+
+public void testClose () throws Exception
+{
+  for ( boolean vm : new boolean[]{ false, true } )
+  {
+    start( vm );
+    // The "after" thunks run in the coroutine
+    TestUtils.eval( sc, "(define trail '())" +
+                        "(define co (make-coroutine (lambda (x)" +
+                        "  (dynamic-wind (lambda () #f)" +
+                        "                (lambda () (yield 1) (yield 2))" +
+                        "                (lambda () (set! trail (cons 'after trail)))))))" );
+    assertEquals( "1", TestUtils.eval( sc, "(resume co)" ) );
+    TestUtils.eval( sc, "(coroutine-close co)" );
+    assertEquals( "(after)", TestUtils.eval( sc, "trail" ) );
+    assertEquals( "true", TestUtils.eval( sc, "(coroutine-done? co)" ) );
+    TestUtils.eval( sc, "(coroutine-close co)" );
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(resume co)" );
+    }});
+
+    // Never started
+    TestUtils.eval( sc, "(define co2 (make-coroutine (lambda (x) x)))" +
+                        "(coroutine-close co2)" );
+    assertEquals( "true", TestUtils.eval( sc, "(coroutine-done? co2)" ) );
+
+    TestUtils.eval( sc, "(define g (list->generator '(1 2 3)))" );
+    assertEquals( "1", TestUtils.eval( sc, "(g)" ) );
+    TestUtils.eval( sc, "(generator-close g)" );
+    assertEquals( "true", TestUtils.eval( sc, "(generator-end? (g))" ) );
+  }
+}
+
+/** Wait for the threads of the finished or collected coroutines to go away */
+private static int liveThreads () throws Exception
+{
+  for ( int i = 0; i < 100 && Coroutine.liveThreads() > 0; ++i )
+  {
+    System.gc();
+    Thread.sleep( 20 );
+  }
+  return Coroutine.liveThreads();
+}
+
+public void testThreads () throws Exception
+{
+  for ( boolean vm : new boolean[]{ false, true } )
+  {
+    start( vm );
+    int threads = Thread.activeCount();
+    // generator-take closes its source
+    TestUtils.eval( sc, "(define (take3) (generator->list (generator-take (list->generator (iota 100)) 3)))" );
+    for ( int i = 0; i < 500; ++i )
+      assertEquals( "(0 1 2)", TestUtils.eval( sc, "(take3)" ) );
+    assertEquals( 0, Coroutine.liveThreads() );
+
+    // Abandoned generators are collected with their threads
+    TestUtils.eval( sc, "(define (abandon) (let ((g (list->generator (iota 100)))) (g) (g)))" );
+    for ( int i = 0; i < 500; ++i )
+      assertEquals( "1", TestUtils.eval( sc, "(abandon)" ) );
+    assertEquals( 0, liveThreads() );
+    // Only the reaper is left
+    assertTrue( Thread.activeCount() <= threads + 1 );
+  }
+}
+
+public static Test suite()
+{
+  return new TestSuite(CoroutineTest.class);
+}
+} // CoroutineTest
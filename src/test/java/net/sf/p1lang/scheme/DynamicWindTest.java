@@ -0,0 +1,139 @@
+package net.sf.p1lang.scheme;
+
+import java.util.concurrent.Callable;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * Tests call/ec and dynamic-wind in both execution engines.
+ *
+ * @author T.Mikov
+ */
+public class DynamicWindTest extends TestCase
+{
+private SchemeInterpreter sc;
+
+public DynamicWindTest(String name)
+{
+  super(name);
+}
+
+public void tearDown() throws Exception
+{
+  sc = null;
+  super.tearDown();
+}
+
+private void start ( boolean vm ) throws Exception
+{
+  SchemeInterpreter.Options options = new SchemeInterpreter.Options();
+  options.vm = vm;
+  sc = new SchemeInterpreter( options );
+  TestUtils.eval( sc, "(define trace '())" +
+                      "(define (note x) (set! trace (cons x trace)))" +
+                      "(define (in) (note 'in))" +
+                      "(define (out) (note 'out))" );
+}
+
+/** The trace noted since the last call */
+private String trace () throws SchemeError
+{
+  String res = TestUtils.eval( sc, "(reverse trace)" );
+  TestUtils.eval( sc, "(set! trace '())" );
+  return res;
+}
+
+public void testEscape () throws Exception
+{
+  for ( boolean vm : new boolean[]{ false, true } )
+  {
+    start( vm );
+    assertEquals( "1", TestUtils.eval( sc, "(call/ec (lambda (k) 1))" ) );
+    assertEquals( "42", TestUtils.eval( sc, "(call/ec (lambda (k) (+ 1 (k 42))))" ) );
+    assertEquals( "42", TestUtils.eval( sc, "(+ 1 (call-with-escape-continuation (lambda (k) (k 41))))" ) );
+
+    TestUtils.eval( sc, "(define (deep n k) (if (eq? n 0) (k 'out) (+ 1 (deep (- n 1) k))))" );
+    assertEquals( "out", TestUtils.eval( sc, "(call/ec (lambda (k) (deep 1000 k)))" ) );
+    // Nested, escaping past the inner one
+    assertEquals( "outer", TestUtils.eval( sc, "(call/ec (lambda (o) (call/ec (lambda (i) (o 'outer))) 'inner))" ) );
+    assertEquals( "(inner 1)", TestUtils.eval( sc, "(list (call/ec (lambda (o) (call/ec (lambda (i) (i 'inner))))) 1)" ) );
+    // Through a Java procedure
+    assertEquals( "3", TestUtils.eval( sc, "(call/ec (lambda (k) (apply k '(3))))" ) );
+  }
+}
+
+public void testExtent () throws Exception
+{
+  for ( boolean vm : new boolean[]{ false, true } )
+  {
+    start( vm );
+    TestUtils.eval( sc, "(define saved #f)" );
+    TestUtils.eval( sc, "(call/ec (lambda (k) (set! saved k) 1))" );
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(saved 2)" );
+    }});
+    // Left by escaping from an inner extent, in the same evaluation
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(let ((r (call/ec (lambda (o) (call/ec (lambda (i) (set! saved i) (o 1)))))))" +
+                                 "  (saved 2))" );
+    }});
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(call/ec 1)" );
+    }});
+    // The interpreter is still usable
+    assertEquals( "5", TestUtils.eval( sc, "(call/ec (lambda (k) (k 5)))" ) );
+  }
+}
+
+public void testDynamicWind () throws Exception
+{
+  for ( boolean vm : new boolean[]{ false, true } )
+  {
+    start( vm );
+    assertEquals( "v", TestUtils.eval( sc, "(dynamic-wind in (lambda () (note 'body) 'v) out)" ) );
+    assertEquals( "(in body out)", trace() );
+
+    // Escaping runs "after"
+    assertEquals( "x", TestUtils.eval( sc, "(call/ec (lambda (k) (dynamic-wind in (lambda () (k 'x) 'no) out)))" ) );
+    assertEquals( "(in out)", trace() );
+    assertEquals( "y", TestUtils.eval( sc, "(call/cc (lambda (k) (dynamic-wind in (lambda () (k 'y) 'no) out)))" ) );
+    assertEquals( "(in out)", trace() );
+
+    // Nested, innermost "after" first
+    TestUtils.eval( sc, "(call/ec (lambda (k)" +
+                        "  (dynamic-wind in" +
+                        "    (lambda () (dynamic-wind (lambda () (note 'in2)) (lambda () (k 0)) (lambda () (note 'out2))))" +
+                        "    out)))" );
+    assertEquals( "(in in2 out2 out)", trace() );
+
+    // An error also leaves the extent
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(dynamic-wind in (lambda () (car '())) out)" );
+    }});
+    assertEquals( "(in out)", trace() );
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(dynamic-wind in 1 out)" );
+    }});
+    assertEquals( "(in out)", trace() );
+  }
+}
+
+public void testReenter () throws Exception
+{
+  start( true );
+  TestUtils.eval( sc, "(define k #f)" +
+                      "(define n 0)" );
+  TestUtils.eval( sc, "(dynamic-wind in (lambda () (call/cc (lambda (c) (set! k c))) (set! n (+ n 1))) out)" );
+  assertEquals( "(in out)", trace() );
+  TestUtils.eval( sc, "(if (< n 3) (k #f))" );
+  assertEquals( "(in out)", trace() );
+  assertEquals( "2", TestUtils.eval( sc, "n" ) );
+}
+
+public static Test suite()
+{
+  return new TestSuite(DynamicWindTest.class);
+}
+} // DynamicWindTest
@@ -0,0 +1,225 @@
+package net.sf.p1lang.scheme;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * Tests forking of interpreters.
+ *
+ * @author T.Mikov
+ */
+public class ForkTest extends TestCase
+{
+public ForkTest(String name)
+{
+  super(name);
+}
+
+private static final int ENGINES = 5;
+
+/**
+ * The configurations: tree, register VM, JIT, inlining with the specializer, flat closures and
+ * loops with the specializer
+ */
+private static SchemeInterpreter create ( int engine ) throws Exception
+{
+  SchemeInterpreter.Options options = TestUtils.options( engine );
+  options.inlineCaches = engine == 2;
+  options.inlineSize = engine == 3 ? 16 : 0;
+  options.specialize = engine == 3 || engine == 4;
+  options.flatClosures = engine == 4;
+  options.loops = engine == 4;
+  return new SchemeInterpreter( options );
+}
+
+private static long evalLong ( SchemeInterpreter sc, String str ) throws Exception
+{
+  return SchemeInterpreter.asLong( sc.eval( str ) );
+}
+
+public void testIsolation () throws Exception
+{
+  for ( int engine = 0; engine < ENGINES; ++engine )
+  {
+    SchemeInterpreter parent = create( engine );
+    parent.eval( "(define x 1) (define (get-x) x) (define (inc) (+ 1 1))" );
+
+    SchemeInterpreter fork = parent.fork();
+    assertEquals( 1, evalLong( fork, "(get-x)" ) );
+    assertEquals( 55, evalLong( fork, "(fold + 0 (iota 11))" ) );
+
+    // Assignments and redefinitions in the fork are visible to the procedures defined before it
+    fork.eval( "(set! x 2) (define (inc) (+ x 10)) (define y 3)" );
+    assertEquals( 2, evalLong( fork, "(get-x)" ) );
+    assertEquals( 12, evalLong( fork, "(inc)" ) );
+    assertEquals( 1, evalLong( parent, "(get-x)" ) );
+    assertEquals( 2, evalLong( parent, "(inc)" ) );
+
+    // Definitions in the parent after the fork aren't visible in the fork
+    parent.eval( "(define y 4) (set! x 5)" );
+    assertEquals( 3, evalLong( fork, "y" ) );
+    assertEquals( 2, evalLong( fork, "x" ) );
+    assertEquals( 4, evalLong( parent, "y" ) );
+
+    // A fork of a fork
+    SchemeInterpreter fork2 = fork.fork();
+    fork2.eval( "(define y 6) (define z 7)" );
+    assertEquals( 6, evalLong( fork2, "y" ) );
+    assertEquals( 3, evalLong( fork, "y" ) );
+    assertEquals( 7, evalLong( fork2, "z" ) );
+    assertEquals( 12, evalLong( fork2, "(inc)" ) );
+
+    // Library procedures see the redefinitions in the fork only
+    SchemeInterpreter fork3 = parent.fork();
+    fork3.eval( "(define (cons a b) (list 'cons a b))" );
+    assertEquals( 3, evalLong( fork3, "(length (cons 1 2))" ) );
+    assertEquals( 2, evalLong( parent, "(length (list 1 2))" ) );
+  }
+}
+
+public void testLayers () throws Exception
+{
+  for ( int engine = 0; engine < ENGINES; ++engine )
+  {
+    // Forks of forks, each with definitions of its own
+    SchemeInterpreter sc = create( engine );
+    sc.eval( "(define x 0) (define (get-x) x)" );
+    for ( int i = 1; i <= 20; ++i )
+    {
+      sc = sc.fork();
+      sc.eval( "(set! x " + i + ") (define v" + i + " " + i + ")" );
+      assertTrue( sc.m_topLevelScope.getLayerCount() <= 1 );
+    }
+    assertEquals( 20, evalLong( sc, "(get-x)" ) );
+    assertEquals( 210, evalLong( sc, "(+ v1 v2 v3 v4 v5 v6 v7 v8 v9 v10 v11 v12 v13 v14 v15 v16 v17 v18 v19 v20)" ) );
+
+    // The same parent forked again after more definitions
+    SchemeInterpreter parent = create( engine );
+    SchemeInterpreter fork = null;
+    for ( int i = 1; i <= 20; ++i )
+    {
+      parent.eval( "(define w" + i + " " + i + ")" );
+      fork = parent.fork();
+      assertTrue( parent.m_topLevelScope.getLayerCount() <= 1 );
+      assertTrue( fork.m_topLevelScope.getLayerCount() <= 1 );
+    }
+    assertEquals( 39, evalLong( fork, "(+ w19 w20)" ) );
+  }
+}
+
+public void testMacros () throws Exception
+{
+  for ( int engine = 0; engine < ENGINES; ++engine )
+  {
+    SchemeInterpreter parent = create( engine );
+    parent.eval( "(define (twice x) (* 2 x)) (define-macro (m x) (list 'twice x))" );
+
+    SchemeInterpreter fork = parent.fork();
+    assertEquals( 4, evalLong( fork, "(m 2)" ) );
+
+    // Redefining a macro in the fork, using a library procedure in the macro environment
+    fork.eval( "(define-macro (m x) (list '+ x (fold + 0 '(5 5))))" );
+    assertEquals( 12, evalLong( fork, "(m 2)" ) );
+    assertEquals( 4, evalLong( parent, "(m 2)" ) );
+
+    fork.eval( "(define-macro (n x) (list 'm x))" );
+    assertEquals( 13, evalLong( fork, "(n 3)" ) );
+    try
+    {
+      parent.eval( "(n 3)" );
+      fail( "Exception not thrown" );
+    }
+    catch (SchemeError expected)
+    {}
+
+    // The standard macros still work in the fork
+    assertEquals( 3, evalLong( fork, "(let loop ((i 0)) (if (< i 3) (loop (+ i 1)) i))" ) );
+    assertEquals( 2, evalLong( fork,
+      "(begin (define-record-type point (make-point x y) point? (x point-x) (y point-y))" +
+      " (point-y (make-point 1 2)))" ) );
+    assertEquals( 1, evalLong( fork, "(when #t 1)" ) );
+  }
+}
+
+public void testSharedData () throws Exception
+{
+  for ( int engine = 0; engine < ENGINES; ++engine )
+  {
+    SchemeInterpreter parent = create( engine );
+    parent.eval( "(define counter 0)" +
+                 "(define procs (list (lambda () (set! counter (+ counter 1)) counter)))" +
+                 "(define vec (vector (lambda () counter)))" +
+                 "(define table (make-hash-table))" +
+                 "(hash-table-set! table 'get (lambda () counter))" +
+                 "(define base 100)" +
+                 "(define (make-adder n) (lambda (x) (+ x n base)))" +
+                 "(define add1 (make-adder 1))" );
+
+    // Procedures reached through data use the variables of the interpreter calling them
+    SchemeInterpreter fork = parent.fork();
+    assertEquals( 1, evalLong( fork, "((car procs))" ) );
+    assertEquals( 0, evalLong( parent, "counter" ) );
+    assertEquals( 1, evalLong( fork, "((vector-ref vec 0))" ) );
+    assertEquals( 0, evalLong( parent, "((vector-ref vec 0))" ) );
+    assertEquals( 1, evalLong( fork, "((hash-table-ref table 'get))" ) );
+    fork.eval( "(set! base 0)" );
+    assertEquals( 2, evalLong( fork, "(add1 1)" ) );
+    assertEquals( 102, evalLong( parent, "(add1 1)" ) );
+
+    assertEquals( 1, evalLong( parent, "((car procs))" ) );
+    assertEquals( 2, evalLong( parent, "((car procs))" ) );
+    assertEquals( 1, evalLong( fork, "counter" ) );
+  }
+}
+
+public void testMacroSnapshot () throws Exception
+{
+  for ( int engine = 0; engine < ENGINES; ++engine )
+  {
+    SchemeInterpreter parent = create( engine );
+    parent.eval( "(define-macro (m x) (list '+ x 1))" );
+
+    // Macros defined by the parent after the fork, even before the fork expands one
+    SchemeInterpreter fork = parent.fork();
+    parent.eval( "(define-macro (m x) (list '+ x 2)) (define-macro (n x) x)" );
+    assertEquals( 2, evalLong( fork, "(m 1)" ) );
+    assertEquals( 3, evalLong( parent, "(m 1)" ) );
+    try
+    {
+      fork.eval( "(n 3)" );
+      fail( "Exception not thrown" );
+    }
+    catch (SchemeError expected)
+    {}
+  }
+}
+
+public void testThreads () throws Exception
+{
+  final int FORKS = 8;
+  for ( int engine = 0; engine < ENGINES; ++engine )
+  {
+    // The call sites of run are shared, but op is a different procedure in each fork
+    SchemeInterpreter parent = create( engine );
+    parent.eval( "(define (op x) x)" +
+                 "(define (run n acc) (if (= n 0) acc (run (- n 1) (+ acc (op n)))))" );
+    Scheduler scheduler = new Scheduler( 4 );
+    Scheduler.Task[] tasks = new Scheduler.Task[FORKS];
+    for ( int i = 0; i < FORKS; ++i )
+    {
+      SchemeInterpreter fork = parent.fork();
+      fork.eval( i % 2 == 0 ? "(define (op x) (* x "+ i +"))" : "(define (op x . rest) (* x "+ i +"))" );
+      tasks[i] = scheduler.submit( fork, "(run 100000 0)", null );
+    }
+    for ( int i = 0; i < FORKS; ++i )
+      assertEquals( 5000050000L * i, SchemeInterpreter.asLong( tasks[i].get() ) );
+    assertEquals( 5000050000L, evalLong( parent, "(run 100000 0)" ) );
+  }
+}
+
+public static Test suite()
+{
+  return new TestSuite(ForkTest.class);
+}
+} // ForkTest
@@ -0,0 +1,121 @@
+package net.sf.p1lang.scheme;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * Frame reuse Tester.
+ *
+ * @author T.Mikov
+ */
+public class FrameReuseTest extends TestCase
+{
+private SchemeInterpreter sc;
+
+public FrameReuseTest(String name)
+{
+  super(name);
+}
+
+public void setUp() throws Exception
+{
+  super.setUp();
+  SchemeInterpreter.Options options = new SchemeInterpreter.Options();
+  options.reuseFrames = true;
+  options.flatClosures = false;
+  sc = new SchemeInterpreter( options );
+}
+
+public void tearDown() throws Exception
+{
+  sc = null;
+  super.tearDown();
+}
+
+private boolean reuses ( String name ) throws SchemeError
+{
+  return sc.getTopLevelClosure( name ).lambda.reuseFrame;
+}
+
+public void testAnalysis () throws Exception
+{
+  TestUtils.eval( sc, "(define (fib n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))" +
+                      "(define (adder n) (lambda (x) (+ x n)))" +
+                      "(define (escape f) (__%builtin CallCC f))" +
+                      "(define (indirect f) (call/cc f))" +
+                      "(define (local a) (let ((b (+ a 1))) b))" );
+  assertTrue( reuses( "fib" ) );
+  assertFalse( reuses( "adder" ) );
+  assertFalse( reuses( "escape" ) );
+  assertFalse( reuses( "call-with-current-continuation" ) );
+  assertTrue( reuses( "indirect" ) );
+  assertTrue( reuses( "local" ) ); // let doesn't create a closure
+}
+
+public void testCalls () throws Exception
+{
+  TestUtils.eval( sc, "(define (fib n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))" );
+  assertEquals( "610", TestUtils.eval( sc, "(fib 15)" ) );
+
+  // The frame of f must survive the nested calls which reuse frames
+  TestUtils.eval( sc, "(define (g a b) (* a b))" +
+                      "(define (f a b) (define c (+ a b)) (list (g a b) (g b c) a b c))" );
+  assertEquals( "(6 15 2 3 5)", TestUtils.eval( sc, "(f 2 3)" ) );
+  assertEquals( "((6 15 2 3 5) (2 6 1 2 3))", TestUtils.eval( sc, "(list (f 2 3) (f 1 2))" ) );
+
+  // Closures created outside keep their own environments
+  TestUtils.eval( sc, "(define (adder n) (lambda (x) (+ x n)))" +
+                      "(define (apply-twice f x) (f (f x)))" );
+  assertEquals( "12", TestUtils.eval( sc, "(apply-twice (adder 5) 2)" ) );
+}
+
+public void testDeepRecursion () throws Exception
+{
+  TestUtils.eval( sc, "(define (count n) (if (= n 0) 0 (+ 1 (count (- n 1)))))" );
+
+  // Deeper than the frame stack. We need a larger Java stack for that
+  final String[] res = new String[1];
+  Thread t = new Thread( null, new Runnable() {
+    public void run ()
+    {
+      try
+      {
+        res[0] = TestUtils.eval( sc, "(count 3000)" );
+      }
+      catch (SchemeError e)
+      {
+        res[0] = e.toString();
+      }
+    }
+  }, "deep", 64L << 20 );
+  t.start();
+  t.join();
+  assertEquals( "3000", res[0] );
+  assertEquals( "10", TestUtils.eval( sc, "(count 10)" ) );
+}
+
+public void testUnwinding () throws Exception
+{
+  TestUtils.eval( sc, "(define (f n) (if (= n 0) (car n) (+ 1 (f (- n 1)))))" +
+                      "(define (h n) (+ 1 (f n)))" );
+  for ( int i = 0; i < 3; ++i )
+  {
+    try
+    {
+      TestUtils.eval( sc, "(h 10)" );
+      fail( "Exception not thrown" );
+    }
+    catch (SchemeError ignored) {}
+  }
+  TestUtils.eval( sc, "(define (k n) (if (= n 0) 0 (+ n (k (- n 1)))))" );
+  assertEquals( "55", TestUtils.eval( sc, "(k 10)" ) );
+  assertEquals( "5", TestUtils.eval( sc, "(call/cc (lambda (ret) (+ 1 (k (ret 5)))))" ) );
+  assertEquals( "15", TestUtils.eval( sc, "(k 5)" ) );
+}
+
+public static Test suite()
+{
+  return new TestSuite(FrameReuseTest.class);
+}
+} // FrameReuseTest
@@ -0,0 +1,86 @@
+package net.sf.p1lang.scheme;
+
+import java.util.concurrent.Callable;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * CachedApply Tester.
+ *
+ * @author T.Mikov
+ */
+public class InlineCacheTest extends TestCase
+{
+private SchemeInterpreter sc;
+private SchemeInterpreter.InlineCacheStats stats;
+
+public InlineCacheTest(String name)
+{
+  super(name);
+}
+
+public void setUp() throws Exception
+{
+  super.setUp();
+  SchemeInterpreter.Options options = TestUtils.options( 0 );
+  options.inlineCaches = true;
+  sc = new SchemeInterpreter( options );
+  stats = sc.getInlineCacheStats();
+}
+
+public void tearDown() throws Exception
+{
+  sc = null;
+  super.tearDown();
+}
+
+public void testHits () throws Exception
+{
+  TestUtils.eval( sc, "(define (sq x) (* x x))" +
+                      "(define (sum-sq n acc) (if (= n 0) acc (sum-sq (- n 1) (+ acc (sq n)))))" );
+  stats.reset();
+  assertEquals( "385", TestUtils.eval( sc, "(sum-sq 10 0)" ) );
+  assertTrue( stats.getHits() > stats.getMisses() );
+  assertTrue( stats.getHitRate() > 0.5 );
+  assertTrue( sc.getTopLevelClosure( "sum-sq" ).lambda.body.toString().contains( "(cached-apply " ) );
+}
+
+public void testRedefine () throws Exception
+{
+  TestUtils.eval( sc, "(define (f x) (+ x 1))" +
+                      "(define (g x) (f x))" );
+  assertEquals( "2", TestUtils.eval( sc, "(g 1)" ) );
+  assertEquals( "3", TestUtils.eval( sc, "(g 2)" ) );
+  TestUtils.eval( sc, "(define (f x) (* x 10))" );
+  assertEquals( "20", TestUtils.eval( sc, "(g 2)" ) );
+
+  // A procedure we can't call directly
+  TestUtils.eval( sc, "(define (f . x) x)" );
+  assertEquals( "(2)", TestUtils.eval( sc, "(g 2)" ) );
+  assertEquals( "(3)", TestUtils.eval( sc, "(g 3)" ) );
+  TestUtils.eval( sc, "(define (f x) (- x))" );
+  assertEquals( "-3", TestUtils.eval( sc, "(g 3)" ) );
+}
+
+public void testErrors () throws Exception
+{
+  TestUtils.eval( sc, "(define (f x) x)" +
+                      "(define (g1) (f 1))" +
+                      "(define (g2) (f 1 2))" );
+  assertEquals( "1", TestUtils.eval( sc, "(g1)" ) );
+  TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+    return TestUtils.eval( sc, "(g2)" );
+  }});
+  TestUtils.eval( sc, "(define f 10)" );
+  TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+    return TestUtils.eval( sc, "(g1)" );
+  }});
+}
+
+public static Test suite()
+{
+  return new TestSuite(InlineCacheTest.class);
+}
+} // InlineCacheTest
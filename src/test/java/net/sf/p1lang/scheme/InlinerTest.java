@@ -0,0 +1,133 @@
+package net.sf.p1lang.scheme;
+
+import java.util.concurrent.Callable;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * Inliner Tester.
+ *
+ * @author T.Mikov
+ */
+public class InlinerTest extends TestCase
+{
+private SchemeInterpreter sc;
+
+public InlinerTest(String name)
+{
+  super(name);
+}
+
+private void init ( boolean sealed ) throws Exception
+{
+  SchemeInterpreter.Options options = new SchemeInterpreter.Options();
+  options.inlineSize = 16;
+  options.sealed = sealed;
+  options.optimize = false;
+  options.specialize = false;
+  options.jitThreshold = 0;
+  options.flatClosures = false;
+  options.inlineCaches = false;
+  options.vm = false;
+  sc = new SchemeInterpreter( options );
+}
+
+public void setUp() throws Exception
+{
+  super.setUp();
+  init( false );
+}
+
+public void tearDown() throws Exception
+{
+  sc = null;
+  super.tearDown();
+}
+
+private Lambda lambda ( String name ) throws SchemeError
+{
+  return sc.getTopLevelClosure( name ).lambda;
+}
+
+public void testInline () throws Exception
+{
+  TestUtils.eval( sc, "(define (inc x) (+ x 1))" );
+  TestUtils.eval( sc, "(define (f y) (inc (inc y)))" );
+  assertEquals( "3", TestUtils.eval( sc, "(f 1)" ) );
+  assertEquals( 2, lambda( "f" ).optimizerLog.length );
+  assertTrue( lambda( "f" ).optimizerLog[0].contains( "inlined inc" ) );
+  // The library wrappers
+  TestUtils.eval( sc, "(define (g x) (cadr x))" );
+  assertEquals( "2", TestUtils.eval( sc, "(g '(1 2 3))" ) );
+  assertNotNull( lambda( "g" ).optimizerLog );
+}
+
+public void testRedefine () throws Exception
+{
+  TestUtils.eval( sc, "(define (inc x) (+ x 1))" );
+  TestUtils.eval( sc, "(define (f y) (inc (inc y)))" );
+  assertEquals( "3", TestUtils.eval( sc, "(f 1)" ) );
+  TestUtils.eval( sc, "(define (inc x) (+ x 10))" );
+  assertEquals( "21", TestUtils.eval( sc, "(f 1)" ) );
+  // Redefined variables are no longer inlined
+  TestUtils.eval( sc, "(define (g y) (inc y))" );
+  assertNull( lambda( "g" ).optimizerLog );
+  assertEquals( "11", TestUtils.eval( sc, "(g 1)" ) );
+}
+
+public void testNotInlined () throws Exception
+{
+  TestUtils.eval( sc, "(define (id x) x)" +
+                      "(define (use-id) (set! id car))" );
+  TestUtils.eval( sc, "(define (f y) (id y))" );
+  assertNull( lambda( "f" ).optimizerLog );
+
+  TestUtils.eval( sc, "(define (count n) (if (eq? n 0) 0 (count (- n 1))))" );
+  TestUtils.eval( sc, "(define (g) (count 5))" );
+  assertNull( lambda( "g" ).optimizerLog );
+  assertEquals( "0", TestUtils.eval( sc, "(g)" ) );
+
+  TestUtils.eval( sc, "(define (big x) (+ x (+ x (+ x (+ x (+ x (+ x (+ x (+ x 1)))))))))" );
+  TestUtils.eval( sc, "(define (h) (big 1))" );
+  assertNull( lambda( "h" ).optimizerLog );
+  assertEquals( "9", TestUtils.eval( sc, "(h)" ) );
+}
+
+public void testParameters () throws Exception
+{
+  TestUtils.eval( sc, "(define (second a b) b)" +
+                      "(define (bump x) (set! x (+ x 1)) x)" );
+  TestUtils.eval( sc, "(define (f) (let ((n 0)) (second (begin (set! n 1) n) n)))" +
+                      "(define (g) (bump 1))" +
+                      "(define (h) (let ((n 0)) (second (set! n 5) (bump n))))" );
+  assertEquals( "1", TestUtils.eval( sc, "(f)" ) );
+  assertEquals( "2", TestUtils.eval( sc, "(g)" ) );
+  assertEquals( "2", TestUtils.eval( sc, "(g)" ) );
+  assertEquals( "6", TestUtils.eval( sc, "(h)" ) );
+}
+
+public void testSealed () throws Exception
+{
+  init( true );
+  TestUtils.eval( sc, "(define (inc x) (+ x 1))" );
+  TestUtils.eval( sc, "(define (f y) (inc (inc y)))" );
+  assertEquals( "3", TestUtils.eval( sc, "(f 1)" ) );
+  // No guards and no calls
+  assertFalse( lambda( "f" ).body.toString().contains( "apply" ) );
+  assertFalse( lambda( "f" ).body.toString().contains( "Eq" ) );
+  TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+    return TestUtils.eval( sc, "(define (inc x) (+ x 10))" );
+  }});
+  TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+    return TestUtils.eval( sc, "(set! inc car)" );
+  }});
+  assertEquals( "3", TestUtils.eval( sc, "(f 1)" ) );
+}
+
+public static Test suite()
+{
+  return new TestSuite(InlinerTest.class);
+}
+} // InlinerTest
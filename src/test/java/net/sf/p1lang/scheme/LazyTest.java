@@ -0,0 +1,142 @@
+package net.sf.p1lang.scheme;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * Tests lazy compilation of the top level lambdas.
+ *
+ * @author T.Mikov
+ */
+public class LazyTest extends TestCase
+{
+public LazyTest(String name)
+{
+  super(name);
+}
+
+private static final int ENGINES = 4;
+
+/** The configurations: tree, register VM, JIT, inlining with the specializer */
+private static SchemeInterpreter create ( int engine, boolean lazy ) throws Exception
+{
+  SchemeInterpreter.Options options = TestUtils.options( engine );
+  options.lazy = lazy;
+  options.inlineCaches = engine == 2;
+  options.inlineSize = engine == 3 ? 16 : 0;
+  options.specialize = engine == 3;
+  return new SchemeInterpreter( options );
+}
+
+private static boolean isLazy ( SchemeInterpreter sc, String name ) throws SchemeError
+{
+  return sc.getTopLevelClosure( name ).lambda.body instanceof LazyBody;
+}
+
+public void testResults () throws Exception
+{
+  String defs =
+    "(define (fib n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))" +
+    "(define (sum . l) (let loop ((l l) (s 0)) (if (null? l) s (loop (cdr l) (+ s (car l))))))" +
+    "(define (adder n) (lambda (x) (+ x n)))" +
+    "(define (big a) (let ((b (+ a 1)) (c (* a 2))) (list a b c)))";
+  String[] exprs = {
+    "(fib 15)",
+    "(sum 1 2 3 4)",
+    "((adder 5) 10)",
+    "(big (fib 5))",
+    "(map big (iota 3))",
+    "(fold + 0 (filter even? (iota 20)))",
+    "(let ((h (make-hash-table))) (hash-table-set! h 'a (fib 10)) (hash-table-ref/default h 'a 0))",
+  };
+  for ( int engine = 0; engine < ENGINES; ++engine )
+  {
+    SchemeInterpreter eager = create( engine, false );
+    SchemeInterpreter lazy = create( engine, true );
+    eager.eval( defs );
+    lazy.eval( defs );
+    assertTrue( isLazy( lazy, "fib" ) );
+    assertFalse( isLazy( eager, "fib" ) );
+    for ( String expr : exprs )
+      assertEquals( expr, TestUtils.eval( eager, expr ), TestUtils.eval( lazy, expr ) );
+    assertFalse( isLazy( lazy, "fib" ) );
+  }
+}
+
+public void testFirstCall () throws Exception
+{
+  for ( int engine = 0; engine < ENGINES; ++engine )
+  {
+    SchemeInterpreter sc = create( engine, true );
+    // The first call happens while evaluating the parameters of a call to the same procedure
+    sc.eval( "(define (f a b) (let ((c (+ a b)) (d (* a b))) (list c d)))" );
+    assertEquals( "((3 2) (2 1))", TestUtils.eval( sc, "(list (f 1 2) (f 1 1))" ) );
+    sc.eval( "(define (g a b) (let ((c (+ a 1)) (d (* a 2))) (+ a b c d)))" );
+    assertEquals( "5", TestUtils.eval( sc, "(g (g 0 0) 0)" ) );
+
+    // Macros are expanded at the first call
+    sc.eval( "(define (h x) (m x))" );
+    sc.eval( "(define-macro (m x) (list '* x 3))" );
+    assertEquals( "6", TestUtils.eval( sc, "(h 2)" ) );
+  }
+}
+
+public void testErrors () throws Exception
+{
+  String src = "(define (f x)\n  (if))";
+  SchemeInterpreter eager = create( 0, false );
+  ErrorInfo expected = null;
+  try
+  {
+    eager.eval( src );
+    fail( "Exception not thrown" );
+  }
+  catch (ParseErrors e)
+  {
+    expected = e.errors.getErrorList().get( 0 );
+  }
+
+  for ( int engine = 0; engine < ENGINES; ++engine )
+  {
+    SchemeInterpreter sc = create( engine, true );
+    sc.eval( src );
+    // Every call reports the error
+    for ( int i = 0; i < 2; ++i )
+    {
+      try
+      {
+        sc.eval( "(f 1)" );
+        fail( "Exception not thrown" );
+      }
+      catch (PositionedError e)
+      {
+        assertEquals( expected.coords.getLine(), e.getLine() );
+        assertEquals( expected.coords.getColumn(), e.getColumn() );
+        assertTrue( e.getCause() instanceof ParseErrors );
+      }
+    }
+    assertTrue( isLazy( sc, "f" ) );
+  }
+}
+
+public void testFork () throws Exception
+{
+  SchemeInterpreter parent = create( 0, true );
+  parent.eval( "(define (f x) (* x 2))" );
+  SchemeInterpreter fork = parent.fork();
+  assertFalse( isLazy( parent, "f" ) );
+  assertEquals( "4", TestUtils.eval( fork, "(f 2)" ) );
+  // Lambdas which may be shared by several interpreters are compiled right away
+  fork.eval( "(define (g x) (+ x 1))" );
+  assertFalse( isLazy( fork, "g" ) );
+  parent.eval( "(define (h x) (+ x 1))" );
+  assertFalse( isLazy( parent, "h" ) );
+  assertEquals( "3", TestUtils.eval( fork, "(g 2)" ) );
+}
+
+public static Test suite()
+{
+  return new TestSuite(LazyTest.class);
+}
+} // LazyTest
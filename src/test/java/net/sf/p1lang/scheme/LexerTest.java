@@ -134,6 +134,21 @@ public void testBoolean () throws Exception
   n( Token.EOF );
 }
 
+public void testHashBang () throws Exception
+{
+  lexer( "#!r6rs (lambda (a #!optional b) a)" );
+  n( Token.LPAR );
+  checkIdent( "lambda" );
+  n( Token.LPAR );
+  checkIdent( "a" );
+  checkIdent( "#!optional" );
+  checkIdent( "b" );
+  n( Token.RPAR );
+  checkIdent( "a" );
+  n( Token.RPAR );
+  n( Token.EOF );
+}
+
 public void testString ()
 {
   lexer( "\"abc\\\"def\"" );
@@ -0,0 +1,136 @@
+package net.sf.p1lang.scheme;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * Tests the conversion of named let and do loops to in-place jumps.
+ *
+ * @author T.Mikov
+ */
+public class LoopTest extends TestCase
+{
+private SchemeInterpreter sc;
+
+public LoopTest(String name)
+{
+  super(name);
+}
+
+public void tearDown() throws Exception
+{
+  sc = null;
+  super.tearDown();
+}
+
+/** The configurations: tree, register VM, JIT */
+private void start ( int engine ) throws Exception
+{
+  SchemeInterpreter.Options options = TestUtils.options( engine );
+  options.loops = true;
+  sc = new SchemeInterpreter( options );
+}
+
+/** The instructions of a procedure, including nested lambdas */
+public void testLoops () throws Exception
+{
+  for ( int engine = 0; engine < 3; ++engine )
+  {
+    start( engine );
+    assertEquals( "4950", TestUtils.eval( sc, "(do ((i 0 (+ i 1)) (sum 0 (+ sum i))) ((= i 100) sum))" ) );
+    TestUtils.eval( sc, "(define (count n) (let loop ((i 0) (acc '())) (if (= i n) acc (loop (+ i 1) (cons i acc)))))" );
+    assertEquals( "(2 1 0)", TestUtils.eval( sc, "(count 3)" ) );
+    assertEquals( "(4 3 2 1 0)", TestUtils.eval( sc, "(count 5)" ) );
+    // The new values are computed from the old ones
+    assertEquals( "(2 1)", TestUtils.eval( sc, "(let swap ((a 1) (b 2) (n 3)) (if (= n 0) (list a b) (swap b a (- n 1))))" ) );
+    // Many iterations run in constant space
+    assertEquals( "1000000", TestUtils.eval( sc, "(let loop ((i 0)) (if (< i 1000000) (loop (+ i 1)) i))" ) );
+    // A loop with an unchanged parameter and internal definitions
+    assertEquals( "30", TestUtils.eval( sc, "(let loop ((i 0) (step 3) (sum 0))" +
+                                            "  (define next (+ sum step))" +
+                                            "  (if (= i 10) sum (loop (+ i 1) step next)))" ) );
+  }
+}
+
+/** A loop must not break the tail calls leaving it */
+public void testTailCalls () throws Exception
+{
+  for ( int engine = 0; engine < 4; ++engine )
+  {
+    start( engine % 3 );
+    if (engine == 3)
+    {
+      SchemeInterpreter.Options options = TestUtils.options( 0 );
+      options.loops = true;
+      options.specialize = true;
+      sc = new SchemeInterpreter( options );
+    }
+    TestUtils.eval( sc, "(define (f n)" +
+                        "  (let loop ((i 0))" +
+                        "    (if (< i 3) (loop (+ i 1)) (if (= n 0) 'done (f (- n 1))))))" );
+    assertEquals( "done", TestUtils.eval( sc, "(f 200000)" ) );
+  }
+}
+
+public void testConverted () throws Exception
+{
+  start( 0 );
+  TestUtils.eval( sc, "(define (f n) (let loop ((i 0)) (if (< i n) (loop (+ i 1)) i)))" );
+  String code = TestUtils.code( sc, "f" );
+  assertFalse( code, code.startsWith( "(loop" ) ); // only the inner procedure is a loop
+  assertTrue( code, code.indexOf( "(loop " ) > 0 && code.indexOf( "(jump (1 " ) > 0 );
+  assertEquals( "5", TestUtils.eval( sc, "(f 5)" ) );
+
+  TestUtils.eval( sc, "(define (g n) (let loop ((i 0)) (if (< i n) (loop (+ i 1)) (lambda () i))))" );
+  code = TestUtils.code( sc, "g" );
+  assertTrue( code, code.indexOf( "(jump" ) < 0 );
+
+  SchemeInterpreter.Options options = new SchemeInterpreter.Options();
+  options.loops = false;
+  sc = new SchemeInterpreter( options );
+  TestUtils.eval( sc, "(define (f n) (let loop ((i 0)) (if (< i n) (loop (+ i 1)) i)))" );
+  code = TestUtils.code( sc, "f" );
+  assertTrue( code, code.indexOf( "(jump" ) < 0 );
+}
+
+public void testNotConverted () throws Exception
+{
+  for ( int engine = 0; engine < 3; ++engine )
+  {
+    start( engine );
+    // Each iteration captures its own binding
+    assertEquals( "(0 1 2)",
+                  TestUtils.eval( sc, "(map (lambda (p) (p)) (let loop ((i 0) (acc '()))" +
+                                      "  (if (= i 3) (reverse acc) (loop (+ i 1) (cons (lambda () i) acc)))))" ) );
+    // The loop variable escapes
+    assertEquals( "3", TestUtils.eval( sc, "(let ((k #f)) (let loop ((i 0)) (set! k loop) (if (< i 3) (loop (+ i 1)) i)))" ) );
+    // A non-tail self call
+    assertEquals( "6", TestUtils.eval( sc, "(let loop ((i 3)) (if (= i 0) 0 (+ i (loop (- i 1)))))" ) );
+    // The loop variable is assigned
+    assertEquals( "done", TestUtils.eval( sc, "(let loop ((i 0)) (if (= i 2) (begin (set! loop (lambda (x) 'done)) (loop i)) (loop (+ i 1))))" ) );
+  }
+}
+
+public void testReenter () throws Exception
+{
+  start( 1 );
+  TestUtils.eval( sc, "(define k #f)" +
+                      "(define (capture i) (call/cc (lambda (c) (if (= i 1) (set! k c)) i)))" +
+                      "(define (run) (let loop ((i 0) (acc '()))" +
+                      "  (if (= i 3) (reverse acc) (loop (+ i 1) (cons (capture i) acc)))))" +
+                      "(define r '())" );
+  assertTrue( TestUtils.code( sc, "run" ).indexOf( "(jump" ) > 0 );
+  TestUtils.eval( sc, "(set! r (cons (run) r))" );
+  // The continuation resumes the second iteration, whose parameters are intact
+  TestUtils.eval( sc, "(k 5)" );
+  assertEquals( "((0 5 2) (0 1 2))", TestUtils.eval( sc, "r" ) );
+  TestUtils.eval( sc, "(k 6)" );
+  assertEquals( "((0 6 2) (0 5 2) (0 1 2))", TestUtils.eval( sc, "r" ) );
+}
+
+public static Test suite()
+{
+  return new TestSuite(LoopTest.class);
+}
+} // LoopTest
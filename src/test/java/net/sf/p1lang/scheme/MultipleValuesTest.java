@@ -0,0 +1,141 @@
+package net.sf.p1lang.scheme;
+
+import java.util.concurrent.Callable;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * Tests multiple values, let-values and the forms built on it.
+ *
+ * @author T.Mikov
+ */
+public class MultipleValuesTest extends TestCase
+{
+private SchemeInterpreter sc;
+
+public MultipleValuesTest(String name)
+{
+  super(name);
+}
+
+public void tearDown() throws Exception
+{
+  sc = null;
+  super.tearDown();
+}
+
+/** The configurations: tree, register VM, JIT */
+private void start ( int engine ) throws Exception
+{
+  SchemeInterpreter.Options options = TestUtils.options( engine );
+  sc = new SchemeInterpreter( options );
+}
+
+public void testValues () throws Exception
+{
+  for ( int engine = 0; engine < 3; ++engine )
+  {
+    start( engine );
+    assertEquals( "3", TestUtils.eval( sc, "(call-with-values (lambda () (values 1 2)) (lambda (a b) (+ a b)))" ) );
+    assertEquals( "(1 2 3)", TestUtils.eval( sc, "(call-with-values (lambda () (values 1 2 3)) list)" ) );
+    assertEquals( "(5)", TestUtils.eval( sc, "(call-with-values (lambda () 5) list)" ) );
+    assertEquals( "()", TestUtils.eval( sc, "(call-with-values values list)" ) );
+    assertEquals( "(1 (2 3))", TestUtils.eval( sc, "(receive (a . rest) (values 1 2 3) (list a rest))" ) );
+    assertEquals( "(1 2 3)", TestUtils.eval( sc, "(receive all (values 1 2 3) all)" ) );
+    assertEquals( "(1 2 3)", TestUtils.eval( sc, "(let-values (((a b) (values 1 2)) ((c) (values 3))) (list a b c))" ) );
+    // let-values evaluates all expressions in the outer scope, let*-values in sequence
+    assertEquals( "(2 1)", TestUtils.eval( sc, "(let ((a 1) (b 2)) (let-values (((a) (values b)) ((b) (values a))) (list a b)))" ) );
+    assertEquals( "(1 2 3)", TestUtils.eval( sc, "(let*-values (((a b) (values 1 2)) ((c) (values (+ a b)))) (list a b c))" ) );
+    assertEquals( "(4 . 5)", TestUtils.eval( sc, "(receive (a b) (apply values '(4 5)) (cons a b))" ) );
+    // Values as parameters of values
+    assertEquals( "(1 (2 3) 4)", TestUtils.eval( sc, "(receive x (values 1 (values 2 3) 4) (list (car x) (call-with-values (lambda () (cadr x)) list) (caddr x)))" ) );
+    // values as a first-class procedure
+    assertEquals( "(1 2)", TestUtils.eval( sc, "(let ((v values)) (receive x (v 1 2) x))" ) );
+    assertEquals( "(1 2)", TestUtils.eval( sc, "(let ((cwv call-with-values)) (cwv (lambda () (values 1 2)) list))" ) );
+    // Values returned through procedure calls and tail calls
+    TestUtils.eval( sc, "(define (divmod a b) (values (quotient a b) (remainder a b)))" +
+                        "(define (divmod2 a b) (divmod a b))" );
+    assertEquals( "(3 1)", TestUtils.eval( sc, "(receive (q r) (divmod2 7 2) (list q r))" ) );
+  }
+}
+
+public void testErrors () throws Exception
+{
+  for ( int engine = 0; engine < 3; ++engine )
+  {
+    start( engine );
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(receive (a b) (values 1) a)" );
+    }});
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(receive (a b) (values 1 2 3) a)" );
+    }});
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(receive (a b . c) (values 1) a)" );
+    }});
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(let-values (((a a) (values 1 2))) a)" );
+    }});
+  }
+}
+
+public void testDynamicWind () throws Exception
+{
+  for ( int engine = 0; engine < 3; ++engine )
+  {
+    start( engine );
+    // The after thunk returns values of its own
+    assertEquals( "(1 2)", TestUtils.eval( sc, "(receive x (dynamic-wind (lambda () #f) (lambda () (values 1 2))" +
+                                               "  (lambda () (values 3 4))) x)" ) );
+  }
+}
+
+public void testCarrier () throws Exception
+{
+  start( 0 );
+  Object a = sc.eval( "(values 1 2)" );
+  assertTrue( a instanceof MultipleValues );
+  assertEquals( "1 2", a.toString() );
+  assertEquals( "", TestUtils.eval( sc, "(values)" ) );
+  // A single value is returned as itself
+  assertEquals( "5", TestUtils.eval( sc, "(values 5)" ) );
+}
+
+public void testEscape () throws Exception
+{
+  for ( int engine = 0; engine < 3; ++engine )
+  {
+    start( engine );
+    // Values used as data aren't changed by later values
+    TestUtils.eval( sc, "(define (two a b) (values a b))" );
+    assertEquals( "(1 2)", TestUtils.eval( sc, "(let ((y (list (two 1 2)))) (two 7 8) (receive x (car y) x))" ) );
+    assertEquals( "false", TestUtils.eval( sc, "(eq? (two 1 2) (two 3 4))" ) );
+    TestUtils.eval( sc, "(define saved (two 5 6)) (define v (vector (two 1 2)))" );
+    assertEquals( "(5 6 1 2)", TestUtils.eval( sc,
+      "(begin (two 3 4) (receive (a b) saved (receive (c d) (vector-ref v 0) (list a b c d))))" ) );
+    // Received twice, and passed through a procedure
+    TestUtils.eval( sc, "(define (id x) x)" );
+    assertEquals( "(5 6 5 6)", TestUtils.eval( sc,
+      "(receive (a b) (id saved) (receive (c d) saved (list a b c d)))" ) );
+  }
+}
+
+public void testCoroutine () throws Exception
+{
+  for ( int engine = 0; engine < 2; ++engine )
+  {
+    start( engine );
+    // The values are returned from another context
+    TestUtils.eval( sc, "(define co (make-coroutine (lambda (x) (yield (values 1 2)) (values 3 4 5))))" );
+    assertEquals( "(1 2)", TestUtils.eval( sc, "(receive x (resume co) x)" ) );
+    assertEquals( "(3 4 5)", TestUtils.eval( sc, "(receive x (resume co) x)" ) );
+  }
+}
+
+public static Test suite()
+{
+  return new TestSuite(MultipleValuesTest.class);
+}
+} // MultipleValuesTest
@@ -0,0 +1,114 @@
+package net.sf.p1lang.scheme;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * Optimizer Tester.
+ *
+ * @author T.Mikov
+ */
+public class OptimizerTest extends TestCase
+{
+private SchemeInterpreter sc;
+
+public OptimizerTest(String name)
+{
+  super(name);
+}
+
+public void setUp() throws Exception
+{
+  super.setUp();
+  SchemeInterpreter.Options options = new SchemeInterpreter.Options();
+  options.optimize = true;
+  options.specialize = false;
+  options.jitThreshold = 0;
+  options.flatClosures = false;
+  options.inlineCaches = false;
+  options.vm = false;
+  sc = new SchemeInterpreter( options );
+}
+
+public void tearDown() throws Exception
+{
+  sc = null;
+  super.tearDown();
+}
+
+private Lambda lambda ( String name ) throws SchemeError
+{
+  return sc.getTopLevelClosure( name ).lambda;
+}
+
+public void testFold () throws Exception
+{
+  TestUtils.eval( sc, "(define (f) (+ 1 (+ 2 3)))" +
+                      "(define (g) (__%builtin StringLength (__%builtin SymbolToString 'abc)))" );
+  assertEquals( "6", TestUtils.eval( sc, "(f)" ) );
+  assertEquals( "(lit 6)", lambda( "f" ).body.toString() );
+  assertEquals( 2, lambda( "f" ).optimizerLog.length );
+  assertTrue( lambda( "f" ).optimizerLog[1].contains( "folded" ) );
+  assertEquals( "3", TestUtils.eval( sc, "(g)" ) );
+  assertEquals( "(lit 3)", lambda( "g" ).body.toString() );
+}
+
+public void testNoFoldErrors () throws Exception
+{
+  TestUtils.eval( sc, "(define (f) (car 5))" +
+                      "(define (g) (cons 1 2))" );
+  assertNull( lambda( "f" ).optimizerLog );
+  TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+    return TestUtils.eval( sc, "(f)" );
+  }});
+  // Not pure
+  assertTrue( lambda( "g" ).body.toString().contains( "Cons" ) );
+  assertTrue( TestUtils.eval( sc, "(eq? (g) (g))" ).equals( "false" ) );
+}
+
+public void testDeadBranch () throws Exception
+{
+  TestUtils.eval( sc, "(define (f x) (if (eq? 'a 'a) x (car x)))" +
+                      "(define (g x) (if (null? '(1)) (car x) (cdr x)))" );
+  assertEquals( "5", TestUtils.eval( sc, "(f 5)" ) );
+  assertTrue( lambda( "f" ).body instanceof AST.Var );
+  assertEquals( "(2)", TestUtils.eval( sc, "(g '(1 2))" ) );
+  assertFalse( lambda( "g" ).body.toString().contains( "Car" ) );
+}
+
+public void testBegin () throws Exception
+{
+  TestUtils.eval( sc, "(define (f x) (begin 1 x (pair? x) (begin (set! x 2) 3) (begin) x))" +
+                      "(define (g x) (set! x 1) (if (eq? 1 1) (begin (set! x (+ x 1)) x) 0))" );
+  assertEquals( "2", TestUtils.eval( sc, "(f 5)" ) );
+  assertEquals( "(begin (set! x:0:1 (lit 2)) (var x:0:1))", lambda( "f" ).body.toString() );
+  assertTrue( Arrays.toString( lambda( "f" ).optimizerLog ).contains( "dropped" ) );
+  assertEquals( "2", TestUtils.eval( sc, "(g 5)" ) );
+  assertTrue( lambda( "g" ).body instanceof AST.Begin );
+  assertEquals( 3, ((AST.Begin) lambda( "g" ).body).m_body.length );
+  assertTrue( Arrays.toString( lambda( "g" ).optimizerLog ).contains( "flattened" ) );
+}
+
+public void testSideEffects () throws Exception
+{
+  TestUtils.eval( sc, "(define n 0)" +
+                      "(define (inc) (set! n (+ n 1)) n)" +
+                      "(define (f) (begin (inc) (car (list (inc))) 'done))" );
+  assertEquals( "done", TestUtils.eval( sc, "(f)" ) );
+  assertEquals( "2", TestUtils.eval( sc, "n" ) );
+}
+
+public void testTopLevel () throws Exception
+{
+  assertEquals( "6", TestUtils.eval( sc, "(if (not (pair? 1)) (+ 2 4) (car 1))" ) );
+}
+
+public static Test suite()
+{
+  return new TestSuite(OptimizerTest.class);
+}
+} // OptimizerTest
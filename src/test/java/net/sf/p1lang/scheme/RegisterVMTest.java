@@ -0,0 +1,163 @@
+package net.sf.p1lang.scheme;
+
+import java.util.concurrent.Callable;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * RegisterVM Tester.
+ *
+ * @author T.Mikov
+ */
+public class RegisterVMTest extends TestCase
+{
+private SchemeInterpreter sc;
+
+public RegisterVMTest(String name)
+{
+  super(name);
+}
+
+public void setUp() throws Exception
+{
+  super.setUp();
+  SchemeInterpreter.Options options = new SchemeInterpreter.Options();
+  options.vm = true;
+  sc = new SchemeInterpreter( options );
+}
+
+public void tearDown() throws Exception
+{
+  sc = null;
+  super.tearDown();
+}
+
+public void testCalls () throws Exception
+{
+  assertTrue( sc.getTopLevelClosure( "map" ).lambda.body instanceof RegisterVM.Body );
+  TestUtils.eval( sc, "(define (fib n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))" );
+  assertEquals( "6765", TestUtils.eval( sc, "(fib 20)" ) );
+  TestUtils.eval( sc, "(define (tak x y z) (if (not (< y x)) z" +
+                      "  (tak (tak (- x 1) y z) (tak (- y 1) z x) (tak (- z 1) x y))))" );
+  assertEquals( "7", TestUtils.eval( sc, "(tak 18 12 6)" ) );
+  assertEquals( "(2 3 4)", TestUtils.eval( sc, "(map (lambda (x) (+ x 1)) '(1 2 3))" ) );
+  assertEquals( "(1 2 3 4)", TestUtils.eval( sc, "(apply list 1 2 '(3 4))" ) );
+  assertEquals( "(1 (2 3))", TestUtils.eval( sc, "((lambda (a . b) (list a b)) 1 2 3)" ) );
+  assertEquals( "#(1 2)", TestUtils.eval( sc, "(vector (car '(1)) (fib 3))" ) );
+}
+
+public void testDeepRecursion () throws Exception
+{
+  TestUtils.eval( sc, "(define (count n) (if (eq? n 0) 0 (+ 1 (count (- n 1)))))" );
+  assertEquals( "200000", TestUtils.eval( sc, "(count 200000)" ) );
+  TestUtils.eval( sc, "(define (loop n) (if (eq? n 0) 'done (loop (- n 1))))" );
+  assertEquals( "done", TestUtils.eval( sc, "(loop 1000000)" ) );
+}
+
+public void testVariables () throws Exception
+{
+  TestUtils.eval( sc, "(define (counter)" +
+                      "  (let ((n 0)) (lambda () (set! n (+ n 1)) n)))" +
+                      "(define c (counter))" );
+  assertEquals( "1", TestUtils.eval( sc, "(c)" ) );
+  assertEquals( "2", TestUtils.eval( sc, "(c)" ) );
+  TestUtils.eval( sc, "(define (f x) (let ((y (car (list x)))) (set! y (+ y (car (list 1)))) y))" );
+  assertEquals( "11", TestUtils.eval( sc, "(f 10)" ) );
+}
+
+public void testCallCC () throws Exception
+{
+  TestUtils.eval( sc, "(define (find p l)" +
+                      "  (call/cc (lambda (return)" +
+                      "    (for-each (lambda (x) (if (p x) (return x))) l) #f)))" );
+  assertEquals( "3", TestUtils.eval( sc, "(find (lambda (x) (> x 2)) '(1 2 3 4))" ) );
+  assertEquals( "false", TestUtils.eval( sc, "(find (lambda (x) (> x 5)) '(1 2 3 4))" ) );
+}
+
+public void testReentrant () throws Exception
+{
+  // Multi-shot, after the call/cc has returned
+  TestUtils.eval( sc, "(define r '())" +
+                      "(define k #f)" );
+  TestUtils.eval( sc, "(set! r (cons (call/cc (lambda (c) (set! k c) 1)) r))" );
+  assertEquals( "(1)", TestUtils.eval( sc, "r" ) );
+  TestUtils.eval( sc, "(k 2)" );
+  TestUtils.eval( sc, "(k 3)" );
+  assertEquals( "(3 2 1)", TestUtils.eval( sc, "r" ) );
+
+  // Deep stack
+  TestUtils.eval( sc, "(define saved #f)" +
+                      "(define (deep n)" +
+                      "  (if (eq? n 0) (call/cc (lambda (k) (set! saved k) 0)) (+ 1 (deep (- n 1)))))" );
+  assertEquals( "10000", TestUtils.eval( sc, "(deep 10000)" ) );
+  assertEquals( "10005", TestUtils.eval( sc, "(saved 5)" ) );
+  assertEquals( "10007", TestUtils.eval( sc, "(saved 7)" ) );
+
+  // Tail call/cc
+  TestUtils.eval( sc, "(define (loop n) (if (eq? n 0) 'ok (call/cc (lambda (k) (loop (- n 1))))))" );
+  assertEquals( "ok", TestUtils.eval( sc, "(loop 100000)" ) );
+}
+
+public void testGenerator () throws Exception
+{
+  TestUtils.eval( sc, "(define (make-gen lst)" +
+                      "  (define return #f)" +
+                      "  (define resume #f)" +
+                      "  (define (start)" +
+                      "    (for-each (lambda (x) (call/cc (lambda (k) (set! resume k) (return x)))) lst)" +
+                      "    (return 'done))" +
+                      "  (lambda ()" +
+                      "    (call/cc (lambda (r)" +
+                      "      (set! return r)" +
+                      "      (if resume (resume #f) (start))))))" );
+  TestUtils.eval( sc, "(define g (make-gen '(1 2 3)))" );
+  assertEquals( "(1 2 3 done)", TestUtils.eval( sc, "(list (g) (g) (g) (g))" ) );
+  // Resumed from separate evaluations
+  TestUtils.eval( sc, "(define g (make-gen '(a b)))" );
+  assertEquals( "a", TestUtils.eval( sc, "(g)" ) );
+  assertEquals( "b", TestUtils.eval( sc, "(g)" ) );
+  assertEquals( "done", TestUtils.eval( sc, "(g)" ) );
+}
+
+public void testBacktracking () throws Exception
+{
+  TestUtils.eval( sc, "(define fail-stack '())" +
+                      "(define (fail)" +
+                      "  (if (null? fail-stack) #f" +
+                      "      (let ((k (car fail-stack))) (set! fail-stack (cdr fail-stack)) (k 'retry))))" +
+                      "(define (amb choices)" +
+                      "  (call/cc (lambda (k)" +
+                      "    (for-each (lambda (c)" +
+                      "                (call/cc (lambda (next)" +
+                      "                  (set! fail-stack (cons next fail-stack))" +
+                      "                  (k c))))" +
+                      "              choices)" +
+                      "    (fail))))" );
+  assertEquals( "(3 4 5)", TestUtils.eval( sc,
+        "(let* ((a (amb '(1 2 3 4 5 6 7))) (b (amb '(1 2 3 4 5 6 7))) (c (amb '(1 2 3 4 5 6 7))))" +
+        "  (if (= (* c c) (+ (* a a) (* b b))) (list a b c) (fail)))" ) );
+}
+
+public void testErrors () throws Exception
+{
+  TestUtils.eval( sc, "(define (f x) (+ 1 (x)))" );
+  TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+    return TestUtils.eval( sc, "(f 1)" );
+  }});
+  TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+    return TestUtils.eval( sc, "(f car)" );
+  }});
+  TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+    return TestUtils.eval( sc, "(f (lambda () 'a))" );
+  }});
+  // The interpreter is still usable
+  assertEquals( "2", TestUtils.eval( sc, "(f (lambda () 1))" ) );
+}
+
+public static Test suite()
+{
+  return new TestSuite(RegisterVMTest.class);
+}
+} // RegisterVMTest
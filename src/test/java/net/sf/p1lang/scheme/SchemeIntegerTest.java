@@ -166,6 +166,28 @@ public void testMulti () throws Exception
 }
 
 
+private static void unboxed ( long a, long b )
+{
+  BigInteger x = BigInteger.valueOf(a), y = BigInteger.valueOf(b);
+  assertEquals( SchemeInteger.make( x.add(y) ), SchemeFixInt.add( a, b ) );
+  assertEquals( SchemeInteger.make( x.subtract(y) ), SchemeFixInt.sub( a, b ) );
+  assertEquals( SchemeInteger.make( x.multiply(y) ), SchemeFixInt.mul( a, b ) );
+}
+
+public void testUnboxed () throws Exception
+{
+  long[] values = { 0, 1, -1, 2, -2, 3, 1L<<31, -(1L<<31), 1L<<32, 3037000499L, 3037000500L,
+                    MA/2, MI/2, MA-1, MI+1, MA, MI };
+  for ( long a : values )
+    for ( long b : values )
+      unboxed( a, b );
+
+  // Small integers are shared
+  assertSame( SchemeFixInt.make(4095), SchemeFixInt.add( 4000, 95 ) );
+  assertSame( SchemeFixInt.make(-128), SchemeFixInt.sub( 0, 128 ) );
+}
+
+
 private SchemeNumber nrat ( long a, long b )
 {
   return SchemeRational.make( SchemeFixInt.make(a), SchemeFixInt.make(b) );
@@ -0,0 +1,47 @@
+package net.sf.p1lang.scheme;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * Specializer Tester.
+ *
+ * @author T.Mikov
+ */
+public class SpecializerTest extends TestCase
+{
+private SchemeInterpreter sc;
+
+public SpecializerTest(String name)
+{
+  super(name);
+}
+
+public void setUp() throws Exception
+{
+  super.setUp();
+  SchemeInterpreter.Options options = TestUtils.options( 0 );
+  options.specialize = true;
+  options.inlineCaches = false;
+  sc = new SchemeInterpreter( options );
+}
+
+public void tearDown() throws Exception
+{
+  sc = null;
+  super.tearDown();
+}
+
+public void testCalls () throws Exception
+{
+  TestUtils.eval( sc, "(define (fib n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))" );
+  assertEquals( "610", TestUtils.eval( sc, "(fib 15)" ) );
+  assertTrue( sc.getTopLevelClosure( "fib" ).lambda.body.toString().contains( "(apply1 " ) );
+}
+
+public static Test suite()
+{
+  return new TestSuite(SpecializerTest.class);
+}
+} // SpecializerTest
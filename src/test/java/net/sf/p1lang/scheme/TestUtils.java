@@ -7,7 +7,12 @@
 
 package net.sf.p1lang.scheme;
 
+import java.io.PrintWriter;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.Callable;
+
+import junit.framework.Assert;
 
 public final class TestUtils
 {
@@ -23,5 +28,50 @@ public static Lexer lexer ( String str )
   return lexer( new SymbolMap(), str );
 }
 
+/**
+ * The options of the configurations most tests run in: 0 is the tree interpreter, 1 the register
+ * VM and 2 the JIT, compiling every lambda on its first call. Tests enable their own features on
+ * top of these.
+ */
+public static SchemeInterpreter.Options options ( int engine )
+{
+  SchemeInterpreter.Options options = new SchemeInterpreter.Options();
+  options.vm = engine == 1;
+  options.jitThreshold = engine == 2 ? 1 : 0;
+  return options;
+}
+
+/** Format a value the way {@code display} does */
+public static String display ( Object value )
+{
+  StringWriter sw = new StringWriter();
+  PrintWriter pw = new PrintWriter( sw );
+  Misc.display( pw, value );
+  pw.flush();
+  return sw.toString();
+}
+
+/** Evaluate a string and format the result the way {@code display} does */
+public static String eval ( SchemeInterpreter sc, String str ) throws SchemeError
+{
+  return display( sc.eval( str ) );
+}
+
+/** The code of the lambda of the closure which an expression evaluates to */
+public static String code ( SchemeInterpreter sc, String proc ) throws SchemeError
+{
+  return ((Closure) sc.eval( proc )).lambda.body.toString();
+}
+
+public static void needError ( Callable<?> c )
+{
+  try
+  {
+    c.call();
+    Assert.fail( "Exception not thrown" );
+  }
+  catch (Exception ignored){};
+}
+
 } // class
 
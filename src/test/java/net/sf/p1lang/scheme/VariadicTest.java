@@ -0,0 +1,122 @@
+package net.sf.p1lang.scheme;
+
+import java.util.concurrent.Callable;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.framework.TestCase;
+
+/**
+ * Tests the variadic arithmetic and comparison operations, expanded into builtins and as
+ * procedures.
+ *
+ * @author T.Mikov
+ */
+public class VariadicTest extends TestCase
+{
+private SchemeInterpreter sc;
+
+public VariadicTest(String name)
+{
+  super(name);
+}
+
+public void tearDown() throws Exception
+{
+  sc = null;
+  super.tearDown();
+}
+
+/** The configurations: tree, register VM, JIT */
+private void start ( int engine ) throws Exception
+{
+  SchemeInterpreter.Options options = TestUtils.options( engine );
+  sc = new SchemeInterpreter( options );
+}
+
+public void testExpanded () throws Exception
+{
+  for ( int engine = 0; engine < 3; ++engine )
+  {
+    start( engine );
+    assertEquals( "(0 1 10 1 24 -5 7 1/2 2)",
+                  TestUtils.eval( sc, "(list (+) (+ 1) (+ 1 2 3 4) (*) (* 2 3 4) (- 5) (- 10 1 2) (/ 2) (/ 12 2 3))" ) );
+    assertEquals( "(true false true true false true false)",
+                  TestUtils.eval( sc, "(list (< 1 2 3) (< 1 3 2) (<= 1 1 2) (= 1 1 1) (= 1 1 2) (> 3 2 1) (>= 3 3 4))" ) );
+    assertEquals( "(2.0 3 1 3 1.0 1/2)",
+                  TestUtils.eval( sc, "(list (max 1 2.0) (max 3) (min 1 2 3) (max 1 2 3) (min 1.0 2) (max 1/2 1/3))" ) );
+    // Every parameter is evaluated once, in order
+    assertEquals( "(false (a b c))",
+                  TestUtils.eval( sc, "(let* ((l '()) (f (lambda (x v) (set! l (cons x l)) v)))" +
+                                      "  (let ((r (< (f 'a 2) (f 'b 1) (f 'c 3)))) (list r (reverse l))))" ) );
+  }
+}
+
+public void testProcedures () throws Exception
+{
+  for ( int engine = 0; engine < 3; ++engine )
+  {
+    start( engine );
+    assertEquals( "(6 -5 24 0 (1 3 6))",
+                  TestUtils.eval( sc, "(list (apply + '(1 2 3)) (apply - '(5)) (apply * 1 2 '(3 4)) (apply + '())" +
+                                      "      (map (lambda (n) (apply + (iota n 1))) '(1 2 3)))" ) );
+    assertEquals( "(-4 1/6 true false 9 1.0)",
+                  TestUtils.eval( sc, "(let ((sub -) (div /) (lt <) (ge >=) (mx max) (mn min))" +
+                                      "  (list (sub 1 2 3) (div 1 2 3) (lt 1 2 3) (ge 3 3 4) (mx 4 9 2) (mn 1.0 2)))" ) );
+    assertEquals( "true", TestUtils.eval( sc, "(procedure? +)" ) );
+  }
+}
+
+public void testErrors () throws Exception
+{
+  for ( int engine = 0; engine < 3; ++engine )
+  {
+    start( engine );
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(< 1)" );
+    }});
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(-)" );
+    }});
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(apply max '())" );
+    }});
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(let ((lt <)) (lt 1))" );
+    }});
+    TestUtils.needError( new Callable<Object>() { public Object call () throws Exception {
+      return TestUtils.eval( sc, "(apply + 1 '(a))" );
+    }});
+  }
+}
+
+public void testTypeErrors () throws Exception
+{
+  String[] exprs = {
+    "(< 1 2 'a)", "(- 1 2 'a)", "(* 'a 2 3)", "(max 1 'a)", "(/ 1 2 'a)", "(+ 1 'a)",
+    "(apply < (list 1 2 'a))", "(apply min (list 'a 1))", "(let ((f +)) (f 1 2 'a))",
+    "((lambda (x) (>= 3 2 x)) 'a)"
+  };
+  for ( int engine = 0; engine < 3; ++engine )
+  {
+    start( engine );
+    for ( String expr : exprs )
+    {
+      try
+      {
+        TestUtils.eval( sc, expr );
+        fail( expr + ": exception not thrown" );
+      }
+      catch (EvalError e)
+      {
+        assertTrue( expr + ": " + e.getMessage(), e.getMessage().contains( "a is not a number" ) );
+      }
+    }
+  }
+}
+
+public static Test suite()
+{
+  return new TestSuite(VariadicTest.class);
+}
+} // VariadicTest